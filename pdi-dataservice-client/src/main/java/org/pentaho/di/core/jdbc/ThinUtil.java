@@ -405,6 +405,26 @@ public class ThinUtil {
     return index;
   }
 
+  /**
+   * @return index of {@code keyword} as a separate word outside of quotes and brackets, or -1
+   */
+  public static int indexOfKeyword( String clause, String keyword, int start ) throws KettleSQLException {
+    String upper = clause.toUpperCase();
+    for ( int index = start; index < upper.length(); index++ ) {
+      index = skipChars( upper, index, '"', '\'', '(' );
+      if ( index >= upper.length() ) {
+        break;
+      }
+      int end = index + keyword.length();
+      if ( upper.startsWith( keyword, index )
+        && ( index == 0 || Character.isWhitespace( upper.charAt( index - 1 ) ) )
+        && ( end == upper.length() || Character.isWhitespace( upper.charAt( end ) ) ) ) {
+        return index;
+      }
+    }
+    return -1;
+  }
+
   public static int findNext( String sql, char nextChar, int index ) throws KettleSQLException {
     return findNext( sql, nextChar, index, false );
   }
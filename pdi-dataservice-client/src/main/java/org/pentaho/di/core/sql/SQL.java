@@ -423,4 +423,11 @@ public class SQL {
     return namespace;
   }
 
+  /**
+   * @return the service alias, or the service name if there is none
+   */
+  public String getServiceAlias() {
+    return serviceAlias;
+  }
+
 }
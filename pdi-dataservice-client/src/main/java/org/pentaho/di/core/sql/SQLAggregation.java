@@ -23,7 +23,8 @@
 package org.pentaho.di.core.sql;
 
 public enum SQLAggregation {
-  SUM( "SUM" ), AVG( "AVG" ), MIN( "MIN" ), MAX( "MAX" ), COUNT( "COUNT" );
+  SUM( "SUM" ), AVG( "AVG" ), MIN( "MIN" ), MAX( "MAX" ), COUNT( "COUNT" ),
+  APPROX_COUNT_DISTINCT( "APPROX_COUNT_DISTINCT" ), APPROX_PERCENTILE( "APPROX_PERCENTILE" );
 
   private String keyWord;
 
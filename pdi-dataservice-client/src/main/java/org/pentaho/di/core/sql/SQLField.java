@@ -40,6 +40,7 @@ public class SQLField {
   private ValueMetaInterface valueMeta;
   private boolean countStar;
   private boolean countDistinct;
+  private double percentile;
   private boolean orderField;
   private boolean ascending;
   private String expression;
@@ -158,6 +159,25 @@ public class SQLField {
 
         }
 
+        // APPROX_PERCENTILE(foo, 0.95)
+        //
+        if ( SQLAggregation.APPROX_PERCENTILE == aggregation ) {
+          List<String> argsList = ThinUtil.splitClause( field, ',', '"' );
+          if ( argsList.size() != 2 ) {
+            throw new KettleSQLException( "The APPROX_PERCENTILE function requires exactly 2 arguments" );
+          }
+          field = ThinUtil.stripQuoteTableAlias( Const.trim( argsList.get( 0 ) ), tableAlias );
+          try {
+            percentile = Double.parseDouble( Const.trim( argsList.get( 1 ) ) );
+          } catch ( NumberFormatException e ) {
+            throw new KettleSQLException( "Invalid percentile [" + argsList.get( 1 ) + "] in clause [" + fieldClause
+              + "]", e );
+          }
+          if ( percentile < 0 || percentile > 1 ) {
+            throw new KettleSQLException( "The percentile must be between 0 and 1 in clause [" + fieldClause + "]" );
+          }
+        }
+
         if ( strings.size() == 2 ) {
           alias = ThinUtil.stripQuotes( Const.trim( strings.get( 1 ) ), '"' );
         }
@@ -182,8 +202,12 @@ public class SQLField {
 
               switch ( selectField.getAggregation() ) {
                 case COUNT:
+                case APPROX_COUNT_DISTINCT:
                   valueMeta = new ValueMeta( field, ValueMetaInterface.TYPE_INTEGER, 15 );
                   break;
+                case APPROX_PERCENTILE:
+                  valueMeta = new ValueMeta( field, ValueMetaInterface.TYPE_NUMBER );
+                  break;
                 case MIN:
                 case MAX:
                 case AVG:
@@ -357,6 +381,13 @@ public class SQLField {
     return countDistinct;
   }
 
+  /**
+   * @return the fraction of values below the result of APPROX_PERCENTILE
+   */
+  public double getPercentile() {
+    return percentile;
+  }
+
   /**
    * @param countDistinct
    *          the countDistinct to set
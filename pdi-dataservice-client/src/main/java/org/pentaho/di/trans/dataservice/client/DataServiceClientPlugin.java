@@ -22,6 +22,7 @@
 
 package org.pentaho.di.trans.dataservice.client;
 
+import org.pentaho.di.core.Const;
 import org.pentaho.di.core.database.BaseDatabaseMeta;
 import org.pentaho.di.core.database.DatabaseInterface;
 import org.pentaho.di.core.database.DatabaseMeta;
@@ -71,6 +72,9 @@ public class DataServiceClientPlugin extends BaseDatabaseMeta implements Databas
     HashMap<String, String> defaults = new HashMap<String, String>();
 
     defaults.put( prefix + ThinConnection.ARG_WEBAPPNAME, DEFAULT_WEBAPPNAME );
+    // Each copy of a step reads its own partition once partitioning is enabled
+    defaults.put( prefix + ThinConnection.ARG_PARTITION, "${" + Const.INTERNAL_VARIABLE_STEP_UNIQUE_NUMBER + "}" );
+    defaults.put( prefix + ThinConnection.ARG_PARTITIONS, "${" + Const.INTERNAL_VARIABLE_STEP_UNIQUE_COUNT + "}" );
 
     return defaults;
   }
@@ -174,7 +178,7 @@ public class DataServiceClientPlugin extends BaseDatabaseMeta implements Databas
    */
   @Override
   public boolean supportsPreparedStatementMetadataRetrieval() {
-    return false;
+    return true;
   }
 
   @Override public boolean supportsAutoGeneratedKeys() {
@@ -27,7 +27,7 @@ import org.pentaho.di.core.annotations.LifecyclePlugin;
 import org.pentaho.di.core.lifecycle.LifeEventHandler;
 import org.pentaho.di.core.lifecycle.LifecycleException;
 import org.pentaho.di.core.lifecycle.LifecycleListener;
-import org.pentaho.di.trans.dataservice.jdbc.ThinConnection;
+import org.pentaho.di.trans.dataservice.jdbc.LocalClientRegistry;
 import org.pentaho.di.ui.spoon.Spoon;
 
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -40,6 +40,8 @@ public class DataServiceLifecycleListener implements LifecycleListener {
   private final AtomicReference<DataServiceClientService> dataServiceClientService =
     new AtomicReference<DataServiceClientService>();
   private final AtomicBoolean enabled = new AtomicBoolean( false );
+  // Service this listener registered as the default local client, which it alone may remove
+  private DataServiceClientService registered;
 
   public DataServiceLifecycleListener() {
     this( new Supplier<Spoon>() {
@@ -81,9 +83,11 @@ public class DataServiceLifecycleListener implements LifecycleListener {
 
       clientService.setRepository( spoon.getRepository() );
       clientService.setMetaStore( spoon.getMetaStore() );
-      ThinConnection.localClient = clientService;
-    } else {
-      ThinConnection.localClient = null;
+      LocalClientRegistry.getInstance().register( LocalClientRegistry.DEFAULT_KEY, clientService );
+      registered = clientService;
+    } else if ( registered != null ) {
+      LocalClientRegistry.getInstance().unregister( LocalClientRegistry.DEFAULT_KEY, registered );
+      registered = null;
     }
   }
 }
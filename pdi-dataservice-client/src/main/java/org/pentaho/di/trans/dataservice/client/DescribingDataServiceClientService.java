@@ -0,0 +1,41 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.client;
+
+import java.io.DataInputStream;
+import java.sql.SQLException;
+
+/**
+ * A client service able to describe the results of a query without running it. Statements of other client services
+ * run the query limited to a single row and read only its header instead.
+ */
+public interface DescribingDataServiceClientService extends DataServiceClientService {
+  /**
+   * Describe the results of a query without producing any rows.
+   *
+   * @return a stream containing only the result header: service name, transformation names and object ids, and the
+   * row metadata, as read by {@link org.pentaho.di.trans.dataservice.jdbc.ThinResultFactory#loadHeader}
+   */
+  DataInputStream describe( String sql ) throws SQLException;
+}
@@ -0,0 +1,38 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.client;
+
+import java.sql.SQLException;
+
+/**
+ * A client service running in the same JVM as the driver. Rows are handed to the driver as objects, without being
+ * serialized to a stream and read back.
+ */
+public interface LocalDataServiceClientService extends DataServiceClientService {
+  /**
+   * Start a query whose rows will be put in the returned hand-off as they are produced. The service must stop
+   * producing rows once {@link RowHandoff#isClosed()}.
+   */
+  RowHandoff queryRows( String sql, int maxRows ) throws SQLException;
+}
@@ -0,0 +1,173 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.client;
+
+import org.pentaho.di.trans.dataservice.jdbc.ThinResultHeader;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passes the rows of an in-process query from the service transformation to the driver, in batches through a bounded
+ * queue. The producing thread blocks while the queue is full, so a slow reader applies back pressure to the service.
+ * <p/>
+ * Rows are shared as they are, so the producer must not reuse row arrays after putting them.
+ */
+public class RowHandoff {
+  public static final int DEFAULT_BATCH_SIZE = 500;
+  public static final int DEFAULT_CAPACITY = 8;
+  private static final long OFFER_MILLIS = 100;
+  private static final List<Object[]> END_OF_ROWS = new ArrayList<Object[]>( 0 );
+
+  private final ThinResultHeader header;
+  private final int batchSize;
+  private final BlockingQueue<List<Object[]>> queue;
+  private volatile boolean closed;
+  private volatile Throwable failure;
+
+  // Owned by the producer
+  private List<Object[]> batch;
+
+  // Owned by the consumer
+  private Iterator<Object[]> rows;
+  private boolean finished;
+
+  public RowHandoff( ThinResultHeader header ) {
+    this( header, DEFAULT_BATCH_SIZE, DEFAULT_CAPACITY );
+  }
+
+  /**
+   * @param batchSize number of rows passed at a time
+   * @param capacity  number of batches queued before the producer blocks
+   */
+  public RowHandoff( ThinResultHeader header, int batchSize, int capacity ) {
+    this.header = header;
+    this.batchSize = batchSize;
+    this.queue = new ArrayBlockingQueue<List<Object[]>>( capacity );
+    this.batch = new ArrayList<Object[]>( batchSize );
+  }
+
+  /**
+   * @return service and transformation names, object ids and the row metadata of the rows
+   */
+  public ThinResultHeader getHeader() {
+    return header;
+  }
+
+  /**
+   * Add a row, blocking while the queue is full
+   *
+   * @return false if the reader has closed the hand-off and no more rows should be produced
+   */
+  public boolean putRow( Object[] row ) throws InterruptedException {
+    if ( closed ) {
+      return false;
+    }
+    batch.add( row );
+    if ( batch.size() >= batchSize ) {
+      List<Object[]> full = batch;
+      batch = new ArrayList<Object[]>( batchSize );
+      return offer( full );
+    }
+    return true;
+  }
+
+  /**
+   * Signal the end of the rows, passing on any rows not yet queued
+   */
+  public void finish() throws InterruptedException {
+    if ( !batch.isEmpty() ) {
+      List<Object[]> last = batch;
+      batch = new ArrayList<Object[]>( 0 );
+      offer( last );
+    }
+    offer( END_OF_ROWS );
+  }
+
+  /**
+   * End the rows with an error, which is thrown to the reader once it has read the rows already queued
+   */
+  public void fail( Throwable cause ) throws InterruptedException {
+    failure = cause;
+    offer( END_OF_ROWS );
+  }
+
+  /**
+   * @return true if the reader has closed the hand-off
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+
+  private boolean offer( List<Object[]> rows ) throws InterruptedException {
+    while ( !closed ) {
+      if ( queue.offer( rows, OFFER_MILLIS, TimeUnit.MILLISECONDS ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the next row, or null at the end of the rows or once closed
+   */
+  public Object[] takeRow() throws SQLException {
+    while ( rows == null || !rows.hasNext() ) {
+      if ( finished || closed ) {
+        return null;
+      }
+      List<Object[]> next;
+      try {
+        next = queue.take();
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+        throw new SQLException( "Interrupted while waiting for rows", e );
+      }
+      if ( next == END_OF_ROWS ) {
+        finished = true;
+        Throwable failure = this.failure;
+        if ( failure != null && !closed ) {
+          throw new SQLException( "Unable to produce rows: " + failure.getMessage(), failure );
+        }
+      }
+      rows = next.iterator();
+    }
+    return rows.next();
+  }
+
+  /**
+   * Discard any queued rows and stop the producer. May be called from any thread; a reader blocked in
+   * {@link #takeRow()} returns null.
+   */
+  public void close() {
+    closed = true;
+    queue.clear();
+    queue.offer( END_OF_ROWS );
+  }
+}
@@ -0,0 +1,228 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.collect.Sets;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Set;
+
+/**
+ * Running value of one aggregate function for one group. Sums, averages and counts accumulate into primitives, so
+ * adding a row allocates nothing.
+ */
+abstract class Accumulator {
+
+  /**
+   * @param value raw value of the aggregated column, may be null
+   */
+  abstract void add( Object value ) throws KettleValueException;
+
+  /**
+   * @return the aggregated value, typed as {@link ValueMetaInterface#getType()} of the aggregate's output column
+   */
+  abstract Object result();
+
+  static class Count extends Accumulator {
+    private final boolean countNulls;
+    private long count;
+
+    /**
+     * @param countNulls true for COUNT(*)
+     */
+    Count( boolean countNulls ) {
+      this.countNulls = countNulls;
+    }
+
+    @Override void add( Object value ) {
+      if ( countNulls || value != null ) {
+        count++;
+      }
+    }
+
+    @Override Object result() {
+      return count;
+    }
+  }
+
+  static class CountDistinct extends Accumulator {
+    private final Set<Object> values = Sets.newHashSet();
+
+    @Override void add( Object value ) {
+      if ( value != null ) {
+        values.add( value );
+      }
+    }
+
+    @Override Object result() {
+      return (long) values.size();
+    }
+  }
+
+  static class ApproxCountDistinct extends Accumulator {
+    private final HyperLogLog sketch = new HyperLogLog();
+
+    @Override void add( Object value ) {
+      sketch.add( value );
+    }
+
+    @Override Object result() {
+      return sketch.cardinality();
+    }
+  }
+
+  static class ApproxPercentile extends Accumulator {
+    private final ValueMetaInterface valueMeta;
+    private final double percentile;
+    private final TDigest sketch = new TDigest();
+
+    ApproxPercentile( ValueMetaInterface valueMeta, double percentile ) {
+      this.valueMeta = valueMeta;
+      this.percentile = percentile;
+    }
+
+    @Override void add( Object value ) throws KettleValueException {
+      if ( value != null ) {
+        sketch.add( valueMeta.getNumber( value ) );
+      }
+    }
+
+    @Override Object result() {
+      return sketch.quantile( percentile );
+    }
+  }
+
+  static class LongSum extends Accumulator {
+    private final ValueMetaInterface valueMeta;
+    private long sum;
+    private boolean empty = true;
+
+    LongSum( ValueMetaInterface valueMeta ) {
+      this.valueMeta = valueMeta;
+    }
+
+    @Override void add( Object value ) throws KettleValueException {
+      if ( value != null ) {
+        sum += valueMeta.getInteger( value );
+        empty = false;
+      }
+    }
+
+    @Override Object result() {
+      return empty ? null : sum;
+    }
+  }
+
+  static class DoubleSum extends Accumulator {
+    private final ValueMetaInterface valueMeta;
+    private final boolean average;
+    private double sum;
+    private long count;
+
+    /**
+     * @param average true to divide the sum by the number of values added
+     */
+    DoubleSum( ValueMetaInterface valueMeta, boolean average ) {
+      this.valueMeta = valueMeta;
+      this.average = average;
+    }
+
+    @Override void add( Object value ) throws KettleValueException {
+      if ( value != null ) {
+        sum += valueMeta.getNumber( value );
+        count++;
+      }
+    }
+
+    @Override Object result() {
+      if ( count == 0 ) {
+        return null;
+      }
+      return average ? sum / count : sum;
+    }
+  }
+
+  static class BigSum extends Accumulator {
+    private final ValueMetaInterface valueMeta;
+    private final boolean average;
+    private BigDecimal sum = BigDecimal.ZERO;
+    private long count;
+
+    /**
+     * @param average true to divide the sum by the number of values added
+     */
+    BigSum( ValueMetaInterface valueMeta, boolean average ) {
+      this.valueMeta = valueMeta;
+      this.average = average;
+    }
+
+    @Override void add( Object value ) throws KettleValueException {
+      if ( value != null ) {
+        sum = sum.add( valueMeta.getBigNumber( value ) );
+        count++;
+      }
+    }
+
+    @Override Object result() {
+      if ( count == 0 ) {
+        return null;
+      }
+      return average ? sum.divide( BigDecimal.valueOf( count ), MathContext.DECIMAL128 ) : sum;
+    }
+  }
+
+  static class Extreme extends Accumulator {
+    private final ValueMetaInterface valueMeta;
+    private final boolean maximum;
+    private Object extreme;
+
+    /**
+     * @param maximum true for MAX, false for MIN
+     */
+    Extreme( ValueMetaInterface valueMeta, boolean maximum ) {
+      this.valueMeta = valueMeta;
+      this.maximum = maximum;
+    }
+
+    @Override void add( Object value ) throws KettleValueException {
+      if ( value != null ) {
+        if ( extreme == null ) {
+          extreme = value;
+        } else {
+          int compare = valueMeta.compare( value, extreme );
+          if ( maximum ? compare > 0 : compare < 0 ) {
+            extreme = value;
+          }
+        }
+      }
+    }
+
+    @Override Object result() {
+      return extreme;
+    }
+  }
+}
@@ -26,8 +26,10 @@ import com.google.common.base.Throwables;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.trans.dataservice.jdbc.annotation.NotSupported;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.Reader;
+import java.io.StringReader;
 import java.math.BigDecimal;
 import java.net.URL;
 import java.sql.Array;
@@ -65,6 +67,14 @@ public abstract class BaseResultSet extends ThinBase implements ResultSet {
 
   protected abstract int size() throws SQLException;
 
+  /**
+   * Called before a value of the current row is read, for result sets which decode rows lazily
+   *
+   * @param index zero-based column index
+   */
+  protected void decodeValue( Object[] row, int index ) throws Exception {
+  }
+
   @Override @NotSupported
   public boolean rowDeleted() throws SQLException {
     throw new SQLFeatureNotSupportedException( "Result set is read-only" );
@@ -183,14 +193,22 @@ public abstract class BaseResultSet extends ThinBase implements ResultSet {
     return getBigDecimal( findColumn( columnName ) );
   }
 
-  @Override @NotSupported
-  public InputStream getBinaryStream( int arg0 ) throws SQLException {
-    throw new SQLFeatureNotSupportedException( "Binary streams are not supported" );
+  @Override
+  public InputStream getBinaryStream( int index ) throws SQLException {
+    return getValue( index, new ValueRetriever<InputStream>() {
+      @Override public InputStream value( int index ) throws Exception {
+        if ( currentRow[index] instanceof SpilledLob ) {
+          return ( (SpilledLob) currentRow[index] ).getBinaryStream();
+        }
+        byte[] bytes = rowMeta.getBinary( currentRow, index );
+        return bytes == null ? null : new ByteArrayInputStream( bytes );
+      }
+    } );
   }
 
-  @Override @NotSupported
-  public InputStream getBinaryStream( String arg0 ) throws SQLException {
-    throw new SQLFeatureNotSupportedException( "Binary streams are not supported" );
+  @Override
+  public InputStream getBinaryStream( String columnName ) throws SQLException {
+    return getBinaryStream( findColumn( columnName ) );
   }
 
   @Override @NotSupported
@@ -232,6 +250,9 @@ public abstract class BaseResultSet extends ThinBase implements ResultSet {
   public byte[] getBytes( int index ) throws SQLException {
     return getValue( index, new ValueRetriever<byte[]>() {
       @Override public byte[] value( int index ) throws Exception {
+        if ( currentRow[index] instanceof SpilledLob ) {
+          return ( (SpilledLob) currentRow[index] ).getBytes();
+        }
         return rowMeta.getBinary( currentRow, index );
       }
     } );
@@ -242,14 +263,22 @@ public abstract class BaseResultSet extends ThinBase implements ResultSet {
     return getBytes( findColumn( columnName ) );
   }
 
-  @Override @NotSupported
-  public Reader getCharacterStream( int arg0 ) throws SQLException {
-    throw new SQLFeatureNotSupportedException( "Character streams are not supported" );
+  @Override
+  public Reader getCharacterStream( int index ) throws SQLException {
+    return getValue( index, new ValueRetriever<Reader>() {
+      @Override public Reader value( int index ) throws Exception {
+        if ( currentRow[index] instanceof SpilledLob ) {
+          return ( (SpilledLob) currentRow[index] ).getCharacterStream();
+        }
+        String string = rowMeta.getString( currentRow, index );
+        return string == null ? null : new StringReader( string );
+      }
+    } );
   }
 
-  @Override @NotSupported
-  public Reader getCharacterStream( String arg0 ) throws SQLException {
-    throw new SQLFeatureNotSupportedException( "Character streams are not supported" );
+  @Override
+  public Reader getCharacterStream( String columnName ) throws SQLException {
+    return getCharacterStream( findColumn( columnName ) );
   }
 
   @Override @NotSupported
@@ -330,6 +359,9 @@ public abstract class BaseResultSet extends ThinBase implements ResultSet {
   public Object getObject( int index ) throws SQLException {
     return getValue( index, new ValueRetriever<Object>() {
       @Override public Object value( int index ) throws Exception {
+        if ( currentRow[index] instanceof SpilledLob ) {
+          return ( (SpilledLob) currentRow[index] ).materialize();
+        }
         return currentRow[index];
       }
     } );
@@ -395,6 +427,9 @@ public abstract class BaseResultSet extends ThinBase implements ResultSet {
   public String getString( int index ) throws SQLException {
     return getValue( index, new ValueRetriever<String>() {
       @Override public String value( int index ) throws Exception {
+        if ( currentRow[index] instanceof SpilledLob ) {
+          return ( (SpilledLob) currentRow[index] ).getString();
+        }
         return rowMeta.getString( currentRow, index );
       }
     } );
@@ -908,6 +943,7 @@ public abstract class BaseResultSet extends ThinBase implements ResultSet {
     }
 
     try {
+      decodeValue( currentRow, index - 1 );
       T value = valueRetriever.value( index - 1 );
       lastNull = value == null;
       return value;
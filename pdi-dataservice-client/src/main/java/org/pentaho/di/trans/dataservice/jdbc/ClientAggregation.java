@@ -0,0 +1,623 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.pentaho.di.core.Condition;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleSQLException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaBigNumber;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.core.sql.SQLAggregation;
+import org.pentaho.di.core.sql.SQLField;
+import org.pentaho.di.core.sql.SQLFields;
+import org.pentaho.di.trans.dataservice.client.DataServiceClientService;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * Executes the GROUP BY, aggregate functions and HAVING of a query in the client instead of the service
+ * transformation. The server is only asked for the filtered rows of the columns being grouped and aggregated, which
+ * are then aggregated in hash tables partitioned by group across threads. Groups are sorted with an
+ * {@link ExternalSort} when the query has an ORDER BY.
+ * <p/>
+ * APPROX_COUNT_DISTINCT and APPROX_PERCENTILE are only computed here, with a {@link HyperLogLog} or {@link TDigest}
+ * sketch per group, so queries using them are aggregated in the client even if it hasn't been enabled.
+ * <p/>
+ * Queries with constants, IIF, DISTINCT or LIMIT are left to the server.
+ */
+class ClientAggregation {
+  static final int BATCH_SIZE = 1024;
+  private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool( new ThreadFactoryBuilder()
+    .setDaemon( true ).setNameFormat( "pdi-dataservice-aggregation-%d" ).build() );
+  private static final List<Object[]> END_OF_ROWS = new ArrayList<Object[]>( 0 );
+  private static final Pattern APPROXIMATE = Pattern.compile( "APPROX_(COUNT_DISTINCT|PERCENTILE)\\s*\\(",
+    Pattern.CASE_INSENSITIVE );
+
+  private final String rawSql;
+  private final int[] groupColumns;
+  private final List<Aggregate> aggregates;
+  private final RowMetaInterface outputRowMeta;
+  private final int[] outputSources;
+  private final Condition having;
+  private final RowMetaInterface havingRowMeta;
+  private final int[] havingSources;
+  private final int[] sortColumns;
+  private final boolean[] sortAscending;
+
+  /**
+   * Sources of output values are encoded as the index of a group column, or as -(aggregate index + 1)
+   */
+  private ClientAggregation( String rawSql, int[] groupColumns, List<Aggregate> aggregates,
+                             RowMetaInterface outputRowMeta, int[] outputSources, Condition having,
+                             RowMetaInterface havingRowMeta, int[] havingSources, int[] sortColumns,
+                             boolean[] sortAscending ) {
+    this.rawSql = rawSql;
+    this.groupColumns = groupColumns;
+    this.aggregates = aggregates;
+    this.outputRowMeta = outputRowMeta;
+    this.outputSources = outputSources;
+    this.having = having;
+    this.havingRowMeta = havingRowMeta;
+    this.havingSources = havingSources;
+    this.sortColumns = sortColumns;
+    this.sortAscending = sortAscending;
+  }
+
+  /**
+   * @return true if {@code sql} uses aggregate functions the server can't compute
+   */
+  static boolean requiresClient( String sql ) {
+    return APPROXIMATE.matcher( sql ).find();
+  }
+
+  /**
+   * @return a plan to aggregate {@code sqlString} in the client, or null if the query has no aggregation or must be
+   * executed by the server
+   */
+  static ClientAggregation plan( String sqlString, DataServiceClientService client ) throws SQLException {
+    try {
+      SQL sql = new SQL( sqlString );
+      if ( Const.isEmpty( sql.getGroupClause() ) && !Const.NVL( sql.getSelectClause(), "" ).contains( "(" ) ) {
+        return null;
+      }
+      if ( !Const.isEmpty( sql.getLimitClause() ) ) {
+        return null;
+      }
+      RowMetaInterface serviceFields = null;
+      for ( ThinServiceInformation serviceInformation : client.getServiceInformation() ) {
+        if ( serviceInformation.getName().equalsIgnoreCase( sql.getServiceName() ) ) {
+          serviceFields = serviceInformation.getServiceFields();
+        }
+      }
+      if ( serviceFields == null ) {
+        return null;
+      }
+      sql.parse( serviceFields );
+      return plan( sql, serviceFields );
+    } catch ( KettleSQLException e ) {
+      // Let the server report queries it can't parse either
+      return null;
+    }
+  }
+
+  private static ClientAggregation plan( SQL sql, RowMetaInterface serviceFields ) throws KettleSQLException {
+    SQLFields selectFields = sql.getSelectFields();
+    List<SQLField> groupFields = sql.getGroupFields().getFields();
+    if ( selectFields.isDistinct() || !selectFields.getIifFunctionFields().isEmpty()
+      || !selectFields.getConstantFields().isEmpty() ) {
+      return null;
+    }
+    if ( groupFields.isEmpty() && !selectFields.hasAggregates() ) {
+      return null;
+    }
+
+    List<String> rawColumns = Lists.newArrayList();
+    int[] groupColumns = new int[groupFields.size()];
+    for ( int i = 0; i < groupColumns.length; i++ ) {
+      SQLField groupField = groupFields.get( i );
+      if ( groupField.getAggregation() != null || groupField.getIif() != null || groupField.getValueData() != null ) {
+        return null;
+      }
+      groupColumns[i] = rawColumn( rawColumns, groupField.getField() );
+    }
+
+    List<Aggregate> aggregates = Lists.newArrayList();
+    RowMetaInterface outputRowMeta = new RowMeta();
+    List<SQLField> fields = selectFields.getFields();
+    int[] outputSources = new int[fields.size()];
+    for ( int i = 0; i < outputSources.length; i++ ) {
+      SQLField field = fields.get( i );
+      String expression = field.getAggregation() != null ? field.getExpression() : field.getField();
+      String name = Const.NVL( field.getAlias(), expression );
+      if ( field.getAggregation() != null ) {
+        Aggregate aggregate = Aggregate.create( field, rawColumns, name );
+        if ( aggregate == null ) {
+          return null;
+        }
+        outputSources[i] = -aggregates.size() - 1;
+        aggregates.add( aggregate );
+        outputRowMeta.addValueMeta( aggregate.outputMeta );
+      } else {
+        outputSources[i] = indexOfField( groupFields, field.getField() );
+        if ( outputSources[i] < 0 ) {
+          return null;
+        }
+        outputRowMeta.addValueMeta( renamed( field.getValueMeta(), name ) );
+      }
+    }
+
+    Condition having = null;
+    RowMetaInterface havingRowMeta = new RowMeta();
+    List<String> havingNames = Lists.newArrayList();
+    if ( sql.getHavingCondition() != null && !sql.getHavingCondition().isEmpty() ) {
+      having = sql.getHavingCondition().getCondition();
+      addValueNames( having, havingNames );
+    }
+    int[] havingSources = new int[havingNames.size()];
+    for ( int i = 0; i < havingSources.length; i++ ) {
+      String name = havingNames.get( i );
+      int output = indexOfOutput( fields, name );
+      if ( output >= 0 ) {
+        havingSources[i] = outputSources[output];
+        havingRowMeta.addValueMeta( renamed( outputRowMeta.getValueMeta( output ), name ) );
+      } else {
+        // Aggregates only used by the HAVING clause
+        SQLField field = new SQLField( selectFields.getTableAlias(), name, serviceFields );
+        Aggregate aggregate = field.getAggregation() != null ? Aggregate.create( field, rawColumns, name ) : null;
+        if ( aggregate == null ) {
+          return null;
+        }
+        havingSources[i] = -aggregates.size() - 1;
+        aggregates.add( aggregate );
+        havingRowMeta.addValueMeta( aggregate.outputMeta );
+      }
+    }
+
+    List<SQLField> orderFields = sql.getOrderFields() != null
+      ? sql.getOrderFields().getFields() : Collections.<SQLField>emptyList();
+    int[] sortColumns = new int[orderFields.size()];
+    boolean[] sortAscending = new boolean[orderFields.size()];
+    for ( int i = 0; i < sortColumns.length; i++ ) {
+      SQLField orderField = orderFields.get( i );
+      sortColumns[i] = indexOfOutput( fields, orderField.getField() );
+      if ( sortColumns[i] < 0 && orderField.getAlias() != null ) {
+        sortColumns[i] = indexOfOutput( fields, orderField.getAlias() );
+      }
+      if ( sortColumns[i] < 0 ) {
+        // Ordered by something which isn't selected
+        return null;
+      }
+      sortAscending[i] = orderField.isAscending();
+    }
+
+    if ( rawColumns.isEmpty() ) {
+      // Only COUNT(*), but the query still needs a column
+      rawColumns.add( serviceFields.getValueMeta( 0 ).getName() );
+    }
+    StringBuilder rawSql = new StringBuilder( "SELECT " );
+    rawSql.append( '"' ).append( Joiner.on( "\", \"" ).join( rawColumns ) ).append( '"' );
+    rawSql.append( " FROM " );
+    if ( !Const.isEmpty( sql.getNamespace() ) ) {
+      rawSql.append( '"' ).append( sql.getNamespace() ).append( "\"." );
+    }
+    rawSql.append( '"' ).append( sql.getServiceName() ).append( '"' );
+    rawSql.append( " \"" ).append( selectFields.getTableAlias() ).append( '"' );
+    if ( !Const.isEmpty( sql.getWhereClause() ) ) {
+      rawSql.append( " WHERE " ).append( sql.getWhereClause() );
+    }
+
+    return new ClientAggregation( rawSql.toString(), groupColumns, aggregates, outputRowMeta, outputSources, having,
+      havingRowMeta, havingSources, sortColumns, sortAscending );
+  }
+
+  private static int rawColumn( List<String> rawColumns, String field ) {
+    for ( int i = 0; i < rawColumns.size(); i++ ) {
+      if ( rawColumns.get( i ).equalsIgnoreCase( field ) ) {
+        return i;
+      }
+    }
+    rawColumns.add( field );
+    return rawColumns.size() - 1;
+  }
+
+  private static int indexOfField( List<SQLField> fields, String field ) {
+    for ( int i = 0; i < fields.size(); i++ ) {
+      if ( fields.get( i ).getField().equalsIgnoreCase( field ) ) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int indexOfOutput( List<SQLField> fields, String name ) {
+    for ( int i = 0; i < fields.size(); i++ ) {
+      SQLField field = fields.get( i );
+      String expression = field.getAggregation() != null ? field.getExpression() : field.getField();
+      if ( name.equalsIgnoreCase( field.getAlias() ) || name.equalsIgnoreCase( expression ) ) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static void addValueNames( Condition condition, List<String> names ) {
+    if ( condition.isAtomic() ) {
+      for ( String name : new String[] { condition.getLeftValuename(), condition.getRightValuename() } ) {
+        if ( !Const.isEmpty( name ) && !names.contains( name ) ) {
+          names.add( name );
+        }
+      }
+    } else {
+      for ( Condition child : condition.getChildren() ) {
+        addValueNames( child, names );
+      }
+    }
+  }
+
+  private static ValueMetaInterface renamed( ValueMetaInterface valueMeta, String name ) {
+    ValueMetaInterface renamed = valueMeta.clone();
+    renamed.setName( name );
+    return renamed;
+  }
+
+  /**
+   * @return query for the rows to aggregate
+   */
+  String getRawSql() {
+    return rawSql;
+  }
+
+  /**
+   * Aggregate every row of {@code rawResults}, which must be the results of {@link #getRawSql()}
+   *
+   * @param parallelism number of threads to aggregate with
+   * @param maxRows     maximum number of groups to return, or 0 for all of them
+   * @param sortMemory  estimated size in bytes of the groups to sort in memory, if the query has an ORDER BY
+   */
+  BaseResultSet aggregate( ResultSet rawResults, int parallelism, int maxRows, long sortMemory )
+    throws SQLException {
+    List<HashAggregator> partitions;
+    // Without GROUP BY every row belongs to the one group, which can't be split between threads
+    if ( parallelism > 1 && groupColumns.length > 0 ) {
+      partitions = aggregateParallel( rawResults, parallelism );
+    } else {
+      HashAggregator aggregator = new HashAggregator();
+      int columns = rawResults.getMetaData().getColumnCount();
+      try {
+        while ( rawResults.next() ) {
+          aggregator.add( readRow( rawResults, columns ) );
+        }
+      } catch ( KettleValueException e ) {
+        throw new SQLException( "Unable to aggregate rows", e );
+      }
+      partitions = Collections.singletonList( aggregator );
+    }
+
+    if ( groupColumns.length == 0 && partitions.get( 0 ).groups.isEmpty() ) {
+      // Aggregates without GROUP BY always return a row, even without any input
+      partitions.get( 0 ).groups.put( Arrays.asList(), newAccumulators() );
+    }
+
+    ExternalSort sort = sortColumns.length > 0
+      ? new ExternalSort( outputRowMeta, sortColumns, sortAscending, sortMemory ) : null;
+    List<Object[]> rows = Lists.newArrayList();
+    try {
+      for ( HashAggregator partition : partitions ) {
+        for ( Iterator<Map.Entry<List<Object>, Accumulator[]>> groups = partition.groups.entrySet().iterator();
+              groups.hasNext(); ) {
+          Map.Entry<List<Object>, Accumulator[]> group = groups.next();
+          if ( having == null || evaluateHaving( group ) ) {
+            if ( sort != null ) {
+              sort.add( values( outputSources, group ) );
+            } else {
+              rows.add( values( outputSources, group ) );
+              if ( maxRows > 0 && rows.size() >= maxRows ) {
+                return new RowsResultSet( outputRowMeta, rows );
+              }
+            }
+          }
+          // Let sorted groups be collected once they have been written to a run
+          groups.remove();
+        }
+      }
+    } catch ( SQLException e ) {
+      if ( sort != null ) {
+        sort.discard();
+      }
+      throw e;
+    }
+    return sort != null ? sort.sort( maxRows ) : new RowsResultSet( outputRowMeta, rows );
+  }
+
+  private boolean evaluateHaving( Map.Entry<List<Object>, Accumulator[]> group ) throws SQLException {
+    try {
+      return having.evaluate( havingRowMeta, values( havingSources, group ) );
+    } catch ( Exception e ) {
+      throw new SQLException( "Unable to evaluate HAVING condition", e );
+    }
+  }
+
+  private List<HashAggregator> aggregateParallel( ResultSet rawResults, int parallelism ) throws SQLException {
+    List<Worker> workers = Lists.newArrayListWithCapacity( parallelism );
+    List<Future<HashAggregator>> futures = Lists.newArrayListWithCapacity( parallelism );
+    List<List<Object[]>> batches = Lists.newArrayListWithCapacity( parallelism );
+    for ( int i = 0; i < parallelism; i++ ) {
+      Worker worker = new Worker();
+      workers.add( worker );
+      futures.add( EXECUTOR.submit( worker ) );
+      batches.add( new ArrayList<Object[]>( BATCH_SIZE ) );
+    }
+
+    boolean sent = false;
+    try {
+      int columns = rawResults.getMetaData().getColumnCount();
+      while ( rawResults.next() ) {
+        Object[] row = readRow( rawResults, columns );
+        int partition = ( groupHash( row ) & Integer.MAX_VALUE ) % parallelism;
+        List<Object[]> batch = batches.get( partition );
+        batch.add( row );
+        if ( batch.size() >= BATCH_SIZE ) {
+          workers.get( partition ).queue.put( batch );
+          batches.set( partition, new ArrayList<Object[]>( BATCH_SIZE ) );
+        }
+      }
+      for ( int i = 0; i < parallelism; i++ ) {
+        if ( !batches.get( i ).isEmpty() ) {
+          workers.get( i ).queue.put( batches.get( i ) );
+        }
+        workers.get( i ).queue.put( END_OF_ROWS );
+      }
+      sent = true;
+
+      List<HashAggregator> partitions = Lists.newArrayListWithCapacity( parallelism );
+      for ( Future<HashAggregator> future : futures ) {
+        partitions.add( future.get() );
+      }
+      return partitions;
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new SQLException( "Interrupted while aggregating rows", e );
+    } catch ( ExecutionException e ) {
+      throw new SQLException( "Unable to aggregate rows", e.getCause() );
+    } finally {
+      if ( !sent ) {
+        for ( Future<HashAggregator> future : futures ) {
+          future.cancel( true );
+        }
+      }
+    }
+  }
+
+  private Object[] readRow( ResultSet rawResults, int columns ) throws SQLException {
+    Object[] row = new Object[columns];
+    for ( int i = 0; i < row.length; i++ ) {
+      row[i] = rawResults.getObject( i + 1 );
+    }
+    return row;
+  }
+
+  private int groupHash( Object[] row ) {
+    int hash = 1;
+    for ( int column : groupColumns ) {
+      hash = 31 * hash + ( row[column] == null ? 0 : row[column].hashCode() );
+    }
+    return hash;
+  }
+
+  private Accumulator[] newAccumulators() {
+    Accumulator[] accumulators = new Accumulator[aggregates.size()];
+    for ( int i = 0; i < accumulators.length; i++ ) {
+      accumulators[i] = aggregates.get( i ).newAccumulator();
+    }
+    return accumulators;
+  }
+
+  private Object[] values( int[] sources, Map.Entry<List<Object>, Accumulator[]> group ) {
+    Object[] values = new Object[sources.length];
+    for ( int i = 0; i < sources.length; i++ ) {
+      int source = sources[i];
+      values[i] = source >= 0 ? group.getKey().get( source ) : group.getValue()[-source - 1].result();
+    }
+    return values;
+  }
+
+  /**
+   * Groups of one partition of the rows
+   */
+  private class HashAggregator {
+    final Map<List<Object>, Accumulator[]> groups = Maps.newHashMap();
+
+    void add( Object[] row ) throws KettleValueException {
+      Object[] key = new Object[groupColumns.length];
+      for ( int i = 0; i < key.length; i++ ) {
+        key[i] = row[groupColumns[i]];
+      }
+      List<Object> groupKey = Arrays.asList( key );
+      Accumulator[] accumulators = groups.get( groupKey );
+      if ( accumulators == null ) {
+        accumulators = newAccumulators();
+        groups.put( groupKey, accumulators );
+      }
+      for ( int i = 0; i < accumulators.length; i++ ) {
+        int column = aggregates.get( i ).column;
+        accumulators[i].add( column < 0 ? null : row[column] );
+      }
+    }
+  }
+
+  /**
+   * Aggregates the batches of rows queued for one partition
+   */
+  private class Worker implements Callable<HashAggregator> {
+    final BlockingQueue<List<Object[]>> queue = new ArrayBlockingQueue<List<Object[]>>( 4 );
+    final HashAggregator aggregator = new HashAggregator();
+
+    @Override public HashAggregator call() throws Exception {
+      Exception failure = null;
+      for ( List<Object[]> batch = queue.take(); batch != END_OF_ROWS; batch = queue.take() ) {
+        // Keep draining the queue after a failure so the reading thread never blocks
+        for ( int i = 0; failure == null && i < batch.size(); i++ ) {
+          try {
+            aggregator.add( batch.get( i ) );
+          } catch ( Exception e ) {
+            failure = e;
+          }
+        }
+      }
+      if ( failure != null ) {
+        throw failure;
+      }
+      return aggregator;
+    }
+  }
+
+  /**
+   * An aggregate function of one raw column
+   */
+  private static class Aggregate {
+    final SQLAggregation function;
+    final int column;
+    final boolean distinct;
+    final double percentile;
+    final ValueMetaInterface valueMeta;
+    final ValueMetaInterface outputMeta;
+
+    /**
+     * @param column index of the raw column, -1 for COUNT(*)
+     */
+    private Aggregate( SQLAggregation function, int column, boolean distinct, double percentile,
+                       ValueMetaInterface valueMeta, ValueMetaInterface outputMeta ) {
+      this.function = function;
+      this.column = column;
+      this.distinct = distinct;
+      this.percentile = percentile;
+      this.valueMeta = valueMeta;
+      this.outputMeta = outputMeta;
+    }
+
+    /**
+     * @return null if the aggregate can't be computed in the client
+     */
+    static Aggregate create( SQLField field, List<String> rawColumns, String name ) {
+      ValueMetaInterface valueMeta = field.getValueMeta();
+      ValueMetaInterface outputMeta;
+      switch ( field.getAggregation() ) {
+        case COUNT:
+        case APPROX_COUNT_DISTINCT:
+          outputMeta = new ValueMetaInteger( name );
+          break;
+        case APPROX_PERCENTILE:
+          if ( valueMeta == null || !valueMeta.isNumeric() ) {
+            return null;
+          }
+          outputMeta = new ValueMetaNumber( name );
+          break;
+        case SUM:
+        case AVG:
+          if ( valueMeta == null ) {
+            return null;
+          }
+          switch ( valueMeta.getType() ) {
+            case ValueMetaInterface.TYPE_INTEGER:
+              outputMeta = field.getAggregation() == SQLAggregation.SUM
+                ? new ValueMetaInteger( name ) : new ValueMetaNumber( name );
+              break;
+            case ValueMetaInterface.TYPE_NUMBER:
+              outputMeta = new ValueMetaNumber( name );
+              break;
+            case ValueMetaInterface.TYPE_BIGNUMBER:
+              outputMeta = new ValueMetaBigNumber( name );
+              break;
+            default:
+              return null;
+          }
+          break;
+        case MIN:
+        case MAX:
+          if ( valueMeta == null ) {
+            return null;
+          }
+          outputMeta = renamed( valueMeta, name );
+          break;
+        default:
+          return null;
+      }
+      int column = field.isCountStar() ? -1 : rawColumn( rawColumns, field.getField() );
+      return new Aggregate( field.getAggregation(), column, field.isCountDistinct(), field.getPercentile(), valueMeta,
+        outputMeta );
+    }
+
+    Accumulator newAccumulator() {
+      switch ( function ) {
+        case COUNT:
+          return distinct ? new Accumulator.CountDistinct() : new Accumulator.Count( column < 0 );
+        case APPROX_COUNT_DISTINCT:
+          return new Accumulator.ApproxCountDistinct();
+        case APPROX_PERCENTILE:
+          return new Accumulator.ApproxPercentile( valueMeta, percentile );
+        case SUM:
+          switch ( valueMeta.getType() ) {
+            case ValueMetaInterface.TYPE_INTEGER:
+              return new Accumulator.LongSum( valueMeta );
+            case ValueMetaInterface.TYPE_BIGNUMBER:
+              return new Accumulator.BigSum( valueMeta, false );
+            default:
+              return new Accumulator.DoubleSum( valueMeta, false );
+          }
+        case AVG:
+          return valueMeta.getType() == ValueMetaInterface.TYPE_BIGNUMBER
+            ? new Accumulator.BigSum( valueMeta, true ) : new Accumulator.DoubleSum( valueMeta, true );
+        case MIN:
+          return new Accumulator.Extreme( valueMeta, false );
+        default:
+          return new Accumulator.Extreme( valueMeta, true );
+      }
+    }
+  }
+}
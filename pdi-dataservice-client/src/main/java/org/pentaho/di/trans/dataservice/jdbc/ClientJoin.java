@@ -0,0 +1,484 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleSQLException;
+import org.pentaho.di.core.jdbc.FoundClause;
+import org.pentaho.di.core.jdbc.ThinUtil;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.core.sql.SQLLimit;
+import org.pentaho.di.trans.dataservice.client.DataServiceClientService;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Executes an inner or left outer equi-join of two data services in the client, since the server only queries one
+ * service at a time:
+ * <pre>
+ * SELECT o.id, c.name FROM orders o LEFT JOIN customers c ON o.customer = c.id WHERE o.amount > 10 LIMIT 100
+ * </pre>
+ * Each service is queried for the columns it contributes, filtered by the conjuncts of the WHERE clause that only
+ * refer to it, and the results are joined by a {@link HashJoin}. Selected columns must be service fields, qualified by
+ * the service alias when the services share a field name. GROUP BY, HAVING and ORDER BY are not supported with a join.
+ */
+class ClientJoin {
+  private static final Pattern JOIN = Pattern.compile( "\\sJOIN\\s", Pattern.CASE_INSENSITIVE );
+
+  private final Source left;
+  private final Source right;
+  private final int[] leftKeys;
+  private final int[] rightKeys;
+  private final boolean leftOuter;
+  private final RowMetaInterface outputRowMeta;
+  private final int[] outputSources;
+  private final int limit;
+
+  private ClientJoin( Builder builder, boolean leftOuter, int limit ) {
+    this.left = builder.left;
+    this.right = builder.right;
+    this.leftKeys = Ints.toArray( builder.leftKeys );
+    this.rightKeys = Ints.toArray( builder.rightKeys );
+    this.leftOuter = leftOuter;
+    this.outputRowMeta = builder.outputRowMeta;
+    this.outputSources = Ints.toArray( builder.outputSources );
+    this.limit = limit;
+  }
+
+  /**
+   * @return a plan to join the services of {@code sqlString} in the client, or null if it doesn't join services
+   * @throws SQLException if it joins services in a way the client can't execute
+   */
+  static ClientJoin plan( String sqlString, DataServiceClientService client ) throws SQLException {
+    if ( !JOIN.matcher( sqlString ).find() ) {
+      return null;
+    }
+    try {
+      FoundClause select = ThinUtil.findClauseWithRest( sqlString, "SELECT", "FROM" );
+      if ( select.getRest() == null ) {
+        return null;
+      }
+      FoundClause from =
+        ThinUtil.findClauseWithRest( select.getRest(), "FROM", "WHERE", "GROUP BY", "ORDER BY", "LIMIT" );
+      String fromClause = Const.trim( Const.NVL( from.getClause(), "" ) );
+      int joinIndex = ThinUtil.indexOfKeyword( fromClause, "JOIN", 0 );
+      if ( joinIndex < 0 ) {
+        return null;
+      }
+      int onIndex = ThinUtil.indexOfKeyword( fromClause, "ON", joinIndex );
+      if ( onIndex < 0 ) {
+        throw new SQLFeatureNotSupportedException( "Joins require an ON clause: " + fromClause );
+      }
+
+      // [INNER | LEFT [OUTER]] JOIN
+      List<String> leftParts = ThinUtil.splitClause( Const.trim( fromClause.substring( 0, joinIndex ) ), ' ', '"' );
+      String joinType = leftParts.size() > 1 ? leftParts.get( leftParts.size() - 1 ).toUpperCase() : "";
+      if ( "OUTER".equals( joinType ) ) {
+        leftParts.remove( leftParts.size() - 1 );
+        joinType = leftParts.size() > 1 ? leftParts.get( leftParts.size() - 1 ).toUpperCase() : "";
+        if ( !"LEFT".equals( joinType ) ) {
+          throw new SQLFeatureNotSupportedException( "Only inner and left outer joins are supported: " + fromClause );
+        }
+      }
+      boolean leftOuter = "LEFT".equals( joinType );
+      if ( "RIGHT".equals( joinType ) || "FULL".equals( joinType ) || "CROSS".equals( joinType ) ) {
+        throw new SQLFeatureNotSupportedException( "Only inner and left outer joins are supported: " + fromClause );
+      }
+      if ( leftOuter || "INNER".equals( joinType ) ) {
+        leftParts.remove( leftParts.size() - 1 );
+      }
+
+      Source left = Source.create( Joiner.on( ' ' ).join( leftParts ), client );
+      Source right = Source.create( fromClause.substring( joinIndex + "JOIN".length(), onIndex ), client );
+      if ( left == null || right == null ) {
+        // Let the server report unknown services
+        return null;
+      }
+      if ( left.alias.equalsIgnoreCase( right.alias ) ) {
+        throw new SQLException( "Joined services need different aliases: " + fromClause );
+      }
+      Builder builder = new Builder( left, right );
+      for ( String condition : splitConjuncts( fromClause.substring( onIndex + "ON".length() ) ) ) {
+        builder.addKey( condition );
+      }
+
+      String whereClause = null;
+      String rest = from.getRest();
+      if ( rest != null && Const.trim( rest ).toUpperCase().startsWith( "WHERE" ) ) {
+        FoundClause where = ThinUtil.findClauseWithRest( rest, "WHERE", "GROUP BY", "HAVING", "ORDER BY", "LIMIT" );
+        whereClause = where.getClause();
+        rest = where.getRest();
+      }
+      int limit = 0;
+      if ( rest != null ) {
+        if ( !Const.trim( rest ).toUpperCase().startsWith( "LIMIT" ) ) {
+          throw new SQLFeatureNotSupportedException( "GROUP BY, HAVING and ORDER BY are not supported with joins" );
+        }
+        SQLLimit sqlLimit = new SQLLimit( ThinUtil.findClauseWithRest( rest, "LIMIT" ).getClause() );
+        if ( sqlLimit.getOffset() > 0 ) {
+          throw new SQLFeatureNotSupportedException( "LIMIT offsets are not supported with joins" );
+        }
+        limit = sqlLimit.getLimit();
+      }
+      if ( !Const.isEmpty( whereClause ) ) {
+        for ( String condition : splitConjuncts( whereClause ) ) {
+          builder.addFilter( condition, leftOuter );
+        }
+      }
+
+      builder.select( Const.trim( select.getClause() ) );
+      return new ClientJoin( builder, leftOuter, limit );
+    } catch ( KettleSQLException e ) {
+      throw new SQLException( "Unable to parse join: " + e.getMessage(), e );
+    }
+  }
+
+  private static List<String> splitConjuncts( String clause ) throws KettleSQLException {
+    List<String> conjuncts = Lists.newArrayList();
+    int start = 0;
+    for ( int index = ThinUtil.indexOfKeyword( clause, "AND", 0 ); index >= 0;
+          index = ThinUtil.indexOfKeyword( clause, "AND", start ) ) {
+      conjuncts.add( Const.trim( clause.substring( start, index ) ) );
+      start = index + "AND".length();
+    }
+    conjuncts.add( Const.trim( clause.substring( start ) ) );
+    return conjuncts;
+  }
+
+  /**
+   * @return query for the rows of the left service
+   */
+  String getLeftSql() {
+    return left.getSql();
+  }
+
+  /**
+   * @return query for the rows of the right service
+   */
+  String getRightSql() {
+    return right.getSql();
+  }
+
+  /**
+   * Join the rows of the two services, which must be the results of {@link #getLeftSql()} and
+   * {@link #getRightSql()}. The returned result set closes them once it is closed.
+   *
+   * @param maxRows     maximum number of rows to return, or 0 for all of them
+   * @param memoryLimit estimated size in bytes of the rows to hold in memory before partitioning to disk
+   */
+  BaseResultSet join( ResultSet leftResults, ResultSet rightResults, int maxRows, long memoryLimit )
+    throws SQLException {
+    HashJoin hashJoin =
+      new HashJoin( left.rowMeta(), leftKeys, right.rowMeta(), rightKeys, leftOuter, memoryLimit );
+    try {
+      hashJoin.open( rows( leftResults ), rows( rightResults ) );
+    } catch ( SQLException e ) {
+      hashJoin.close();
+      throw e;
+    }
+    if ( limit > 0 && ( maxRows <= 0 || limit < maxRows ) ) {
+      maxRows = limit;
+    }
+    return new JoinResultSet( outputRowMeta, hashJoin, outputSources, maxRows, leftResults, rightResults );
+  }
+
+  private static HashJoin.RowSource rows( final ResultSet resultSet ) throws SQLException {
+    final int columns = resultSet.getMetaData().getColumnCount();
+    return new HashJoin.RowSource() {
+      @Override public Object[] next() throws SQLException {
+        if ( !resultSet.next() ) {
+          return null;
+        }
+        Object[] row = new Object[columns];
+        for ( int i = 0; i < row.length; i++ ) {
+          row[i] = resultSet.getObject( i + 1 );
+        }
+        return row;
+      }
+    };
+  }
+
+  /**
+   * One of the joined services, and the columns it is queried for
+   */
+  private static class Source {
+    final String namespace;
+    final String service;
+    final String alias;
+    final RowMetaInterface serviceFields;
+    final List<String> columns = Lists.newArrayList();
+    final List<String> filters = Lists.newArrayList();
+
+    private Source( String namespace, String service, String alias, RowMetaInterface serviceFields ) {
+      this.namespace = namespace;
+      this.service = service;
+      this.alias = alias;
+      this.serviceFields = serviceFields;
+    }
+
+    /**
+     * @param clause service name with an optional namespace and alias
+     * @return null if there is no such service
+     */
+    static Source create( String clause, DataServiceClientService client ) throws SQLException, KettleSQLException {
+      SQL sql = new SQL( "SELECT * FROM " + Const.trim( clause ) );
+      for ( ThinServiceInformation serviceInformation : client.getServiceInformation() ) {
+        if ( serviceInformation.getName().equalsIgnoreCase( sql.getServiceName() ) ) {
+          return new Source( sql.getNamespace(), sql.getServiceName(), sql.getServiceAlias(),
+            serviceInformation.getServiceFields() );
+        }
+      }
+      return null;
+    }
+
+    boolean matches( String qualifier ) {
+      return alias.equalsIgnoreCase( qualifier ) || service.equalsIgnoreCase( qualifier );
+    }
+
+    /**
+     * @return the service field named {@code name}, ignoring case, or null
+     */
+    ValueMetaInterface field( String name ) {
+      for ( ValueMetaInterface valueMeta : serviceFields.getValueMetaList() ) {
+        if ( valueMeta.getName().equalsIgnoreCase( name ) ) {
+          return valueMeta;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * @return index of the field in the rows queried from this service
+     */
+    int column( ValueMetaInterface field ) {
+      int index = columns.indexOf( field.getName() );
+      if ( index < 0 ) {
+        columns.add( field.getName() );
+        index = columns.size() - 1;
+      }
+      return index;
+    }
+
+    RowMetaInterface rowMeta() {
+      RowMetaInterface rowMeta = new RowMeta();
+      for ( String column : columns ) {
+        rowMeta.addValueMeta( field( column ) );
+      }
+      return rowMeta;
+    }
+
+    String getSql() {
+      StringBuilder sql = new StringBuilder( "SELECT " );
+      sql.append( '"' ).append( Joiner.on( "\", \"" ).join( columns ) ).append( '"' );
+      sql.append( " FROM " );
+      if ( !Const.isEmpty( namespace ) ) {
+        sql.append( '"' ).append( namespace ).append( "\"." );
+      }
+      sql.append( '"' ).append( service ).append( '"' );
+      sql.append( " \"" ).append( alias ).append( '"' );
+      if ( !filters.isEmpty() ) {
+        sql.append( " WHERE " ).append( Joiner.on( " AND " ).join( filters ) );
+      }
+      return sql.toString();
+    }
+
+    /**
+     * @return true if {@code condition} refers to a column qualified by this service's alias or name
+     */
+    boolean isReferencedBy( String condition ) throws KettleSQLException {
+      String upper = condition.toUpperCase();
+      for ( String qualifier : new String[] { alias, service } ) {
+        for ( String prefix : new String[] { qualifier + ".", "\"" + qualifier + "\"." } ) {
+          prefix = prefix.toUpperCase();
+          for ( int index = 0; index < upper.length(); index++ ) {
+            index = ThinUtil.skipChars( upper, index, '\'' );
+            if ( upper.startsWith( prefix, index )
+              && ( index == 0 || !Character.isJavaIdentifierPart( upper.charAt( index - 1 ) ) ) ) {
+              return true;
+            }
+          }
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * A service field, as referred to by the query
+   */
+  private static class Column {
+    final Source source;
+    final ValueMetaInterface field;
+
+    Column( Source source, ValueMetaInterface field ) {
+      this.source = source;
+      this.field = field;
+    }
+  }
+
+  private static class Builder {
+    final Source left;
+    final Source right;
+    final List<Integer> leftKeys = Lists.newArrayList();
+    final List<Integer> rightKeys = Lists.newArrayList();
+    final RowMetaInterface outputRowMeta = new RowMeta();
+    final List<Integer> outputSources = Lists.newArrayList();
+
+    Builder( Source left, Source right ) {
+      this.left = left;
+      this.right = right;
+    }
+
+    /**
+     * @param condition equality of a column of each service
+     */
+    void addKey( String condition ) throws SQLException, KettleSQLException {
+      List<String> operands = ThinUtil.splitClause( condition, '=', '"', '\'' );
+      if ( operands.size() != 2 || condition.contains( "<" ) || condition.contains( ">" ) || condition.contains( "!" ) ) {
+        throw new SQLFeatureNotSupportedException( "Only equality of columns is supported in joins: " + condition );
+      }
+      Column first = resolve( operands.get( 0 ) );
+      Column second = resolve( operands.get( 1 ) );
+      if ( first.source == second.source ) {
+        throw new SQLFeatureNotSupportedException( "Join conditions must compare columns of both services: "
+          + condition );
+      }
+      Column leftKey = first.source == left ? first : second;
+      Column rightKey = first.source == left ? second : first;
+      if ( leftKey.field.getType() != rightKey.field.getType() ) {
+        throw new SQLException( "Join keys " + leftKey.field.getName() + " and " + rightKey.field.getName()
+          + " have different types" );
+      }
+      leftKeys.add( left.column( leftKey.field ) );
+      rightKeys.add( right.column( rightKey.field ) );
+    }
+
+    /**
+     * Add a condition of the WHERE clause to the query of the service it refers to
+     */
+    void addFilter( String condition, boolean leftOuter ) throws SQLException, KettleSQLException {
+      boolean leftCondition = left.isReferencedBy( condition );
+      boolean rightCondition = right.isReferencedBy( condition );
+      if ( leftCondition == rightCondition ) {
+        throw new SQLFeatureNotSupportedException(
+          "Conditions of a join must refer to columns of one service, qualified by its alias: " + condition );
+      }
+      if ( rightCondition && leftOuter ) {
+        // Filtering the right service would keep left rows that should be removed
+        throw new SQLFeatureNotSupportedException(
+          "Conditions on the right service of a left join are not supported: " + condition );
+      }
+      ( leftCondition ? left : right ).filters.add( condition );
+    }
+
+    void select( String selectClause ) throws SQLException, KettleSQLException {
+      if ( selectClause.toUpperCase().startsWith( "DISTINCT " ) ) {
+        throw new SQLFeatureNotSupportedException( "DISTINCT is not supported with joins" );
+      }
+      for ( String item : ThinUtil.splitClause( selectClause, ',', '"', '\'', '(' ) ) {
+        item = Const.trim( item );
+        if ( "*".equals( item ) ) {
+          addAll( left );
+          addAll( right );
+        } else if ( item.endsWith( ".*" ) ) {
+          addAll( qualified( item.substring( 0, item.length() - 2 ) ) );
+        } else if ( item.contains( "(" ) ) {
+          throw new SQLFeatureNotSupportedException( "Only columns can be selected with joins: " + item );
+        } else {
+          List<String> parts = ThinUtil.splitClause( item, ' ', '"' );
+          String name = null;
+          if ( parts.size() == 2 ) {
+            name = ThinUtil.stripQuotes( parts.get( 1 ), '"' );
+          } else if ( parts.size() == 3 && "AS".equalsIgnoreCase( parts.get( 1 ) ) ) {
+            name = ThinUtil.stripQuotes( parts.get( 2 ), '"' );
+          } else if ( parts.size() != 1 ) {
+            throw new KettleSQLException( "Unable to parse selected column [" + item + "]" );
+          }
+          Column column = resolve( parts.get( 0 ) );
+          add( column.source, column.field, Const.NVL( name, column.field.getName() ) );
+        }
+      }
+    }
+
+    private void addAll( Source source ) {
+      for ( ValueMetaInterface field : source.serviceFields.getValueMetaList() ) {
+        add( source, field, field.getName() );
+      }
+    }
+
+    private void add( Source source, ValueMetaInterface field, String name ) {
+      int column = source.column( field );
+      outputSources.add( source == left ? column : -column - 1 );
+      ValueMetaInterface valueMeta = field.clone();
+      valueMeta.setName( name );
+      outputRowMeta.addValueMeta( valueMeta );
+    }
+
+    private Source qualified( String qualifier ) throws SQLException {
+      qualifier = ThinUtil.stripQuotes( Const.trim( qualifier ), '"' );
+      if ( left.matches( qualifier ) ) {
+        return left;
+      } else if ( right.matches( qualifier ) ) {
+        return right;
+      }
+      throw new SQLException( "Unknown service or alias: " + qualifier );
+    }
+
+    /**
+     * @param reference column name, optionally qualified by a service alias or name
+     */
+    private Column resolve( String reference ) throws SQLException, KettleSQLException {
+      List<String> parts = ThinUtil.splitClause( Const.trim( reference ), '.', '"' );
+      String name = ThinUtil.stripQuotes( Const.trim( parts.get( parts.size() - 1 ) ), '"' );
+      if ( parts.size() == 2 ) {
+        Source source = qualified( parts.get( 0 ) );
+        ValueMetaInterface field = source.field( name );
+        if ( field == null ) {
+          throw new SQLException( "Unknown column: " + reference );
+        }
+        return new Column( source, field );
+      } else if ( parts.size() == 1 ) {
+        ValueMetaInterface leftField = left.field( name );
+        ValueMetaInterface rightField = right.field( name );
+        if ( leftField != null && rightField != null ) {
+          throw new SQLException( "Column " + name + " is ambiguous, qualify it with a service alias" );
+        } else if ( leftField != null ) {
+          return new Column( left, leftField );
+        } else if ( rightField != null ) {
+          return new Column( right, rightField );
+        }
+      }
+      throw new SQLException( "Unknown column: " + reference );
+    }
+  }
+}
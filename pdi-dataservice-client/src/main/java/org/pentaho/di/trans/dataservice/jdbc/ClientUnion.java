@@ -0,0 +1,141 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleSQLException;
+import org.pentaho.di.core.jdbc.ThinUtil;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executes a UNION ALL of queries in the client, typically of services with the same fields:
+ * <pre>
+ * SELECT region, amount FROM sales_east UNION ALL SELECT region, amount FROM sales_west
+ * </pre>
+ * The branches are sent to the server at the same time and their rows are merged as they arrive, so the union takes
+ * about as long as its slowest branch rather than the sum of them. Each branch is a complete query with its own WHERE,
+ * GROUP BY, ORDER BY and LIMIT clauses, sent to the server as it is. Rows of different branches are interleaved in
+ * no particular order, and the columns of the union are named after those of the first branch.
+ */
+class ClientUnion {
+  static final ExecutorService EXECUTOR = Executors.newCachedThreadPool( new ThreadFactoryBuilder()
+    .setDaemon( true ).setNameFormat( "pdi-dataservice-union-%d" ).build() );
+
+  private final List<String> branches;
+
+  private ClientUnion( List<String> branches ) {
+    this.branches = ImmutableList.copyOf( branches );
+  }
+
+  /**
+   * @return a plan to execute the branches of {@code sqlString} concurrently, or null if it isn't a union
+   * @throws SQLException if it combines queries in a way the client can't execute
+   */
+  static ClientUnion plan( String sqlString ) throws SQLException {
+    try {
+      int index = ThinUtil.indexOfKeyword( sqlString, "UNION", 0 );
+      if ( index < 0 ) {
+        return null;
+      }
+      List<String> branches = Lists.newArrayList();
+      int start = 0;
+      for ( ; index >= 0; index = ThinUtil.indexOfKeyword( sqlString, "UNION", start ) ) {
+        int all = index + "UNION".length();
+        while ( all < sqlString.length() && Character.isWhitespace( sqlString.charAt( all ) ) ) {
+          all++;
+        }
+        int end = all + "ALL".length();
+        if ( !sqlString.regionMatches( true, all, "ALL", 0, "ALL".length() ) || ( end < sqlString.length()
+          && !Character.isWhitespace( sqlString.charAt( end ) ) && sqlString.charAt( end ) != '(' ) ) {
+          throw new SQLFeatureNotSupportedException( "Only UNION ALL is supported, duplicate rows can't be removed" );
+        }
+        branches.add( branch( sqlString.substring( start, index ) ) );
+        start = end;
+      }
+      branches.add( branch( sqlString.substring( start ) ) );
+      return new ClientUnion( branches );
+    } catch ( KettleSQLException e ) {
+      throw new SQLException( "Unable to parse union: " + e.getMessage(), e );
+    }
+  }
+
+  /**
+   * @return the query of one branch, without any enclosing brackets
+   */
+  private static String branch( String sql ) throws SQLException, KettleSQLException {
+    String branch = Const.trim( sql );
+    while ( branch.startsWith( "(" ) && ThinUtil.findNextBracket( branch, '(', ')', 0 ) == branch.length() - 1 ) {
+      branch = Const.trim( branch.substring( 1, branch.length() - 1 ) );
+    }
+    if ( branch.isEmpty() ) {
+      throw new SQLException( "Missing query in UNION ALL: " + sql );
+    }
+    return branch;
+  }
+
+  /**
+   * @return queries of the branches, in order
+   */
+  List<String> getBranches() {
+    return branches;
+  }
+
+  /**
+   * Merge the results of the branches, which must be those of {@link #getBranches()} and have the same column types.
+   * The returned result set closes them once it is closed.
+   *
+   * @param maxRows     maximum number of rows to return, or 0 for all of them
+   * @param queryHandle handle cancelling every branch, or null
+   */
+  BaseResultSet union( List<? extends BaseResultSet> results, int maxRows, QueryHandle queryHandle )
+    throws SQLException {
+    RowMetaInterface rowMeta = results.get( 0 ).getRowMeta();
+    for ( int branch = 1; branch < results.size(); branch++ ) {
+      RowMetaInterface branchRowMeta = results.get( branch ).getRowMeta();
+      if ( branchRowMeta.size() != rowMeta.size() ) {
+        throw new SQLException( "Every query of a UNION ALL must return the same number of columns, query "
+          + ( branch + 1 ) + " returns " + branchRowMeta.size() + " instead of " + rowMeta.size() );
+      }
+      for ( int i = 0; i < rowMeta.size(); i++ ) {
+        ValueMetaInterface valueMeta = rowMeta.getValueMeta( i );
+        ValueMetaInterface branchMeta = branchRowMeta.getValueMeta( i );
+        if ( valueMeta.getType() != branchMeta.getType() ) {
+          throw new SQLException( "Column " + valueMeta.getName() + " of a UNION ALL is " + valueMeta.getTypeDesc()
+            + " in the first query but " + branchMeta.getTypeDesc() + " in query " + ( branch + 1 ) );
+        }
+      }
+    }
+    return new UnionResultSet( rowMeta, results, maxRows, queryHandle );
+  }
+}
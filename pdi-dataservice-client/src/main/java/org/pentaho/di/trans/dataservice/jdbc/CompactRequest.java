@@ -0,0 +1,201 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import org.pentaho.di.trans.dataservice.jdbc.DataServiceTransport.Exchange;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sends the parameters of a query as a binary request body instead of form encoding, compressed with gzip once they
+ * are large. Used when {@value ThinConnection#ARG_COMPACTREQUESTS} is set, for servers accepting
+ * {@value #CONTENT_TYPE} requests. A server rejecting the body with a client error is sent the request again with
+ * form encoded parameters, and its URL is added to the set of those which can't take compact requests.
+ * <p/>
+ * The body is an int format version and an int count of parameters, each a modified UTF-8 name and a value of an int
+ * byte count followed by UTF-8, so that statements are neither limited to 64K nor escaped.
+ */
+class CompactRequest implements Exchange {
+  static final String CONTENT_TYPE = "application/x-pdi-dataservice-query";
+  static final String CONTENT_ENCODING = "Content-Encoding";
+  static final int VERSION = 1;
+  // Characters of parameter values from which the body is compressed
+  static final int COMPRESSION_THRESHOLD = 8192;
+
+  private final DataServiceTransport transport;
+  private final String url;
+  private final Set<String> rejectingUrls;
+  private final ListMultimap<String, String> headers = LinkedListMultimap.create();
+  private final ListMultimap<String, String> parameters = LinkedListMultimap.create();
+  private volatile Exchange exchange;
+  private volatile boolean aborted;
+  private Integer socketTimeout;
+  private Integer connectTimeout;
+  private byte[] body;
+  private String contentType;
+
+  /**
+   * @param rejectingUrls URLs which have rejected compact requests, to which {@code url} is added if it does too
+   */
+  CompactRequest( DataServiceTransport transport, String url, Set<String> rejectingUrls ) {
+    this.transport = transport;
+    this.url = url;
+    this.rejectingUrls = rejectingUrls;
+    this.exchange = transport.open( url, true );
+  }
+
+  @Override public void addRequestHeader( String name, String value ) {
+    headers.put( name, value );
+    exchange.addRequestHeader( name, value );
+  }
+
+  @Override public void addParameter( String name, String value ) {
+    parameters.put( name, Strings.nullToEmpty( value ) );
+  }
+
+  /**
+   * Send {@code body} as is, instead of the encoded parameters
+   */
+  @Override public void setRequestBody( byte[] body, String contentType ) {
+    this.body = body;
+    this.contentType = contentType;
+    exchange.setRequestBody( body, contentType );
+  }
+
+  @Override public void setSocketTimeout( int millis ) {
+    socketTimeout = millis;
+    exchange.setSocketTimeout( millis );
+  }
+
+  @Override public void setConnectTimeout( int millis ) {
+    connectTimeout = millis;
+    exchange.setConnectTimeout( millis );
+  }
+
+  @Override public int execute() throws IOException {
+    if ( body != null ) {
+      return exchange.execute();
+    }
+
+    int length = 0;
+    for ( String value : parameters.values() ) {
+      length += value.length();
+    }
+    boolean compress = length >= COMPRESSION_THRESHOLD;
+
+    ByteArrayOutputStream encodedBody = new ByteArrayOutputStream( Math.min( length, COMPRESSION_THRESHOLD ) + 256 );
+    OutputStream encoded = compress ? new FastGZIPOutputStream( encodedBody ) : encodedBody;
+    DataOutputStream output = new DataOutputStream( encoded );
+    output.writeInt( VERSION );
+    output.writeInt( parameters.size() );
+    for ( Map.Entry<String, String> parameter : parameters.entries() ) {
+      output.writeUTF( parameter.getKey() );
+      byte[] value = parameter.getValue().getBytes( Charsets.UTF_8 );
+      output.writeInt( value.length );
+      output.write( value );
+    }
+    output.close();
+
+    if ( compress ) {
+      exchange.addRequestHeader( CONTENT_ENCODING, "gzip" );
+    }
+    exchange.setRequestBody( encodedBody.toByteArray(), CONTENT_TYPE );
+    int status = exchange.execute();
+    if ( status < 400 || status >= 500 || status == 401 || status == 403 || aborted ) {
+      return status;
+    }
+
+    // Not understood, rather than not allowed
+    ThinDriver.logger.warning( "Sending form requests to " + url + ", which rejected a compact request: " + status );
+    rejectingUrls.add( url );
+    exchange.release();
+    exchange = formRequest();
+    if ( aborted ) {
+      throw new InterruptedIOException( "Request was aborted" );
+    }
+    return exchange.execute();
+  }
+
+  private Exchange formRequest() {
+    Exchange form = transport.open( url, true );
+    if ( socketTimeout != null ) {
+      form.setSocketTimeout( socketTimeout );
+    }
+    if ( connectTimeout != null ) {
+      form.setConnectTimeout( connectTimeout );
+    }
+    for ( Map.Entry<String, String> header : headers.entries() ) {
+      form.addRequestHeader( header.getKey(), header.getValue() );
+    }
+    for ( Map.Entry<String, String> parameter : parameters.entries() ) {
+      form.addParameter( parameter.getKey(), parameter.getValue() );
+    }
+    return form;
+  }
+
+  @Override public String getResponseHeader( String name ) {
+    return exchange.getResponseHeader( name );
+  }
+
+  @Override public InputStream getResponseBody() throws IOException {
+    return exchange.getResponseBody();
+  }
+
+  @Override public String getResponseBodyAsString() throws IOException {
+    return exchange.getResponseBodyAsString();
+  }
+
+  @Override public void release() {
+    exchange.release();
+  }
+
+  @Override public void abort() {
+    aborted = true;
+    exchange.abort();
+  }
+
+  /**
+   * Trades some of the compression of statements for the time taken to compress them, which would otherwise exceed
+   * what it saves in sending them
+   */
+  private static class FastGZIPOutputStream extends GZIPOutputStream {
+    FastGZIPOutputStream( OutputStream out ) throws IOException {
+      super( out );
+      def.setLevel( Deflater.BEST_SPEED );
+    }
+  }
+}
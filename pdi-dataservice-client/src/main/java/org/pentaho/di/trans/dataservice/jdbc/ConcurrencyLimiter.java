@@ -0,0 +1,165 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import java.net.URI;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the queries a client runs at once on one server, each of which starts a transformation there. The limit
+ * adapts to the server by additive increase and multiplicative decrease: it grows by one for every limit's worth of
+ * queries answered promptly while it is in use, and shrinks as soon as responses slow down to well past their long
+ * term average, or fail. Queries over the limit wait for one of the running queries to finish.
+ * <p/>
+ * Shared by every connection from a {@link ThinConnection.Builder} with {@value ThinConnection#ARG_MAXCONCURRENCY}
+ * set.
+ */
+public class ConcurrencyLimiter {
+  static final long DEFAULT_QUEUE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis( 30 );
+  static final int INITIAL_LIMIT = 8;
+  // Responses this many times slower than usual are taken as a sign of overload
+  static final double LATENCY_TOLERANCE = 2.0;
+  static final double BACKOFF = 0.9;
+  static final double FAILURE_BACKOFF = 0.5;
+  private static final double SHORT_LATENCY_WEIGHT = 0.3;
+  private static final double LONG_LATENCY_WEIGHT = 0.02;
+
+  private final URI server;
+  private final int maxLimit;
+  private final long queueTimeoutNanos;
+  private double limit;
+  private int inFlight;
+  private int waiting;
+  private double shortLatencyNanos = -1;
+  private double longLatencyNanos = -1;
+
+  ConcurrencyLimiter( URI server, int maxLimit, long queueTimeoutMillis ) {
+    this.server = server;
+    this.maxLimit = maxLimit;
+    this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos( queueTimeoutMillis );
+    limit = Math.min( INITIAL_LIMIT, maxLimit );
+  }
+
+  public URI getServer() {
+    return server;
+  }
+
+  /**
+   * @return number of queries currently allowed to run at once
+   */
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  public int getMaxLimit() {
+    return maxLimit;
+  }
+
+  /**
+   * @return number of queries running
+   */
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  /**
+   * @return number of queries waiting for others to finish
+   */
+  public synchronized int getQueueDepth() {
+    return waiting;
+  }
+
+  /**
+   * Wait until one more query may run, which must then be followed by {@link #release()}
+   *
+   * @throws SQLTransientConnectionException if the query waited longer than the queue timeout
+   */
+  synchronized void acquire() throws SQLException {
+    long deadline = System.nanoTime() + queueTimeoutNanos;
+    waiting++;
+    try {
+      while ( inFlight >= (int) limit ) {
+        long remaining = deadline - System.nanoTime();
+        if ( remaining <= 0 ) {
+          throw new SQLTransientConnectionException( "Timed out after "
+            + TimeUnit.NANOSECONDS.toMillis( queueTimeoutNanos ) + " ms waiting for one of the " + inFlight
+            + " queries running on " + server + " to finish" );
+        }
+        TimeUnit.NANOSECONDS.timedWait( this, remaining );
+      }
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new SQLException( "Interrupted waiting to query " + server, e );
+    } finally {
+      waiting--;
+    }
+    inFlight++;
+  }
+
+  synchronized void release() {
+    inFlight--;
+    notifyAll();
+  }
+
+  /**
+   * Record the time taken by the server to answer a query
+   */
+  synchronized void responseReceived( long latencyNanos ) {
+    if ( longLatencyNanos < 0 ) {
+      shortLatencyNanos = longLatencyNanos = latencyNanos;
+    } else {
+      shortLatencyNanos += SHORT_LATENCY_WEIGHT * ( latencyNanos - shortLatencyNanos );
+      longLatencyNanos += LONG_LATENCY_WEIGHT * ( latencyNanos - longLatencyNanos );
+    }
+
+    if ( shortLatencyNanos > LATENCY_TOLERANCE * longLatencyNanos ) {
+      decrease( BACKOFF );
+    } else if ( inFlight * 2 >= limit ) {
+      // Only grow a limit that is being used, or it could grow without bounds while the client is idle
+      limit = Math.min( maxLimit, limit + 1 / limit );
+      notifyAll();
+    }
+  }
+
+  /**
+   * Record a query failing without an answer from the server, or with an error from an overloaded server
+   */
+  synchronized void requestFailed() {
+    decrease( FAILURE_BACKOFF );
+  }
+
+  private void decrease( double factor ) {
+    double decreased = Math.max( 1, limit * factor );
+    if ( (int) decreased < (int) limit ) {
+      ThinDriver.logger.fine( "Limiting queries on " + server + " to " + (int) decreased );
+    }
+    limit = decreased;
+  }
+
+  @Override public synchronized String toString() {
+    return server + ": " + inFlight + " of " + (int) limit + " queries running, " + waiting + " waiting";
+  }
+}
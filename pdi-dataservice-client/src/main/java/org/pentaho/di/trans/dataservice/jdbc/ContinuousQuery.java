@@ -0,0 +1,98 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Pushes the rows of a continuous query to a {@link ThinStreamListener} from its own thread. Rows that have already
+ * arrived are delivered together, so that a busy stream is handed over in micro-batches rather than row by row.
+ */
+class ContinuousQuery implements Runnable {
+  static final int MAX_BATCH_SIZE = 1024;
+  private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool( new ThreadFactoryBuilder()
+    .setDaemon( true ).setNameFormat( "pdi-dataservice-stream-%d" ).build() );
+
+  private final ThinResultSet resultSet;
+  private final QueryHandle queryHandle;
+  private final ThinStreamListener listener;
+
+  private ContinuousQuery( ThinResultSet resultSet, QueryHandle queryHandle, ThinStreamListener listener ) {
+    this.resultSet = resultSet;
+    this.queryHandle = queryHandle;
+    this.listener = listener;
+  }
+
+  /**
+   * Start reading {@code resultSet}, which is closed once the query ends
+   */
+  static ContinuousQuery start( ThinResultSet resultSet, QueryHandle queryHandle, ThinStreamListener listener ) {
+    ContinuousQuery continuousQuery = new ContinuousQuery( resultSet, queryHandle, listener );
+    EXECUTOR.submit( continuousQuery );
+    return continuousQuery;
+  }
+
+  /**
+   * Stop the query, which ends the stream without a failure
+   */
+  void stop() {
+    queryHandle.cancel();
+  }
+
+  @Override public void run() {
+    SQLException failure = null;
+    try {
+      int columns = resultSet.getRowMeta().size();
+      while ( resultSet.next() ) {
+        List<Object[]> rows = Lists.newArrayList();
+        do {
+          Object[] row = new Object[columns];
+          for ( int i = 0; i < row.length; i++ ) {
+            row[i] = resultSet.getObject( i + 1 );
+          }
+          rows.add( row );
+        } while ( rows.size() < MAX_BATCH_SIZE && resultSet.isRowAvailable() && resultSet.next() );
+        listener.rowsReceived( resultSet.getRowMeta(), rows );
+      }
+    } catch ( SQLException e ) {
+      // Timeouts are failures, but cancelling is how a continuous query is stopped
+      failure = queryHandle.isCancelled() && !queryHandle.isTimedOut() ? null : e;
+    } catch ( RuntimeException e ) {
+      failure = new SQLException( "Continuous query stopped by a failure of its listener", e );
+    } finally {
+      try {
+        resultSet.close();
+      } catch ( SQLException e ) {
+        ThinDriver.logger.warning( "Unable to close continuous query: " + e.getMessage() );
+      }
+    }
+    listener.streamEnded( failure );
+  }
+}
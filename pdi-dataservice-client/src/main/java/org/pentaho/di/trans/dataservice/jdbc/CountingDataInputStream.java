@@ -0,0 +1,64 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.io.CountingInputStream;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Response stream that keeps track of how many bytes were read from the server.
+ */
+class CountingDataInputStream extends DataInputStream {
+  private final CountingInputStream counter;
+  private Map<String, String> responseHeaders = ImmutableMap.of();
+
+  CountingDataInputStream( InputStream in ) {
+    this( new CountingInputStream( in ) );
+  }
+
+  private CountingDataInputStream( CountingInputStream counter ) {
+    super( counter );
+    this.counter = counter;
+  }
+
+  long getCount() {
+    return counter.getCount();
+  }
+
+  void setResponseHeaders( Map<String, String> responseHeaders ) {
+    this.responseHeaders = responseHeaders;
+  }
+
+  /**
+   * @return value of an HTTP header of the response, or null
+   */
+  String getResponseHeader( String name ) {
+    return responseHeaders.get( name );
+  }
+}
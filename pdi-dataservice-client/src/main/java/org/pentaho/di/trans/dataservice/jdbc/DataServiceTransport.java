@@ -0,0 +1,105 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Carries the requests of a {@link RemoteClient} to the data service servlets and their responses back. The default
+ * sends each over a pooled HTTP/1.1 connection, another may be set with
+ * {@link ThinConnection.Builder#transport(DataServiceTransport)}. A transport is shared by every connection from the
+ * builder, so it must be thread safe.
+ */
+public interface DataServiceTransport {
+
+  /**
+   * @param url  full URL of the servlet, including its query string if any
+   * @param post true to send parameters in the request body, false to send a GET request
+   * @return a request ready to be filled in and executed
+   */
+  Exchange open( String url, boolean post );
+
+  /**
+   * Called once by the builder sharing this transport, after the last of its connections is closed or aborted. No
+   * request is running anymore, so every resource may be released.
+   */
+  void close();
+
+  /**
+   * A single request and its response. Exchanges are used by one thread at a time, except for {@link #abort()}, which
+   * may be called from any thread.
+   */
+  interface Exchange {
+    void addRequestHeader( String name, String value );
+
+    /**
+     * Add a form parameter, only sent by exchanges opened for POST
+     */
+    void addParameter( String name, String value );
+
+    /**
+     * Send {@code body} in place of form parameters, only sent by exchanges opened for POST
+     */
+    void setRequestBody( byte[] body, String contentType );
+
+    /**
+     * @param millis milliseconds to wait for data from the server before failing, or 0 to wait indefinitely
+     */
+    void setSocketTimeout( int millis );
+
+    /**
+     * @param millis milliseconds to wait for a connection to the server, if the request needs a new one, before
+     *               failing, or 0 for the default of the transport
+     */
+    void setConnectTimeout( int millis );
+
+    /**
+     * Send the request and wait for the response headers
+     *
+     * @return HTTP status code of the response
+     * @throws IOException if the server could not be reached
+     */
+    int execute() throws IOException;
+
+    /**
+     * @return value of a header of the response, or null if it is missing
+     */
+    String getResponseHeader( String name );
+
+    InputStream getResponseBody() throws IOException;
+
+    String getResponseBodyAsString() throws IOException;
+
+    /**
+     * Return the underlying connection for reuse, once the response has been read
+     */
+    void release();
+
+    /**
+     * Stop the request, unblocking any thread waiting on its response. The underlying connection is not reused.
+     */
+    void abort();
+  }
+}
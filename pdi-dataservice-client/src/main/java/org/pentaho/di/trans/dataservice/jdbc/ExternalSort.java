@@ -0,0 +1,318 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.collect.Lists;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts rows which may not fit in memory. Rows are buffered until their estimated size exceeds the memory limit, then
+ * sorted and written to a temporary file as a run of binary Kettle rows. The sorted rows are read back by merging the
+ * runs with the rows still in memory.
+ */
+class ExternalSort {
+  static final long DEFAULT_MEMORY_LIMIT = 64L * 1024 * 1024;
+  private static final int BUFFER_SIZE = 65536;
+
+  private final RowMetaInterface rowMeta;
+  private final Comparator<Object[]> comparator;
+  private final long memoryLimit;
+  private final List<Object[]> buffer = Lists.newArrayList();
+  private final List<FileRun> runs = Lists.newArrayList();
+  private long bufferSize;
+  private int rowCount;
+
+  /**
+   * @param columns     indexes of the columns to sort by
+   * @param ascending   sort direction of each column
+   * @param memoryLimit estimated size in bytes of the rows to keep in memory before writing a run
+   */
+  ExternalSort( final RowMetaInterface rowMeta, final int[] columns, final boolean[] ascending, long memoryLimit ) {
+    this.rowMeta = rowMeta;
+    this.memoryLimit = memoryLimit;
+    this.comparator = new Comparator<Object[]>() {
+      @Override public int compare( Object[] row1, Object[] row2 ) {
+        try {
+          for ( int i = 0; i < columns.length; i++ ) {
+            int column = columns[i];
+            int cmp = rowMeta.getValueMeta( column ).compare( row1[column], row2[column] );
+            if ( cmp != 0 ) {
+              return ascending[i] ? cmp : -cmp;
+            }
+          }
+          return 0;
+        } catch ( KettleValueException e ) {
+          throw new SortException( e );
+        }
+      }
+    };
+  }
+
+  void add( Object[] row ) throws SQLException {
+    buffer.add( row );
+    rowCount++;
+    bufferSize += estimateSize( row );
+    if ( bufferSize > memoryLimit ) {
+      writeRun();
+    }
+  }
+
+  /**
+   * @return number of runs written to temporary files so far
+   */
+  int getRunCount() {
+    return runs.size();
+  }
+
+  /**
+   * Sort the rows added so far. The returned result set deletes the runs once closed.
+   *
+   * @param maxRows maximum number of rows to return, or 0 for all of them
+   */
+  SortedResultSet sort( int maxRows ) throws SQLException {
+    sortBuffer();
+    final PriorityQueue<Run> queue = new PriorityQueue<Run>( runs.size() + 1, new Comparator<Run>() {
+      @Override public int compare( Run run1, Run run2 ) {
+        return comparator.compare( run1.head, run2.head );
+      }
+    } );
+    Merge merge = new Merge( queue );
+    try {
+      merge.offer( new MemoryRun( buffer.iterator() ) );
+      for ( FileRun run : runs ) {
+        run.open();
+        merge.offer( run );
+      }
+    } catch ( SQLException e ) {
+      merge.close();
+      throw e;
+    }
+    int size = maxRows > 0 ? Math.min( rowCount, maxRows ) : rowCount;
+    return new SortedResultSet( rowMeta, merge, size );
+  }
+
+  /**
+   * Delete any runs written, for sorts which will not be read
+   */
+  void discard() {
+    for ( FileRun run : runs ) {
+      run.close();
+    }
+    runs.clear();
+    buffer.clear();
+  }
+
+  private void sortBuffer() throws SQLException {
+    try {
+      Collections.sort( buffer, comparator );
+    } catch ( SortException e ) {
+      throw new SQLException( "Unable to sort rows", e.getCause() );
+    }
+  }
+
+  private void writeRun() throws SQLException {
+    sortBuffer();
+    File file = null;
+    try {
+      file = File.createTempFile( "thin-sort-", ".tmp" );
+      DataOutputStream output =
+        new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ), BUFFER_SIZE ) );
+      try {
+        for ( Object[] row : buffer ) {
+          rowMeta.writeData( output, row );
+        }
+      } finally {
+        output.close();
+      }
+    } catch ( Exception e ) {
+      if ( file != null ) {
+        file.delete();
+      }
+      throw new SQLException( "Unable to write sorted rows to a temporary file", e );
+    }
+    runs.add( new FileRun( file, buffer.size() ) );
+    buffer.clear();
+    bufferSize = 0;
+  }
+
+  /**
+   * Rough heap footprint of a row, only used to decide when to write a run
+   */
+  static long estimateSize( Object[] row ) {
+    long size = 16 + 8L * row.length;
+    for ( Object value : row ) {
+      if ( value instanceof String ) {
+        size += 40 + 2L * ( (String) value ).length();
+      } else if ( value instanceof byte[] ) {
+        size += 16 + ( (byte[]) value ).length;
+      } else if ( value instanceof BigDecimal ) {
+        size += 64;
+      } else if ( value != null ) {
+        size += 24;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Rows of all runs in sort order
+   */
+  class Merge {
+    private final PriorityQueue<Run> queue;
+
+    private Merge( PriorityQueue<Run> queue ) {
+      this.queue = queue;
+    }
+
+    private void offer( Run run ) throws SQLException {
+      if ( run.advance() ) {
+        try {
+          queue.add( run );
+        } catch ( SortException e ) {
+          throw new SQLException( "Unable to sort rows", e.getCause() );
+        }
+      } else {
+        run.close();
+      }
+    }
+
+    /**
+     * @return the next row, or null once every run is exhausted
+     */
+    Object[] next() throws SQLException {
+      Run run = queue.poll();
+      if ( run == null ) {
+        return null;
+      }
+      Object[] row = run.head;
+      offer( run );
+      return row;
+    }
+
+    void close() {
+      for ( Run run : queue ) {
+        run.close();
+      }
+      queue.clear();
+      discard();
+    }
+  }
+
+  private abstract static class Run {
+    Object[] head;
+
+    abstract boolean advance() throws SQLException;
+
+    void close() {
+    }
+  }
+
+  private static class MemoryRun extends Run {
+    private final Iterator<Object[]> rows;
+
+    MemoryRun( Iterator<Object[]> rows ) {
+      this.rows = rows;
+    }
+
+    @Override boolean advance() {
+      head = rows.hasNext() ? rows.next() : null;
+      return head != null;
+    }
+  }
+
+  private class FileRun extends Run {
+    private final File file;
+    private final int count;
+    private DataInputStream input;
+    private int remaining;
+
+    FileRun( File file, int count ) {
+      this.file = file;
+      this.count = count;
+    }
+
+    void open() throws SQLException {
+      try {
+        input = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), BUFFER_SIZE ) );
+      } catch ( IOException e ) {
+        throw new SQLException( "Unable to read sorted rows from a temporary file", e );
+      }
+      remaining = count;
+    }
+
+    @Override boolean advance() throws SQLException {
+      if ( remaining <= 0 ) {
+        head = null;
+        return false;
+      }
+      try {
+        head = rowMeta.readData( input );
+      } catch ( KettleException e ) {
+        throw new SQLException( "Unable to read sorted rows from a temporary file", e );
+      } catch ( IOException e ) {
+        throw new SQLException( "Unable to read sorted rows from a temporary file", e );
+      }
+      remaining--;
+      return true;
+    }
+
+    @Override void close() {
+      if ( input != null ) {
+        try {
+          input.close();
+        } catch ( IOException e ) {
+          ThinDriver.logger.warning( "Unable to close sort run: " + e.getMessage() );
+        }
+        input = null;
+      }
+      if ( !file.delete() && file.exists() ) {
+        file.deleteOnExit();
+      }
+    }
+  }
+
+  private static class SortException extends RuntimeException {
+    SortException( KettleValueException cause ) {
+      super( cause );
+    }
+  }
+}
@@ -0,0 +1,549 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends requests as binary frames over one persistent socket to each server, for workloads of many small queries
+ * where HTTP framing and form encoding dominate their latency. Used when {@value ThinConnection#ARG_PROTOCOL} is
+ * {@code framed}, in which case the port of the connection URL is that of the server's framed listener.
+ * <p/>
+ * Every frame is an int length of the rest of the frame, an int request id, a byte frame type and its payload:
+ * <ul>
+ * <li>{@link #HELLO}, sent on request id 0 as a connection opens: protocol version, user name and password</li>
+ * <li>{@link #REQUEST}: path and query of the URL, whether it is a POST, the request headers and the parameters,
+ * each as a count followed by name and value pairs, then the request body as an int byte count, 0 without a body,
+ * followed by its bytes</li>
+ * <li>{@link #CANCEL}: the client no longer wants the rest of the response</li>
+ * <li>{@link #HEAD}, from the server: status code and response headers, as a count followed by name and value
+ * pairs</li>
+ * <li>{@link #BODY}, from the server: the next bytes of the response body</li>
+ * <li>{@link #END}, from the server: the response is complete</li>
+ * </ul>
+ * Strings are written as modified UTF-8, except for the values of parameters, which may exceed its 64K limit and are
+ * written as an int byte count followed by UTF-8. Requests are pipelined: each is sent without waiting for the
+ * responses to others, whose frames may arrive interleaved. Up to {@link #MAX_BUFFERED_BYTES} of each response body
+ * are buffered as its frames arrive. Beyond that the socket is no longer read until the body is, so that TCP flow
+ * control holds back the server, unless a response to another request on the same socket is being waited on.
+ */
+class FramedTransport implements DataServiceTransport {
+  static final int VERSION = 1;
+  static final byte HELLO = 0;
+  static final byte REQUEST = 1;
+  static final byte CANCEL = 2;
+  static final byte HEAD = 3;
+  static final byte BODY = 4;
+  static final byte END = 5;
+  // Request id and frame type
+  static final int FRAME_HEADER_LENGTH = 5;
+  static final int MAX_BUFFERED_BYTES = 1024 * 1024;
+  static final int CONNECT_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis( 10 );
+
+  private static final ThreadFactory READERS = new ThreadFactoryBuilder()
+    .setDaemon( true ).setNameFormat( "pdi-dataservice-framed-%d" ).build();
+
+  private final String username;
+  private final String password;
+  private final AtomicInteger requestIds = new AtomicInteger();
+  private final Map<String, Channel> channels = Maps.newHashMap();
+
+  FramedTransport( String username, String password ) {
+    this.username = Strings.nullToEmpty( username );
+    this.password = Strings.nullToEmpty( password );
+  }
+
+  @Override public Exchange open( String url, boolean post ) {
+    return new FrameExchange( URI.create( url ), post );
+  }
+
+  /**
+   * Close every socket, once no connection uses this transport
+   */
+  @Override public void close() {
+    List<Channel> open;
+    synchronized ( channels ) {
+      open = Lists.newArrayList( channels.values() );
+    }
+    for ( Channel channel : open ) {
+      channel.close( new IOException( "Transport was closed" ) );
+    }
+  }
+
+  /**
+   * @param connectTimeout milliseconds to wait for a new socket to connect, or 0 for {@link #CONNECT_TIMEOUT_MILLIS}
+   */
+  private Channel channel( URI uri, int connectTimeout ) throws IOException {
+    String server = uri.getScheme() + "://" + uri.getRawAuthority();
+    synchronized ( channels ) {
+      Channel channel = channels.get( server );
+      if ( channel != null && !channel.closed ) {
+        return channel;
+      }
+    }
+
+    // Connecting may take a while, and must not hold up requests to other servers
+    Socket socket = connect( uri, connectTimeout > 0 ? connectTimeout : CONNECT_TIMEOUT_MILLIS );
+    Channel connected;
+    try {
+      connected = new Channel( server, socket );
+      connected.start();
+    } catch ( IOException e ) {
+      socket.close();
+      throw e;
+    }
+    Channel channel;
+    synchronized ( channels ) {
+      channel = channels.get( server );
+      if ( channel == null || channel.closed ) {
+        channels.put( server, connected );
+        return connected;
+      }
+    }
+    // Another request connected first
+    connected.close( new IOException( "Connection was not needed" ) );
+    return channel;
+  }
+
+  /**
+   * @return a new socket connected to the server of {@code uri}
+   */
+  private Socket connect( URI uri, int connectTimeout ) throws IOException {
+    SocketFactory socketFactory = "https".equals( uri.getScheme() )
+      ? SSLSocketFactory.getDefault() : SocketFactory.getDefault();
+    Socket socket = socketFactory.createSocket();
+    socket.setTcpNoDelay( true );
+    try {
+      socket.connect( new InetSocketAddress( uri.getHost(), uri.getPort() ), connectTimeout );
+    } catch ( IOException e ) {
+      socket.close();
+      throw e;
+    }
+    return socket;
+  }
+
+  private int nextRequestId() {
+    int id = requestIds.incrementAndGet();
+    while ( id <= 0 ) {
+      // Wrapped around, id 0 belongs to the connection itself
+      requestIds.compareAndSet( id, 0 );
+      id = requestIds.incrementAndGet();
+    }
+    return id;
+  }
+
+  /**
+   * A socket to one server, with the exchanges waiting on its responses
+   */
+  private class Channel implements Runnable {
+    private final String server;
+    private final Socket socket;
+    private final DataOutputStream output;
+    private final DataInputStream input;
+    private final Map<Integer, FrameExchange> pending = new ConcurrentHashMap<Integer, FrameExchange>();
+    // Guards the reader waiting for a response body to be read
+    private final Object flow = new Object();
+    // Exchanges waiting for a frame
+    private int starving;
+    private volatile boolean closed;
+
+    Channel( String server, Socket socket ) throws IOException {
+      this.server = server;
+      this.socket = socket;
+      output = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) );
+      input = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+    }
+
+    /**
+     * Introduce the client to the server and start reading its responses
+     */
+    void start() throws IOException {
+      ByteArrayOutputStream hello = new ByteArrayOutputStream();
+      DataOutputStream helloOutput = new DataOutputStream( hello );
+      helloOutput.writeInt( VERSION );
+      helloOutput.writeUTF( username );
+      helloOutput.writeUTF( password );
+      send( 0, HELLO, hello.toByteArray() );
+      READERS.newThread( this ).start();
+    }
+
+    synchronized void send( int id, byte type, byte[] payload ) throws IOException {
+      try {
+        output.writeInt( FRAME_HEADER_LENGTH + payload.length );
+        output.writeInt( id );
+        output.writeByte( type );
+        output.write( payload );
+        output.flush();
+      } catch ( IOException e ) {
+        close( e );
+        throw e;
+      }
+    }
+
+    /**
+     * Reads response frames, handing each to the exchange waiting on it, until the socket is closed
+     */
+    @Override public void run() {
+      try {
+        while ( !closed ) {
+          int length = input.readInt();
+          if ( length < FRAME_HEADER_LENGTH ) {
+            throw new IOException( "Invalid frame length from " + server + ": " + length );
+          }
+          int id = input.readInt();
+          byte type = input.readByte();
+          byte[] payload = new byte[ length - FRAME_HEADER_LENGTH ];
+          input.readFully( payload );
+
+          FrameExchange exchange = type == END ? pending.remove( id ) : pending.get( id );
+          if ( exchange != null ) {
+            awaitCapacity( exchange );
+            exchange.received( new Frame( type, payload ) );
+          }
+        }
+      } catch ( IOException e ) {
+        close( e );
+      } catch ( InterruptedException e ) {
+        close( new InterruptedIOException( "Interrupted reading from " + server ) );
+      }
+    }
+
+    /**
+     * Stop reading while {@code exchange} has a full buffer, unless another exchange is waiting for a frame, which
+     * could be behind this one on the socket
+     */
+    private void awaitCapacity( FrameExchange exchange ) throws InterruptedException {
+      synchronized ( flow ) {
+        while ( exchange.buffered.get() >= MAX_BUFFERED_BYTES && starving == 0 && !exchange.aborted && !closed ) {
+          flow.wait();
+        }
+      }
+    }
+
+    /**
+     * Wake up the reader to check whether it may read on
+     */
+    void flowChanged( int starvingChange ) {
+      synchronized ( flow ) {
+        starving += starvingChange;
+        flow.notifyAll();
+      }
+    }
+
+    /**
+     * Close the socket, failing every exchange still waiting on a response
+     */
+    void close( IOException cause ) {
+      synchronized ( channels ) {
+        if ( channels.get( server ) == this ) {
+          channels.remove( server );
+        }
+      }
+      closed = true;
+      try {
+        socket.close();
+      } catch ( IOException e ) {
+        // Already failing
+      }
+      for ( FrameExchange exchange : pending.values() ) {
+        exchange.received( cause );
+      }
+      pending.clear();
+      flowChanged( 0 );
+    }
+  }
+
+  private static class Frame {
+    final byte type;
+    final byte[] payload;
+
+    Frame( byte type, byte[] payload ) {
+      this.type = type;
+      this.payload = payload;
+    }
+  }
+
+  private class FrameExchange implements Exchange {
+    private final URI uri;
+    private final boolean post;
+    private final ListMultimap<String, String> requestHeaders = LinkedListMultimap.create();
+    private final ListMultimap<String, String> parameters = LinkedListMultimap.create();
+    private final Map<String, String> responseHeaders = Maps.newHashMap();
+    private byte[] requestBody = new byte[ 0 ];
+    // Frames of the response, or the exception failing it
+    private final BlockingQueue<Object> received = new LinkedBlockingQueue<Object>();
+    // Bytes of the frames in the queue
+    private final AtomicInteger buffered = new AtomicInteger();
+    private final InputStream body = new Body();
+    private volatile int socketTimeout;
+    private int connectTimeout;
+    private volatile Channel channel;
+    private int id;
+    private volatile boolean aborted;
+    private volatile boolean ended;
+
+    FrameExchange( URI uri, boolean post ) {
+      this.uri = uri;
+      this.post = post;
+    }
+
+    @Override public void addRequestHeader( String name, String value ) {
+      requestHeaders.put( name, value );
+    }
+
+    @Override public void addParameter( String name, String value ) {
+      if ( post ) {
+        parameters.put( name, value );
+      }
+    }
+
+    @Override public void setRequestBody( byte[] body, String contentType ) {
+      if ( post ) {
+        requestHeaders.replaceValues( "Content-Type", Collections.singleton( contentType ) );
+        requestBody = body;
+      }
+    }
+
+    @Override public void setSocketTimeout( int millis ) {
+      socketTimeout = millis;
+    }
+
+    @Override public void setConnectTimeout( int millis ) {
+      connectTimeout = millis;
+    }
+
+    @Override public int execute() throws IOException {
+      ByteArrayOutputStream request = new ByteArrayOutputStream();
+      DataOutputStream requestOutput = new DataOutputStream( request );
+      String query = uri.getRawQuery();
+      requestOutput.writeUTF( uri.getRawPath() + ( query == null ? "" : "?" + query ) );
+      requestOutput.writeBoolean( post );
+      writePairs( requestOutput, requestHeaders.entries() );
+      requestOutput.writeInt( parameters.size() );
+      for ( Map.Entry<String, String> parameter : parameters.entries() ) {
+        requestOutput.writeUTF( parameter.getKey() );
+        byte[] value = Strings.nullToEmpty( parameter.getValue() ).getBytes( Charsets.UTF_8 );
+        requestOutput.writeInt( value.length );
+        requestOutput.write( value );
+      }
+      requestOutput.writeInt( requestBody.length );
+      requestOutput.write( requestBody );
+
+      Channel channel = channel( uri, connectTimeout );
+      synchronized ( this ) {
+        if ( aborted ) {
+          throw new IOException( "Request was aborted" );
+        }
+        this.channel = channel;
+        id = nextRequestId();
+        channel.pending.put( id, this );
+      }
+      channel.send( id, REQUEST, request.toByteArray() );
+
+      Frame head = next();
+      if ( head.type != HEAD ) {
+        throw new IOException( "Response from " + channel.server + " is missing its head" );
+      }
+      DataInputStream headInput = new DataInputStream( new ByteArrayInputStream( head.payload ) );
+      int status = headInput.readInt();
+      for ( int i = headInput.readInt(); i > 0; i-- ) {
+        responseHeaders.put( headInput.readUTF(), headInput.readUTF() );
+      }
+      return status;
+    }
+
+    private void writePairs( DataOutputStream output, Collection<Map.Entry<String, String>> pairs )
+      throws IOException {
+      output.writeInt( pairs.size() );
+      for ( Map.Entry<String, String> pair : pairs ) {
+        output.writeUTF( pair.getKey() );
+        output.writeUTF( Strings.nullToEmpty( pair.getValue() ) );
+      }
+    }
+
+    void received( Object frameOrFailure ) {
+      if ( frameOrFailure instanceof Frame ) {
+        Frame frame = (Frame) frameOrFailure;
+        if ( frame.type == END ) {
+          ended = true;
+        }
+        buffered.addAndGet( frame.payload.length );
+      }
+      received.add( frameOrFailure );
+    }
+
+    private Frame next() throws IOException {
+      Channel channel = this.channel;
+      Object next = received.poll();
+      if ( next == null ) {
+        // Let the reader skip past the full buffers of other exchanges to reach this one's frames
+        channel.flowChanged( 1 );
+        try {
+          int timeout = socketTimeout;
+          next = timeout > 0 ? received.poll( timeout, TimeUnit.MILLISECONDS ) : received.take();
+        } catch ( InterruptedException e ) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException( "Interrupted waiting for the response" );
+        } finally {
+          channel.flowChanged( -1 );
+        }
+      }
+      if ( next instanceof Frame ) {
+        int length = ( (Frame) next ).payload.length;
+        int remaining = buffered.addAndGet( -length );
+        if ( remaining < MAX_BUFFERED_BYTES && remaining + length >= MAX_BUFFERED_BYTES ) {
+          channel.flowChanged( 0 );
+        }
+      }
+      if ( next == null ) {
+        abort();
+        throw new SocketTimeoutException( "Read timed out" );
+      }
+      if ( next instanceof IOException ) {
+        // Left for any later reads
+        received.add( next );
+        IOException failure = (IOException) next;
+        throw new IOException( failure.getMessage(), failure );
+      }
+      return (Frame) next;
+    }
+
+    @Override public String getResponseHeader( String name ) {
+      return responseHeaders.get( name );
+    }
+
+    @Override public InputStream getResponseBody() {
+      return body;
+    }
+
+    @Override public String getResponseBodyAsString() throws IOException {
+      return new String( ByteStreams.toByteArray( body ), Charsets.UTF_8 );
+    }
+
+    /**
+     * Cancel the rest of the response if it has not all been received
+     */
+    @Override public void release() {
+      if ( !ended ) {
+        abort();
+      }
+    }
+
+    @Override public void abort() {
+      Channel channel;
+      synchronized ( this ) {
+        if ( aborted ) {
+          return;
+        }
+        aborted = true;
+        channel = this.channel;
+      }
+      if ( channel != null && channel.pending.remove( id ) != null ) {
+        try {
+          channel.send( id, CANCEL, new byte[ 0 ] );
+        } catch ( IOException e ) {
+          // The socket is closed, and the request with it
+        }
+      }
+      received.add( new IOException( "Request was aborted" ) );
+      if ( channel != null ) {
+        channel.flowChanged( 0 );
+      }
+    }
+
+    private class Body extends InputStream {
+      private byte[] chunk = new byte[ 0 ];
+      private int position;
+      private boolean end;
+
+      @Override public int read() throws IOException {
+        byte[] b = new byte[ 1 ];
+        return read( b, 0, 1 ) < 0 ? -1 : b[ 0 ] & 0xff;
+      }
+
+      @Override public int read( byte[] b, int off, int len ) throws IOException {
+        if ( len == 0 ) {
+          return 0;
+        }
+        while ( position == chunk.length ) {
+          if ( end ) {
+            return -1;
+          }
+          Frame frame = next();
+          if ( frame.type == END ) {
+            end = true;
+          } else {
+            chunk = frame.payload;
+            position = 0;
+          }
+        }
+        int read = Math.min( len, chunk.length - position );
+        System.arraycopy( chunk, position, b, off, read );
+        position += read;
+        return read;
+      }
+
+      @Override public int available() {
+        return chunk.length - position;
+      }
+
+      @Override public void close() {
+        release();
+      }
+    }
+  }
+}
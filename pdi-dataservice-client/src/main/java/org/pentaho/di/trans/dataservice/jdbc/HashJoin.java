@@ -0,0 +1,549 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.collect.Lists;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Equi-join of two streams of rows. Both inputs are read in turn until one of them ends, which makes the smaller input
+ * the build side of a hash table keyed by 64 bit key hashes; the other input is then streamed past the table. If
+ * both inputs outgrow the memory limit first, they are hash partitioned to temporary files and joined one partition
+ * at a time.
+ * <p/>
+ * Rows with a null key never match. A left outer join also returns unmatched left rows with null right rows.
+ */
+class HashJoin {
+  private static final int PARTITION_BITS = 4;
+  static final int PARTITIONS = 1 << PARTITION_BITS;
+  private static final int BUFFER_SIZE = 65536;
+  private static final long TABLE_MIX = 0x9E3779B97F4A7C15L;
+  private static final long PARTITION_MIX = 0xC2B2AE3D27D4EB4FL;
+
+  /**
+   * Rows of one input, each returned once
+   */
+  interface RowSource {
+    /**
+     * @return the next row, or null once there are no more
+     */
+    Object[] next() throws SQLException;
+  }
+
+  private final Side left;
+  private final Side right;
+  private final boolean leftOuter;
+  private final long memoryLimit;
+
+  private Side build;
+  private Side probe;
+  private JoinTable table;
+  private RowSource probeRows;
+  private Object[] probeRow;
+  private boolean probeMatched;
+  private int chain = -1;
+  private int unmatched;
+  private Spill buildSpill;
+  private Spill probeSpill;
+  private int partition = -1;
+  private Object[] leftRow;
+  private Object[] rightRow;
+
+  /**
+   * @param leftKeys    indexes of the key columns of left rows
+   * @param rightKeys   indexes of the matching key columns of right rows, which must have the same types
+   * @param leftOuter   true to also return left rows without a match
+   * @param memoryLimit estimated size in bytes of the rows to hold in memory before partitioning to disk
+   */
+  HashJoin( RowMetaInterface leftRowMeta, int[] leftKeys, RowMetaInterface rightRowMeta, int[] rightKeys,
+            boolean leftOuter, long memoryLimit ) {
+    this.left = new Side( leftRowMeta, leftKeys );
+    this.right = new Side( rightRowMeta, rightKeys );
+    this.leftOuter = leftOuter;
+    this.memoryLimit = memoryLimit;
+  }
+
+  /**
+   * Read the inputs until the build side is known, and build its hash table or partition both of them
+   */
+  void open( RowSource leftRows, RowSource rightRows ) throws SQLException {
+    List<Object[]> leftBuffer = Lists.newArrayList();
+    List<Object[]> rightBuffer = Lists.newArrayList();
+    long bufferSize = 0;
+    boolean spill = false;
+    while ( true ) {
+      Object[] row = leftRows.next();
+      if ( row == null ) {
+        build = left;
+        break;
+      }
+      leftBuffer.add( row );
+      bufferSize += ExternalSort.estimateSize( row );
+
+      row = rightRows.next();
+      if ( row == null ) {
+        build = right;
+        break;
+      }
+      rightBuffer.add( row );
+      bufferSize += ExternalSort.estimateSize( row );
+
+      if ( bufferSize > memoryLimit ) {
+        build = right;
+        spill = true;
+        break;
+      }
+    }
+    probe = build == left ? right : left;
+    List<Object[]> buildBuffer = build == left ? leftBuffer : rightBuffer;
+    List<Object[]> probeBuffer = build == left ? rightBuffer : leftBuffer;
+    RowSource buildRest = build == left ? leftRows : rightRows;
+    RowSource probeRest = build == left ? rightRows : leftRows;
+
+    if ( !spill ) {
+      table = new JoinTable( build, buildBuffer.size() );
+      for ( Object[] buildRow : buildBuffer ) {
+        table.add( buildRow );
+      }
+      probeRows = concat( probeBuffer, probeRest );
+      return;
+    }
+
+    buildSpill = new Spill( build );
+    probeSpill = new Spill( probe );
+    try {
+      buildSpill.write( concat( buildBuffer, buildRest ), isOuter( build ) );
+      probeSpill.write( concat( probeBuffer, probeRest ), isOuter( probe ) );
+    } catch ( SQLException e ) {
+      close();
+      throw e;
+    }
+    nextPartition();
+  }
+
+  /**
+   * @return true if there is another joined row, available from {@link #getLeftRow()} and {@link #getRightRow()}
+   */
+  boolean next() throws SQLException {
+    while ( true ) {
+      if ( probeRow != null ) {
+        while ( chain >= 0 ) {
+          int candidate = chain;
+          chain = table.next( candidate );
+          Object[] buildRow = table.row( candidate );
+          if ( table.exact || keysEqual( buildRow, probeRow ) ) {
+            probeMatched = true;
+            table.matched.set( candidate );
+            return joined( buildRow, probeRow );
+          }
+        }
+        Object[] row = probeRow;
+        probeRow = null;
+        if ( !probeMatched && isOuter( probe ) ) {
+          return joined( null, row );
+        }
+      }
+
+      Object[] row = probeRows.next();
+      if ( row != null ) {
+        probeRow = row;
+        probeMatched = false;
+        chain = probe.hasNullKey( row ) ? -1 : table.first( probe.key( row ) );
+        continue;
+      }
+
+      if ( isOuter( build ) ) {
+        while ( unmatched < table.size() ) {
+          int index = unmatched++;
+          if ( !table.matched.get( index ) ) {
+            return joined( table.row( index ), null );
+          }
+        }
+      }
+      if ( !nextPartition() ) {
+        leftRow = null;
+        rightRow = null;
+        return false;
+      }
+    }
+  }
+
+  Object[] getLeftRow() {
+    return leftRow;
+  }
+
+  Object[] getRightRow() {
+    return rightRow;
+  }
+
+  /**
+   * @return true if the inputs were partitioned to disk
+   */
+  boolean isSpilled() {
+    return buildSpill != null;
+  }
+
+  /**
+   * @return true if the left input was used as the build side
+   */
+  boolean isLeftBuild() {
+    return build == left;
+  }
+
+  /**
+   * Delete any partitions written
+   */
+  void close() {
+    if ( buildSpill != null ) {
+      buildSpill.close();
+    }
+    if ( probeSpill != null ) {
+      probeSpill.close();
+    }
+    table = null;
+    probeRows = null;
+    probeRow = null;
+  }
+
+  private boolean isOuter( Side side ) {
+    return leftOuter && side == left;
+  }
+
+  private boolean joined( Object[] buildRow, Object[] probeRow ) {
+    leftRow = build == left ? buildRow : probeRow;
+    rightRow = build == left ? probeRow : buildRow;
+    return true;
+  }
+
+  private boolean nextPartition() throws SQLException {
+    if ( buildSpill == null || partition + 1 >= PARTITIONS ) {
+      return false;
+    }
+    partition++;
+    probeSpill.closeReader();
+    RowSource buildRows = buildSpill.read( partition );
+    table = new JoinTable( build, buildSpill.counts[partition] );
+    for ( Object[] row = buildRows.next(); row != null; row = buildRows.next() ) {
+      table.add( row );
+    }
+    buildSpill.closeReader();
+    probeRows = probeSpill.read( partition );
+    unmatched = 0;
+    return true;
+  }
+
+  private boolean keysEqual( Object[] buildRow, Object[] probeRow ) throws SQLException {
+    try {
+      for ( int i = 0; i < build.keys.length; i++ ) {
+        if ( build.keyMeta[i].compare( buildRow[build.keys[i]], probeRow[probe.keys[i]] ) != 0 ) {
+          return false;
+        }
+      }
+      return true;
+    } catch ( KettleValueException e ) {
+      throw new SQLException( "Unable to compare join keys", e );
+    }
+  }
+
+  /**
+   * @return rows of {@code buffered}, released once returned, followed by those of {@code rest}
+   */
+  private static RowSource concat( final List<Object[]> buffered, final RowSource rest ) {
+    return new RowSource() {
+      int index;
+
+      @Override public Object[] next() throws SQLException {
+        if ( index < buffered.size() ) {
+          Object[] row = buffered.set( index++, null );
+          if ( index == buffered.size() ) {
+            buffered.clear();
+          }
+          return row;
+        }
+        return rest.next();
+      }
+    };
+  }
+
+  /**
+   * Row layout and key columns of one input
+   */
+  private static class Side {
+    final RowMetaInterface rowMeta;
+    final int[] keys;
+    final ValueMetaInterface[] keyMeta;
+    final boolean integerKey;
+
+    Side( RowMetaInterface rowMeta, int[] keys ) {
+      this.rowMeta = rowMeta;
+      this.keys = keys;
+      this.keyMeta = new ValueMetaInterface[keys.length];
+      for ( int i = 0; i < keys.length; i++ ) {
+        keyMeta[i] = rowMeta.getValueMeta( keys[i] );
+      }
+      this.integerKey = keys.length == 1 && keyMeta[0].getType() == ValueMetaInterface.TYPE_INTEGER;
+    }
+
+    boolean hasNullKey( Object[] row ) {
+      for ( int key : keys ) {
+        if ( row[key] == null ) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * @return the value of a single integer key, otherwise a hash of the key values
+     */
+    long key( Object[] row ) {
+      if ( integerKey ) {
+        return (Long) row[keys[0]];
+      }
+      long hash = 1;
+      for ( int key : keys ) {
+        hash = 31 * hash + HyperLogLog.hash( row[key] );
+      }
+      return hash;
+    }
+  }
+
+  /**
+   * Open addressing table of build rows. Each slot holds a key and the most recently added row with that key, from
+   * which the other rows with the key are chained by index.
+   */
+  private static class JoinTable {
+    final Side side;
+    final boolean exact;
+    final BitSet matched = new BitSet();
+    private final List<Object[]> rows;
+    private int[] chains;
+    private long[] slotKeys;
+    private int[] slotRows;
+    private int shift;
+    private int used;
+
+    JoinTable( Side side, int expectedRows ) {
+      this.side = side;
+      this.exact = side.integerKey;
+      this.rows = Lists.newArrayListWithCapacity( expectedRows );
+      this.chains = new int[Math.max( 16, expectedRows )];
+      int bits = 4;
+      while ( ( 1 << bits ) < expectedRows * 2 ) {
+        bits++;
+      }
+      allocate( bits );
+    }
+
+    private void allocate( int bits ) {
+      slotKeys = new long[1 << bits];
+      slotRows = new int[1 << bits];
+      Arrays.fill( slotRows, -1 );
+      shift = Long.SIZE - bits;
+    }
+
+    void add( Object[] row ) {
+      int index = rows.size();
+      rows.add( row );
+      if ( index >= chains.length ) {
+        chains = Arrays.copyOf( chains, chains.length * 2 );
+      }
+      chains[index] = -1;
+      if ( !side.hasNullKey( row ) ) {
+        // Rows with null keys are only kept to be returned unmatched
+        link( side.key( row ), index );
+      }
+    }
+
+    private void link( long key, int index ) {
+      if ( used * 2 >= slotKeys.length ) {
+        long[] oldKeys = slotKeys;
+        int[] oldRows = slotRows;
+        allocate( Long.SIZE - shift + 1 );
+        for ( int i = 0; i < oldKeys.length; i++ ) {
+          if ( oldRows[i] >= 0 ) {
+            int slot = slot( oldKeys[i] );
+            slotKeys[slot] = oldKeys[i];
+            slotRows[slot] = oldRows[i];
+          }
+        }
+      }
+      int slot = slot( key );
+      if ( slotRows[slot] < 0 ) {
+        slotKeys[slot] = key;
+        used++;
+      } else {
+        chains[index] = slotRows[slot];
+      }
+      slotRows[slot] = index;
+    }
+
+    /**
+     * @return the slot holding {@code key}, or the empty slot where it belongs
+     */
+    private int slot( long key ) {
+      int mask = slotKeys.length - 1;
+      int slot = (int) ( ( key * TABLE_MIX ) >>> shift );
+      while ( slotRows[slot] >= 0 && slotKeys[slot] != key ) {
+        slot = ( slot + 1 ) & mask;
+      }
+      return slot;
+    }
+
+    /**
+     * @return index of the first row with {@code key}, or -1
+     */
+    int first( long key ) {
+      return slotRows[slot( key )];
+    }
+
+    /**
+     * @return index of the next row with the key of row {@code index}, or -1
+     */
+    int next( int index ) {
+      return chains[index];
+    }
+
+    Object[] row( int index ) {
+      return rows.get( index );
+    }
+
+    int size() {
+      return rows.size();
+    }
+  }
+
+  /**
+   * Rows of one input hash partitioned to temporary files
+   */
+  private static class Spill {
+    final Side side;
+    final File[] files = new File[PARTITIONS];
+    final int[] counts = new int[PARTITIONS];
+    private DataInputStream reader;
+
+    Spill( Side side ) {
+      this.side = side;
+    }
+
+    /**
+     * @param keepNullKeys true to keep rows with null keys, which can only be returned unmatched
+     */
+    void write( RowSource rows, boolean keepNullKeys ) throws SQLException {
+      DataOutputStream[] outputs = new DataOutputStream[PARTITIONS];
+      try {
+        try {
+          for ( int i = 0; i < PARTITIONS; i++ ) {
+            files[i] = File.createTempFile( "thin-join-", ".tmp" );
+            outputs[i] =
+              new DataOutputStream( new BufferedOutputStream( new FileOutputStream( files[i] ), BUFFER_SIZE ) );
+          }
+          for ( Object[] row = rows.next(); row != null; row = rows.next() ) {
+            int partition = 0;
+            if ( side.hasNullKey( row ) ) {
+              if ( !keepNullKeys ) {
+                continue;
+              }
+            } else {
+              partition = (int) ( ( side.key( row ) * PARTITION_MIX ) >>> ( Long.SIZE - PARTITION_BITS ) );
+            }
+            side.rowMeta.writeData( outputs[partition], row );
+            counts[partition]++;
+          }
+        } finally {
+          for ( DataOutputStream output : outputs ) {
+            if ( output != null ) {
+              output.close();
+            }
+          }
+        }
+      } catch ( KettleException e ) {
+        throw new SQLException( "Unable to write join partitions to temporary files", e );
+      } catch ( IOException e ) {
+        throw new SQLException( "Unable to write join partitions to temporary files", e );
+      }
+    }
+
+    RowSource read( final int partition ) throws SQLException {
+      try {
+        reader = new DataInputStream( new BufferedInputStream( new FileInputStream( files[partition] ), BUFFER_SIZE ) );
+      } catch ( IOException e ) {
+        throw new SQLException( "Unable to read join partition from a temporary file", e );
+      }
+      final DataInputStream input = reader;
+      return new RowSource() {
+        int remaining = counts[partition];
+
+        @Override public Object[] next() throws SQLException {
+          if ( remaining <= 0 ) {
+            return null;
+          }
+          remaining--;
+          try {
+            return side.rowMeta.readData( input );
+          } catch ( KettleException e ) {
+            throw new SQLException( "Unable to read join partition from a temporary file", e );
+          } catch ( IOException e ) {
+            throw new SQLException( "Unable to read join partition from a temporary file", e );
+          }
+        }
+      };
+    }
+
+    void closeReader() {
+      if ( reader != null ) {
+        try {
+          reader.close();
+        } catch ( IOException e ) {
+          ThinDriver.logger.warning( "Unable to close join partition: " + e.getMessage() );
+        }
+        reader = null;
+      }
+    }
+
+    void close() {
+      closeReader();
+      for ( File file : files ) {
+        if ( file != null && !file.delete() && file.exists() ) {
+          file.deleteOnExit();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.base.Objects;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+import org.apache.commons.httpclient.params.HttpMethodParams;
+import org.apache.commons.httpclient.protocol.Protocol;
+import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
+import org.apache.commons.httpclient.protocol.SecureProtocolSocketFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URI;
+
+/**
+ * Default transport, sending requests over the pooled HTTP/1.1 connections of a commons-httpclient client
+ */
+class HttpClientTransport implements DataServiceTransport {
+  private final HttpClient client;
+
+  HttpClientTransport( HttpClient client ) {
+    this.client = client;
+  }
+
+  /**
+   * The request is sent to the path of {@code url}, on the host given by {@link #hostConfiguration(URI, int)}
+   */
+  @Override public Exchange open( String url, boolean post ) {
+    URI uri = URI.create( url );
+    String path = uri.getRawQuery() == null ? uri.getRawPath() : uri.getRawPath() + "?" + uri.getRawQuery();
+    HttpMethod method = post ? new PostMethod( path ) : new GetMethod( path );
+    method.setDoAuthentication( true );
+    return new MethodExchange( uri, method );
+  }
+
+  /**
+   * @param connectTimeout milliseconds to wait for a new connection, or 0 for the connection manager's timeout
+   * @return the client's host configuration, with its proxy, set to the server of {@code uri}. The connection manager
+   * is shared with other clients, so a connect timeout of the request is applied by the socket factory instead.
+   */
+  HostConfiguration hostConfiguration( URI uri, int connectTimeout ) {
+    HostConfiguration hostConfiguration = new HostConfiguration( client.getHostConfiguration() );
+    Protocol protocol = Protocol.getProtocol( uri.getScheme() );
+    int port = protocol.resolvePort( uri.getPort() );
+    if ( connectTimeout > 0 ) {
+      ProtocolSocketFactory socketFactory = protocol.getSocketFactory();
+      protocol = new Protocol( protocol.getScheme(), socketFactory instanceof SecureProtocolSocketFactory
+        ? new SecureTimedSocketFactory( (SecureProtocolSocketFactory) socketFactory, connectTimeout )
+        : new TimedSocketFactory( socketFactory, connectTimeout ), protocol.getDefaultPort() );
+    }
+    hostConfiguration.setHost( uri.getHost(), port, protocol );
+    return hostConfiguration;
+  }
+
+  /**
+   * Does nothing. The connection manager, and the idle connections it pools, are shared with other clients.
+   */
+  @Override public void close() {
+  }
+
+  private class MethodExchange implements Exchange {
+    private final URI uri;
+    private final HttpMethod method;
+    private int connectTimeout;
+
+    MethodExchange( URI uri, HttpMethod method ) {
+      this.uri = uri;
+      this.method = method;
+    }
+
+    @Override public void addRequestHeader( String name, String value ) {
+      method.addRequestHeader( new Header( name, value ) );
+    }
+
+    @Override public void addParameter( String name, String value ) {
+      if ( method instanceof PostMethod ) {
+        ( (PostMethod) method ).addParameter( name, value );
+      }
+    }
+
+    @Override public void setRequestBody( byte[] body, String contentType ) {
+      if ( method instanceof EntityEnclosingMethod ) {
+        ( (EntityEnclosingMethod) method ).setRequestEntity( new ByteArrayRequestEntity( body, contentType ) );
+      }
+    }
+
+    @Override public void setSocketTimeout( int millis ) {
+      method.getParams().setParameter( HttpMethodParams.SO_TIMEOUT, millis );
+    }
+
+    @Override public void setConnectTimeout( int millis ) {
+      connectTimeout = millis;
+    }
+
+    @Override public int execute() throws IOException {
+      return client.executeMethod( hostConfiguration( uri, connectTimeout ), method );
+    }
+
+    @Override public String getResponseHeader( String name ) {
+      Header header = method.getResponseHeader( name );
+      return header == null ? null : header.getValue();
+    }
+
+    @Override public InputStream getResponseBody() throws IOException {
+      return method.getResponseBodyAsStream();
+    }
+
+    @Override public String getResponseBodyAsString() throws IOException {
+      return method.getResponseBodyAsString();
+    }
+
+    @Override public void release() {
+      method.releaseConnection();
+    }
+
+    @Override public void abort() {
+      method.abort();
+    }
+  }
+
+  /**
+   * Opens sockets with the socket factory of a protocol, giving up on connecting after a timeout. Equal for the same
+   * factory and timeout, so that connections opened with them are pooled together.
+   */
+  static class TimedSocketFactory implements ProtocolSocketFactory {
+    private final ProtocolSocketFactory socketFactory;
+    private final int connectTimeout;
+
+    TimedSocketFactory( ProtocolSocketFactory socketFactory, int connectTimeout ) {
+      this.socketFactory = socketFactory;
+      this.connectTimeout = connectTimeout;
+    }
+
+    int getConnectTimeout() {
+      return connectTimeout;
+    }
+
+    @Override public Socket createSocket( String host, int port, InetAddress localAddress, int localPort,
+                                          HttpConnectionParams params ) throws IOException {
+      HttpConnectionParams timed = new HttpConnectionParams();
+      timed.setDefaults( params );
+      timed.setConnectionTimeout( connectTimeout );
+      return socketFactory.createSocket( host, port, localAddress, localPort, timed );
+    }
+
+    @Override public Socket createSocket( String host, int port, InetAddress localAddress, int localPort )
+      throws IOException {
+      return createSocket( host, port, localAddress, localPort, new HttpConnectionParams() );
+    }
+
+    @Override public Socket createSocket( String host, int port ) throws IOException {
+      return createSocket( host, port, null, 0 );
+    }
+
+    @Override public boolean equals( Object o ) {
+      if ( o == null || o.getClass() != getClass() ) {
+        return false;
+      }
+      TimedSocketFactory other = (TimedSocketFactory) o;
+      return socketFactory.equals( other.socketFactory ) && connectTimeout == other.connectTimeout;
+    }
+
+    @Override public int hashCode() {
+      return Objects.hashCode( socketFactory, connectTimeout );
+    }
+  }
+
+  /**
+   * A {@link TimedSocketFactory} which can also layer TLS over a proxy tunnel, as HTTPS requires
+   */
+  static class SecureTimedSocketFactory extends TimedSocketFactory implements SecureProtocolSocketFactory {
+    private final SecureProtocolSocketFactory socketFactory;
+
+    SecureTimedSocketFactory( SecureProtocolSocketFactory socketFactory, int connectTimeout ) {
+      super( socketFactory, connectTimeout );
+      this.socketFactory = socketFactory;
+    }
+
+    @Override public Socket createSocket( Socket socket, String host, int port, boolean autoClose )
+      throws IOException {
+      return socketFactory.createSocket( socket, host, port, autoClose );
+    }
+  }
+}
@@ -0,0 +1,179 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Set;
+
+/**
+ * Sketch estimating the number of distinct values added to it, with a standard error of about 0.8%. Values are kept
+ * exactly until there are more than {@link #SPARSE_LIMIT} of them, so small groups stay small; after that the sketch
+ * never grows beyond 16KB. Sketches of disjoint partitions can be merged.
+ * <p/>
+ * Cardinality is estimated with the improved estimator of Ertl, "New cardinality estimation algorithms for HyperLogLog
+ * sketches" (2017), which needs no empirical bias correction.
+ */
+class HyperLogLog {
+  static final int PRECISION = 14;
+  static final int SPARSE_LIMIT = 256;
+  private static final int REGISTERS = 1 << PRECISION;
+  private static final int MAX_RANK = Long.SIZE - PRECISION + 1;
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  private Set<Long> hashes = Sets.newHashSet();
+  private byte[] registers;
+
+  void add( Object value ) {
+    if ( value != null ) {
+      addHash( hash( value ) );
+    }
+  }
+
+  private void addHash( long hash ) {
+    if ( registers == null ) {
+      hashes.add( hash );
+      if ( hashes.size() > SPARSE_LIMIT ) {
+        registers = new byte[REGISTERS];
+        for ( Long sparse : hashes ) {
+          update( sparse );
+        }
+        hashes = null;
+      }
+    } else {
+      update( hash );
+    }
+  }
+
+  private void update( long hash ) {
+    int index = (int) ( hash >>> ( Long.SIZE - PRECISION ) );
+    byte rank = (byte) Math.min( Long.numberOfLeadingZeros( hash << PRECISION ) + 1, MAX_RANK );
+    if ( registers[index] < rank ) {
+      registers[index] = rank;
+    }
+  }
+
+  /**
+   * Add every value added to {@code other}
+   */
+  void merge( HyperLogLog other ) {
+    if ( other.registers == null ) {
+      for ( Long hash : other.hashes ) {
+        addHash( hash );
+      }
+      return;
+    }
+    if ( registers == null ) {
+      registers = Arrays.copyOf( other.registers, REGISTERS );
+      for ( Long hash : hashes ) {
+        update( hash );
+      }
+      hashes = null;
+      return;
+    }
+    for ( int i = 0; i < REGISTERS; i++ ) {
+      if ( registers[i] < other.registers[i] ) {
+        registers[i] = other.registers[i];
+      }
+    }
+  }
+
+  /**
+   * @return estimated number of distinct values, exact while the sketch is sparse
+   */
+  long cardinality() {
+    if ( registers == null ) {
+      return hashes.size();
+    }
+    int[] counts = new int[MAX_RANK + 1];
+    for ( byte register : registers ) {
+      counts[register]++;
+    }
+    if ( counts[0] == REGISTERS ) {
+      return 0;
+    }
+    double z = REGISTERS * tau( 1.0 - (double) counts[MAX_RANK] / REGISTERS );
+    for ( int rank = MAX_RANK - 1; rank >= 1; rank-- ) {
+      z = 0.5 * ( z + counts[rank] );
+    }
+    z += REGISTERS * sigma( (double) counts[0] / REGISTERS );
+    return Math.round( REGISTERS / ( 2 * Math.log( 2 ) ) * REGISTERS / z );
+  }
+
+  private static double sigma( double x ) {
+    if ( x == 1.0 ) {
+      return Double.POSITIVE_INFINITY;
+    }
+    double y = 1.0;
+    double z = x;
+    double previous;
+    do {
+      x *= x;
+      previous = z;
+      z += x * y;
+      y += y;
+    } while ( z != previous );
+    return z;
+  }
+
+  private static double tau( double x ) {
+    if ( x == 0.0 || x == 1.0 ) {
+      return 0.0;
+    }
+    double y = 1.0;
+    double z = 1.0 - x;
+    double previous;
+    do {
+      x = Math.sqrt( x );
+      previous = z;
+      y *= 0.5;
+      z -= ( 1.0 - x ) * ( 1.0 - x ) * y;
+    } while ( z != previous );
+    return z / 3.0;
+  }
+
+  /**
+   * @return 64 bit hash of a value, equal for values of one column that are equal
+   */
+  static long hash( Object value ) {
+    if ( value instanceof Long ) {
+      return HASH.hashLong( (Long) value ).asLong();
+    } else if ( value instanceof Double ) {
+      return HASH.hashLong( Double.doubleToLongBits( (Double) value ) ).asLong();
+    } else if ( value instanceof Date ) {
+      return HASH.hashLong( ( (Date) value ).getTime() ).asLong();
+    } else if ( value instanceof byte[] ) {
+      return HASH.hashBytes( (byte[]) value ).asLong();
+    } else if ( value instanceof BigDecimal ) {
+      return HASH.hashString( ( (BigDecimal) value ).stripTrailingZeros().toPlainString(), Charsets.UTF_8 ).asLong();
+    } else {
+      return HASH.hashString( value.toString(), Charsets.UTF_8 ).asLong();
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import org.pentaho.di.core.row.RowMetaInterface;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+
+/**
+ * Forward-only result set streaming the rows of a {@link HashJoin}. Closing it closes the joined result sets.
+ */
+class JoinResultSet extends BaseResultSet {
+  private HashJoin join;
+  private final int[] sources;
+  private final int maxRows;
+  private final ResultSet[] inputs;
+  private int size = 1;
+
+  /**
+   * @param sources columns of the output, as the index of a left column or -(right column index + 1)
+   * @param maxRows maximum number of rows to return, or 0 for all of them
+   */
+  JoinResultSet( RowMetaInterface rowMeta, HashJoin join, int[] sources, int maxRows, ResultSet... inputs ) {
+    super( rowMeta );
+    this.join = join;
+    this.sources = sources;
+    this.maxRows = maxRows;
+    this.inputs = inputs;
+  }
+
+  @Override protected Object[] retrieveRow( int i ) throws Exception {
+    if ( isAfterLast() ? i > size() : i == getRow() ) {
+      return getCurrentRow();
+    } else if ( i == getRow() + 1 ) {
+      if ( ( maxRows <= 0 || i <= maxRows ) && join.next() ) {
+        size += 1;
+        return values( join.getLeftRow(), join.getRightRow() );
+      }
+      size = getRow();
+      join.close();
+      return null;
+    } else {
+      throw new SQLFeatureNotSupportedException( "Scrollable result sets are not supported" );
+    }
+  }
+
+  private Object[] values( Object[] leftRow, Object[] rightRow ) {
+    Object[] values = new Object[sources.length];
+    for ( int i = 0; i < sources.length; i++ ) {
+      int source = sources[i];
+      if ( source >= 0 ) {
+        values[i] = leftRow == null ? null : leftRow[source];
+      } else {
+        values[i] = rightRow == null ? null : rightRow[-source - 1];
+      }
+    }
+    return values;
+  }
+
+  @Override protected int size() throws SQLException {
+    return size;
+  }
+
+  @Override
+  public void close() throws SQLException {
+    if ( join != null ) {
+      join.close();
+      join = null;
+      for ( ResultSet input : inputs ) {
+        input.close();
+      }
+    }
+  }
+
+  @Override
+  public boolean isClosed() throws SQLException {
+    return join == null;
+  }
+
+  @Override
+  public String getCursorName() throws SQLException {
+    return "join";
+  }
+
+  @Override
+  public int getType() throws SQLException {
+    return ResultSet.TYPE_FORWARD_ONLY;
+  }
+
+  @Override
+  public int getFetchDirection() throws SQLException {
+    return ResultSet.FETCH_FORWARD;
+  }
+
+  @Override
+  public void setFetchDirection( int direction ) throws SQLException {
+    if ( direction != FETCH_FORWARD ) {
+      throw new SQLFeatureNotSupportedException( "Only FETCH_FORWARD is allowed" );
+    }
+  }
+
+  @Override
+  public int getFetchSize() throws SQLException {
+    return 0;
+  }
+
+  @Override
+  public void setFetchSize( int rows ) throws SQLException {
+  }
+
+  @Override
+  public int getHoldability() throws SQLException {
+    return ResultSet.HOLD_CURSORS_OVER_COMMIT;
+  }
+
+  @Override
+  public ResultSetMetaData getMetaData() throws SQLException {
+    return new ThinResultSetMetaData( "join", getRowMeta() );
+  }
+}
@@ -0,0 +1,256 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.collect.Lists;
+import org.pentaho.di.core.exception.KettleEOFException;
+import org.pentaho.di.core.exception.KettleFileException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+
+/**
+ * Reads rows from a response without decoding them. The encoded values of each row are copied to a buffer and only
+ * decoded by {@link #decode(Object[], int)} when first requested, so columns which are never read are never converted
+ * to Java objects.
+ * <p/>
+ * String and binary values longer than the LOB threshold are instead spilled to temporary files and appear in the row
+ * as {@link SpilledLob}s, which are deleted when the next row is read or the reader is released. Columns whose
+ * encoded length can't be determined without decoding them are decoded immediately.
+ */
+class LazyRowReader {
+  private static final int VARIABLE = -1;
+  private static final int EAGER = -2;
+  private static final int DECODED = -1;
+
+  private final RowMetaInterface rowMeta;
+  private final int lobThreshold;
+  private final int[] encodedSizes;
+  private final byte[] scratch = new byte[8192];
+  private final List<SpilledLob> spilled = Lists.newArrayList();
+  private final RowInput rowInput = new RowInput();
+  private final DataInputStream valueStream = new DataInputStream( rowInput );
+
+  // The next row is read into the back buffer, which becomes the current row once complete
+  private RowBuffer encoded = new RowBuffer();
+  private RowBuffer buffer = new RowBuffer();
+  private int[] offsets;
+  private int[] nextOffsets;
+  private Object[] values;
+
+  /**
+   * @param lobThreshold length in bytes above which string and binary values are spilled. Spilling is disabled if not
+   *                     positive.
+   */
+  LazyRowReader( RowMetaInterface rowMeta, int lobThreshold ) {
+    this.rowMeta = rowMeta;
+    this.lobThreshold = lobThreshold;
+    encodedSizes = new int[rowMeta.size()];
+    for ( int i = 0; i < encodedSizes.length; i++ ) {
+      encodedSizes[i] = encodedSize( rowMeta.getValueMeta( i ) );
+    }
+    offsets = new int[encodedSizes.length];
+    nextOffsets = new int[encodedSizes.length];
+  }
+
+  /**
+   * @return size of a non-null value following its null flag, {@link #VARIABLE} if the value is prefixed by its
+   * length, or {@link #EAGER} if it can only be found by decoding the value
+   */
+  private static int encodedSize( ValueMetaInterface valueMeta ) {
+    if ( valueMeta.getStorageType() != ValueMetaInterface.STORAGE_TYPE_NORMAL ) {
+      return EAGER;
+    }
+    switch ( valueMeta.getType() ) {
+      case ValueMetaInterface.TYPE_NUMBER:
+      case ValueMetaInterface.TYPE_INTEGER:
+      case ValueMetaInterface.TYPE_DATE:
+        return 8;
+      case ValueMetaInterface.TYPE_BOOLEAN:
+        return 1;
+      case ValueMetaInterface.TYPE_STRING:
+      case ValueMetaInterface.TYPE_BINARY:
+      case ValueMetaInterface.TYPE_BIGNUMBER:
+        return VARIABLE;
+      default:
+        return EAGER;
+    }
+  }
+
+  /**
+   * @return true if rows have any columns to read
+   */
+  boolean isEnabled() {
+    return encodedSizes.length > 0;
+  }
+
+  /**
+   * Read the next row. Its values remain encoded until passed to {@link #decode(Object[], int)}.
+   */
+  Object[] readData( DataInputStream inputStream ) throws KettleFileException, SocketTimeoutException {
+    release();
+    // Rows are handed out by the result set, and may be kept by the caller
+    Object[] row = new Object[encodedSizes.length];
+    int[] rowOffsets = nextOffsets;
+    buffer.reset();
+    for ( int i = 0; i < encodedSizes.length; i++ ) {
+      ValueMetaInterface valueMeta = rowMeta.getValueMeta( i );
+      rowOffsets[i] = DECODED;
+      if ( encodedSizes[i] == EAGER ) {
+        row[i] = valueMeta.readData( inputStream );
+        continue;
+      }
+      try {
+        int offset = buffer.size();
+        boolean isNull = inputStream.readBoolean();
+        if ( isNull ) {
+          continue;
+        }
+        buffer.write( 0 );
+        if ( encodedSizes[i] != VARIABLE ) {
+          copy( inputStream, encodedSizes[i] );
+          rowOffsets[i] = offset;
+          continue;
+        }
+        int length = inputStream.readInt();
+        if ( isLob( valueMeta ) && length > lobThreshold ) {
+          SpilledLob lob = SpilledLob.spill( inputStream, length,
+            valueMeta.getType() == ValueMetaInterface.TYPE_STRING );
+          spilled.add( lob );
+          row[i] = lob;
+          buffer.truncate( offset );
+        } else {
+          buffer.writeInt( length );
+          copy( inputStream, Math.max( length, 0 ) );
+          rowOffsets[i] = offset;
+        }
+      } catch ( EOFException e ) {
+        throw new KettleEOFException( e );
+      } catch ( SocketTimeoutException e ) {
+        throw e;
+      } catch ( IOException e ) {
+        throw new KettleFileException( valueMeta.toString() + " : Unable to read value data from input stream", e );
+      }
+    }
+    values = row;
+    nextOffsets = offsets;
+    offsets = rowOffsets;
+    RowBuffer read = buffer;
+    buffer = encoded;
+    encoded = read;
+    return row;
+  }
+
+  private boolean isLob( ValueMetaInterface valueMeta ) {
+    return lobThreshold > 0 && valueMeta.getType() != ValueMetaInterface.TYPE_BIGNUMBER;
+  }
+
+  private void copy( DataInputStream inputStream, int length ) throws IOException {
+    for ( int remaining = length; remaining > 0; ) {
+      int count = Math.min( remaining, scratch.length );
+      inputStream.readFully( scratch, 0, count );
+      buffer.write( scratch, 0, count );
+      remaining -= count;
+    }
+  }
+
+  /**
+   * Decode a value of the last row read, if it is still encoded
+   */
+  void decode( Object[] row, int index ) throws KettleFileException, SocketTimeoutException {
+    if ( row == values && offsets[index] != DECODED ) {
+      rowInput.position( encoded.getBuffer(), offsets[index], encoded.size() );
+      row[index] = rowMeta.getValueMeta( index ).readData( valueStream );
+      offsets[index] = DECODED;
+    }
+  }
+
+  /**
+   * Decode every value of the last row read
+   */
+  void decodeAll( Object[] row ) throws KettleFileException, SocketTimeoutException {
+    for ( int i = 0; i < encodedSizes.length; i++ ) {
+      decode( row, i );
+    }
+  }
+
+  /**
+   * Delete the values spilled from the last row read
+   */
+  void release() {
+    for ( SpilledLob lob : spilled ) {
+      lob.delete();
+    }
+    spilled.clear();
+  }
+
+  /**
+   * Reusable buffer for the encoded values of a row
+   */
+  private static class RowBuffer extends ByteArrayOutputStream {
+    void writeInt( int value ) {
+      write( value >>> 24 );
+      write( value >>> 16 );
+      write( value >>> 8 );
+      write( value );
+    }
+
+    void truncate( int size ) {
+      count = size;
+    }
+
+    /**
+     * @return the buffer itself, valid up to {@link #size()} until the next write
+     */
+    byte[] getBuffer() {
+      return buf;
+    }
+  }
+
+  /**
+   * Reusable stream over the encoded values of the current row
+   */
+  private static class RowInput extends ByteArrayInputStream {
+    RowInput() {
+      super( new byte[0] );
+    }
+
+    /**
+     * Read {@code bytes} from {@code offset} up to {@code end}
+     */
+    void position( byte[] bytes, int offset, int end ) {
+      buf = bytes;
+      pos = offset;
+      mark = offset;
+      count = end;
+    }
+  }
+}
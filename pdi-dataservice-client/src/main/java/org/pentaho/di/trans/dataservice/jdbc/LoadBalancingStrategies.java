@@ -0,0 +1,136 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.base.Strings;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The built-in load balancing strategies, selected with the {@value ThinConnection#ARG_LOADBALANCING} connection
+ * property
+ */
+public final class LoadBalancingStrategies {
+  public static final String ROUND_ROBIN = "roundrobin";
+  public static final String LEAST_OUTSTANDING = "leastoutstanding";
+  public static final String LATENCY = "latency";
+
+  private LoadBalancingStrategies() {
+  }
+
+  /**
+   * @param name name of a built-in strategy, or the class name of a {@link LoadBalancingStrategy}. Defaults to round
+   *             robin.
+   */
+  public static LoadBalancingStrategy forName( String name ) throws SQLException {
+    if ( Strings.isNullOrEmpty( name ) || ROUND_ROBIN.equalsIgnoreCase( name ) ) {
+      return new RoundRobin();
+    }
+    if ( LEAST_OUTSTANDING.equalsIgnoreCase( name ) ) {
+      return new LeastOutstanding();
+    }
+    if ( LATENCY.equalsIgnoreCase( name ) ) {
+      return new LatencyWeighted();
+    }
+    try {
+      return Class.forName( name ).asSubclass( LoadBalancingStrategy.class ).newInstance();
+    } catch ( Exception e ) {
+      throw new SQLException( "Invalid " + ThinConnection.ARG_LOADBALANCING + ": " + name, e );
+    }
+  }
+
+  /**
+   * Each server in turn
+   */
+  public static class RoundRobin implements LoadBalancingStrategy {
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Override public ServerNode select( List<ServerNode> nodes ) {
+      return nodes.get( ( next.getAndIncrement() & Integer.MAX_VALUE ) % nodes.size() );
+    }
+  }
+
+  /**
+   * The server with the fewest requests still open from this client, taking turns between equally busy servers
+   */
+  public static class LeastOutstanding implements LoadBalancingStrategy {
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Override public ServerNode select( List<ServerNode> nodes ) {
+      int start = next.getAndIncrement() & Integer.MAX_VALUE;
+      ServerNode selected = null;
+      for ( int i = 0; i < nodes.size(); i++ ) {
+        ServerNode node = nodes.get( ( start + i ) % nodes.size() );
+        if ( selected == null || node.getOutstandingRequests() < selected.getOutstandingRequests() ) {
+          selected = node;
+        }
+      }
+      return selected;
+    }
+  }
+
+  /**
+   * A random server, weighted by the inverse of its average response time. Servers without a response yet are
+   * weighted as the fastest server, so that they are measured.
+   */
+  public static class LatencyWeighted implements LoadBalancingStrategy {
+    private static final double MIN_LATENCY_MILLIS = 1;
+    private final Random random = new Random();
+
+    @Override public ServerNode select( List<ServerNode> nodes ) {
+      double fastest = Double.MAX_VALUE;
+      for ( ServerNode node : nodes ) {
+        double latency = node.getAverageLatencyMillis();
+        if ( latency >= 0 ) {
+          fastest = Math.min( fastest, Math.max( latency, MIN_LATENCY_MILLIS ) );
+        }
+      }
+      if ( fastest == Double.MAX_VALUE ) {
+        fastest = MIN_LATENCY_MILLIS;
+      }
+
+      double[] weights = new double[nodes.size()];
+      double total = 0;
+      for ( int i = 0; i < weights.length; i++ ) {
+        double latency = nodes.get( i ).getAverageLatencyMillis();
+        weights[i] = 1 / ( latency < 0 ? fastest : Math.max( latency, MIN_LATENCY_MILLIS ) );
+        total += weights[i];
+      }
+
+      double target;
+      synchronized ( random ) {
+        target = random.nextDouble() * total;
+      }
+      for ( int i = 0; i < weights.length - 1; i++ ) {
+        target -= weights[i];
+        if ( target < 0 ) {
+          return nodes.get( i );
+        }
+      }
+      return nodes.get( weights.length - 1 );
+    }
+  }
+}
@@ -0,0 +1,38 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import java.util.List;
+
+/**
+ * Chooses the server for each request of a connection whose URL names several servers. Implementations are shared by
+ * every connection from the same {@link ThinConnection.Builder}, and must be thread-safe.
+ *
+ * @see LoadBalancingStrategies
+ */
+public interface LoadBalancingStrategy {
+  /**
+   * @param nodes servers available for the request, never empty
+   */
+  ServerNode select( List<ServerNode> nodes );
+}
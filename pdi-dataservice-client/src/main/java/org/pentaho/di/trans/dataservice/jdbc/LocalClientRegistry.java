@@ -0,0 +1,91 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.base.Strings;
+import org.pentaho.di.trans.dataservice.client.DataServiceClientService;
+
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Client services available to local connections, keyed by the name of the repository or metastore they serve.
+ * Services may be registered and replaced at any time; connections resolve them without locking.
+ */
+public class LocalClientRegistry {
+  /**
+   * Key of the service used by local connections which don't name a repository
+   */
+  public static final String DEFAULT_KEY = "";
+
+  private static final LocalClientRegistry INSTANCE = new LocalClientRegistry();
+
+  private final ConcurrentMap<String, DataServiceClientService> clients =
+    new ConcurrentHashMap<String, DataServiceClientService>();
+
+  public static LocalClientRegistry getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Register {@code client} for {@code key}, replacing any service already registered
+   *
+   * @return the service replaced, or null
+   */
+  public DataServiceClientService register( String key, DataServiceClientService client ) {
+    return clients.put( Strings.nullToEmpty( key ), client );
+  }
+
+  /**
+   * Remove {@code client}, if it is still the service registered for {@code key}
+   */
+  public boolean unregister( String key, DataServiceClientService client ) {
+    return clients.remove( Strings.nullToEmpty( key ), client );
+  }
+
+  /**
+   * Remove whichever service is registered for {@code key}
+   */
+  public DataServiceClientService unregister( String key ) {
+    return clients.remove( Strings.nullToEmpty( key ) );
+  }
+
+  /**
+   * @return the service registered for {@code key}, or null
+   */
+  public DataServiceClientService get( String key ) {
+    return clients.get( Strings.nullToEmpty( key ) );
+  }
+
+  DataServiceClientService lookup( String key ) throws SQLException {
+    DataServiceClientService client = get( key );
+    if ( client == null ) {
+      throw new SQLException( Strings.isNullOrEmpty( key )
+        ? "Local client service is not installed"
+        : "Local client service is not installed for repository " + key );
+    }
+    return client;
+  }
+}
@@ -0,0 +1,136 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.base.Strings;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Splits the rows of a query between several readers, such as the copies of a Table Input step, so that each reads a
+ * distinct slice. The server is asked to return only the rows of the partition and reports whether it did. Otherwise
+ * rows are hashed on the partition column by the client, or without one, the first partition reads every row.
+ */
+class Partitioning {
+  enum Method {
+    HASH, SERVER
+  }
+
+  private final Method method;
+  private final String column;
+  private final int partition;
+  private final int partitions;
+
+  Partitioning( Method method, String column, int partition, int partitions ) {
+    this.method = method;
+    this.column = column;
+    this.partition = partition;
+    this.partitions = partitions;
+  }
+
+  /**
+   * @return partitioning set by the {@value ThinConnection#ARG_PARTITIONING},
+   * {@value ThinConnection#ARG_PARTITIONCOLUMN}, {@value ThinConnection#ARG_PARTITION} and
+   * {@value ThinConnection#ARG_PARTITIONS} connection properties, or null if every row is read
+   */
+  static Partitioning fromArguments( Map<String, String> arguments ) throws SQLException {
+    String methodArg = arguments.get( ThinConnection.ARG_PARTITIONING );
+    if ( Strings.isNullOrEmpty( methodArg ) || "none".equalsIgnoreCase( methodArg.trim() ) ) {
+      return null;
+    }
+    Method method;
+    try {
+      method = Method.valueOf( methodArg.trim().toUpperCase() );
+    } catch ( IllegalArgumentException e ) {
+      throw new SQLException( "Invalid " + ThinConnection.ARG_PARTITIONING + ": " + methodArg, e );
+    }
+    String column = Strings.emptyToNull( arguments.get( ThinConnection.ARG_PARTITIONCOLUMN ) );
+    if ( method == Method.HASH && column == null ) {
+      throw new SQLException( ThinConnection.ARG_PARTITIONCOLUMN + " is required for hash partitioning" );
+    }
+
+    String partition = arguments.get( ThinConnection.ARG_PARTITION );
+    String partitions = arguments.get( ThinConnection.ARG_PARTITIONS );
+    if ( isUnresolved( partition ) || isUnresolved( partitions ) ) {
+      // Step variables are only set while a transformation runs
+      return null;
+    }
+    Partitioning partitioning;
+    try {
+      partitioning = new Partitioning( method, column == null ? null : column.trim(),
+        Strings.isNullOrEmpty( partition ) ? 0 : Integer.parseInt( partition.trim() ),
+        Strings.isNullOrEmpty( partitions ) ? 1 : Integer.parseInt( partitions.trim() ) );
+    } catch ( NumberFormatException e ) {
+      throw new SQLException( "Invalid partition: " + e.getMessage(), e );
+    }
+    if ( partitioning.partition < 0 || partitioning.partition >= partitioning.partitions ) {
+      throw new SQLException( "Invalid partition: " + partition + " of " + partitions );
+    }
+    return partitioning.partitions > 1 ? partitioning : null;
+  }
+
+  private static boolean isUnresolved( String value ) {
+    return value != null && value.contains( "${" );
+  }
+
+  Method getMethod() {
+    return method;
+  }
+
+  /**
+   * @return column hashed to assign rows to partitions, or null to let the server assign them
+   */
+  String getColumn() {
+    return column;
+  }
+
+  /**
+   * @return partition read by this connection, from 0
+   */
+  int getPartition() {
+    return partition;
+  }
+
+  int getPartitions() {
+    return partitions;
+  }
+
+  /**
+   * @return true if a row whose partition column is {@code value} belongs to this partition
+   */
+  boolean contains( Object value ) {
+    int hash;
+    if ( value == null ) {
+      hash = 0;
+    } else if ( value instanceof byte[] ) {
+      hash = Arrays.hashCode( (byte[]) value );
+    } else {
+      // Hash codes of the value types are the same in every JVM
+      hash = value.hashCode();
+    }
+    return ( hash % partitions + partitions ) % partitions == partition;
+  }
+}
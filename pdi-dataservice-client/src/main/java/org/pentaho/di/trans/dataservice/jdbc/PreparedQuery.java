@@ -0,0 +1,92 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import org.pentaho.di.core.jdbc.ThinUtil;
+
+import java.sql.SQLException;
+
+/**
+ * What is known about a prepared SQL statement independently of its parameter values: where its placeholders are
+ * and, once learned, the header of its results.
+ * <p/>
+ * Shared by the prepared statements of a connection through {@link ThinConnection#getPreparedQuery(String)}, so
+ * preparing the same SQL again doesn't rescan it.
+ */
+class PreparedQuery {
+  private final String sql;
+  private final ImmutableList<Integer> placeholderIndexes;
+  private volatile ThinResultHeader resultHeader;
+
+  PreparedQuery( String sql ) throws SQLException {
+    this.sql = sql;
+    this.placeholderIndexes = findPlaceholders( sql );
+  }
+
+  static ImmutableList<Integer> findPlaceholders( String sql ) throws SQLException {
+    try {
+      ImmutableList.Builder<Integer> placeholderIndexes = ImmutableList.builder();
+
+      int index = 0;
+      while ( index < sql.length() ) {
+        index = ThinUtil.skipChars( sql, index, '\'', '"' );
+        if ( index < sql.length() ) {
+          if ( sql.charAt( index ) == '?' ) {
+            // placeholder found.
+            placeholderIndexes.add( index );
+          }
+        }
+
+        index++;
+      }
+      return placeholderIndexes.build();
+    } catch ( Exception e ) {
+      Throwables.propagateIfPossible( e, SQLException.class );
+      throw new SQLException( e );
+    }
+  }
+
+  String getSql() {
+    return sql;
+  }
+
+  ImmutableList<Integer> getPlaceholderIndexes() {
+    return placeholderIndexes;
+  }
+
+  /**
+   * @return header of this query's results, or null if not yet known
+   */
+  ThinResultHeader getResultHeader() {
+    return resultHeader;
+  }
+
+  void setResultHeader( ThinResultHeader resultHeader ) {
+    if ( resultHeader != null ) {
+      this.resultHeader = resultHeader;
+    }
+  }
+}
@@ -0,0 +1,188 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.pentaho.di.trans.dataservice.jdbc.DataServiceTransport.Exchange;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tracks an executing query so that it can be cancelled, or timed out, from another thread.
+ * <p/>
+ * Cancelling aborts the request of the query, which unblocks any thread waiting on the response, and stops the
+ * service transformation once the result header (and with it the service object id) is known.
+ */
+class QueryHandle {
+  private final AtomicReference<SQLException> cancelled = new AtomicReference<SQLException>();
+  private volatile Exchange exchange;
+  private volatile ThinResultSet resultSet;
+  private volatile Future<?> timeout;
+  private volatile boolean unlimited;
+  private final List<QueryHandle> linked = new CopyOnWriteArrayList<QueryHandle>();
+
+  void attach( Exchange exchange ) {
+    this.exchange = exchange;
+    if ( isCancelled() ) {
+      exchange.abort();
+    }
+  }
+
+  void attach( ThinResultSet resultSet ) {
+    this.resultSet = resultSet;
+    resultSet.setQueryHandle( this );
+    if ( isCancelled() ) {
+      resultSet.cancel();
+    }
+  }
+
+  /**
+   * Cancel {@code other} along with this query, for statements reading more than one query at a time
+   */
+  void link( QueryHandle other ) {
+    linked.add( other );
+    if ( isCancelled() ) {
+      other.cancel( cancelled.get() );
+    }
+  }
+
+  /**
+   * Run this query regardless of the {@link ConcurrencyLimiter} of its server, for the second and later queries of a
+   * statement reading several at once. The statement then takes a single permit, and can't wait on itself for more.
+   */
+  void setUnlimited() {
+    unlimited = true;
+  }
+
+  boolean isUnlimited() {
+    return unlimited;
+  }
+
+  /**
+   * Cancel this query if it has not completed within the given number of seconds
+   */
+  void scheduleTimeout( final int seconds ) {
+    timeout = Timers.SCHEDULER.schedule( new Runnable() {
+      @Override public void run() {
+        Timers.CANCELLER.submit( new Runnable() {
+          @Override public void run() {
+            cancel( new SQLTimeoutException( "Query timed out after " + seconds + " seconds" ) );
+          }
+        } );
+      }
+    }, seconds, TimeUnit.SECONDS );
+  }
+
+  boolean cancel() {
+    return cancel( new SQLException( "Query was cancelled" ) );
+  }
+
+  boolean abort() {
+    return cancel( new SQLException( "Connection was aborted" ) );
+  }
+
+  private boolean cancel( SQLException reason ) {
+    if ( !cancelled.compareAndSet( null, reason ) ) {
+      return false;
+    }
+    finish();
+
+    Exchange exchange = this.exchange;
+    if ( exchange != null ) {
+      exchange.abort();
+    }
+    ThinResultSet resultSet = this.resultSet;
+    if ( resultSet != null ) {
+      resultSet.cancel();
+    }
+    for ( QueryHandle other : linked ) {
+      other.cancel( reason );
+    }
+    return true;
+  }
+
+  /**
+   * Return the connection of the query's request to its transport, once it will no longer be read
+   */
+  void release() {
+    Exchange exchange = this.exchange;
+    if ( exchange != null ) {
+      exchange.release();
+    }
+  }
+
+  /**
+   * Called once the query has completed normally, so that it will no longer time out
+   */
+  void finish() {
+    Future<?> timeout = this.timeout;
+    if ( timeout != null ) {
+      timeout.cancel( false );
+    }
+  }
+
+  boolean isCancelled() {
+    return cancelled.get() != null;
+  }
+
+  boolean isTimedOut() {
+    return cancelled.get() instanceof SQLTimeoutException;
+  }
+
+  /**
+   * @return a new exception describing why this query was cancelled, thrown on the thread that was using it
+   */
+  SQLException cancellation( Throwable cause ) {
+    SQLException reason = cancelled.get();
+    if ( reason instanceof SQLTimeoutException ) {
+      return new SQLTimeoutException( reason.getMessage(), cause );
+    }
+    return new SQLException( reason == null ? "Query was cancelled" : reason.getMessage(), cause );
+  }
+
+  /**
+   * Shared by all statements. Cancellation may block on the server's stop request, so it runs apart from the
+   * scheduler to keep one slow server from delaying the timeouts of others.
+   */
+  private static class Timers {
+    static final ScheduledThreadPoolExecutor SCHEDULER;
+    static final ExecutorService CANCELLER = Executors.newCachedThreadPool( new ThreadFactoryBuilder()
+      .setDaemon( true ).setNameFormat( "pdi-dataservice-cancel-%d" ).build() );
+
+    static {
+      SCHEDULER = new ScheduledThreadPoolExecutor( 1, new ThreadFactoryBuilder()
+        .setDaemon( true ).setNameFormat( "pdi-dataservice-timeout-%d" ).build() );
+      SCHEDULER.setRemoveOnCancelPolicy( true );
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+/**
+ * How the rows of a query are requested from the server: how many, and whether they are sampled, streamed or
+ * partitioned. Options are immutable, each {@code with} method returns a copy.
+ */
+class QueryOptions {
+  /**
+   * Every row the service produces in one run
+   */
+  static final QueryOptions DEFAULT = new QueryOptions( -1, null, null, null );
+
+  private final int maxRows;
+  private final Sampling sampling;
+  private final Streaming streaming;
+  private final Partitioning partitioning;
+
+  private QueryOptions( int maxRows, Sampling sampling, Streaming streaming, Partitioning partitioning ) {
+    this.maxRows = maxRows;
+    this.sampling = sampling;
+    this.streaming = streaming;
+    this.partitioning = partitioning;
+  }
+
+  /**
+   * @param maxRows rows to return, or 0 or less for every row
+   */
+  QueryOptions withMaxRows( int maxRows ) {
+    return new QueryOptions( maxRows, sampling, streaming, partitioning );
+  }
+
+  /**
+   * @param sampling sample to request from the server, or null for every row
+   */
+  QueryOptions withSampling( Sampling sampling ) {
+    return new QueryOptions( maxRows, sampling, streaming, partitioning );
+  }
+
+  /**
+   * @param streaming windows of a continuous query, whose response stays open until it is stopped, or null for the
+   *                  rows the service produces in one run
+   */
+  QueryOptions withStreaming( Streaming streaming ) {
+    return new QueryOptions( maxRows, sampling, streaming, partitioning );
+  }
+
+  /**
+   * @param partitioning slice of the rows to request from the server, or null for every row
+   */
+  QueryOptions withPartitioning( Partitioning partitioning ) {
+    return new QueryOptions( maxRows, sampling, streaming, partitioning );
+  }
+
+  int getMaxRows() {
+    return maxRows;
+  }
+
+  /**
+   * @return row limit of the query sent to the server, which a sample may lower
+   */
+  int getRequestRows() {
+    return sampling != null ? sampling.limit( maxRows ) : maxRows;
+  }
+
+  Sampling getSampling() {
+    return sampling;
+  }
+
+  Streaming getStreaming() {
+    return streaming;
+  }
+
+  Partitioning getPartitioning() {
+    return partitioning;
+  }
+}
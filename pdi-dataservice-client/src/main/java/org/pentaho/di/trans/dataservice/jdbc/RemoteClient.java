@@ -25,17 +25,18 @@ package org.pentaho.di.trans.dataservice.jdbc;
 import com.google.common.base.CharMatcher;
 import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
-import org.apache.commons.httpclient.Header;
+import com.google.common.collect.Maps;
 import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpMethod;
-import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.httpclient.methods.PostMethod;
 import org.pentaho.di.core.row.RowMeta;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.core.xml.XMLHandler;
 import org.pentaho.di.repository.Repository;
-import org.pentaho.di.trans.dataservice.client.DataServiceClientService;
+import org.pentaho.di.trans.dataservice.jdbc.DataServiceTransport.Exchange;
+import org.pentaho.di.trans.dataservice.client.DescribingDataServiceClientService;
 import org.pentaho.metastore.api.IMetaStore;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
@@ -43,61 +44,439 @@ import org.w3c.dom.Node;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * @author nhudak
  */
-class RemoteClient implements DataServiceClientService {
+class RemoteClient implements DescribingDataServiceClientService {
 
   private static final String SQL = "SQL";
   private static final String MAX_ROWS = "MaxRows";
+  private static final String DESCRIBE = "Describe";
+  static final String SAMPLE = "Sample";
+  static final String SAMPLE_ROWS = "SampleRows";
+  static final String ROW_COUNT_ESTIMATE = "RowCountEstimate";
+  static final String CONTINUOUS = "Continuous";
+  static final String WINDOW_MODE = "WindowMode";
+  static final String WINDOW_SIZE = "WindowSize";
+  static final String WINDOW_EVERY = "WindowEvery";
+  static final String PARTITION = "Partition";
+  static final String PARTITION_COUNT = "PartitionCount";
+  static final String PARTITION_COLUMN = "PartitionColumn";
   private static final int MAX_SQL_LENGTH = 7500;
+  private static final CharMatcher LINE_BREAKS = CharMatcher.anyOf( "\n\r" );
+  private static final Pattern COMMAND = Pattern.compile( "\\[\\s*(\\w+)\\s+(\\S+)\\s*\\]" );
+  // Service name, service transformation name and service object id, each at most 64K of modified UTF-8
+  private static final int HEADER_PEEK_LIMIT = 3 * ( 2 + 65535 );
 
   private final ThinConnection connection;
-  private final HttpClient client;
+  private final DataServiceTransport transport;
+  private final Set<QueryHandle> activeQueries =
+    Collections.newSetFromMap( new ConcurrentHashMap<QueryHandle, Boolean>() );
+  private volatile int socketTimeout = 0;
+  private ServiceInformationCache serviceInformationCache;
+  private volatile ServerPool serverPool;
+  private volatile Map<URI, ConcurrencyLimiter> concurrencyLimiters = ImmutableMap.of();
+  // Query URLs of servers which rejected compact requests
+  private final Set<String> compactRejectingUrls =
+    Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+  // Server of each running query, which must also receive the commands for it
+  private final Cache<String, ServerNode> queryNodes = CacheBuilder.newBuilder().maximumSize( 10000 ).build();
   private DocumentBuilderFactory docBuilderFactory;
   private static final String SERVICE_PATH = "/sql/";
 
   RemoteClient( ThinConnection connection, HttpClient client ) {
+    this( connection, new HttpClientTransport( client ) );
+  }
+
+  RemoteClient( ThinConnection connection, DataServiceTransport transport ) {
     this.connection = connection;
-    this.client = client;
+    this.transport = transport;
   }
 
   @Override public DataInputStream query( String sql, int maxRows ) throws SQLException {
+    return query( sql, QueryOptions.DEFAULT.withMaxRows( maxRows ), new QueryHandle() );
+  }
+
+  /**
+   * Execute a query, attaching its request to {@code queryHandle} so that it may be aborted from another thread
+   *
+   * @param options rows to request from the server
+   */
+  DataInputStream query( String sql, QueryOptions options, final QueryHandle queryHandle ) throws SQLException {
+    Sampling sampling = options.getSampling();
+    Streaming streaming = options.getStreaming();
+    Partitioning partitioning = options.getPartitioning();
+    final ServerNode node = acquireNode( sql );
+    // Commands stop queries, and must not wait behind them. Continuous queries could hold their permit forever.
+    final ConcurrencyLimiter limiter = COMMAND.matcher( sql.trim() ).matches() || streaming != null
+      || queryHandle.isUnlimited() ? null : getConcurrencyLimiter( node );
+    boolean limited = false;
     try {
-      String url = connection.constructUrl( SERVICE_PATH );
-      PostMethod method = new PostMethod( url );
-      method.setDoAuthentication( true );
+      if ( limiter != null ) {
+        limiter.acquire();
+        limited = true;
+      }
+      Exchange exchange = openQuery( node, sql, options.getRequestRows() );
+      if ( sampling != null ) {
+        exchange.addParameter( SAMPLE, sampling.getMethod().name().toLowerCase() );
+        exchange.addParameter( SAMPLE_ROWS, Integer.toString( sampling.getRows() ) );
+      }
+      if ( streaming != null ) {
+        exchange.addParameter( CONTINUOUS, "true" );
+        if ( streaming.getWindowSize() > 0 ) {
+          exchange.addParameter( WINDOW_MODE, streaming.getWindowMode().name().toLowerCase() );
+          exchange.addParameter( WINDOW_SIZE, Long.toString( streaming.getWindowSize() ) );
+          exchange.addParameter( WINDOW_EVERY, Long.toString( streaming.getWindowEvery() ) );
+        }
+        // Rows may be a long time apart, the query is stopped by cancelling it instead
+        exchange.setSocketTimeout( 0 );
+      }
+      if ( partitioning != null ) {
+        exchange.addParameter( PARTITION, Integer.toString( partitioning.getPartition() ) );
+        exchange.addParameter( PARTITION_COUNT, Integer.toString( partitioning.getPartitions() ) );
+        if ( partitioning.getColumn() != null ) {
+          exchange.addParameter( PARTITION_COLUMN, partitioning.getColumn() );
+        }
+      }
 
-      method.getParams().setParameter( "http.socket.timeout", 0 );
+      activeQueries.add( queryHandle );
+      queryHandle.attach( exchange );
+      execute( exchange, node, limiter );
+      InputStream responseBody = exchange.getResponseBody();
+      if ( node != null && !COMMAND.matcher( sql.trim() ).matches() ) {
+        responseBody = pinQuery( responseBody, node );
+      }
+      CountingDataInputStream responseStream = new CountingDataInputStream( new FilterInputStream( responseBody ) {
+        private boolean closed;
+        private boolean released;
 
-      // Kept in for backwards compatibility, but should be removed in next major release
-      if ( sql.length() < MAX_SQL_LENGTH ) {
-        method.addRequestHeader( new Header( SQL, CharMatcher.anyOf( "\n\r" ).collapseFrom( sql, ' ' ) ) );
-        method.addRequestHeader( new Header( MAX_ROWS, Integer.toString( maxRows ) ) );
+        @Override public int read() throws IOException {
+          return released( super.read() );
+        }
+
+        @Override public int read( byte[] b, int off, int len ) throws IOException {
+          return released( super.read( b, off, len ) );
+        }
+
+        /**
+         * The server is done with the query once its response has been read, even if the result set is left open
+         */
+        private int released( int read ) {
+          if ( read < 0 ) {
+            release();
+          }
+          return read;
+        }
+
+        private synchronized void release() {
+          if ( limiter != null && !released ) {
+            limiter.release();
+          }
+          released = true;
+        }
+
+        @Override public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            activeQueries.remove( queryHandle );
+            if ( node != null && !closed ) {
+              node.requestFinished();
+            }
+            closed = true;
+            release();
+          }
+        }
+      } );
+      if ( sampling != null || streaming != null || partitioning != null ) {
+        responseStream.setResponseHeaders(
+          responseHeaders( exchange, SAMPLE, ROW_COUNT_ESTIMATE, CONTINUOUS, PARTITION ) );
+      }
+      return responseStream;
+    } catch ( Exception e ) {
+      activeQueries.remove( queryHandle );
+      if ( node != null ) {
+        node.requestFinished();
+      }
+      if ( limited ) {
+        limiter.release();
       }
-      method.addParameter( SQL, CharMatcher.anyOf( "\n\r" ).collapseFrom( sql, ' ' ) );
-      method.addParameter( MAX_ROWS, Integer.toString( maxRows ) );
+      throw serverException( e );
+    }
+  }
 
-      for ( Map.Entry<String, String> parameterEntry : connection.getParameters().entrySet() ) {
-        method.addParameter( parameterEntry.getKey(), parameterEntry.getValue() );
+  private static Map<String, String> responseHeaders( Exchange exchange, String... names ) {
+    Map<String, String> headers = Maps.newHashMap();
+    for ( String name : names ) {
+      String value = exchange.getResponseHeader( name );
+      if ( value != null ) {
+        headers.put( name, value );
       }
-      if ( !Strings.isNullOrEmpty( connection.getDebugTransFilename() ) ) {
-        method.addParameter( ThinConnection.ARG_DEBUGTRANS, connection.getDebugTransFilename() );
+    }
+    return headers;
+  }
+
+  /**
+   * @return the server to send {@code sql} to, or null if the connection names a single server. Commands for a running
+   * query go to the server executing it. The request counts as outstanding until {@link ServerNode#requestFinished()}.
+   */
+  private ServerNode acquireNode( String sql ) {
+    ServerNode node = selectNode( sql );
+    if ( node != null ) {
+      node.requestStarted();
+    }
+    return node;
+  }
+
+  private ServerNode selectNode( String sql ) {
+    ServerPool serverPool = this.serverPool;
+    if ( serverPool == null ) {
+      return null;
+    }
+    Matcher command = COMMAND.matcher( sql.trim() );
+    if ( command.matches() ) {
+      String serviceObjectId = command.group( 2 );
+      ServerNode node = queryNodes.getIfPresent( serviceObjectId );
+      if ( "stop".equalsIgnoreCase( command.group( 1 ) ) ) {
+        queryNodes.invalidate( serviceObjectId );
+      }
+      if ( node != null ) {
+        return node;
+      }
+    }
+    return serverPool.select();
+  }
+
+  /**
+   * Read ahead to the service object id in the result header, and remember which server is running the query
+   */
+  private InputStream pinQuery( InputStream responseBody, ServerNode node ) throws IOException {
+    BufferedInputStream buffered = new BufferedInputStream( responseBody );
+    buffered.mark( HEADER_PEEK_LIMIT );
+    try {
+      DataInputStream header = new DataInputStream( buffered );
+      header.readUTF();
+      header.readUTF();
+      String serviceObjectId = header.readUTF();
+      if ( !Strings.isNullOrEmpty( serviceObjectId ) ) {
+        queryNodes.put( serviceObjectId, node );
+      }
+    } catch ( IOException e ) {
+      // Left for the reader of the header to report
+    } finally {
+      buffered.reset();
+    }
+    return buffered;
+  }
+
+  /**
+   * Requests only the result header. Servers without describe support start the query anyway, so it is limited to a
+   * single row, its response is abandoned after the header and its service transformation is stopped.
+   */
+  @Override public DataInputStream describe( String sql ) throws SQLException {
+    ServerNode node = acquireNode( sql );
+    try {
+      Exchange exchange = openQuery( node, sql, 1 );
+      exchange.addParameter( DESCRIBE, "true" );
+      execute( exchange, node );
+
+      ThinResultHeader header;
+      boolean described = false;
+      try {
+        header = new ThinResultFactory().loadHeader( new DataInputStream( exchange.getResponseBody() ) );
+        described = "true".equalsIgnoreCase( exchange.getResponseHeader( DESCRIBE ) );
+      } finally {
+        if ( described ) {
+          exchange.release();
+        } else {
+          exchange.abort();
+        }
       }
 
-      return new DataInputStream( execMethod( method ).getResponseBodyAsStream() );
+      if ( !described && !Strings.isNullOrEmpty( header.getServiceObjectId() ) ) {
+        if ( node != null ) {
+          queryNodes.put( header.getServiceObjectId(), node );
+        }
+        try {
+          query( "[ stop " + header.getServiceObjectId() + " ]", 0 ).close();
+        } catch ( SQLException e ) {
+          ThinDriver.logger.warning( "Unable to stop described query: " + e.getMessage() );
+        }
+      }
+
+      ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+      DataOutputStream headerOutput = new DataOutputStream( headerBytes );
+      headerOutput.writeUTF( header.getServiceName() );
+      headerOutput.writeUTF( header.getServiceTransName() );
+      headerOutput.writeUTF( header.getServiceObjectId() );
+      headerOutput.writeUTF( header.getSqlTransName() );
+      headerOutput.writeUTF( header.getSqlObjectId() );
+      header.getRowMeta().writeMeta( headerOutput );
+      headerOutput.flush();
+      return new DataInputStream( new ByteArrayInputStream( headerBytes.toByteArray() ) );
     } catch ( Exception e ) {
       throw serverException( e );
+    } finally {
+      if ( node != null ) {
+        node.requestFinished();
+      }
+    }
+  }
+
+  private Exchange openQuery( ServerNode node, String sql, int maxRows ) throws SQLException {
+    String url = constructUrl( node, SERVICE_PATH );
+    Exchange exchange = connection.isCompactRequests() && !compactRejectingUrls.contains( url )
+      ? new CompactRequest( transport, url, compactRejectingUrls ) : transport.open( url, true );
+
+    exchange.setSocketTimeout( socketTimeout );
+    exchange.setConnectTimeout( socketTimeout );
+
+    if ( exchange instanceof CompactRequest ) {
+      // Sent once in a binary body, where line breaks need no collapsing
+      exchange.addParameter( SQL, sql );
+    } else {
+      String statement = LINE_BREAKS.collapseFrom( sql, ' ' );
+      // Kept in for backwards compatibility, but should be removed in next major release
+      if ( sql.length() < MAX_SQL_LENGTH ) {
+        exchange.addRequestHeader( SQL, statement );
+        exchange.addRequestHeader( MAX_ROWS, Integer.toString( maxRows ) );
+      }
+      exchange.addParameter( SQL, statement );
+    }
+    exchange.addParameter( MAX_ROWS, Integer.toString( maxRows ) );
+
+    for ( Map.Entry<String, String> parameterEntry : connection.getParameters().entrySet() ) {
+      exchange.addParameter( parameterEntry.getKey(), parameterEntry.getValue() );
+    }
+    if ( !Strings.isNullOrEmpty( connection.getDebugTransFilename() ) ) {
+      exchange.addParameter( ThinConnection.ARG_DEBUGTRANS, connection.getDebugTransFilename() );
+    }
+    return exchange;
+  }
+
+  /**
+   * @param socketTimeout milliseconds to wait for data from the server before failing, or 0 to wait indefinitely. Also
+   *                      limits the time to connect to the server, or leaves it to the transport if 0.
+   */
+  void setSocketTimeout( int socketTimeout ) {
+    this.socketTimeout = socketTimeout;
+  }
+
+  int getSocketTimeout() {
+    return socketTimeout;
+  }
+
+  /**
+   * Abort every query with an open response and release its connection, each on a task submitted to {@code executor}
+   *
+   * @param aborted run on {@code executor} once every query is aborted
+   */
+  void abort( Executor executor, final Runnable aborted ) {
+    List<QueryHandle> queries = Lists.newArrayList( activeQueries );
+    if ( queries.isEmpty() ) {
+      executor.execute( aborted );
+      return;
+    }
+    final AtomicInteger remaining = new AtomicInteger( queries.size() );
+    for ( final QueryHandle queryHandle : queries ) {
+      executor.execute( new Runnable() {
+        @Override public void run() {
+          try {
+            queryHandle.abort();
+            queryHandle.release();
+          } finally {
+            if ( remaining.decrementAndGet() == 0 ) {
+              aborted.run();
+            }
+          }
+        }
+      } );
     }
   }
 
+  /**
+   * Abort open queries and release their connections. The transport is shared with other clients, and closed by the
+   * builder of the connection.
+   */
+  void close() {
+    for ( QueryHandle queryHandle : activeQueries ) {
+      queryHandle.abort();
+      queryHandle.release();
+    }
+    activeQueries.clear();
+  }
+
+  void setServiceInformationCache( ServiceInformationCache serviceInformationCache ) {
+    this.serviceInformationCache = serviceInformationCache;
+  }
+
+  /**
+   * Balance requests between the servers of {@code serverPool}, instead of the single server of the connection
+   */
+  void setServerPool( ServerPool serverPool ) {
+    this.serverPool = serverPool;
+  }
+
+  ServerPool getServerPool() {
+    return serverPool;
+  }
+
+  /**
+   * Limit the queries running at once on each server to those allowed by its limiter in {@code concurrencyLimiters},
+   * keyed by base URI
+   */
+  void setConcurrencyLimiters( Map<URI, ConcurrencyLimiter> concurrencyLimiters ) {
+    this.concurrencyLimiters = concurrencyLimiters;
+  }
+
+  Map<URI, ConcurrencyLimiter> getConcurrencyLimiters() {
+    return concurrencyLimiters;
+  }
+
+  private ConcurrencyLimiter getConcurrencyLimiter( ServerNode node ) {
+    if ( concurrencyLimiters.isEmpty() ) {
+      return null;
+    }
+    return concurrencyLimiters.get( node == null ? connection.getBaseURI() : node.getBaseUri() );
+  }
+
+  private String constructUrl( ServerNode node, String service ) throws SQLException {
+    return node == null ? connection.constructUrl( service ) : node.constructUrl( service );
+  }
+
   @Override public List<ThinServiceInformation> getServiceInformation() throws SQLException {
+    if ( serviceInformationCache == null ) {
+      return loadServiceInformation();
+    }
+    return serviceInformationCache.get( new Callable<List<ThinServiceInformation>>() {
+      @Override public List<ThinServiceInformation> call() throws Exception {
+        return loadServiceInformation();
+      }
+    } );
+  }
+
+  private List<ThinServiceInformation> loadServiceInformation() throws SQLException {
     List<ThinServiceInformation> services = Lists.newArrayList();
 
     try {
@@ -127,15 +506,46 @@ class RemoteClient implements DataServiceClientService {
     return docBuilderFactory.newDocumentBuilder();
   }
 
+  /**
+   * Send a metadata request. With several servers, a request which can't reach its server is retried on the others.
+   */
   String execService( String serviceAndArguments ) throws SQLException {
+    ServerPool serverPool = this.serverPool;
+    if ( serverPool == null ) {
+      return execService( null, serviceAndArguments );
+    }
+    List<ServerNode> tried = Lists.newArrayList();
+    for ( ServerNode node = serverPool.select(); ; node = serverPool.select( tried ) ) {
+      try {
+        return execService( node, serviceAndArguments );
+      } catch ( SQLException e ) {
+        tried.add( node );
+        if ( !( e.getCause() instanceof IOException ) || tried.size() >= serverPool.getNodes().size() ) {
+          throw e;
+        }
+        ThinDriver.logger.warning( "Retrying " + serviceAndArguments + " after failing to reach " + node );
+      }
+    }
+  }
+
+  private String execService( ServerNode node, String serviceAndArguments ) throws SQLException {
+    if ( node != null ) {
+      node.requestStarted();
+    }
     try {
-      String urlString = connection.constructUrl( serviceAndArguments );
-      HttpMethod method = new GetMethod( urlString );
+      String urlString = constructUrl( node, serviceAndArguments );
+      Exchange exchange = transport.open( urlString, false );
+      exchange.setSocketTimeout( socketTimeout );
+      exchange.setConnectTimeout( socketTimeout );
 
       try {
-        return execMethod( method ).getResponseBodyAsString();
+        execute( exchange, node );
+        return exchange.getResponseBodyAsString();
       } finally {
-        method.releaseConnection();
+        exchange.release();
+        if ( node != null ) {
+          node.requestFinished();
+        }
       }
 
     } catch ( Exception e ) {
@@ -143,9 +553,52 @@ class RemoteClient implements DataServiceClientService {
     }
   }
 
-  HttpMethod execMethod( HttpMethod method ) throws SQLException {
+  private void execute( Exchange exchange, ServerNode node ) throws SQLException {
+    execute( exchange, node, null );
+  }
+
+  /**
+   * Execute {@code exchange} on {@code node}, recording its response time or failure to connect with the node and
+   * {@code limiter}, either of which may be null
+   */
+  private void execute( Exchange exchange, ServerNode node, ConcurrencyLimiter limiter ) throws SQLException {
+    if ( node == null && limiter == null ) {
+      execute( exchange );
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      execute( exchange );
+      responseReceived( node, limiter, System.nanoTime() - start );
+    } catch ( SQLException e ) {
+      if ( e.getCause() instanceof IOException ) {
+        // Refused, reset or timed out
+        if ( node != null ) {
+          serverPool.connectionFailed( node );
+        }
+        if ( limiter != null ) {
+          limiter.requestFailed();
+        }
+      } else {
+        // The server answered, even if only with an error
+        responseReceived( node, limiter, System.nanoTime() - start );
+      }
+      throw e;
+    }
+  }
+
+  private static void responseReceived( ServerNode node, ConcurrencyLimiter limiter, long latencyNanos ) {
+    if ( node != null ) {
+      node.responseReceived( latencyNanos );
+    }
+    if ( limiter != null ) {
+      limiter.responseReceived( latencyNanos );
+    }
+  }
+
+  private void execute( Exchange exchange ) throws SQLException {
     try {
-      int result = client.executeMethod( method );
+      int result = exchange.execute();
 
       if ( result == 500 ) {
         throw new SQLException( "There was an error reading data from the server." );
@@ -157,13 +610,13 @@ class RemoteClient implements DataServiceClientService {
       }
 
       if ( result != 200 ) {
-        throw new SQLException( method.getResponseBodyAsString() );
+        throw new SQLException( exchange.getResponseBodyAsString() );
       }
     } catch ( IOException e ) {
       throw new SQLException(
-        "You don't seem to be getting a connection to the server. Check the host and port you're using and make sure the sever is up and running." );
+        "You don't seem to be getting a connection to the server. Check the host and port you're using and make sure the sever is up and running.",
+        e );
     }
-    return method;
   }
 
   private static SQLException serverException( Exception e ) throws SQLException {
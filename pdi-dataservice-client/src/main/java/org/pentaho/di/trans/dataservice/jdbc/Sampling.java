@@ -0,0 +1,107 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.base.Strings;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Limits queries to a sample of their rows, for clients exploring a service. The first N rows can always be sampled by
+ * limiting the query. Uniform samples are requested from the server, which reports whether it honored them; otherwise
+ * the first N rows are returned.
+ */
+class Sampling {
+  static final int DEFAULT_ROWS = 1000;
+
+  enum Method {
+    FIRST, UNIFORM
+  }
+
+  private final Method method;
+  private final int rows;
+  private final long maxBytes;
+
+  Sampling( Method method, int rows, long maxBytes ) {
+    this.method = method;
+    this.rows = rows;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * @return sampling requested by the {@value ThinConnection#ARG_SAMPLE}, {@value ThinConnection#ARG_SAMPLEROWS} and
+   * {@value ThinConnection#ARG_SAMPLEBYTES} connection properties, or null for complete results
+   */
+  static Sampling fromArguments( Map<String, String> arguments ) throws SQLException {
+    String sample = arguments.get( ThinConnection.ARG_SAMPLE );
+    if ( Strings.isNullOrEmpty( sample ) || "none".equalsIgnoreCase( sample.trim() ) ) {
+      return null;
+    }
+    Method method;
+    try {
+      method = Method.valueOf( sample.trim().toUpperCase() );
+    } catch ( IllegalArgumentException e ) {
+      throw new SQLException( "Invalid " + ThinConnection.ARG_SAMPLE + ": " + sample, e );
+    }
+
+    String rows = arguments.get( ThinConnection.ARG_SAMPLEROWS );
+    String maxBytes = arguments.get( ThinConnection.ARG_SAMPLEBYTES );
+    try {
+      return new Sampling( method,
+        Strings.isNullOrEmpty( rows ) ? DEFAULT_ROWS : Integer.parseInt( rows.trim() ),
+        Strings.isNullOrEmpty( maxBytes ) ? 0 : Long.parseLong( maxBytes.trim() ) );
+    } catch ( NumberFormatException e ) {
+      throw new SQLException( "Invalid sample size: " + e.getMessage(), e );
+    }
+  }
+
+  Method getMethod() {
+    return method;
+  }
+
+  /**
+   * @return number of rows in the sample
+   */
+  int getRows() {
+    return rows;
+  }
+
+  /**
+   * @return bytes of the response to read before ending the sample, or 0 for no limit
+   */
+  long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * @return row limit of the query sent to the server
+   */
+  int limit( int maxRows ) {
+    if ( method == Method.UNIFORM ) {
+      // The server must see every row to sample them uniformly
+      return maxRows;
+    }
+    return maxRows > 0 ? Math.min( maxRows, rows ) : rows;
+  }
+}
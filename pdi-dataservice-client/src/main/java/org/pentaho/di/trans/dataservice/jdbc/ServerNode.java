@@ -0,0 +1,105 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One of the servers named by a connection URL, with the client-side counters used to balance requests between them
+ */
+public class ServerNode {
+  private static final double LATENCY_WEIGHT = 0.3;
+
+  private final URI baseUri;
+  private final AtomicInteger outstandingRequests = new AtomicInteger();
+  private volatile double averageLatencyNanos = -1;
+  private int consecutiveFailures;
+  private volatile long ejectedUntil;
+
+  ServerNode( URI baseUri ) {
+    this.baseUri = baseUri;
+  }
+
+  public URI getBaseUri() {
+    return baseUri;
+  }
+
+  /**
+   * @return number of requests sent by this client which have not yet completed
+   */
+  public int getOutstandingRequests() {
+    return outstandingRequests.get();
+  }
+
+  /**
+   * @return exponentially weighted average time to receive a response, or -1 if no response has been received yet
+   */
+  public double getAverageLatencyMillis() {
+    double latency = averageLatencyNanos;
+    return latency < 0 ? -1 : latency / TimeUnit.MILLISECONDS.toNanos( 1 );
+  }
+
+  /**
+   * @return true if the server has been ejected after repeated failures, and is not yet due to be tried again
+   */
+  public boolean isEjected() {
+    return System.nanoTime() - ejectedUntil < 0;
+  }
+
+  String constructUrl( String service ) {
+    return baseUri.resolve( "./" + service ).toString();
+  }
+
+  void requestStarted() {
+    outstandingRequests.incrementAndGet();
+  }
+
+  void requestFinished() {
+    outstandingRequests.decrementAndGet();
+  }
+
+  synchronized void responseReceived( long latencyNanos ) {
+    consecutiveFailures = 0;
+    double latency = averageLatencyNanos;
+    averageLatencyNanos = latency < 0 ? latencyNanos : latency + LATENCY_WEIGHT * ( latencyNanos - latency );
+  }
+
+  /**
+   * Record a failure to reach the server, ejecting it for {@code ejectionNanos} once it has failed
+   * {@code maxFailures} times in a row
+   */
+  synchronized void connectionFailed( int maxFailures, long ejectionNanos ) {
+    if ( ++consecutiveFailures >= maxFailures ) {
+      ejectedUntil = System.nanoTime() + ejectionNanos;
+      consecutiveFailures = 0;
+      ThinDriver.logger.warning( "Ejecting unreachable server " + baseUri + " for "
+        + TimeUnit.NANOSECONDS.toSeconds( ejectionNanos ) + " seconds" );
+    }
+  }
+
+  @Override public String toString() {
+    return baseUri.toString();
+  }
+}
@@ -0,0 +1,86 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The servers of a connection URL naming more than one host. Requests are spread between servers by a
+ * {@link LoadBalancingStrategy}. Servers which can't be reached several times in a row are ejected for a while, and
+ * only tried again once every other server has been ejected too.
+ */
+class ServerPool {
+  static final int MAX_FAILURES = 3;
+  static final long DEFAULT_EJECTION_MILLIS = TimeUnit.SECONDS.toMillis( 30 );
+
+  private final ImmutableList<ServerNode> nodes;
+  private final LoadBalancingStrategy strategy;
+  private final long ejectionNanos;
+
+  ServerPool( List<URI> baseUris, LoadBalancingStrategy strategy, long ejectionMillis ) {
+    ImmutableList.Builder<ServerNode> nodes = ImmutableList.builder();
+    for ( URI baseUri : baseUris ) {
+      nodes.add( new ServerNode( baseUri ) );
+    }
+    this.nodes = nodes.build();
+    this.strategy = strategy;
+    this.ejectionNanos = TimeUnit.MILLISECONDS.toNanos( ejectionMillis );
+  }
+
+  List<ServerNode> getNodes() {
+    return nodes;
+  }
+
+  ServerNode select() {
+    return select( ImmutableList.<ServerNode>of() );
+  }
+
+  /**
+   * @param excluded servers already tried for this request
+   * @return a server to send the request to, or null if every server has been excluded
+   */
+  ServerNode select( Collection<ServerNode> excluded ) {
+    List<ServerNode> available = Lists.newArrayListWithCapacity( nodes.size() );
+    List<ServerNode> ejected = Lists.newArrayListWithCapacity( nodes.size() );
+    for ( ServerNode node : nodes ) {
+      if ( !excluded.contains( node ) ) {
+        ( node.isEjected() ? ejected : available ).add( node );
+      }
+    }
+    if ( available.isEmpty() ) {
+      // Better to try an ejected server than to fail without trying
+      available = ejected;
+    }
+    return available.isEmpty() ? null : strategy.select( available );
+  }
+
+  void connectionFailed( ServerNode node ) {
+    node.connectionFailed( MAX_FAILURES, ejectionNanos );
+  }
+}
@@ -0,0 +1,68 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the list of services shared by connections to the same server for a limited time, so that database metadata
+ * requests from a pool of connections don't each go to the server.
+ */
+class ServiceInformationCache {
+  private final Cache<Boolean, List<ThinServiceInformation>> cache;
+
+  ServiceInformationCache( long duration, TimeUnit unit ) {
+    cache = CacheBuilder.newBuilder().expireAfterWrite( duration, unit ).build();
+  }
+
+  List<ThinServiceInformation> get( final Callable<List<ThinServiceInformation>> loader ) throws SQLException {
+    try {
+      return cache.get( Boolean.TRUE, new Callable<List<ThinServiceInformation>>() {
+        @Override public List<ThinServiceInformation> call() throws Exception {
+          return ImmutableList.copyOf( loader.call() );
+        }
+      } );
+    } catch ( ExecutionException e ) {
+      Throwables.propagateIfPossible( e.getCause(), SQLException.class );
+      throw new SQLException( e.getCause() );
+    } catch ( UncheckedExecutionException e ) {
+      Throwables.propagateIfPossible( e.getCause(), SQLException.class );
+      throw new SQLException( e.getCause() );
+    }
+  }
+
+  void invalidate() {
+    cache.invalidateAll();
+  }
+}
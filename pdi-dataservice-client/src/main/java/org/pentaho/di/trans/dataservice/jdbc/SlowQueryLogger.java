@@ -0,0 +1,57 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logs a warning for each query that took longer than a threshold to complete.
+ * <p/>
+ * Installed on a connection with the {@value ThinConnection#ARG_SLOWQUERYTHRESHOLD} argument, in milliseconds.
+ */
+public class SlowQueryLogger implements ThinQueryTraceListener {
+  private final long thresholdMillis;
+  private final Logger logger;
+
+  public SlowQueryLogger( long thresholdMillis ) {
+    this( thresholdMillis, ThinDriver.logger );
+  }
+
+  public SlowQueryLogger( long thresholdMillis, Logger logger ) {
+    this.thresholdMillis = thresholdMillis;
+    this.logger = logger;
+  }
+
+  public long getThresholdMillis() {
+    return thresholdMillis;
+  }
+
+  @Override public void queryCompleted( ThinQueryTrace trace ) {
+    long total = trace.getTotalMillis();
+    if ( total >= thresholdMillis && logger.isLoggable( Level.WARNING ) ) {
+      logger.warning( "Slow query (" + total + "ms): " + trace );
+    }
+  }
+}
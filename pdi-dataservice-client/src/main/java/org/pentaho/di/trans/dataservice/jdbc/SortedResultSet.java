@@ -0,0 +1,119 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import org.pentaho.di.core.row.RowMetaInterface;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+
+/**
+ * Forward-only result set streaming the rows of an {@link ExternalSort}
+ */
+class SortedResultSet extends BaseResultSet {
+  private ExternalSort.Merge merge;
+  private final int size;
+
+  SortedResultSet( RowMetaInterface rowMeta, ExternalSort.Merge merge, int size ) {
+    super( rowMeta );
+    this.merge = merge;
+    this.size = size;
+  }
+
+  @Override protected Object[] retrieveRow( int i ) throws Exception {
+    if ( i == getRow() ) {
+      return getCurrentRow();
+    } else if ( i == getRow() + 1 ) {
+      Object[] row = i <= size ? merge.next() : null;
+      if ( row == null ) {
+        merge.close();
+      }
+      return row;
+    } else if ( i > size ) {
+      return null;
+    } else {
+      throw new SQLFeatureNotSupportedException( "Scrollable result sets are not supported" );
+    }
+  }
+
+  @Override protected int size() throws SQLException {
+    return size;
+  }
+
+  @Override
+  public void close() throws SQLException {
+    if ( merge != null ) {
+      merge.close();
+      merge = null;
+    }
+  }
+
+  @Override
+  public boolean isClosed() throws SQLException {
+    return merge == null;
+  }
+
+  @Override
+  public String getCursorName() throws SQLException {
+    return "sorted";
+  }
+
+  @Override
+  public int getType() throws SQLException {
+    return ResultSet.TYPE_FORWARD_ONLY;
+  }
+
+  @Override
+  public int getFetchDirection() throws SQLException {
+    return ResultSet.FETCH_FORWARD;
+  }
+
+  @Override
+  public void setFetchDirection( int direction ) throws SQLException {
+    if ( direction != FETCH_FORWARD ) {
+      throw new SQLFeatureNotSupportedException( "Only FETCH_FORWARD is allowed" );
+    }
+  }
+
+  @Override
+  public int getFetchSize() throws SQLException {
+    return 0;
+  }
+
+  @Override
+  public void setFetchSize( int rows ) throws SQLException {
+  }
+
+  @Override
+  public int getHoldability() throws SQLException {
+    return ResultSet.HOLD_CURSORS_OVER_COMMIT;
+  }
+
+  @Override
+  public ResultSetMetaData getMetaData() throws SQLException {
+    return new ThinResultSetMetaData( "sorted", getRowMeta() );
+  }
+}
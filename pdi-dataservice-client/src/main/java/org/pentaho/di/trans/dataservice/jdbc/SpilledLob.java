@@ -0,0 +1,121 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+
+/**
+ * A string or binary value too large to keep in a row, copied from the response to a temporary file.
+ */
+class SpilledLob {
+  private static final int BUFFER_SIZE = 8192;
+
+  private final File file;
+  private final long length;
+  private final boolean character;
+
+  private SpilledLob( File file, long length, boolean character ) {
+    this.file = file;
+    this.length = length;
+    this.character = character;
+  }
+
+  /**
+   * Copy the next {@code length} bytes of {@code input} to a temporary file
+   *
+   * @param character true if the bytes are UTF-8 encoded text
+   */
+  static SpilledLob spill( DataInput input, int length, boolean character ) throws IOException {
+    File file = File.createTempFile( "thin-lob-", ".tmp" );
+    try {
+      OutputStream output = new BufferedOutputStream( new FileOutputStream( file ) );
+      try {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for ( int remaining = length; remaining > 0; ) {
+          int count = Math.min( remaining, buffer.length );
+          input.readFully( buffer, 0, count );
+          output.write( buffer, 0, count );
+          remaining -= count;
+        }
+      } finally {
+        output.close();
+      }
+    } catch ( IOException e ) {
+      file.delete();
+      throw e;
+    }
+    return new SpilledLob( file, length, character );
+  }
+
+  long length() {
+    return length;
+  }
+
+  boolean isCharacter() {
+    return character;
+  }
+
+  InputStream getBinaryStream() throws IOException {
+    return new BufferedInputStream( new FileInputStream( file ) );
+  }
+
+  Reader getCharacterStream() throws IOException {
+    return new InputStreamReader( getBinaryStream(), Charsets.UTF_8 );
+  }
+
+  byte[] getBytes() throws IOException {
+    return Files.toByteArray( file );
+  }
+
+  String getString() throws IOException {
+    return new String( getBytes(), Charsets.UTF_8 );
+  }
+
+  /**
+   * @return the value as it would have been decoded without spilling
+   */
+  Object materialize() throws IOException {
+    return character ? getString() : getBytes();
+  }
+
+  void delete() {
+    if ( !file.delete() && file.exists() ) {
+      // Still open on platforms that don't allow deleting open files
+      file.deleteOnExit();
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.base.Strings;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Options of continuous queries, whose response stays open while the service transformation keeps producing rows,
+ * for services fed by streaming inputs. Without a window, rows are pushed as they are produced. With one, the server
+ * runs the query over each window of the service rows and pushes its results every {@link #getWindowEvery()} rows or
+ * milliseconds.
+ */
+class Streaming {
+  enum WindowMode {
+    ROWS, TIME
+  }
+
+  private final WindowMode windowMode;
+  private final long windowSize;
+  private final long windowEvery;
+
+  Streaming( WindowMode windowMode, long windowSize, long windowEvery ) {
+    this.windowMode = windowMode;
+    this.windowSize = windowSize;
+    this.windowEvery = windowEvery;
+  }
+
+  /**
+   * @return windows set by the {@value ThinConnection#ARG_WINDOWMODE}, {@value ThinConnection#ARG_WINDOWSIZE} and
+   * {@value ThinConnection#ARG_WINDOWEVERY} connection properties, by default none
+   */
+  static Streaming fromArguments( Map<String, String> arguments ) throws SQLException {
+    String mode = arguments.get( ThinConnection.ARG_WINDOWMODE );
+    WindowMode windowMode;
+    try {
+      windowMode = Strings.isNullOrEmpty( mode ) ? WindowMode.ROWS : WindowMode.valueOf( mode.trim().toUpperCase() );
+    } catch ( IllegalArgumentException e ) {
+      throw new SQLException( "Invalid " + ThinConnection.ARG_WINDOWMODE + ": " + mode, e );
+    }
+
+    String size = arguments.get( ThinConnection.ARG_WINDOWSIZE );
+    String every = arguments.get( ThinConnection.ARG_WINDOWEVERY );
+    try {
+      long windowSize = Strings.isNullOrEmpty( size ) ? 0 : Long.parseLong( size.trim() );
+      long windowEvery = Strings.isNullOrEmpty( every ) ? 0 : Long.parseLong( every.trim() );
+      if ( windowSize < 0 || windowEvery < 0 ) {
+        throw new SQLException( "Invalid window: " + size + " every " + every );
+      }
+      return new Streaming( windowMode, windowSize, windowEvery );
+    } catch ( NumberFormatException e ) {
+      throw new SQLException( "Invalid window: " + e.getMessage(), e );
+    }
+  }
+
+  WindowMode getWindowMode() {
+    return windowMode;
+  }
+
+  /**
+   * @return rows or milliseconds of service rows in each window, or 0 to push rows as they are produced
+   */
+  long getWindowSize() {
+    return windowSize;
+  }
+
+  /**
+   * @return rows or milliseconds between windows, by default the window size so that windows don't overlap
+   */
+  long getWindowEvery() {
+    return windowEvery > 0 ? windowEvery : windowSize;
+  }
+}
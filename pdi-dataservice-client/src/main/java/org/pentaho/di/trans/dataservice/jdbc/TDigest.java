@@ -0,0 +1,193 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import java.util.Arrays;
+
+/**
+ * Sketch estimating quantiles of the values added to it, most accurately near the tails. Values are clustered into
+ * centroids whose size is bounded by the arcsine scale function of Dunning's merging t-digest, so the sketch holds at
+ * most a few hundred centroids however many values are added. Sketches of disjoint partitions can be merged.
+ */
+class TDigest {
+  static final double DEFAULT_COMPRESSION = 100;
+
+  private final double compression;
+  private double[] means = new double[0];
+  private double[] weights = new double[0];
+  private final double[] buffer;
+  private int buffered;
+  private double totalWeight;
+  private double min = Double.POSITIVE_INFINITY;
+  private double max = Double.NEGATIVE_INFINITY;
+
+  TDigest() {
+    this( DEFAULT_COMPRESSION );
+  }
+
+  TDigest( double compression ) {
+    this.compression = compression;
+    this.buffer = new double[(int) ( 5 * compression )];
+  }
+
+  void add( double value ) {
+    if ( Double.isNaN( value ) ) {
+      return;
+    }
+    if ( buffered == buffer.length ) {
+      flush();
+    }
+    buffer[buffered++] = value;
+    totalWeight++;
+    min = Math.min( min, value );
+    max = Math.max( max, value );
+  }
+
+  /**
+   * Add every value added to {@code other}
+   */
+  void merge( TDigest other ) {
+    other.flush();
+    flush();
+    if ( other.totalWeight == 0 ) {
+      return;
+    }
+    combine( other.means, other.weights, other.means.length );
+    totalWeight += other.totalWeight;
+    min = Math.min( min, other.min );
+    max = Math.max( max, other.max );
+  }
+
+  long size() {
+    return (long) totalWeight;
+  }
+
+  /**
+   * @param q fraction of the values to be below the result, between 0 and 1
+   * @return estimated value, or null if nothing has been added
+   */
+  Double quantile( double q ) {
+    flush();
+    int centroids = means.length;
+    if ( centroids == 0 ) {
+      return null;
+    }
+    if ( centroids == 1 ) {
+      return means[0];
+    }
+    double index = q * totalWeight;
+    if ( index <= 0 ) {
+      return min;
+    }
+    if ( index >= totalWeight ) {
+      return max;
+    }
+
+    // Each centroid's mean is taken to be at the middle of its weight
+    double position = weights[0] / 2;
+    if ( index < position ) {
+      return min + ( means[0] - min ) * index / position;
+    }
+    for ( int i = 0; i < centroids - 1; i++ ) {
+      double step = ( weights[i] + weights[i + 1] ) / 2;
+      if ( index < position + step ) {
+        double fraction = ( index - position ) / step;
+        return means[i] + ( means[i + 1] - means[i] ) * fraction;
+      }
+      position += step;
+    }
+    double last = weights[centroids - 1] / 2;
+    return means[centroids - 1] + ( max - means[centroids - 1] ) * Math.min( 1.0, ( index - position ) / last );
+  }
+
+  private void flush() {
+    if ( buffered > 0 ) {
+      Arrays.sort( buffer, 0, buffered );
+      double[] ones = new double[buffered];
+      Arrays.fill( ones, 1.0 );
+      int count = buffered;
+      buffered = 0;
+      combine( Arrays.copyOf( buffer, count ), ones, count );
+    }
+  }
+
+  /**
+   * Merge sorted centroids into this digest and compress the result
+   */
+  private void combine( double[] otherMeans, double[] otherWeights, int otherCount ) {
+    int count = means.length + otherCount;
+    double[] mergedMeans = new double[count];
+    double[] mergedWeights = new double[count];
+    double total = 0;
+    for ( int i = 0, j = 0, k = 0; k < count; k++ ) {
+      if ( j >= otherCount || ( i < means.length && means[i] <= otherMeans[j] ) ) {
+        mergedMeans[k] = means[i];
+        mergedWeights[k] = weights[i++];
+      } else {
+        mergedMeans[k] = otherMeans[j];
+        mergedWeights[k] = otherWeights[j++];
+      }
+      total += mergedWeights[k];
+    }
+    compress( mergedMeans, mergedWeights, count, total );
+  }
+
+  private void compress( double[] inMeans, double[] inWeights, int count, double total ) {
+    double[] outMeans = new double[count];
+    double[] outWeights = new double[count];
+    int centroids = 0;
+    double mean = inMeans[0];
+    double weight = inWeights[0];
+    double before = 0;
+    double limit = total * inverseScale( scale( 0 ) + 1 );
+    for ( int i = 1; i < count; i++ ) {
+      double proposed = weight + inWeights[i];
+      if ( before + proposed <= limit ) {
+        mean += ( inMeans[i] - mean ) * inWeights[i] / proposed;
+        weight = proposed;
+      } else {
+        outMeans[centroids] = mean;
+        outWeights[centroids++] = weight;
+        before += weight;
+        limit = total * inverseScale( scale( before / total ) + 1 );
+        mean = inMeans[i];
+        weight = inWeights[i];
+      }
+    }
+    outMeans[centroids] = mean;
+    outWeights[centroids++] = weight;
+    means = Arrays.copyOf( outMeans, centroids );
+    weights = Arrays.copyOf( outWeights, centroids );
+  }
+
+  private double scale( double q ) {
+    return compression / ( 2 * Math.PI ) * Math.asin( 2 * q - 1 );
+  }
+
+  private double inverseScale( double k ) {
+    if ( k >= compression / 4 ) {
+      return 1.0;
+    }
+    return ( Math.sin( k * 2 * Math.PI / compression ) + 1 ) / 2;
+  }
+}
@@ -28,7 +28,11 @@ import com.google.common.base.Predicate;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
@@ -38,6 +42,7 @@ import org.pentaho.di.core.Const;
 import org.pentaho.di.trans.dataservice.client.DataServiceClientService;
 import org.pentaho.di.trans.dataservice.jdbc.annotation.NotSupported;
 
+import java.io.File;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -58,9 +63,15 @@ import java.sql.SQLXML;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Struct;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ThinConnection extends ThinBase implements Connection {
 
@@ -71,9 +82,37 @@ public class ThinConnection extends ThinBase implements Connection {
   public static final String ARG_DEBUGTRANS = "debugtrans";
   public static final String ARG_ISSECURE = "secure";
   public static final String ARG_LOCAL = "local";
+  public static final String ARG_REPOSITORY = "repository";
+  public static final String ARG_LOADBALANCING = "loadbalancing";
+  public static final String ARG_EJECTIONTIME = "ejectiontime";
+  public static final String ARG_SAMPLE = "sample";
+  public static final String ARG_SAMPLEROWS = "samplerows";
+  public static final String ARG_SAMPLEBYTES = "samplebytes";
+  public static final String ARG_SLOWQUERYTHRESHOLD = "slowquerythreshold";
+  public static final String ARG_NETWORKTIMEOUT = "networktimeout";
+  public static final String ARG_LOBTHRESHOLD = "lobthreshold";
+  public static final String ARG_CLIENTAGGREGATION = "clientaggregation";
+  public static final String ARG_SORTMEMORY = "sortmemory";
+  public static final String ARG_JOINMEMORY = "joinmemory";
+  public static final String ARG_CONTINUOUS = "continuous";
+  public static final String ARG_WINDOWMODE = "windowmode";
+  public static final String ARG_WINDOWSIZE = "windowsize";
+  public static final String ARG_WINDOWEVERY = "windowevery";
+  public static final String ARG_WATERMARK = "watermark";
+  public static final String ARG_WATERMARKSTORE = "watermarkstore";
+  public static final String ARG_PARTITIONING = "partitioning";
+  public static final String ARG_PARTITIONCOLUMN = "partitioncolumn";
+  public static final String ARG_PARTITION = "partition";
+  public static final String ARG_PARTITIONS = "partitions";
+  public static final String ARG_PROTOCOL = "protocol";
+  public static final String ARG_COMPACTREQUESTS = "compactrequests";
+  public static final String ARG_MAXCONCURRENCY = "maxconcurrency";
+  public static final String ARG_QUEUETIMEOUT = "queuetimeout";
+  public static final int DEFAULT_LOB_THRESHOLD = 1024 * 1024;
 
-  public static DataServiceClientService localClient;
   private DataServiceClientService clientService;
+  // Builder of the connection, whose transport is shared with its other connections
+  private Builder builder;
 
   private final String url;
   private final URI baseURI;
@@ -87,6 +126,23 @@ public class ThinConnection extends ThinBase implements Connection {
 
   private String debugTransFilename;
 
+  private ThinQueryTraceListener queryTraceListener;
+
+  private int networkTimeout = 0;
+  private int lobThreshold = DEFAULT_LOB_THRESHOLD;
+  private boolean clientAggregation;
+  private long sortMemory = ExternalSort.DEFAULT_MEMORY_LIMIT;
+  private long joinMemory = ExternalSort.DEFAULT_MEMORY_LIMIT;
+  private Sampling sampling;
+  private boolean continuous;
+  private Streaming streaming;
+  private String watermark;
+  private WatermarkStore watermarkStore;
+  private Partitioning partitioning;
+  private boolean compactRequests;
+  private final Cache<String, PreparedQuery> preparedQueries = CacheBuilder.newBuilder().maximumSize( 256 ).build();
+  private final AtomicBoolean closed = new AtomicBoolean( false );
+
   private ImmutableMap<String, String> parameters = ImmutableMap.of();
 
   protected ThinConnection( String url, URI baseURI ) {
@@ -98,9 +154,23 @@ public class ThinConnection extends ThinBase implements Connection {
     return baseURI.resolve( "./" + service ).toString();
   }
 
+  /**
+   * Aborts any queries still streaming results and releases their HTTP connections
+   */
   @Override
   public void close() throws SQLException {
-    // TODO
+    if ( closed.compareAndSet( false, true ) && clientService instanceof RemoteClient ) {
+      ( (RemoteClient) clientService ).close();
+      if ( builder != null ) {
+        builder.connectionClosed();
+      }
+    }
+  }
+
+  private void verifyOpen() throws SQLException {
+    if ( closed.get() ) {
+      throw new SQLException( "Connection is closed" );
+    }
   }
 
   @Override @NotSupported
@@ -135,17 +205,19 @@ public class ThinConnection extends ThinBase implements Connection {
 
   @Override
   public Statement createStatement() throws SQLException {
+    verifyOpen();
     return new ThinStatement( this );
   }
 
   @Override
   public Statement createStatement( int resultSetType, int resultSetConcurrency ) throws SQLException {
-    return new ThinStatement( this );
+    return createStatement();
   }
 
   @Override
-  public Statement createStatement( int resultSetType, int resultSetConcurrency, int resultSetHoldability ) {
-    return new ThinStatement( this );
+  public Statement createStatement( int resultSetType, int resultSetConcurrency, int resultSetHoldability )
+    throws SQLException {
+    return createStatement();
   }
 
   @Override @NotSupported
@@ -196,8 +268,7 @@ public class ThinConnection extends ThinBase implements Connection {
 
   @Override
   public boolean isClosed() throws SQLException {
-    // TODO
-    return false;
+    return closed.get();
   }
 
   @Override
@@ -205,12 +276,22 @@ public class ThinConnection extends ThinBase implements Connection {
     return true; // always read-only
   }
 
+  /**
+   * @param timeout seconds to wait for the validation query, or 0 to wait indefinitely
+   */
   @Override
   public boolean isValid( int timeout ) throws SQLException {
+    if ( timeout < 0 ) {
+      throw new SQLException( "Timeout must be >= 0" );
+    }
+    if ( isClosed() ) {
+      return false;
+    }
     try {
       // Execute dummy query to ensure data services are working
       Statement statement = createStatement();
       try {
+        statement.setQueryTimeout( timeout );
         return statement.executeQuery( "SELECT *" ).next();
       } finally {
         statement.close();
@@ -244,7 +325,8 @@ public class ThinConnection extends ThinBase implements Connection {
 
   @Override
   public PreparedStatement prepareStatement( String sql ) throws SQLException {
-    return new ThinPreparedStatement( this, sql );
+    verifyOpen();
+    return new ThinPreparedStatement( this, getPreparedQuery( sql ), new ThinResultFactory() );
   }
 
   @Override
@@ -274,6 +356,22 @@ public class ThinConnection extends ThinBase implements Connection {
     return prepareStatement( sql );
   }
 
+  /**
+   * @return placeholders and known result metadata of {@code sql}, shared by all statements preparing it
+   */
+  PreparedQuery getPreparedQuery( final String sql ) throws SQLException {
+    try {
+      return preparedQueries.get( sql, new Callable<PreparedQuery>() {
+        @Override public PreparedQuery call() throws Exception {
+          return new PreparedQuery( sql );
+        }
+      } );
+    } catch ( ExecutionException e ) {
+      Throwables.propagateIfPossible( e.getCause(), SQLException.class );
+      throw new SQLException( e.getCause() );
+    }
+  }
+
   @Override @NotSupported
   public void releaseSavepoint( Savepoint arg0 ) throws SQLException {
     throw new SQLFeatureNotSupportedException( "Transactions are not supported by the thin Kettle JDBC driver" );
@@ -353,7 +451,7 @@ public class ThinConnection extends ThinBase implements Connection {
   }
 
   /**
-   * @return the hostname
+   * @return the hostname, or the first hostname if the URL names several servers
    */
   public String getHostname() {
     return baseURI.getHost();
@@ -394,6 +492,101 @@ public class ThinConnection extends ThinBase implements Connection {
     return debugTransFilename;
   }
 
+  /**
+   * @return length in bytes above which string and binary values are spilled to temporary files while reading results.
+   * Zero or less keeps all values in memory.
+   */
+  public int getLobThreshold() {
+    return lobThreshold;
+  }
+
+  /**
+   * @return true if GROUP BY and aggregate functions should be computed by the client, from rows fetched without them
+   */
+  public boolean isClientAggregation() {
+    return clientAggregation;
+  }
+
+  /**
+   * @return estimated size in bytes of the rows sorted in memory by the client before they are written to temporary
+   * files
+   */
+  public long getSortMemory() {
+    return sortMemory;
+  }
+
+  /**
+   * @return estimated size in bytes of the rows joined in memory by the client before both services are partitioned
+   * to temporary files
+   */
+  public long getJoinMemory() {
+    return joinMemory;
+  }
+
+  /**
+   * @return the sample queries are limited to, or null for complete results
+   */
+  Sampling getSampling() {
+    return sampling;
+  }
+
+  /**
+   * @return true if queries should stay open and return the rows of the service as they are produced
+   */
+  public boolean isContinuous() {
+    return continuous;
+  }
+
+  /**
+   * @return windows of continuous queries
+   */
+  Streaming getStreaming() {
+    return streaming;
+  }
+
+  /**
+   * @return watermark column of incremental queries, or null if statements return every row by default
+   * @see ThinStatement#setWatermark(String)
+   */
+  public String getWatermark() {
+    return watermark;
+  }
+
+  /**
+   * @return file keeping the watermarks of incremental queries
+   */
+  WatermarkStore getWatermarkStore() {
+    return watermarkStore;
+  }
+
+  /**
+   * @return the slice of query results read by this connection, or null for every row
+   */
+  Partitioning getPartitioning() {
+    return partitioning;
+  }
+
+  /**
+   * @return true if query requests are sent as a binary body, compressed once large, instead of form encoded
+   */
+  public boolean isCompactRequests() {
+    return compactRequests;
+  }
+
+  /**
+   * @return the listener receiving completed query traces, or null
+   */
+  public ThinQueryTraceListener getQueryTraceListener() {
+    return queryTraceListener;
+  }
+
+  /**
+   * @param queryTraceListener receives a {@link ThinQueryTrace} for each query once its result set is closed
+   */
+  public void setQueryTraceListener( ThinQueryTraceListener queryTraceListener ) {
+    this.queryTraceListener = queryTraceListener;
+  }
+
   ImmutableMap<String, String> getParameters() {
     return parameters;
   }
@@ -405,19 +598,48 @@ public class ThinConnection extends ThinBase implements Connection {
     return null;
   }
 
-  @Override @NotSupported
+  /**
+   * Marks this connection closed and aborts its open queries on {@code executor}, without waiting on the server
+   */
+  @Override
   public void abort( Executor executor ) throws SQLException {
-    throw new SQLFeatureNotSupportedException( "Abort Connection not supported" );
+    if ( executor == null ) {
+      throw new SQLException( "An executor is required to abort a connection" );
+    }
+    if ( closed.compareAndSet( false, true ) && clientService instanceof RemoteClient ) {
+      // The transport may be closed with this connection, but not before its queries are stopped
+      ( (RemoteClient) clientService ).abort( executor, new Runnable() {
+        @Override public void run() {
+          if ( builder != null ) {
+            builder.connectionClosed();
+          }
+        }
+      } );
+    }
   }
 
-  @Override @NotSupported
+  /**
+   * Sets how long to wait for data from the server before failing a request. Only applies to remote connections.
+   *
+   * @param executor     not used, requests are timed out by their sockets
+   * @param milliseconds time to wait, or 0 to wait indefinitely
+   */
+  @Override
   public void setNetworkTimeout( Executor executor, int milliseconds ) throws SQLException {
-    throw new SQLFeatureNotSupportedException( "Network Timeout not supported" );
+    if ( milliseconds < 0 ) {
+      throw new SQLException( "Network timeout must be >= 0" );
+    }
+    verifyOpen();
+    networkTimeout = milliseconds;
+    if ( clientService instanceof RemoteClient ) {
+      ( (RemoteClient) clientService ).setSocketTimeout( milliseconds );
+    }
   }
 
-  @Override @NotSupported
+  @Override
   public int getNetworkTimeout() throws SQLException {
-    throw new SQLFeatureNotSupportedException( "Network Timeout not supported" );
+    verifyOpen();
+    return networkTimeout;
   }
 
   public boolean isLocal() {
@@ -428,11 +650,26 @@ public class ThinConnection extends ThinBase implements Connection {
     return baseURI.getScheme().equals( "https" );
   }
 
-  public static DataServiceClientService getLocalClient() throws SQLException {
-    if ( localClient == null ) {
-      throw new SQLException( "Local client service is not installed" );
+  URI getBaseURI() {
+    return baseURI;
+  }
+
+  /**
+   * @return limiter of the queries running at once on each server, empty unless {@value #ARG_MAXCONCURRENCY} is set
+   */
+  public Collection<ConcurrencyLimiter> getConcurrencyLimiters() {
+    if ( clientService instanceof RemoteClient ) {
+      return ( (RemoteClient) clientService ).getConcurrencyLimiters().values();
     }
-    return ThinConnection.localClient;
+    return ImmutableList.of();
+  }
+
+  /**
+   * @return the local client service registered without a repository name
+   * @see LocalClientRegistry
+   */
+  public static DataServiceClientService getLocalClient() throws SQLException {
+    return LocalClientRegistry.getInstance().lookup( LocalClientRegistry.DEFAULT_KEY );
   }
 
   protected void setClientService( DataServiceClientService clientService ) {
@@ -459,7 +696,7 @@ public class ThinConnection extends ThinBase implements Connection {
     }
   }
 
-  private ThinConnection extractProperties( Map<String, String> arguments ) {
+  private ThinConnection extractProperties( Map<String, String> arguments ) throws SQLException {
     proxyHostname = arguments.get( ARG_PROXYHOSTNAME );
     proxyPort = arguments.get( ARG_PROXYPORT );
     nonProxyHosts = arguments.get( ARG_NONPROXYHOSTS );
@@ -474,14 +711,88 @@ public class ThinConnection extends ThinBase implements Connection {
     username = arguments.get( "user" );
     password = arguments.get( "password" );
 
+    String timeout = arguments.get( ARG_NETWORKTIMEOUT );
+    if ( !Strings.isNullOrEmpty( timeout ) ) {
+      try {
+        networkTimeout = Integer.parseInt( timeout.trim() );
+      } catch ( NumberFormatException e ) {
+        throw new SQLException( "Invalid " + ARG_NETWORKTIMEOUT + ": " + timeout, e );
+      }
+    }
+
+    clientAggregation = Boolean.parseBoolean( arguments.get( ARG_CLIENTAGGREGATION ) );
+
+    sampling = Sampling.fromArguments( arguments );
+
+    continuous = Boolean.parseBoolean( arguments.get( ARG_CONTINUOUS ) );
+    streaming = Streaming.fromArguments( arguments );
+
+    watermark = Strings.emptyToNull( arguments.get( ARG_WATERMARK ) );
+    String watermarkStoreArg = arguments.get( ARG_WATERMARKSTORE );
+    watermarkStore = new WatermarkStore( Strings.isNullOrEmpty( watermarkStoreArg )
+      ? new File( Const.getKettleDirectory(), WatermarkStore.DEFAULT_FILE_NAME )
+      : new File( watermarkStoreArg.trim() ) );
+
+    partitioning = Partitioning.fromArguments( arguments );
+
+    compactRequests = Boolean.parseBoolean( arguments.get( ARG_COMPACTREQUESTS ) );
+
+    String sortMemoryArg = arguments.get( ARG_SORTMEMORY );
+    if ( !Strings.isNullOrEmpty( sortMemoryArg ) ) {
+      try {
+        sortMemory = Long.parseLong( sortMemoryArg.trim() );
+      } catch ( NumberFormatException e ) {
+        throw new SQLException( "Invalid " + ARG_SORTMEMORY + ": " + sortMemoryArg, e );
+      }
+    }
+
+    String joinMemoryArg = arguments.get( ARG_JOINMEMORY );
+    if ( !Strings.isNullOrEmpty( joinMemoryArg ) ) {
+      try {
+        joinMemory = Long.parseLong( joinMemoryArg.trim() );
+      } catch ( NumberFormatException e ) {
+        throw new SQLException( "Invalid " + ARG_JOINMEMORY + ": " + joinMemoryArg, e );
+      }
+    }
+
+    String lobThresholdArg = arguments.get( ARG_LOBTHRESHOLD );
+    if ( !Strings.isNullOrEmpty( lobThresholdArg ) ) {
+      try {
+        lobThreshold = Integer.parseInt( lobThresholdArg.trim() );
+      } catch ( NumberFormatException e ) {
+        throw new SQLException( "Invalid " + ARG_LOBTHRESHOLD + ": " + lobThresholdArg, e );
+      }
+    }
+
+    String slowQueryThreshold = arguments.get( ARG_SLOWQUERYTHRESHOLD );
+    if ( !Strings.isNullOrEmpty( slowQueryThreshold ) ) {
+      try {
+        queryTraceListener = new SlowQueryLogger( Long.parseLong( slowQueryThreshold.trim() ) );
+      } catch ( NumberFormatException e ) {
+        throw new SQLException( "Invalid " + ARG_SLOWQUERYTHRESHOLD + ": " + slowQueryThreshold, e );
+      }
+    }
+
     return this;
   }
 
+  /**
+   * Creates connections from a URL and properties. A builder may be kept to create any number of connections, which
+   * then share its transport and, if enabled, its cache of service information. The transport is closed along with
+   * the last open connection, and opened again by the next.
+   */
   public static class Builder {
+    private static final String UNIX_SCHEME = "unix";
     private final SlaveConnectionManager connectionManager;
     private final Map<String, String> arguments = Maps.newHashMap();
     private String url;
     private URI uri;
+    private HttpClient httpClient;
+    private DataServiceTransport transport;
+    private ServerPool serverPool;
+    private Map<URI, ConcurrencyLimiter> concurrencyLimiters;
+    private ServiceInformationCache serviceInformationCache;
+    private int openConnections;
 
     public Builder( SlaveConnectionManager connectionManager ) {
       this.connectionManager = connectionManager;
@@ -490,8 +801,10 @@ public class ThinConnection extends ThinBase implements Connection {
     public Builder parseUrl( String url ) throws SQLException {
       this.url = url;
       try {
-        // Remove 'jdbc:' prefix
-        uri = URI.create( url.substring( 5 ) );
+        // Remove 'jdbc:' prefix, or 'jdbc:pdi:' from socket file URLs. Kettle variables left unresolved in options
+        // would not be valid in a URI.
+        String target = url.startsWith( ThinDriver.UNIX_URL ) ? url.substring( 9 ) : url.substring( 5 );
+        uri = URI.create( target.replace( "{", "%7B" ).replace( "}", "%7D" ) );
 
         if ( !Strings.isNullOrEmpty( uri.getQuery() ) ) {
           Map<String, String> queryParameters = Splitter.on( '&' ).withKeyValueSeparator( '=' ).split( uri.getQuery() );
@@ -516,26 +829,155 @@ public class ThinConnection extends ThinBase implements Connection {
       return this;
     }
 
-    private RemoteClient createRemoteClient( ThinConnection connection ) {
-      HttpClient client = connectionManager.createHttpClient();
-      connection.addCredentials( client );
-      connection.setProxy( client );
+    /**
+     * Cache the list of services for connections built from now on, sharing it between them
+     */
+    public Builder cacheServiceInformation( long duration, TimeUnit unit ) {
+      serviceInformationCache = new ServiceInformationCache( duration, unit );
+      return this;
+    }
+
+    /**
+     * Send the requests of connections built from now on through {@code transport}, instead of the pooled HTTP
+     * connections of the slave connection manager
+     */
+    public synchronized Builder transport( DataServiceTransport transport ) {
+      this.transport = transport;
+      return this;
+    }
+
+    /**
+     * @return the transport set for this builder, or else HTTP over the socket file of a {@value ThinDriver#UNIX_URL}
+     * URL, or else the protocol named by {@value #ARG_PROTOCOL}, by default HTTP
+     */
+    private synchronized DataServiceTransport getTransport( ThinConnection connection ) throws SQLException {
+      if ( transport == null ) {
+        String protocol = arguments.get( ARG_PROTOCOL );
+        if ( UNIX_SCHEME.equals( uri.getScheme() ) ) {
+          if ( !UnixSocketTransport.isSupported() ) {
+            throw new SQLFeatureNotSupportedException( "Unix domain sockets require Java 16 or later" );
+          }
+          transport = new UnixSocketTransport( uri.getPath(), getHttpClient( connection ) );
+        } else if ( Strings.isNullOrEmpty( protocol ) || "http".equalsIgnoreCase( protocol.trim() ) ) {
+          transport = new HttpClientTransport( getHttpClient( connection ) );
+        } else if ( "framed".equalsIgnoreCase( protocol.trim() ) ) {
+          transport = new FramedTransport( connection.username, connection.password );
+        } else {
+          throw new SQLException( "Invalid " + ARG_PROTOCOL + ": " + protocol );
+        }
+      }
+      return transport;
+    }
 
-      client.getHttpConnectionManager().getParams().setConnectionTimeout( 0 );
-      client.getHttpConnectionManager().getParams().setSoTimeout( 0 );
+    private synchronized HttpClient getHttpClient( ThinConnection connection ) {
+      if ( httpClient == null ) {
+        HttpClient client = connectionManager.createHttpClient();
+        connection.addCredentials( client );
+        if ( !UNIX_SCHEME.equals( uri.getScheme() ) ) {
+          // A socket file is always on this host
+          connection.setProxy( client );
+        }
+        // Timeouts are set on each request, the connection manager is shared with the rest of Kettle
+        httpClient = client;
+      }
+      return httpClient;
+    }
 
-      return new RemoteClient( connection, client );
+    /**
+     * @return servers shared by every connection from this builder, or null if the URL names a single server
+     */
+    private synchronized ServerPool getServerPool( List<URI> baseUris ) throws SQLException {
+      if ( serverPool == null && baseUris.size() > 1 ) {
+        long ejectionMillis = ServerPool.DEFAULT_EJECTION_MILLIS;
+        String ejectionTime = arguments.get( ARG_EJECTIONTIME );
+        if ( !Strings.isNullOrEmpty( ejectionTime ) ) {
+          try {
+            ejectionMillis = Long.parseLong( ejectionTime.trim() );
+          } catch ( NumberFormatException e ) {
+            throw new SQLException( "Invalid " + ARG_EJECTIONTIME + ": " + ejectionTime, e );
+          }
+        }
+        LoadBalancingStrategy strategy = LoadBalancingStrategies.forName( arguments.get( ARG_LOADBALANCING ) );
+        serverPool = new ServerPool( baseUris, strategy, ejectionMillis );
+      }
+      return serverPool;
+    }
+
+    /**
+     * @return limiter of each server shared by every connection from this builder, empty unless
+     * {@value #ARG_MAXCONCURRENCY} is set
+     */
+    private synchronized Map<URI, ConcurrencyLimiter> getConcurrencyLimiters( List<URI> baseUris )
+      throws SQLException {
+      if ( concurrencyLimiters == null ) {
+        int maxConcurrency = 0;
+        long queueTimeoutMillis = ConcurrencyLimiter.DEFAULT_QUEUE_TIMEOUT_MILLIS;
+        String maxConcurrencyArg = arguments.get( ARG_MAXCONCURRENCY );
+        if ( !Strings.isNullOrEmpty( maxConcurrencyArg ) ) {
+          try {
+            maxConcurrency = Integer.parseInt( maxConcurrencyArg.trim() );
+          } catch ( NumberFormatException e ) {
+            throw new SQLException( "Invalid " + ARG_MAXCONCURRENCY + ": " + maxConcurrencyArg, e );
+          }
+        }
+        String queueTimeout = arguments.get( ARG_QUEUETIMEOUT );
+        if ( !Strings.isNullOrEmpty( queueTimeout ) ) {
+          try {
+            queueTimeoutMillis = Long.parseLong( queueTimeout.trim() );
+          } catch ( NumberFormatException e ) {
+            throw new SQLException( "Invalid " + ARG_QUEUETIMEOUT + ": " + queueTimeout, e );
+          }
+        }
+
+        ImmutableMap.Builder<URI, ConcurrencyLimiter> limiters = ImmutableMap.builder();
+        if ( maxConcurrency > 0 ) {
+          for ( URI baseUri : baseUris ) {
+            limiters.put( baseUri, new ConcurrencyLimiter( baseUri, maxConcurrency, queueTimeoutMillis ) );
+          }
+        }
+        concurrencyLimiters = limiters.build();
+      }
+      return concurrencyLimiters;
+    }
+
+    private RemoteClient createRemoteClient( ThinConnection connection, List<URI> baseUris ) throws SQLException {
+      RemoteClient remoteClient = new RemoteClient( connection, getTransport( connection ) );
+      remoteClient.setSocketTimeout( connection.networkTimeout );
+      remoteClient.setServiceInformationCache( serviceInformationCache );
+      remoteClient.setServerPool( getServerPool( baseUris ) );
+      remoteClient.setConcurrencyLimiters( getConcurrencyLimiters( baseUris ) );
+      return remoteClient;
     }
 
     public ThinConnection build() throws SQLException {
       boolean isLocal = "true".equalsIgnoreCase( arguments.get( ARG_LOCAL ) );
 
-      ThinConnection connection = new ThinConnection( url, baseUri() ).extractProperties( arguments );
-      connection.clientService = isLocal ? ThinConnection.getLocalClient() : createRemoteClient( connection );
+      List<URI> baseUris = baseUris();
+      ThinConnection connection = new ThinConnection( url, baseUris.get( 0 ) ).extractProperties( arguments );
+      if ( isLocal ) {
+        connection.clientService = LocalClientRegistry.getInstance().lookup( arguments.get( ARG_REPOSITORY ) );
+      } else {
+        connection.clientService = createRemoteClient( connection, baseUris );
+        connection.builder = this;
+        connectionOpened();
+      }
       return connection;
     }
 
-    private URI baseUri() throws SQLException {
+    private synchronized void connectionOpened() {
+      openConnections++;
+    }
+
+    private synchronized void connectionClosed() {
+      if ( --openConnections == 0 && transport != null ) {
+        transport.close();
+      }
+    }
+
+    /**
+     * @return base URI of each server named by the URL, which may list several as host:port pairs separated by commas
+     */
+    private List<URI> baseUris() throws SQLException {
       boolean isSecure = "true".equalsIgnoreCase( arguments.get( ARG_ISSECURE ) );
 
       String pathPrefix = "";
@@ -545,16 +987,42 @@ public class ThinConnection extends ThinBase implements Connection {
         pathPrefix = "/" + arguments.get( ARG_WEBAPPNAME );
       }
 
+      if ( UNIX_SCHEME.equals( uri.getScheme() ) ) {
+        if ( Strings.isNullOrEmpty( uri.getPath() ) || "/".equals( uri.getPath() ) ) {
+          throw new SQLException( "No socket file in connection URL: " + url );
+        }
+        // A socket file leads to a single server, which serves requests at the usual path
+        return ImmutableList.of( URI.create(
+          "http://" + UnixSocketTransport.HOST + pathPrefix + ThinDriver.SERVICE_NAME + "/" ) );
+      }
+
       try {
-        return new URI(
-          isSecure ? "https" : "http",
-          null,
-          uri.getHost(),
-          uri.getPort() > 0 ? uri.getPort() : isSecure ? 443 : 80,
-          pathPrefix + Strings.nullToEmpty( uri.getPath() ) + '/',
-          null,
-          null
-        );
+        List<URI> servers = Lists.newArrayList();
+        if ( uri.getHost() != null || Strings.isNullOrEmpty( uri.getRawAuthority() ) ) {
+          servers.add( uri );
+        } else {
+          for ( String authority : Splitter.on( ',' ).trimResults().omitEmptyStrings()
+            .split( uri.getRawAuthority() ) ) {
+            servers.add( new URI( "//" + authority ) );
+          }
+          if ( servers.isEmpty() ) {
+            throw new SQLException( "No server in connection URL: " + url );
+          }
+        }
+
+        List<URI> baseUris = Lists.newArrayListWithCapacity( servers.size() );
+        for ( URI server : servers ) {
+          baseUris.add( new URI(
+            isSecure ? "https" : "http",
+            null,
+            server.getHost(),
+            server.getPort() > 0 ? server.getPort() : isSecure ? 443 : 80,
+            pathPrefix + Strings.nullToEmpty( uri.getPath() ) + '/',
+            null,
+            null
+          ) );
+        }
+        return baseUris;
       } catch ( URISyntaxException e ) {
         throw new SQLException( "Unable to create a connection", e );
       }
@@ -0,0 +1,182 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.base.Objects;
+import org.pentaho.di.cluster.SlaveConnectionManager;
+
+import javax.sql.ConnectionPoolDataSource;
+import javax.sql.PooledConnection;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Creates pooled connections for an application server's connection pool.
+ * <p/>
+ * The URL and properties are parsed once, and all connections for the configured user share one HTTP client and a
+ * cache of the server's service list. No validation query is run when a connection is created.
+ */
+public class ThinConnectionPoolDataSource implements ConnectionPoolDataSource {
+  private String url;
+  private String user;
+  private String password;
+  private Properties properties = new Properties();
+  private int serviceCacheSeconds = 60;
+  private int loginTimeout = 0;
+  private PrintWriter logWriter;
+
+  private volatile ThinConnection.Builder builder;
+
+  @Override public PooledConnection getPooledConnection() throws SQLException {
+    return new ThinPooledConnection( createConnection( user, password ) );
+  }
+
+  @Override public PooledConnection getPooledConnection( String user, String password ) throws SQLException {
+    return new ThinPooledConnection( createConnection( user, password ) );
+  }
+
+  protected ThinConnection createConnection( String user, String password ) throws SQLException {
+    if ( Objects.equal( user, this.user ) && Objects.equal( password, this.password ) ) {
+      return getBuilder().build();
+    }
+    // Other credentials need their own HTTP client
+    return newBuilder( user, password ).build();
+  }
+
+  private ThinConnection.Builder getBuilder() throws SQLException {
+    ThinConnection.Builder builder = this.builder;
+    if ( builder == null ) {
+      synchronized ( this ) {
+        builder = this.builder;
+        if ( builder == null ) {
+          builder = newBuilder( user, password );
+          if ( serviceCacheSeconds > 0 ) {
+            builder.cacheServiceInformation( serviceCacheSeconds, TimeUnit.SECONDS );
+          }
+          this.builder = builder;
+        }
+      }
+    }
+    return builder;
+  }
+
+  private ThinConnection.Builder newBuilder( String user, String password ) throws SQLException {
+    if ( url == null ) {
+      throw new SQLException( "URL is not set" );
+    }
+    Properties connectionProperties = new Properties();
+    connectionProperties.putAll( properties );
+    if ( user != null ) {
+      connectionProperties.setProperty( "user", user );
+    }
+    if ( password != null ) {
+      connectionProperties.setProperty( "password", password );
+    }
+    return new ThinConnection.Builder( SlaveConnectionManager.getInstance() )
+      .parseUrl( url )
+      .readProperties( connectionProperties );
+  }
+
+  /**
+   * Discard the parsed configuration, so that connections created from now on use the current settings
+   */
+  protected synchronized void reset() {
+    builder = null;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public void setUrl( String url ) {
+    this.url = url;
+    reset();
+  }
+
+  public String getUser() {
+    return user;
+  }
+
+  public void setUser( String user ) {
+    this.user = user;
+    reset();
+  }
+
+  public String getPassword() {
+    return password;
+  }
+
+  public void setPassword( String password ) {
+    this.password = password;
+    reset();
+  }
+
+  public Properties getProperties() {
+    return properties;
+  }
+
+  /**
+   * @param properties connection arguments, as would be passed to {@link ThinDriver#connect}
+   */
+  public void setProperties( Properties properties ) {
+    this.properties = properties == null ? new Properties() : properties;
+    reset();
+  }
+
+  public int getServiceCacheSeconds() {
+    return serviceCacheSeconds;
+  }
+
+  /**
+   * @param serviceCacheSeconds how long the list of services is shared between connections, or 0 to disable caching
+   */
+  public void setServiceCacheSeconds( int serviceCacheSeconds ) {
+    this.serviceCacheSeconds = serviceCacheSeconds;
+    reset();
+  }
+
+  @Override public PrintWriter getLogWriter() throws SQLException {
+    return logWriter;
+  }
+
+  @Override public void setLogWriter( PrintWriter out ) throws SQLException {
+    this.logWriter = out;
+  }
+
+  @Override public void setLoginTimeout( int seconds ) throws SQLException {
+    this.loginTimeout = seconds;
+  }
+
+  @Override public int getLoginTimeout() throws SQLException {
+    return loginTimeout;
+  }
+
+  public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+    return ThinDriver.logger;
+  }
+}
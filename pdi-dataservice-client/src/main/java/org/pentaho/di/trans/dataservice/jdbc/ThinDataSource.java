@@ -0,0 +1,169 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link DataSource} with a built-in connection pool, for applications that don't bring their own.
+ * <p/>
+ * Connections are created by a {@link ThinConnectionPoolDataSource}, so they share its parsed configuration, HTTP
+ * client and service list cache. Idle connections are kept in a lock-free queue: up to {@link #getMaxIdle()} are
+ * kept when returned, and at least {@link #getMinIdle()} are kept ready.
+ */
+public class ThinDataSource extends ThinConnectionPoolDataSource implements DataSource {
+  private final Queue<ThinPooledConnection> idle = new ConcurrentLinkedQueue<ThinPooledConnection>();
+  private final AtomicInteger idleCount = new AtomicInteger();
+  private final ConnectionEventListener poolListener = new PoolListener();
+  private volatile int minIdle = 0;
+  private volatile int maxIdle = 8;
+
+  @Override public Connection getConnection() throws SQLException {
+    ThinPooledConnection pooledConnection;
+    while ( ( pooledConnection = idle.poll() ) != null ) {
+      idleCount.decrementAndGet();
+      if ( pooledConnection.isUsable() ) {
+        break;
+      }
+      discard( pooledConnection );
+    }
+    if ( pooledConnection == null ) {
+      pooledConnection = createPooledConnection();
+    }
+    Connection connection = pooledConnection.getConnection();
+    fill();
+    return connection;
+  }
+
+  /**
+   * Connections for other users are not pooled
+   */
+  @Override public Connection getConnection( String user, String password ) throws SQLException {
+    return createConnection( user, password );
+  }
+
+  private ThinPooledConnection createPooledConnection() throws SQLException {
+    ThinPooledConnection pooledConnection = new ThinPooledConnection( createConnection( getUser(), getPassword() ) );
+    pooledConnection.addConnectionEventListener( poolListener );
+    return pooledConnection;
+  }
+
+  /**
+   * Create idle connections until there are at least {@link #getMinIdle()}
+   */
+  void fill() throws SQLException {
+    while ( idleCount.get() < minIdle ) {
+      release( createPooledConnection() );
+    }
+  }
+
+  private void release( ThinPooledConnection pooledConnection ) {
+    if ( idleCount.incrementAndGet() <= maxIdle ) {
+      idle.offer( pooledConnection );
+    } else {
+      idleCount.decrementAndGet();
+      discard( pooledConnection );
+    }
+  }
+
+  private void discard( ThinPooledConnection pooledConnection ) {
+    pooledConnection.removeConnectionEventListener( poolListener );
+    try {
+      pooledConnection.close();
+    } catch ( SQLException e ) {
+      ThinDriver.logger.warning( "Unable to close pooled connection: " + e.getMessage() );
+    }
+  }
+
+  /**
+   * Close all idle connections and stop pooling. Connections in use are closed when returned.
+   */
+  public void close() {
+    maxIdle = 0;
+    minIdle = 0;
+    discardIdle();
+  }
+
+  @Override protected synchronized void reset() {
+    super.reset();
+    // Idle connections were configured with the old settings
+    discardIdle();
+  }
+
+  private void discardIdle() {
+    ThinPooledConnection pooledConnection;
+    while ( ( pooledConnection = idle.poll() ) != null ) {
+      idleCount.decrementAndGet();
+      discard( pooledConnection );
+    }
+  }
+
+  int getIdleCount() {
+    return idleCount.get();
+  }
+
+  public int getMinIdle() {
+    return minIdle;
+  }
+
+  public void setMinIdle( int minIdle ) {
+    this.minIdle = minIdle;
+  }
+
+  public int getMaxIdle() {
+    return maxIdle;
+  }
+
+  public void setMaxIdle( int maxIdle ) {
+    this.maxIdle = maxIdle;
+  }
+
+  @Override public boolean isWrapperFor( Class<?> type ) throws SQLException {
+    return type.isInstance( this );
+  }
+
+  @Override public <T> T unwrap( Class<T> type ) throws SQLException {
+    if ( isWrapperFor( type ) ) {
+      return type.cast( this );
+    }
+    throw new SQLException( "Not a wrapper for " + type );
+  }
+
+  private class PoolListener implements ConnectionEventListener {
+    @Override public void connectionClosed( ConnectionEvent event ) {
+      release( (ThinPooledConnection) event.getSource() );
+    }
+
+    @Override public void connectionErrorOccurred( ConnectionEvent event ) {
+      discard( (ThinPooledConnection) event.getSource() );
+    }
+  }
+}
@@ -35,6 +35,7 @@ import java.util.logging.Logger;
 public class ThinDriver implements Driver {
 
   public static final String BASE_URL = "jdbc:pdi://";
+  public static final String UNIX_URL = "jdbc:pdi:unix://";
   public static final String SERVICE_NAME = "/kettle";
   public static final String NAME = "PDI Data Services JDBC driver";
 
@@ -57,7 +58,7 @@ public class ThinDriver implements Driver {
 
   @Override
   public boolean acceptsURL( String url ) {
-    return url.startsWith( BASE_URL );
+    return url.startsWith( BASE_URL ) || url.startsWith( UNIX_URL );
   }
 
   @Override
@@ -0,0 +1,242 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.PooledConnection;
+import javax.sql.StatementEventListener;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A physical {@link ThinConnection} handed out as short-lived logical connections. Closing a logical connection
+ * notifies the pool instead of closing the physical one, once the statements created through it are closed and the
+ * settings it changed are restored for the next user.
+ */
+public class ThinPooledConnection implements PooledConnection {
+  private final ThinConnection connection;
+  private final List<ConnectionEventListener> listeners = new CopyOnWriteArrayList<ConnectionEventListener>();
+  private volatile LogicalConnection logicalConnection;
+
+  public ThinPooledConnection( ThinConnection connection ) {
+    this.connection = connection;
+  }
+
+  /**
+   * Open a new logical connection. Any logical connection previously opened is invalidated.
+   */
+  @Override public Connection getConnection() throws SQLException {
+    if ( connection.isClosed() ) {
+      throw new SQLException( "Pooled connection is closed" );
+    }
+    LogicalConnection previous = logicalConnection;
+    if ( previous != null ) {
+      previous.invalidate();
+      previous.release();
+    }
+    LogicalConnection handler = new LogicalConnection();
+    logicalConnection = handler;
+    return handler.proxy;
+  }
+
+  @Override public void close() throws SQLException {
+    LogicalConnection handler = logicalConnection;
+    if ( handler != null ) {
+      handler.invalidate();
+    }
+    connection.close();
+  }
+
+  ThinConnection getPhysicalConnection() {
+    return connection;
+  }
+
+  boolean isUsable() throws SQLException {
+    return !connection.isClosed();
+  }
+
+  @Override public void addConnectionEventListener( ConnectionEventListener listener ) {
+    listeners.add( listener );
+  }
+
+  @Override public void removeConnectionEventListener( ConnectionEventListener listener ) {
+    listeners.remove( listener );
+  }
+
+  @Override public void addStatementEventListener( StatementEventListener listener ) {
+    // Statements are not pooled
+  }
+
+  @Override public void removeStatementEventListener( StatementEventListener listener ) {
+    // Statements are not pooled
+  }
+
+  private void fireConnectionClosed() {
+    ConnectionEvent event = new ConnectionEvent( this );
+    for ( ConnectionEventListener listener : listeners ) {
+      listener.connectionClosed( event );
+    }
+  }
+
+  private void fireConnectionError( SQLException e ) {
+    ConnectionEvent event = new ConnectionEvent( this, e );
+    for ( ConnectionEventListener listener : listeners ) {
+      listener.connectionErrorOccurred( event );
+    }
+  }
+
+  private static Object invokeTarget( Object target, Method method, Object[] args ) throws Throwable {
+    try {
+      return method.invoke( target, args );
+    } catch ( InvocationTargetException e ) {
+      throw e.getCause();
+    }
+  }
+
+  private class LogicalConnection implements InvocationHandler {
+    private final Connection proxy = (Connection) Proxy.newProxyInstance( ThinPooledConnection.class.getClassLoader(),
+      new Class<?>[] { Connection.class }, this );
+    private final AtomicBoolean closed = new AtomicBoolean( false );
+    // Statements created through this logical connection and not closed yet
+    private final Set<Statement> statements = Collections.newSetFromMap( new ConcurrentHashMap<Statement, Boolean>() );
+    private final int networkTimeout;
+    private final ThinQueryTraceListener queryTraceListener;
+
+    LogicalConnection() throws SQLException {
+      networkTimeout = connection.getNetworkTimeout();
+      queryTraceListener = connection.getQueryTraceListener();
+    }
+
+    void invalidate() {
+      closed.set( true );
+    }
+
+    /**
+     * Close the statements created through this logical connection, and undo its changes to the physical one
+     */
+    void release() throws SQLException {
+      for ( Statement statement : statements ) {
+        try {
+          statement.close();
+        } catch ( SQLException e ) {
+          ThinDriver.logger.warning( "Unable to close statement of pooled connection: " + e.getMessage() );
+        }
+      }
+      statements.clear();
+
+      if ( connection.getNetworkTimeout() != networkTimeout ) {
+        connection.setNetworkTimeout( null, networkTimeout );
+      }
+      connection.setQueryTraceListener( queryTraceListener );
+      connection.clearWarnings();
+    }
+
+    /**
+     * @return {@code statement} wrapped to leave the set of open statements when closed, and to hand out this logical
+     * connection instead of the physical one
+     */
+    private Statement track( Class<?> type, final Statement statement ) {
+      statements.add( statement );
+      return (Statement) Proxy.newProxyInstance( ThinPooledConnection.class.getClassLoader(), new Class<?>[] { type },
+        new InvocationHandler() {
+          @Override public Object invoke( Object statementProxy, Method method, Object[] args ) throws Throwable {
+            String name = method.getName();
+            int argCount = args == null ? 0 : args.length;
+            if ( "close".equals( name ) && argCount == 0 ) {
+              statements.remove( statement );
+            } else if ( "getConnection".equals( name ) && argCount == 0 ) {
+              return proxy;
+            } else if ( "equals".equals( name ) && argCount == 1 ) {
+              return statementProxy == args[0];
+            } else if ( "hashCode".equals( name ) && argCount == 0 ) {
+              return System.identityHashCode( statementProxy );
+            }
+            return invokeTarget( statement, method, args );
+          }
+        } );
+    }
+
+    @Override public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+      String name = method.getName();
+      int argCount = args == null ? 0 : args.length;
+      if ( "close".equals( name ) && argCount == 0 ) {
+        if ( closed.compareAndSet( false, true ) ) {
+          try {
+            release();
+          } catch ( SQLException e ) {
+            // Not fit for the next user
+            fireConnectionError( e );
+            throw e;
+          } catch ( RuntimeException e ) {
+            SQLException error = new SQLException( "Unable to return connection to the pool", e );
+            fireConnectionError( error );
+            throw error;
+          }
+          fireConnectionClosed();
+        }
+        return null;
+      }
+      if ( "isClosed".equals( name ) && argCount == 0 ) {
+        return closed.get() || connection.isClosed();
+      }
+      if ( "equals".equals( name ) && argCount == 1 ) {
+        return proxy == args[0];
+      }
+      if ( "hashCode".equals( name ) && argCount == 0 ) {
+        return System.identityHashCode( proxy );
+      }
+      if ( "toString".equals( name ) && argCount == 0 ) {
+        return "Pooled " + connection.getUrl();
+      }
+      if ( closed.get() ) {
+        throw new SQLException( "Connection is closed" );
+      }
+      if ( "abort".equals( name ) && argCount == 1 ) {
+        // The physical connection can't be reused after an abort, so tell the pool to discard it
+        closed.set( true );
+        connection.abort( (Executor) args[0] );
+        fireConnectionError( new SQLException( "Connection was aborted" ) );
+        return null;
+      }
+      Object result = invokeTarget( connection, method, args );
+      if ( result instanceof Statement && method.getReturnType().isInterface() ) {
+        return track( method.getReturnType(), (Statement) result );
+      }
+      return result;
+    }
+  }
+}
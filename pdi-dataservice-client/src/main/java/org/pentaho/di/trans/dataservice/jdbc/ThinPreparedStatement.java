@@ -22,8 +22,8 @@
 
 package org.pentaho.di.trans.dataservice.jdbc;
 
-import com.google.common.base.Throwables;
 import org.pentaho.di.core.exception.KettleSQLException;
+import org.pentaho.di.core.exception.KettleValueException;
 import org.pentaho.di.core.jdbc.ThinUtil;
 import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.core.row.value.ValueMetaBigNumber;
@@ -55,7 +55,6 @@ import java.sql.Time;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
@@ -64,6 +63,7 @@ public class ThinPreparedStatement extends ThinStatement implements PreparedStat
 
   public static final SimpleDateFormat FORMAT = new SimpleDateFormat( "'['yyyy/MM/dd HH:mm:ss.SSS']'" );
   private final String sql; // contains ? placeholders
+  private final PreparedQuery preparedQuery;
 
   protected List<Integer> placeholderIndexes;
   protected ValueMetaInterface[] paramMeta;
@@ -74,38 +74,29 @@ public class ThinPreparedStatement extends ThinStatement implements PreparedStat
   }
 
   public ThinPreparedStatement( ThinConnection connection, String sql, ThinResultFactory resultFactory ) throws SQLException {
+    this( connection, new PreparedQuery( sql ), resultFactory );
+  }
+
+  ThinPreparedStatement( ThinConnection connection, PreparedQuery preparedQuery, ThinResultFactory resultFactory ) {
     super( connection, resultFactory );
-    this.sql = sql;
+    this.sql = preparedQuery.getSql();
+    this.preparedQuery = preparedQuery;
 
-    analyzeSql();
+    placeholderIndexes = preparedQuery.getPlaceholderIndexes();
+    resetParameters();
   }
 
   public void analyzeSql() throws SQLException {
-    try {
-      placeholderIndexes = new ArrayList<Integer>();
-
-      int index = 0;
-      while ( index < sql.length() ) {
-        index = ThinUtil.skipChars( sql, index, '\'', '"' );
-        if ( index < sql.length() ) {
-          if ( sql.charAt( index ) == '?' ) {
-            // placeholder found.
-            placeholderIndexes.add( index );
-          }
-        }
-
-        index++;
-      }
-      paramData = new Object[placeholderIndexes.size()];
-      paramMeta = new ValueMetaInterface[placeholderIndexes.size()];
-      // Null Strings is the default.
-      for ( int i = 0; i < placeholderIndexes.size(); i++ ) {
-        paramMeta[i] = new ValueMetaString( "param-" + ( i + 1 ) );
-      }
+    placeholderIndexes = PreparedQuery.findPlaceholders( sql );
+    resetParameters();
+  }
 
-    } catch ( Exception e ) {
-      Throwables.propagateIfPossible( e, SQLException.class );
-      throw new SQLException( e );
+  private void resetParameters() {
+    paramData = new Object[placeholderIndexes.size()];
+    paramMeta = new ValueMetaInterface[placeholderIndexes.size()];
+    // Null Strings is the default.
+    for ( int i = 0; i < placeholderIndexes.size(); i++ ) {
+      paramMeta[i] = new ValueMetaString( "param-" + ( i + 1 ) );
     }
   }
 
@@ -119,38 +110,7 @@ public class ThinPreparedStatement extends ThinStatement implements PreparedStat
         if ( valueMeta == null ) {
           throw new SQLException( "Parameter " + ( i + 1 ) + " was not specified" );
         }
-        String replacement = null;
-        if ( valueMeta.isNull( paramData[i] ) ) {
-          replacement = "NULL";
-        } else {
-          switch ( valueMeta.getType() ) {
-            case ValueMetaInterface.TYPE_STRING:
-              replacement = "'" + valueMeta.getString( paramData[i] ) + "'";
-              break;
-            case ValueMetaInterface.TYPE_NUMBER:
-              double d = valueMeta.getNumber( paramData[i] );
-              replacement = Double.toString( d );
-              break;
-            case ValueMetaInterface.TYPE_INTEGER:
-              long l = valueMeta.getInteger( paramData[i] );
-              replacement = Long.toString( l );
-              break;
-            case ValueMetaInterface.TYPE_DATE:
-              java.util.Date date = valueMeta.getDate( paramData[i] );
-              replacement = FORMAT.format( date );
-              break;
-            case ValueMetaInterface.TYPE_BIGNUMBER:
-              BigDecimal bd = valueMeta.getBigNumber( paramData[i] );
-              replacement = bd.toString();
-              break;
-            case ValueMetaInterface.TYPE_BOOLEAN:
-              boolean b = valueMeta.getBoolean( paramData[i] );
-              replacement = b ? "TRUE" : "FALSE";
-              break;
-            default:
-              break;
-          }
-        }
+        String replacement = valueMeta.isNull( paramData[i] ) ? "NULL" : toLiteral( valueMeta, paramData[i] );
         if ( replacement == null ) {
           throw new KettleSQLException( "Unhandled data type: "
             + valueMeta.getTypeDesc() + " replacing parameter " + ( i + 1 ) );
@@ -167,6 +127,30 @@ public class ThinPreparedStatement extends ThinStatement implements PreparedStat
     }
   }
 
+  /**
+   * @return {@code value} written as an SQL literal, or null if values of its type can't be written
+   */
+  static String toLiteral( ValueMetaInterface valueMeta, Object value ) throws KettleValueException {
+    switch ( valueMeta.getType() ) {
+      case ValueMetaInterface.TYPE_STRING:
+        return "'" + valueMeta.getString( value ).replace( "'", "''" ) + "'";
+      case ValueMetaInterface.TYPE_NUMBER:
+        return Double.toString( valueMeta.getNumber( value ) );
+      case ValueMetaInterface.TYPE_INTEGER:
+        return Long.toString( valueMeta.getInteger( value ) );
+      case ValueMetaInterface.TYPE_DATE:
+        synchronized ( FORMAT ) {
+          return FORMAT.format( valueMeta.getDate( value ) );
+        }
+      case ValueMetaInterface.TYPE_BIGNUMBER:
+        return valueMeta.getBigNumber( value ).toString();
+      case ValueMetaInterface.TYPE_BOOLEAN:
+        return valueMeta.getBoolean( value ) ? "TRUE" : "FALSE";
+      default:
+        return null;
+    }
+  }
+
   @Override @NotSupported
   public void addBatch() throws SQLException {
     throw new SQLFeatureNotSupportedException( "Batch operations are not supported" );
@@ -174,17 +158,21 @@ public class ThinPreparedStatement extends ThinStatement implements PreparedStat
 
   @Override
   public void clearParameters() throws SQLException {
-    analyzeSql();
+    resetParameters();
   }
 
   @Override
   public boolean execute() throws SQLException {
-    return execute( replaceSql() );
+    return executeQuery() != null;
   }
 
   @Override
   public ResultSet executeQuery() throws SQLException {
-    return executeQuery( replaceSql() );
+    ResultSet resultSet = executeQuery( replaceSql() );
+    if ( resultSet instanceof ThinResultSet ) {
+      preparedQuery.setResultHeader( ( (ThinResultSet) resultSet ).getHeader() );
+    }
+    return resultSet;
   }
 
   @Override @NotSupported
@@ -192,10 +180,25 @@ public class ThinPreparedStatement extends ThinStatement implements PreparedStat
     throw new SQLFeatureNotSupportedException( "Update operations are not supported" );
   }
 
+  /**
+   * @return metadata of the current result set or, before this statement has been executed, of the results its SQL
+   * returns on this connection. These are asked of the server with a describe request, which doesn't run the service,
+   * if the client service supports it and the query isn't planned on the client. Otherwise the query is executed for a
+   * single row. They are remembered for other statements preparing the same SQL. Parameters not yet set are described
+   * as NULL.
+   */
   @Override
   public ResultSetMetaData getMetaData() throws SQLException {
     ResultSet resultSet = getResultSet();
-    return resultSet == null ? null : resultSet.getMetaData();
+    if ( resultSet != null ) {
+      return resultSet.getMetaData();
+    }
+    ThinResultHeader header = preparedQuery.getResultHeader();
+    if ( header == null ) {
+      header = describe( replaceSql() );
+      preparedQuery.setResultHeader( header );
+    }
+    return new ThinResultSetMetaData( header.getServiceName(), header.getRowMeta() );
   }
 
   @Override
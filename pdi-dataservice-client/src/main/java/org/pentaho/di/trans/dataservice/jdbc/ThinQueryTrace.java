@@ -0,0 +1,202 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records where the time and data of a single query went, from the moment it is sent until its result set is closed.
+ * <p/>
+ * A trace can be retrieved with {@code unwrap( ThinQueryTrace.class )} from the {@link ThinResultSet} or from the
+ * {@link ThinStatement} that executed it. Once the result set is closed, the trace is completed and passed to the
+ * connection's {@link ThinQueryTraceListener}, if any.
+ */
+public class ThinQueryTrace {
+
+  public enum Phase {
+    /** Query submitted to the client service */
+    EXECUTE,
+    /** Server accepted the query and began responding */
+    RESPONSE,
+    /** Result header (service ids and row metadata) decoded */
+    HEADER,
+    /** First row decoded */
+    FIRST_ROW,
+    /** End of the row stream reached */
+    LAST_ROW,
+    /** Result set closed and the service transformation stopped */
+    CLOSE
+  }
+
+  private static final long UNSET = -1;
+
+  private final String sql;
+  private final ThinQueryTraceListener listener;
+  private final AtomicLongArray timestamps = new AtomicLongArray( Phase.values().length );
+  private final AtomicLong rowCount = new AtomicLong();
+  private final AtomicBoolean complete = new AtomicBoolean( false );
+
+  private volatile CountingDataInputStream responseStream;
+  private volatile String serviceName;
+  private volatile String serviceObjectId;
+  private volatile String sqlObjectId;
+
+  public ThinQueryTrace( String sql, ThinQueryTraceListener listener ) {
+    this.sql = sql;
+    this.listener = listener;
+    for ( int i = 0; i < timestamps.length(); i++ ) {
+      timestamps.set( i, UNSET );
+    }
+    mark( Phase.EXECUTE );
+  }
+
+  void mark( Phase phase ) {
+    timestamps.compareAndSet( phase.ordinal(), UNSET, System.nanoTime() );
+  }
+
+  void responseReceived( Object response ) {
+    mark( Phase.RESPONSE );
+    if ( response instanceof CountingDataInputStream ) {
+      responseStream = (CountingDataInputStream) response;
+    }
+  }
+
+  void headerLoaded( ThinResultHeader header ) {
+    mark( Phase.HEADER );
+    if ( header != null ) {
+      serviceName = header.getServiceName();
+      serviceObjectId = header.getServiceObjectId();
+      sqlObjectId = header.getSqlObjectId();
+    }
+  }
+
+  void rowRead() {
+    if ( rowCount.incrementAndGet() == 1 ) {
+      mark( Phase.FIRST_ROW );
+    }
+  }
+
+  void endOfStream() {
+    mark( Phase.LAST_ROW );
+  }
+
+  /**
+   * Marks the trace as closed and notifies the listener. Only the first call has any effect.
+   */
+  void complete() {
+    mark( Phase.CLOSE );
+    if ( complete.compareAndSet( false, true ) && listener != null ) {
+      try {
+        listener.queryCompleted( this );
+      } catch ( RuntimeException e ) {
+        ThinDriver.logger.warning( "Query trace listener failed: " + e.getMessage() );
+      }
+    }
+  }
+
+  public String getSql() {
+    return sql;
+  }
+
+  public String getServiceName() {
+    return serviceName;
+  }
+
+  public String getServiceObjectId() {
+    return serviceObjectId;
+  }
+
+  public String getSqlObjectId() {
+    return sqlObjectId;
+  }
+
+  public boolean isComplete() {
+    return complete.get();
+  }
+
+  public boolean hasReached( Phase phase ) {
+    return timestamps.get( phase.ordinal() ) != UNSET;
+  }
+
+  /**
+   * @return milliseconds elapsed from {@link Phase#EXECUTE} until the given phase, or -1 if it was not reached
+   */
+  public long getElapsedMillis( Phase phase ) {
+    return getDurationMillis( Phase.EXECUTE, phase );
+  }
+
+  /**
+   * @return milliseconds elapsed between two phases, or -1 if either was not reached
+   */
+  public long getDurationMillis( Phase from, Phase to ) {
+    long start = timestamps.get( from.ordinal() );
+    long end = timestamps.get( to.ordinal() );
+    if ( start == UNSET || end == UNSET ) {
+      return -1;
+    }
+    return TimeUnit.NANOSECONDS.toMillis( end - start );
+  }
+
+  /**
+   * @return milliseconds from execution until the trace was completed, or until now if still open
+   */
+  public long getTotalMillis() {
+    long end = timestamps.get( Phase.CLOSE.ordinal() );
+    if ( end == UNSET ) {
+      end = System.nanoTime();
+    }
+    return TimeUnit.NANOSECONDS.toMillis( end - timestamps.get( Phase.EXECUTE.ordinal() ) );
+  }
+
+  public long getRowCount() {
+    return rowCount.get();
+  }
+
+  /**
+   * @return bytes read from the server response, or -1 if the client service does not expose them
+   */
+  public long getBytesRead() {
+    CountingDataInputStream stream = responseStream;
+    return stream == null ? -1 : stream.getCount();
+  }
+
+  @Override public String toString() {
+    StringBuilder builder = new StringBuilder( "ThinQueryTrace{sql=" ).append( sql )
+      .append( ", serviceObjectId=" ).append( serviceObjectId )
+      .append( ", sqlObjectId=" ).append( sqlObjectId );
+    for ( Phase phase : Phase.values() ) {
+      if ( phase != Phase.EXECUTE && hasReached( phase ) ) {
+        builder.append( ", " ).append( phase.name().toLowerCase() ).append( '=' )
+          .append( getElapsedMillis( phase ) ).append( "ms" );
+      }
+    }
+    return builder
+      .append( ", rows=" ).append( getRowCount() )
+      .append( ", bytes=" ).append( getBytesRead() )
+      .append( '}' ).toString();
+  }
+}
@@ -26,6 +26,7 @@ import com.google.common.base.Throwables;
 import org.pentaho.di.core.KettleClientEnvironment;
 import org.pentaho.di.core.row.RowMeta;
 import org.pentaho.di.trans.dataservice.client.DataServiceClientService;
+import org.pentaho.di.trans.dataservice.client.RowHandoff;
 
 import java.io.DataInputStream;
 import java.sql.SQLException;
@@ -39,6 +40,10 @@ public class ThinResultFactory {
     return new ThinResultSet( loadHeader( dataInputStream ), dataInputStream, client );
   }
 
+  public ThinResultSet loadResultSet( RowHandoff rowHandoff, DataServiceClientService client ) {
+    return new ThinResultSet( rowHandoff, client );
+  }
+
   public ThinResultHeader loadHeader( DataInputStream dataInputStream ) throws SQLException {
     try {
       // Read the name of the service we're reading from
@@ -25,7 +25,9 @@ package org.pentaho.di.trans.dataservice.jdbc;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.exception.KettleEOFException;
 import org.pentaho.di.core.exception.KettleFileException;
+import org.pentaho.di.core.exception.KettleValueException;
 import org.pentaho.di.trans.dataservice.client.DataServiceClientService;
+import org.pentaho.di.trans.dataservice.client.RowHandoff;
 
 import java.io.DataInputStream;
 import java.io.IOException;
@@ -39,15 +41,37 @@ public class ThinResultSet extends BaseResultSet {
 
   private final ThinResultHeader thinResultHeader;
   private final AtomicBoolean stopped = new AtomicBoolean( false );
-  private DataInputStream dataInputStream;
+  private volatile DataInputStream dataInputStream;
+  private volatile RowHandoff rowHandoff;
   private DataServiceClientService client;
+  private ThinQueryTrace trace;
+  private LazyRowReader rowReader;
+  private volatile QueryHandle queryHandle;
   private int size = 1;
+  private Sampling sampling;
+  private boolean truncated;
+  private long estimatedRowCount = -1;
+  private boolean continuous;
+  private Watermark watermark;
+  private Watermark completeWatermark;
+  private Partitioning partitioning;
+  private int partitionColumn = -1;
+  private boolean outsidePartition;
 
   public ThinResultSet( ThinResultHeader header, DataInputStream dataInputStream, DataServiceClientService client ) {
     super( header.getRowMeta() );
     this.thinResultHeader = header;
     this.dataInputStream = dataInputStream;
     this.client = client;
+    setLobThreshold( 0 );
+  }
+
+  /**
+   * Results of an in-process query, read as objects from {@code rowHandoff} instead of being deserialized
+   */
+  public ThinResultSet( RowHandoff rowHandoff, DataServiceClientService client ) {
+    this( rowHandoff.getHeader(), null, client );
+    this.rowHandoff = rowHandoff;
   }
 
   @Override
@@ -59,30 +83,252 @@ public class ThinResultSet extends BaseResultSet {
       if ( dataInputStream != null ) {
         dataInputStream.close();
       }
-      if ( stopped.compareAndSet( false, true ) ) {
-        String id = thinResultHeader.getServiceObjectId();
-        if ( !Const.isEmpty( id ) ) {
-          Boolean hasErrors = false;
-          DataInputStream
-              errorInputStream =
-              client.query( "[ errors " + thinResultHeader.getServiceObjectId() + " ]", 0 );
+      if ( rowHandoff != null ) {
+        rowHandoff.close();
+      }
+      stopService( true );
+    } catch ( IOException e ) {
+      ThinDriver.logger.warning( e.getMessage() );
+    } finally {
+      dataInputStream = null;
+      rowHandoff = null;
+      releaseRow();
+      finishQuery();
+      if ( trace != null ) {
+        trace.complete();
+      }
+    }
+  }
+
+  /**
+   * Stop the service transformation after the query has been cancelled. The response stream is left for
+   * {@link #close()}, since another thread may still be blocked reading from it.
+   */
+  void cancel() {
+    RowHandoff rowHandoff = this.rowHandoff;
+    if ( rowHandoff != null ) {
+      // Unblocks a reader waiting for the next batch
+      rowHandoff.close();
+    }
+    try {
+      stopService( false );
+    } catch ( Exception e ) {
+      ThinDriver.logger.warning( "Unable to stop cancelled query: " + e.getMessage() );
+    }
+  }
+
+  /**
+   * Limit these results to {@code sampling}, ending them once the sample has been read
+   */
+  void setSampling( Sampling sampling ) {
+    this.sampling = sampling;
+    if ( dataInputStream instanceof CountingDataInputStream ) {
+      CountingDataInputStream responseStream = (CountingDataInputStream) dataInputStream;
+      if ( sampling.getMethod() == Sampling.Method.UNIFORM
+        && !"uniform".equalsIgnoreCase( responseStream.getResponseHeader( RemoteClient.SAMPLE ) ) ) {
+        ThinDriver.logger.warning( "Server did not sample " + thinResultHeader.getServiceName()
+          + " uniformly, returning the first " + sampling.getRows() + " rows" );
+      }
+      String estimate = responseStream.getResponseHeader( RemoteClient.ROW_COUNT_ESTIMATE );
+      if ( estimate != null ) {
+        try {
+          estimatedRowCount = Long.parseLong( estimate.trim() );
+        } catch ( NumberFormatException e ) {
+          ThinDriver.logger.warning( "Invalid row count estimate: " + estimate );
+        }
+      }
+    }
+  }
+
+  /**
+   * Mark these results as those of a continuous query, which the server reports whether it kept open
+   */
+  void setContinuous() {
+    if ( dataInputStream instanceof CountingDataInputStream ) {
+      continuous = "true".equalsIgnoreCase(
+        ( (CountingDataInputStream) dataInputStream ).getResponseHeader( RemoteClient.CONTINUOUS ) );
+      if ( !continuous ) {
+        ThinDriver.logger.warning( "Server did not keep the query of " + thinResultHeader.getServiceName()
+          + " open, returning the rows of a single run" );
+      }
+    }
+  }
+
+  /**
+   * @return true if these results stay open to return the rows of the service as they are produced
+   */
+  public boolean isContinuous() {
+    return continuous;
+  }
+
+  /**
+   * Track the watermark column of these results, storing its largest value once every row has been read and these
+   * results are closed without the service reporting errors
+   */
+  void setWatermark( Watermark watermark ) throws SQLException {
+    watermark.attach( getRowMeta() );
+    this.watermark = watermark;
+  }
+
+  /**
+   * Limit these results to a partition of the rows, unless the server reports that it already did
+   */
+  void setPartitioning( Partitioning partitioning ) throws SQLException {
+    if ( dataInputStream instanceof CountingDataInputStream
+      && ( (CountingDataInputStream) dataInputStream ).getResponseHeader( RemoteClient.PARTITION ) != null ) {
+      return;
+    }
+    if ( partitioning.getColumn() == null ) {
+      ThinDriver.logger.warning( "Server did not partition the query of " + thinResultHeader.getServiceName()
+        + ", every row is returned to partition 0" );
+      outsidePartition = partitioning.getPartition() > 0;
+      return;
+    }
+    for ( int i = 0; i < getRowMeta().size(); i++ ) {
+      if ( getRowMeta().getValueMeta( i ).getName().equalsIgnoreCase( partitioning.getColumn() ) ) {
+        this.partitioning = partitioning;
+        partitionColumn = i;
+        return;
+      }
+    }
+    throw new SQLException(
+      "Partition column " + partitioning.getColumn() + " must be selected by partitioned queries" );
+  }
+
+  /**
+   * @return true if at least part of the next row has been received, so that reading it is unlikely to block
+   */
+  boolean isRowAvailable() {
+    DataInputStream dataInputStream = this.dataInputStream;
+    try {
+      return dataInputStream != null && dataInputStream.available() > 0;
+    } catch ( IOException e ) {
+      return false;
+    }
+  }
+
+  /**
+   * @return true if these results were ended early because a sample had been read
+   */
+  public boolean isTruncated() {
+    return truncated;
+  }
+
+  /**
+   * @return number of rows the complete query would return: the server's estimate if it provided one, the exact
+   * count once every row has been read, otherwise -1
+   */
+  public long getEstimatedRowCount() throws SQLException {
+    if ( estimatedRowCount >= 0 ) {
+      return estimatedRowCount;
+    }
+    return isClosed() || !isAfterLast() || truncated ? -1 : size();
+  }
+
+  private void stopService( boolean checkErrors ) throws SQLException, IOException {
+    if ( stopped.compareAndSet( false, true ) ) {
+      String id = thinResultHeader.getServiceObjectId();
+      if ( !Const.isEmpty( id ) ) {
+        Boolean hasErrors = false;
+        if ( checkErrors ) {
+          DataInputStream errorInputStream = client.query( "[ errors " + id + " ]", 0 );
           try {
             hasErrors = "true".equals( errorInputStream.readUTF() );
           } finally {
             errorInputStream.close();
           }
-          DataInputStream stopInputStream = client.query( "[ stop " + thinResultHeader.getServiceObjectId() + " ]", 0 );
-          stopInputStream.close();
-          if ( hasErrors ) {
-            throw new SQLException( "An error occurred while processing request." );
+        }
+        DataInputStream stopInputStream = client.query( "[ stop " + id + " ]", 0 );
+        stopInputStream.close();
+        if ( hasErrors ) {
+          throw new SQLException( "An error occurred while processing request." );
+        }
+      }
+      if ( checkErrors && completeWatermark != null ) {
+        // Rows of a service that failed may be missing, and would never be read again past the watermark
+        completeWatermark.commit();
+      }
+    }
+  }
+
+  void setQueryHandle( QueryHandle queryHandle ) {
+    this.queryHandle = queryHandle;
+  }
+
+  private void finishQuery() {
+    QueryHandle queryHandle = this.queryHandle;
+    if ( queryHandle != null ) {
+      queryHandle.finish();
+    }
+  }
+
+  private void verifyNotCancelled( Throwable cause ) throws SQLException {
+    QueryHandle queryHandle = this.queryHandle;
+    if ( queryHandle != null && queryHandle.isCancelled() ) {
+      throw queryHandle.cancellation( cause );
+    }
+  }
+
+  /**
+   * Spill string and binary values longer than {@code threshold} bytes to temporary files, to be read with
+   * {@link #getBinaryStream(int)} or {@link #getCharacterStream(int)}
+   */
+  void setLobThreshold( int threshold ) {
+    if ( rowHandoff != null ) {
+      // Handed-off rows are already decoded
+      return;
+    }
+    LazyRowReader rowReader = new LazyRowReader( getRowMeta(), threshold );
+    this.rowReader = rowReader.isEnabled() ? rowReader : null;
+  }
+
+  private void releaseRow() {
+    if ( rowReader != null ) {
+      rowReader.release();
+    }
+  }
+
+  @Override protected void decodeValue( Object[] row, int index ) throws Exception {
+    if ( rowReader != null ) {
+      rowReader.decode( row, index );
+    }
+  }
+
+  /**
+   * @return the current row, with all of its values decoded and any spilled LOBs read back into memory
+   */
+  @Override public Object[] getCurrentRow() {
+    Object[] row = super.getCurrentRow();
+    if ( rowReader != null && row != null ) {
+      try {
+        rowReader.decodeAll( row );
+        for ( int i = 0; i < row.length; i++ ) {
+          if ( row[i] instanceof SpilledLob ) {
+            row[i] = ( (SpilledLob) row[i] ).materialize();
           }
         }
+      } catch ( Exception e ) {
+        throw new IllegalStateException( "Unable to decode row", e );
       }
-    } catch ( IOException e ) {
-      ThinDriver.logger.warning( e.getMessage() );
-    } finally {
-      dataInputStream = null;
     }
+    return row;
+  }
+
+  void setTrace( ThinQueryTrace trace ) {
+    this.trace = trace;
+  }
+
+  @Override
+  public boolean isWrapperFor( Class<?> type ) throws SQLException {
+    return super.isWrapperFor( type ) || type.isInstance( trace );
+  }
+
+  @Override
+  public <T> T unwrap( Class<T> type ) throws SQLException {
+    if ( !super.isWrapperFor( type ) && type.isInstance( trace ) ) {
+      return type.cast( trace );
+    }
+    return super.unwrap( type );
   }
 
   @Override
@@ -132,12 +378,12 @@ public class ThinResultSet extends BaseResultSet {
 
   @Override
   public boolean isClosed() throws SQLException {
-    return dataInputStream == null;
+    return dataInputStream == null && rowHandoff == null;
   }
 
   @Override protected Object[] retrieveRow( int i ) throws Exception {
     if ( isAfterLast() ? i > size() : i == getRow() ) {
-      return getCurrentRow();
+      return super.getCurrentRow();
     } else if ( i == getRow() + 1 ) {
       return readData();
     } else {
@@ -145,15 +391,104 @@ public class ThinResultSet extends BaseResultSet {
     }
   }
 
-  private Object[] readData() throws KettleFileException, SQLException, IOException {
+  private Object[] readData() throws KettleFileException, KettleValueException, SQLException, IOException {
+    verifyNotCancelled( null );
+    RowHandoff rowHandoff = this.rowHandoff;
+    DataInputStream dataInputStream = this.dataInputStream;
+    if ( outsidePartition ) {
+      // Another partition returns every row, stop the service before they are transferred to this one
+      stopService( false );
+      endOfRows();
+      if ( rowHandoff != null ) {
+        rowHandoff.close();
+      } else {
+        dataInputStream.close();
+      }
+      return null;
+    }
+    if ( rowHandoff != null ) {
+      Object[] data;
+      do {
+        data = rowHandoff.takeRow();
+      } while ( data != null && !inPartition( data ) );
+      if ( data == null ) {
+        verifyNotCancelled( null );
+        endOfRows();
+      } else {
+        rowRead( data );
+      }
+      return data;
+    }
+
+    if ( sampling != null && isSampleComplete( dataInputStream ) ) {
+      truncated = true;
+      // Stop the service before closing, so the rest of the response is not transferred
+      stopService( false );
+      endOfRows();
+      dataInputStream.close();
+      return null;
+    }
     try {
-      Object[] data = getRowMeta().readData( dataInputStream );
-      size += 1;
+      Object[] data;
+      do {
+        data = rowReader != null ? rowReader.readData( dataInputStream ) : getRowMeta().readData( dataInputStream );
+      } while ( !inPartition( data ) );
+      rowRead( data );
       return data;
     } catch ( KettleEOFException e ) {
-      size = getRow();
+      // An aborted response may look like the end of the stream
+      verifyNotCancelled( e );
+      endOfRows();
       dataInputStream.close();
       return null;
+    } catch ( KettleFileException e ) {
+      verifyNotCancelled( e );
+      throw e;
+    }
+  }
+
+  private boolean inPartition( Object[] data ) throws KettleFileException, IOException {
+    if ( partitioning == null ) {
+      return true;
+    }
+    if ( rowReader != null ) {
+      rowReader.decode( data, partitionColumn );
+    }
+    return partitioning.contains( data[partitionColumn] );
+  }
+
+  private boolean isSampleComplete( DataInputStream dataInputStream ) {
+    if ( size > sampling.getRows() ) {
+      return true;
+    }
+    return sampling.getMaxBytes() > 0 && dataInputStream instanceof CountingDataInputStream
+      && ( (CountingDataInputStream) dataInputStream ).getCount() >= sampling.getMaxBytes();
+  }
+
+  private void rowRead( Object[] data ) throws KettleFileException, KettleValueException, IOException {
+    size += 1;
+    if ( watermark != null ) {
+      if ( rowReader != null ) {
+        rowReader.decode( data, watermark.getIndex() );
+      }
+      watermark.rowRead( data );
+    }
+    if ( trace != null ) {
+      trace.rowRead();
+    }
+  }
+
+  private void endOfRows() throws SQLException {
+    size = getRow();
+    releaseRow();
+    finishQuery();
+    if ( trace != null ) {
+      trace.endOfStream();
+    }
+    if ( watermark != null && !truncated ) {
+      // Committed by close(), once the service has been checked for errors
+      completeWatermark = watermark;
+      watermark = null;
     }
   }
 
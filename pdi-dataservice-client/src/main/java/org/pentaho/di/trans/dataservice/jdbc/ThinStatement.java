@@ -22,22 +22,38 @@
 
 package org.pentaho.di.trans.dataservice.jdbc;
 
+import com.google.common.collect.Lists;
+import org.pentaho.di.trans.dataservice.client.DataServiceClientService;
+import org.pentaho.di.trans.dataservice.client.DescribingDataServiceClientService;
+import org.pentaho.di.trans.dataservice.client.LocalDataServiceClientService;
+import org.pentaho.di.trans.dataservice.client.RowHandoff;
 import org.pentaho.di.trans.dataservice.jdbc.annotation.NotSupported;
 
 import java.io.DataInputStream;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
 import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class ThinStatement extends ThinBase implements Statement {
 
   protected final ThinConnection connection;
   private final ThinResultFactory resultFactory;
-  private ThinResultSet resultSet;
+  private BaseResultSet resultSet;
+  private ThinQueryTrace trace;
+  private volatile QueryHandle queryHandle;
+  private volatile ContinuousQuery continuousQuery;
+  private volatile boolean closed;
 
   protected int maxRows = -1;
+  private int queryTimeout = 0;
+  private String watermark;
 
   public ThinStatement( ThinConnection connection ) {
     this( connection, new ThinResultFactory() );
@@ -46,6 +62,7 @@ public class ThinStatement extends ThinBase implements Statement {
   protected ThinStatement( ThinConnection connection, ThinResultFactory resultFactory ) {
     this.connection = connection;
     this.resultFactory = resultFactory;
+    this.watermark = connection.getWatermark();
   }
 
   @Override @NotSupported
@@ -53,10 +70,15 @@ public class ThinStatement extends ThinBase implements Statement {
     throw new SQLFeatureNotSupportedException( "Batches not supported" );
   }
 
+  /**
+   * Cancel the executing query. May be called from another thread, which will then receive an exception from
+   * {@link ResultSet#next()} or the pending execute call.
+   */
   @Override
   public void cancel() throws SQLException {
-    if ( resultSet != null ) {
-      resultSet.close();
+    QueryHandle queryHandle = this.queryHandle;
+    if ( queryHandle != null ) {
+      queryHandle.cancel();
     }
   }
 
@@ -67,7 +89,15 @@ public class ThinStatement extends ThinBase implements Statement {
 
   @Override
   public void close() throws SQLException {
-    cancel();
+    closed = true;
+    ContinuousQuery continuousQuery = this.continuousQuery;
+    if ( continuousQuery != null ) {
+      // Its result set is closed by the thread reading it
+      continuousQuery.stop();
+      this.continuousQuery = null;
+    } else if ( resultSet != null ) {
+      resultSet.close();
+    }
   }
 
   @Override
@@ -97,12 +127,301 @@ public class ThinStatement extends ThinBase implements Statement {
 
   @Override
   public ResultSet executeQuery( String sql ) throws SQLException {
-    DataInputStream dataInputStream = connection.getClientService().query( sql, maxRows );
-    resultSet = resultFactory.loadResultSet( dataInputStream, connection.getClientService() );
+    ClientUnion union = ClientUnion.plan( sql );
+    if ( union != null ) {
+      verifyNoWatermark();
+      return executeUnion( union );
+    }
+    ClientJoin join = ClientJoin.plan( sql, connection.getClientService() );
+    if ( join != null ) {
+      verifyNoWatermark();
+      return executeJoin( join );
+    }
+    ClientAggregation aggregation = connection.isClientAggregation() || ClientAggregation.requiresClient( sql )
+      ? ClientAggregation.plan( sql, connection.getClientService() ) : null;
+    if ( aggregation == null ) {
+      QueryOptions options = QueryOptions.DEFAULT.withMaxRows( maxRows ).withSampling( connection.getSampling() )
+        .withStreaming( connection.isContinuous() ? streaming() : null );
+      if ( watermark != null ) {
+        return executeIncremental( sql, options );
+      }
+      return executeQuery( sql, options.withPartitioning( connection.getPartitioning() ) );
+    }
+    verifyNoWatermark();
+
+    // Groups can only be limited once every row has been aggregated
+    ThinResultSet rawResultSet = executeQuery( aggregation.getRawSql(), QueryOptions.DEFAULT );
+    try {
+      resultSet = aggregation.aggregate( rawResultSet, Runtime.getRuntime().availableProcessors(), maxRows,
+        connection.getSortMemory() );
+    } finally {
+      rawResultSet.close();
+    }
+    resultSet.setStatement( this );
+    return resultSet;
+  }
+
+  private ThinResultSet executeIncremental( String sql, QueryOptions options ) throws SQLException {
+    if ( connection.getPartitioning() != null ) {
+      // Each partition would commit the maximum of its own rows, skipping rows of the others on the next run
+      throw new SQLFeatureNotSupportedException( "Incremental queries are not supported for partitioned queries" );
+    }
+    Watermark plan = Watermark.plan( sql, watermark, connection.getWatermarkStore(), connection.getClientService() );
+    ThinResultSet resultSet = executeQuery( plan.getSql(), options );
+    if ( options.getMaxRows() <= 0 && options.getSampling() == null ) {
+      try {
+        resultSet.setWatermark( plan );
+      } catch ( SQLException e ) {
+        resultSet.close();
+        throw e;
+      }
+    }
+    return resultSet;
+  }
+
+  private void verifyNoWatermark() throws SQLException {
+    if ( watermark != null ) {
+      throw new SQLFeatureNotSupportedException(
+        "Incremental queries are only supported for a single service, without client-side aggregation" );
+    }
+  }
+
+  private BaseResultSet executeJoin( ClientJoin join ) throws SQLException {
+    ThinResultSet leftResultSet = executeQuery( join.getLeftSql(), QueryOptions.DEFAULT );
+    QueryHandle leftQueryHandle = queryHandle;
+    try {
+      // Read along with the left query, under its permit of the concurrency limiter
+      QueryHandle rightQueryHandle = new QueryHandle();
+      rightQueryHandle.setUnlimited();
+      ThinResultSet rightResultSet = executeQuery( join.getRightSql(), QueryOptions.DEFAULT, rightQueryHandle );
+      // Cancelling the statement cancels both queries
+      queryHandle.link( leftQueryHandle );
+      try {
+        resultSet = join.join( leftResultSet, rightResultSet, maxRows, connection.getJoinMemory() );
+      } catch ( SQLException e ) {
+        rightResultSet.close();
+        throw e;
+      }
+    } catch ( SQLException e ) {
+      leftResultSet.close();
+      throw e;
+    }
     resultSet.setStatement( this );
     return resultSet;
   }
 
+  private BaseResultSet executeUnion( ClientUnion union ) throws SQLException {
+    // Cancelling or timing out the statement cancels every branch
+    QueryHandle unionQueryHandle = new QueryHandle();
+    this.queryHandle = unionQueryHandle;
+    if ( queryTimeout > 0 ) {
+      unionQueryHandle.scheduleTimeout( queryTimeout );
+    }
+    final QueryOptions options = QueryOptions.DEFAULT.withMaxRows( maxRows ).withSampling( connection.getSampling() );
+    List<ThinQueryTrace> traces = Lists.newArrayList();
+    List<Future<ThinResultSet>> futures = Lists.newArrayList();
+    for ( final String branchSql : union.getBranches() ) {
+      final QueryHandle branchQueryHandle = new QueryHandle();
+      unionQueryHandle.link( branchQueryHandle );
+      if ( !futures.isEmpty() ) {
+        // Every branch is open at once, under the permit of the first
+        branchQueryHandle.setUnlimited();
+      }
+      final ThinQueryTrace branchTrace = new ThinQueryTrace( branchSql, connection.getQueryTraceListener() );
+      traces.add( branchTrace );
+      futures.add( ClientUnion.EXECUTOR.submit( new Callable<ThinResultSet>() {
+        @Override public ThinResultSet call() throws SQLException {
+          return openQuery( branchSql, options, branchQueryHandle, branchTrace );
+        }
+      } ) );
+    }
+    trace = traces.get( 0 );
+
+    List<ThinResultSet> branches = Lists.newArrayListWithCapacity( futures.size() );
+    SQLException failure = null;
+    for ( Future<ThinResultSet> future : futures ) {
+      try {
+        branches.add( future.get() );
+      } catch ( ExecutionException e ) {
+        if ( failure == null ) {
+          failure = e.getCause() instanceof SQLException
+            ? (SQLException) e.getCause() : new SQLException( "Unable to execute query", e.getCause() );
+          unionQueryHandle.cancel();
+        }
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+        unionQueryHandle.cancel();
+        failure = new SQLException( "Interrupted while executing query", e );
+        break;
+      }
+    }
+    if ( failure == null ) {
+      try {
+        resultSet = union.union( branches, maxRows, unionQueryHandle );
+      } catch ( SQLException e ) {
+        failure = e;
+      }
+    }
+    if ( failure != null ) {
+      unionQueryHandle.finish();
+      for ( ThinResultSet branch : branches ) {
+        branch.close();
+      }
+      throw failure;
+    }
+    resultSet.setStatement( this );
+    return resultSet;
+  }
+
+  /**
+   * Execute {@code sql} as a continuous query, which stays open while the service keeps producing rows, pushing the
+   * rows to {@code listener} as they arrive. Windows of the query are set by the
+   * {@value ThinConnection#ARG_WINDOWMODE}, {@value ThinConnection#ARG_WINDOWSIZE} and
+   * {@value ThinConnection#ARG_WINDOWEVERY} connection properties. The query runs until the statement is closed or
+   * cancelled, or the server ends it.
+   *
+   * @see ThinStreamListener
+   */
+  public void executeContinuous( String sql, ThinStreamListener listener ) throws SQLException {
+    QueryOptions options = QueryOptions.DEFAULT.withMaxRows( maxRows ).withStreaming( streaming() );
+    ThinResultSet resultSet = executeQuery( sql, options );
+    continuousQuery = ContinuousQuery.start( resultSet, queryHandle, listener );
+  }
+
+  private Streaming streaming() {
+    Streaming streaming = connection.getStreaming();
+    return streaming != null ? streaming : new Streaming( Streaming.WindowMode.ROWS, 0, 0 );
+  }
+
+  private ThinResultSet executeQuery( String sql, QueryOptions options ) throws SQLException {
+    return executeQuery( sql, options, new QueryHandle() );
+  }
+
+  private ThinResultSet executeQuery( String sql, QueryOptions options, QueryHandle queryHandle )
+    throws SQLException {
+    this.queryHandle = queryHandle;
+    if ( queryTimeout > 0 ) {
+      queryHandle.scheduleTimeout( queryTimeout );
+    }
+
+    trace = new ThinQueryTrace( sql, connection.getQueryTraceListener() );
+    ThinResultSet resultSet = openQuery( sql, options, queryHandle, trace );
+    this.resultSet = resultSet;
+    return resultSet;
+  }
+
+  /**
+   * Send {@code sql} to the server and load the header of its results. Doesn't change the state of this statement, so
+   * that several queries can be opened at once.
+   */
+  private ThinResultSet openQuery( String sql, QueryOptions options, QueryHandle queryHandle, ThinQueryTrace trace )
+    throws SQLException {
+    ThinResultSet resultSet;
+    try {
+      DataServiceClientService clientService = connection.getClientService();
+      if ( clientService instanceof LocalDataServiceClientService ) {
+        RowHandoff rowHandoff =
+          ( (LocalDataServiceClientService) clientService ).queryRows( sql, options.getRequestRows() );
+        trace.responseReceived( rowHandoff );
+        resultSet = resultFactory.loadResultSet( rowHandoff, clientService );
+      } else {
+        DataInputStream dataInputStream = query( sql, options, queryHandle );
+        trace.responseReceived( dataInputStream );
+        resultSet = resultFactory.loadResultSet( dataInputStream, clientService );
+      }
+      trace.headerLoaded( resultSet.getHeader() );
+    } catch ( SQLException e ) {
+      queryHandle.finish();
+      trace.complete();
+      throw queryHandle.isCancelled() ? queryHandle.cancellation( e ) : e;
+    }
+    resultSet.setStatement( this );
+    resultSet.setTrace( trace );
+    resultSet.setLobThreshold( connection.getLobThreshold() );
+    if ( options.getSampling() != null ) {
+      resultSet.setSampling( options.getSampling() );
+    }
+    if ( options.getStreaming() != null ) {
+      resultSet.setContinuous();
+    }
+    if ( options.getPartitioning() != null ) {
+      try {
+        resultSet.setPartitioning( options.getPartitioning() );
+      } catch ( SQLException e ) {
+        resultSet.close();
+        throw e;
+      }
+    }
+    queryHandle.attach( resultSet );
+    return resultSet;
+  }
+
+  /**
+   * @return header of the results {@code sql} would return, without executing it if the client service can describe
+   * queries and the server would run it as sent. Queries planned on the client, or of other client services, are
+   * executed for a single row, and their service transformations stopped once the header is read.
+   */
+  protected ThinResultHeader describe( String sql ) throws SQLException {
+    DataServiceClientService clientService = connection.getClientService();
+    if ( clientService instanceof DescribingDataServiceClientService && !isClientPlanned( sql ) ) {
+      DataInputStream dataInputStream = ( (DescribingDataServiceClientService) clientService ).describe( sql );
+      try {
+        return resultFactory.loadHeader( dataInputStream );
+      } finally {
+        try {
+          dataInputStream.close();
+        } catch ( IOException e ) {
+          ThinDriver.logger.warning( e.getMessage() );
+        }
+      }
+    }
+
+    ThinStatement statement = new ThinStatement( connection, resultFactory );
+    try {
+      statement.setMaxRows( 1 );
+      statement.setQueryTimeout( queryTimeout );
+      BaseResultSet resultSet = (BaseResultSet) statement.executeQuery( sql );
+      if ( resultSet instanceof ThinResultSet ) {
+        return ( (ThinResultSet) resultSet ).getHeader();
+      }
+      return new ThinResultHeader( resultSet.getMetaData().getTableName( 1 ), "", "", "", "",
+        resultSet.getRowMeta() );
+    } finally {
+      statement.close();
+    }
+  }
+
+  /**
+   * @return true if {@link #executeQuery(String)} plans {@code sql} on the client, sending other queries to the server
+   */
+  private boolean isClientPlanned( String sql ) throws SQLException {
+    DataServiceClientService clientService = connection.getClientService();
+    return ClientUnion.plan( sql ) != null || ClientJoin.plan( sql, clientService ) != null
+      || ( connection.isClientAggregation() || ClientAggregation.requiresClient( sql ) )
+      && ClientAggregation.plan( sql, clientService ) != null;
+  }
+
+  private DataInputStream query( String sql, QueryOptions options, QueryHandle queryHandle ) throws SQLException {
+    DataServiceClientService clientService = connection.getClientService();
+    if ( clientService instanceof RemoteClient ) {
+      return ( (RemoteClient) clientService ).query( sql, options, queryHandle );
+    }
+    return clientService.query( sql, options.getRequestRows() );
+  }
+
+  @Override
+  public boolean isWrapperFor( Class<?> type ) throws SQLException {
+    return super.isWrapperFor( type ) || type.isInstance( trace );
+  }
+
+  @Override
+  public <T> T unwrap( Class<T> type ) throws SQLException {
+    if ( !super.isWrapperFor( type ) && type.isInstance( trace ) ) {
+      return type.cast( trace );
+    }
+    return super.unwrap( type );
+  }
+
   @Override @NotSupported
   public int executeUpdate( String sql ) throws SQLException {
     throw new SQLFeatureNotSupportedException( "The thin Kettle JDBC driver is read-only" );
@@ -170,7 +489,7 @@ public class ThinStatement extends ThinBase implements Statement {
 
   @Override
   public int getQueryTimeout() throws SQLException {
-    return 0;
+    return queryTimeout;
   }
 
   @Override
@@ -200,7 +519,7 @@ public class ThinStatement extends ThinBase implements Statement {
 
   @Override
   public boolean isClosed() throws SQLException {
-    return resultSet.isClosed();
+    return closed || resultSet != null && resultSet.isClosed();
   }
 
   @Override
@@ -240,8 +559,35 @@ public class ThinStatement extends ThinBase implements Statement {
     // ignored
   }
 
+  /**
+   * @param seconds time allowed for a query to execute and return all of its rows, or 0 for no limit. When exceeded,
+   *                the query is cancelled and a {@link java.sql.SQLTimeoutException} is thrown to the reader.
+   */
   @Override
-  public void setQueryTimeout( int arg0 ) throws SQLException {
+  public void setQueryTimeout( int seconds ) throws SQLException {
+    if ( seconds < 0 ) {
+      throw new SQLException( "Query timeout must be >= 0" );
+    }
+    queryTimeout = seconds;
+  }
+
+  /**
+   * Make the queries of this statement incremental: only rows whose {@code column} is greater than its largest value
+   * in the last complete results of the same query are returned. The largest value of each query is kept in the
+   * {@value ThinConnection#ARG_WATERMARKSTORE} file, and is only advanced once every row has been read from results
+   * which weren't limited by {@link #setMaxRows(int)} or sampling. The column must be selected by the query.
+   *
+   * @param column watermark column, or null to return every row
+   */
+  public void setWatermark( String column ) {
+    this.watermark = column;
+  }
+
+  /**
+   * @return watermark column of incremental queries, or null
+   */
+  public String getWatermark() {
+    return watermark;
   }
 
   /**
@@ -0,0 +1,49 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import org.pentaho.di.core.row.RowMetaInterface;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Receives the rows of a continuous query, see {@link ThinStatement#executeContinuous(String, ThinStreamListener)}.
+ * Methods are called in turn on a thread of the driver, which reads no more of the response while they run. A slow
+ * listener therefore holds back the server, rather than letting rows pile up in memory.
+ */
+public interface ThinStreamListener {
+  /**
+   * @param rowMeta layout of the rows
+   * @param rows    the rows received since the previous call, in order
+   */
+  void rowsReceived( RowMetaInterface rowMeta, List<Object[]> rows );
+
+  /**
+   * Called once, after any rows, when the query ends
+   *
+   * @param failure why the query failed, or null if it was stopped or the server ended it
+   */
+  void streamEnded( SQLException failure );
+}
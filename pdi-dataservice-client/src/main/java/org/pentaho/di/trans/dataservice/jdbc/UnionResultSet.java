@@ -0,0 +1,266 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.collect.ImmutableList;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Forward-only result set merging the rows of several result sets, each read by its own thread into a bounded queue
+ * shared by all of them. Rows are returned in the order they were queued. Closing it closes the merged result sets.
+ */
+class UnionResultSet extends BaseResultSet {
+  static final int BATCH_SIZE = 256;
+  private static final int QUEUE_BATCHES = 16;
+  private static final List<Object[]> END_OF_ROWS = Collections.unmodifiableList( new ArrayList<Object[]>( 0 ) );
+
+  private final List<? extends ResultSet> branches;
+  private final int maxRows;
+  private final QueryHandle queryHandle;
+  private final BlockingQueue<List<Object[]>> queue;
+  private final AtomicReference<SQLException> failure = new AtomicReference<SQLException>();
+  private final CountDownLatch fetched;
+  private volatile boolean stopped;
+  private boolean closed;
+  private int pending;
+  private List<Object[]> batch = END_OF_ROWS;
+  private int batchIndex;
+  private int size = 1;
+
+  /**
+   * Start reading each of {@code branches} on its own thread
+   *
+   * @param maxRows     maximum number of rows to return, or 0 for all of them
+   * @param queryHandle handle cancelling every branch, to stop them if fewer rows are read, or null
+   */
+  UnionResultSet( RowMetaInterface rowMeta, List<? extends ResultSet> branches, int maxRows,
+                  QueryHandle queryHandle ) {
+    super( rowMeta );
+    this.branches = ImmutableList.copyOf( branches );
+    this.maxRows = maxRows;
+    this.queryHandle = queryHandle;
+    // Once stopped, each fetcher queues at most one more batch and the end of its rows, without waiting for room
+    this.queue = new ArrayBlockingQueue<List<Object[]>>( Math.max( QUEUE_BATCHES, 2 * branches.size() ) );
+    this.fetched = new CountDownLatch( branches.size() );
+    this.pending = branches.size();
+    for ( ResultSet branch : branches ) {
+      ClientUnion.EXECUTOR.submit( new Fetcher( branch ) );
+    }
+  }
+
+  @Override protected Object[] retrieveRow( int i ) throws Exception {
+    if ( isAfterLast() ? i > size() : i == getRow() ) {
+      return getCurrentRow();
+    } else if ( i == getRow() + 1 ) {
+      Object[] row = maxRows <= 0 || i <= maxRows ? nextRow() : null;
+      if ( row != null ) {
+        size += 1;
+        return row;
+      }
+      size = getRow();
+      stop();
+      return null;
+    } else {
+      throw new SQLFeatureNotSupportedException( "Scrollable result sets are not supported" );
+    }
+  }
+
+  private Object[] nextRow() throws SQLException {
+    while ( batchIndex >= batch.size() ) {
+      if ( pending == 0 ) {
+        return null;
+      }
+      try {
+        batch = queue.take();
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+        throw new SQLException( "Interrupted while waiting for rows", e );
+      }
+      batchIndex = 0;
+      if ( batch == END_OF_ROWS ) {
+        pending -= 1;
+        SQLException e = failure.get();
+        if ( e != null ) {
+          stop();
+          throw e;
+        }
+      }
+    }
+    return batch.get( batchIndex++ );
+  }
+
+  /**
+   * Stop reading the branches, cancelling the queries of those with rows left
+   */
+  private void stop() {
+    if ( stopped ) {
+      return;
+    }
+    stopped = true;
+    if ( queryHandle != null ) {
+      if ( pending > 0 ) {
+        queryHandle.cancel();
+      }
+      queryHandle.finish();
+    }
+    queue.clear();
+    try {
+      fetched.await();
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+    }
+    queue.clear();
+    batch = END_OF_ROWS;
+    pending = 0;
+  }
+
+  @Override protected int size() throws SQLException {
+    return size;
+  }
+
+  @Override
+  public void close() throws SQLException {
+    if ( !closed ) {
+      closed = true;
+      stop();
+      SQLException failure = null;
+      for ( ResultSet branch : branches ) {
+        try {
+          branch.close();
+        } catch ( SQLException e ) {
+          failure = failure == null ? e : failure;
+        }
+      }
+      if ( failure != null ) {
+        throw failure;
+      }
+    }
+  }
+
+  @Override
+  public boolean isClosed() throws SQLException {
+    return closed;
+  }
+
+  @Override
+  public String getCursorName() throws SQLException {
+    return "union";
+  }
+
+  @Override
+  public int getType() throws SQLException {
+    return ResultSet.TYPE_FORWARD_ONLY;
+  }
+
+  @Override
+  public int getFetchDirection() throws SQLException {
+    return ResultSet.FETCH_FORWARD;
+  }
+
+  @Override
+  public void setFetchDirection( int direction ) throws SQLException {
+    if ( direction != FETCH_FORWARD ) {
+      throw new SQLFeatureNotSupportedException( "Only FETCH_FORWARD is allowed" );
+    }
+  }
+
+  @Override
+  public int getFetchSize() throws SQLException {
+    return 0;
+  }
+
+  @Override
+  public void setFetchSize( int rows ) throws SQLException {
+  }
+
+  @Override
+  public int getHoldability() throws SQLException {
+    return ResultSet.HOLD_CURSORS_OVER_COMMIT;
+  }
+
+  @Override
+  public ResultSetMetaData getMetaData() throws SQLException {
+    return new ThinResultSetMetaData( "union", getRowMeta() );
+  }
+
+  /**
+   * Queues the rows of one branch in batches. A batch is handed over early when the queue is empty, so that rows
+   * arriving slowly aren't held back.
+   */
+  private class Fetcher implements Runnable {
+    final ResultSet branch;
+
+    Fetcher( ResultSet branch ) {
+      this.branch = branch;
+    }
+
+    @Override public void run() {
+      try {
+        try {
+          fetch();
+        } catch ( SQLException e ) {
+          failure.compareAndSet( null, e );
+        } catch ( RuntimeException e ) {
+          failure.compareAndSet( null, new SQLException( "Unable to read rows", e ) );
+        }
+        queue.put( END_OF_ROWS );
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+      } finally {
+        fetched.countDown();
+      }
+    }
+
+    private void fetch() throws SQLException, InterruptedException {
+      int columns = branch.getMetaData().getColumnCount();
+      List<Object[]> rows = new ArrayList<Object[]>( BATCH_SIZE );
+      while ( !stopped && branch.next() ) {
+        Object[] row = new Object[columns];
+        for ( int i = 0; i < row.length; i++ ) {
+          row[i] = branch.getObject( i + 1 );
+        }
+        rows.add( row );
+        if ( rows.size() >= BATCH_SIZE || queue.isEmpty() ) {
+          queue.put( rows );
+          rows = new ArrayList<Object[]>( BATCH_SIZE );
+        }
+      }
+      if ( !rows.isEmpty() && !stopped ) {
+        queue.put( rows );
+      }
+    }
+  }
+}
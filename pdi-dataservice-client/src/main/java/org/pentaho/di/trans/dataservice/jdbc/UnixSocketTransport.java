@@ -0,0 +1,320 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+import org.apache.commons.httpclient.protocol.Protocol;
+import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends HTTP/1.1 requests over a Unix domain socket, for clients on the same host as the server. Used by connection
+ * URLs of the form {@code jdbc:pdi:unix:///path/to/socket}, which reach the server listening on that socket file,
+ * such as a reverse proxy in front of the Carte or DI server, instead of a TCP port. Requests are the same as those of
+ * {@link HttpClientTransport}, and are sent on connections of the HTTP client's pool which it opens to the socket file.
+ * <p/>
+ * Unix domain socket channels were added in Java 16, so they are opened by reflection and unavailable on older
+ * runtimes.
+ */
+class UnixSocketTransport extends HttpClientTransport {
+  /**
+   * Host named by requests, which the server receives as their {@code Host} header
+   */
+  static final String HOST = "localhost";
+  private static final int PORT = 80;
+  private final String path;
+
+  /**
+   * @param client client sending requests to the socket file at {@code path}, its host configuration is left alone
+   */
+  UnixSocketTransport( String path, HttpClient client ) {
+    super( client );
+    this.path = path;
+  }
+
+  /**
+   * @return true if this runtime supports Unix domain socket channels
+   */
+  static boolean isSupported() {
+    try {
+      Class.forName( "java.net.UnixDomainSocketAddress" );
+      return true;
+    } catch ( ClassNotFoundException e ) {
+      return false;
+    }
+  }
+
+  /**
+   * @return configuration of the socket file, whatever the server of {@code uri}. Connecting to a local socket doesn't
+   * wait on the network, so there is no connect timeout.
+   */
+  @Override HostConfiguration hostConfiguration( URI uri, int connectTimeout ) {
+    HostConfiguration hostConfiguration = new HostConfiguration();
+    hostConfiguration.setHost( HOST, PORT, new Protocol( "http", new SocketFactory( path ), PORT ) );
+    return hostConfiguration;
+  }
+
+  /**
+   * Open a channel of the Unix protocol family
+   *
+   * @param channelType {@link SocketChannel} or {@link java.nio.channels.ServerSocketChannel}
+   */
+  static <T> T open( Class<T> channelType ) throws IOException {
+    try {
+      Class<?> protocolFamily = Class.forName( "java.net.ProtocolFamily" );
+      Object unix = Class.forName( "java.net.StandardProtocolFamily" ).getField( "UNIX" ).get( null );
+      return channelType.cast( channelType.getMethod( "open", protocolFamily ).invoke( null, unix ) );
+    } catch ( InvocationTargetException e ) {
+      throw new IOException( "Unable to open a Unix domain socket", e.getCause() );
+    } catch ( Exception e ) {
+      throw new IOException( "Unix domain sockets require Java 16 or later", e );
+    }
+  }
+
+  static SocketAddress address( String path ) throws IOException {
+    try {
+      return (SocketAddress) Class.forName( "java.net.UnixDomainSocketAddress" )
+        .getMethod( "of", String.class ).invoke( null, path );
+    } catch ( InvocationTargetException e ) {
+      throw new IOException( "Invalid socket path: " + path, e.getCause() );
+    } catch ( Exception e ) {
+      throw new IOException( "Unix domain sockets require Java 16 or later", e );
+    }
+  }
+
+  /**
+   * Connects the HTTP client to the socket file, whatever host and port it asks for. Equal for the same file, so that
+   * the connections pooled for each file are kept apart.
+   */
+  static class SocketFactory implements ProtocolSocketFactory {
+    private final String path;
+
+    SocketFactory( String path ) {
+      this.path = path;
+    }
+
+    @Override public Socket createSocket( String host, int port, InetAddress localAddress, int localPort,
+                                          HttpConnectionParams params ) throws IOException {
+      return createSocket( host, port );
+    }
+
+    @Override public Socket createSocket( String host, int port, InetAddress localAddress, int localPort )
+      throws IOException {
+      return createSocket( host, port );
+    }
+
+    @Override public Socket createSocket( String host, int port ) throws IOException {
+      SocketChannel channel = open( SocketChannel.class );
+      try {
+        channel.connect( address( path ) );
+        return new ChannelSocket( path, channel );
+      } catch ( IOException e ) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    @Override public boolean equals( Object o ) {
+      return o instanceof SocketFactory && path.equals( ( (SocketFactory) o ).path );
+    }
+
+    @Override public int hashCode() {
+      return path.hashCode();
+    }
+  }
+
+  /**
+   * A connected Unix domain socket channel seen as a {@link Socket}, the only kind of connection the HTTP client knows
+   * how to use. Such channels have no socket of their own. TCP options are ignored, and reads give up after the socket
+   * timeout, waiting on a selector since the channel itself can't time out.
+   */
+  static class ChannelSocket extends Socket {
+    private static final int BUFFER_SIZE = 8192;
+    private final String path;
+    private final SocketChannel channel;
+    private final Selector readable;
+    private final Selector writable;
+    private final InputStream input = new Input();
+    private final OutputStream output = new Output();
+    private volatile int timeout;
+
+    ChannelSocket( String path, SocketChannel channel ) throws IOException {
+      this.path = path;
+      this.channel = channel;
+      channel.configureBlocking( false );
+      readable = Selector.open();
+      writable = Selector.open();
+      try {
+        channel.register( readable, SelectionKey.OP_READ );
+        channel.register( writable, SelectionKey.OP_WRITE );
+      } catch ( IOException e ) {
+        close();
+        throw e;
+      }
+    }
+
+    @Override public InputStream getInputStream() {
+      return input;
+    }
+
+    @Override public OutputStream getOutputStream() {
+      return output;
+    }
+
+    @Override public void setSoTimeout( int timeout ) {
+      this.timeout = timeout;
+    }
+
+    @Override public int getSoTimeout() {
+      return timeout;
+    }
+
+    @Override public void setTcpNoDelay( boolean on ) {
+    }
+
+    @Override public void setSoLinger( boolean on, int linger ) {
+    }
+
+    @Override public void setSendBufferSize( int size ) {
+    }
+
+    @Override public int getSendBufferSize() {
+      return BUFFER_SIZE;
+    }
+
+    @Override public void setReceiveBufferSize( int size ) {
+    }
+
+    @Override public int getReceiveBufferSize() {
+      return BUFFER_SIZE;
+    }
+
+    @Override public boolean isConnected() {
+      return channel.isConnected();
+    }
+
+    @Override public boolean isClosed() {
+      return !channel.isOpen();
+    }
+
+    /**
+     * Close the channel, waking up any read or write waiting on it
+     */
+    @Override public synchronized void close() throws IOException {
+      try {
+        channel.close();
+      } finally {
+        readable.close();
+        writable.close();
+      }
+    }
+
+    @Override public String toString() {
+      return "Socket[path=" + path + "]";
+    }
+
+    /**
+     * Wait for the channel to become ready
+     *
+     * @param millis longest time to wait, or 0 to wait indefinitely
+     */
+    private void select( Selector selector, long millis ) throws IOException {
+      try {
+        selector.select( millis );
+        selector.selectedKeys().clear();
+      } catch ( ClosedSelectorException e ) {
+        throw new SocketException( "Socket closed" );
+      }
+    }
+
+    private class Input extends InputStream {
+      @Override public int read() throws IOException {
+        byte[] b = new byte[ 1 ];
+        return read( b, 0, 1 ) < 0 ? -1 : b[ 0 ] & 0xff;
+      }
+
+      @Override public int read( byte[] b, int off, int len ) throws IOException {
+        if ( len == 0 ) {
+          return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap( b, off, len );
+        int millis = timeout;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( millis );
+        int read;
+        while ( ( read = channel.read( buffer ) ) == 0 ) {
+          long wait = 0;
+          if ( millis > 0 ) {
+            wait = TimeUnit.NANOSECONDS.toMillis( deadline - System.nanoTime() );
+            if ( wait <= 0 ) {
+              throw new SocketTimeoutException( "Read timed out" );
+            }
+          }
+          select( readable, wait );
+        }
+        return read;
+      }
+
+      @Override public void close() throws IOException {
+        ChannelSocket.this.close();
+      }
+    }
+
+    private class Output extends OutputStream {
+      @Override public void write( int b ) throws IOException {
+        write( new byte[] { (byte) b }, 0, 1 );
+      }
+
+      @Override public void write( byte[] b, int off, int len ) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap( b, off, len );
+        while ( buffer.hasRemaining() ) {
+          if ( channel.write( buffer ) == 0 ) {
+            select( writable, 0 );
+          }
+        }
+      }
+
+      @Override public void close() throws IOException {
+        ChannelSocket.this.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,199 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleSQLException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.jdbc.ThinUtil;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.core.sql.SQLCondition;
+import org.pentaho.di.trans.dataservice.client.DataServiceClientService;
+
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+
+/**
+ * Makes a query incremental, so that it only returns the rows added to its service since it was last run. Rows are
+ * filtered on a watermark column, whose largest value is tracked while the rows are read and stored once every row
+ * has been read. The next run of the same query then only asks for rows whose watermark is greater than that value.
+ * <p/>
+ * Watermarks are only advanced by complete results: rows which weren't read could otherwise be skipped forever.
+ */
+class Watermark {
+  private final WatermarkStore store;
+  private final String key;
+  private final String column;
+  private final String sql;
+  private int index = -1;
+  private ValueMetaInterface valueMeta;
+  private Object max;
+
+  private Watermark( WatermarkStore store, String key, String column, String sql ) {
+    this.store = store;
+    this.key = key;
+    this.column = column;
+    this.sql = sql;
+  }
+
+  /**
+   * @return watermark of {@code sqlString}, filtering it on {@code column} if the query has been run before
+   */
+  static Watermark plan( String sqlString, String column, WatermarkStore store, DataServiceClientService client )
+    throws SQLException {
+    SQL sql;
+    try {
+      sql = new SQL( sqlString );
+    } catch ( KettleSQLException e ) {
+      throw new SQLException( "Unable to parse incremental query: " + sqlString, e );
+    }
+    if ( !Const.isEmpty( sql.getLimitClause() ) ) {
+      // A limited result is partial and unordered, so its largest value could skip rows forever
+      throw new SQLFeatureNotSupportedException( "Incremental queries can't have a LIMIT clause" );
+    }
+    RowMetaInterface serviceFields = null;
+    for ( ThinServiceInformation serviceInformation : client.getServiceInformation() ) {
+      if ( serviceInformation.getName().equalsIgnoreCase( sql.getServiceName() ) ) {
+        serviceFields = serviceInformation.getServiceFields();
+      }
+    }
+    if ( serviceFields == null ) {
+      throw new SQLException( "Unable to find the fields of service " + sql.getServiceName() );
+    }
+    String field = findField( serviceFields, ThinUtil.stripQuotes( Const.trim( column ), '"' ) );
+    if ( field == null ) {
+      throw new SQLException( "Watermark column " + column + " is not a field of service " + sql.getServiceName() );
+    }
+
+    String key = sql.getServiceName() + "/" + field + "/" + Const.trim( sqlString );
+    String lastSeen = store.get( key );
+    if ( lastSeen == null ) {
+      return new Watermark( store, key, field, sqlString );
+    }
+
+    String where = "\"" + field + "\" > " + lastSeen;
+    if ( !Const.isEmpty( sql.getWhereClause() ) ) {
+      where = "( " + sql.getWhereClause() + " ) AND " + where;
+    }
+    try {
+      // Fail here rather than on the server if the stored value no longer fits the query
+      new SQLCondition( sql.getServiceAlias(), where, serviceFields );
+    } catch ( KettleSQLException e ) {
+      throw new SQLException( "Unable to filter " + sql.getServiceName() + " on its watermark: " + where, e );
+    }
+    return new Watermark( store, key, field, rewrite( sql, where ) );
+  }
+
+  private static String findField( RowMetaInterface rowMeta, String name ) {
+    for ( ValueMetaInterface valueMeta : rowMeta.getValueMetaList() ) {
+      if ( valueMeta.getName().equalsIgnoreCase( name ) ) {
+        return valueMeta.getName();
+      }
+    }
+    return null;
+  }
+
+  private static String rewrite( SQL sql, String where ) {
+    StringBuilder rewritten = new StringBuilder( "SELECT " ).append( sql.getSelectClause() ).append( " FROM " );
+    if ( !Const.isEmpty( sql.getNamespace() ) ) {
+      rewritten.append( '"' ).append( sql.getNamespace() ).append( "\"." );
+    }
+    rewritten.append( '"' ).append( sql.getServiceName() ).append( '"' );
+    rewritten.append( " \"" ).append( sql.getServiceAlias() ).append( '"' );
+    rewritten.append( " WHERE " ).append( where );
+    if ( !Const.isEmpty( sql.getGroupClause() ) ) {
+      rewritten.append( " GROUP BY " ).append( sql.getGroupClause() );
+    }
+    if ( !Const.isEmpty( sql.getHavingClause() ) ) {
+      rewritten.append( " HAVING " ).append( sql.getHavingClause() );
+    }
+    if ( !Const.isEmpty( sql.getOrderClause() ) ) {
+      rewritten.append( " ORDER BY " ).append( sql.getOrderClause() );
+    }
+    return rewritten.toString();
+  }
+
+  /**
+   * @return the query to execute, filtered on the watermark
+   */
+  String getSql() {
+    return sql;
+  }
+
+  String getColumn() {
+    return column;
+  }
+
+  /**
+   * Track the watermark column of results with {@code rowMeta}
+   */
+  void attach( RowMetaInterface rowMeta ) throws SQLException {
+    for ( int i = 0; i < rowMeta.size(); i++ ) {
+      if ( rowMeta.getValueMeta( i ).getName().equalsIgnoreCase( column ) ) {
+        index = i;
+        valueMeta = rowMeta.getValueMeta( i );
+        return;
+      }
+    }
+    throw new SQLException( "Watermark column " + column + " must be selected by incremental queries" );
+  }
+
+  /**
+   * @return index of the watermark column in the results
+   */
+  int getIndex() {
+    return index;
+  }
+
+  /**
+   * Keep the value of the watermark column of a row read, if it is the largest so far
+   */
+  void rowRead( Object[] row ) throws KettleValueException {
+    Object value = row[index];
+    if ( !valueMeta.isNull( value ) && ( max == null || valueMeta.compare( value, max ) > 0 ) ) {
+      max = value;
+    }
+  }
+
+  /**
+   * Store the largest value read, once every row has been read
+   */
+  void commit() throws SQLException {
+    if ( max == null ) {
+      return;
+    }
+    String literal;
+    try {
+      literal = ThinPreparedStatement.toLiteral( valueMeta, max );
+    } catch ( KettleValueException e ) {
+      throw new SQLException( "Unable to store watermark of " + column, e );
+    }
+    if ( literal == null ) {
+      throw new SQLException( "Watermark column " + column + " can't be of type " + valueMeta.getTypeDesc() );
+    }
+    store.put( key, literal );
+  }
+}
@@ -0,0 +1,110 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * Properties file keeping the watermarks of incremental queries between runs. The file is read on every lookup and
+ * replaced on every update, so that connections sharing it see each other's watermarks.
+ */
+class WatermarkStore {
+  static final String DEFAULT_FILE_NAME = "dataservice-watermarks.properties";
+  private static final Object LOCK = new Object();
+
+  private final File file;
+
+  WatermarkStore( File file ) {
+    this.file = file;
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * @return SQL literal of the last value seen by {@code key}, or null if it has none
+   */
+  String get( String key ) throws SQLException {
+    synchronized ( LOCK ) {
+      return load().getProperty( key );
+    }
+  }
+
+  void put( String key, String literal ) throws SQLException {
+    synchronized ( LOCK ) {
+      Properties watermarks = load();
+      watermarks.setProperty( key, literal );
+      save( watermarks );
+    }
+  }
+
+  private Properties load() throws SQLException {
+    Properties watermarks = new Properties();
+    if ( !file.exists() ) {
+      return watermarks;
+    }
+    try {
+      InputStream inputStream = new FileInputStream( file );
+      try {
+        watermarks.load( inputStream );
+      } finally {
+        inputStream.close();
+      }
+    } catch ( IOException e ) {
+      throw new SQLException( "Unable to read watermarks from " + file, e );
+    }
+    return watermarks;
+  }
+
+  private void save( Properties watermarks ) throws SQLException {
+    File directory = file.getAbsoluteFile().getParentFile();
+    try {
+      if ( !directory.isDirectory() && !directory.mkdirs() ) {
+        throw new IOException( "Unable to create " + directory );
+      }
+      // Written aside and renamed, so that an interrupted update can't lose the other watermarks
+      File temp = File.createTempFile( file.getName(), ".tmp", directory );
+      OutputStream outputStream = new FileOutputStream( temp );
+      try {
+        watermarks.store( outputStream, "Watermarks of incremental data service queries" );
+      } finally {
+        outputStream.close();
+      }
+      if ( !temp.renameTo( file ) && !( file.delete() && temp.renameTo( file ) ) ) {
+        temp.delete();
+        throw new IOException( "Unable to replace " + file );
+      }
+    } catch ( IOException e ) {
+      throw new SQLException( "Unable to write watermarks to " + file, e );
+    }
+  }
+}
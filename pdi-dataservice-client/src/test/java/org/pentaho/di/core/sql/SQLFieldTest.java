@@ -511,4 +511,32 @@ public class SQLFieldTest extends TestCase {
     assertThat( field.isCountDistinct(), is( true ) );
     verify( rowMeta, atLeastOnce() ).searchValueMeta( "Space Field" );
   }
+
+  @Test
+  public void testApproximateAggregates() throws KettleSQLException {
+    RowMetaInterface rowMeta = mockRowMeta( "Space Field" );
+    SQLField field = new SQLField( "Space TableAlias", "APPROX_COUNT_DISTINCT( \"Space Field\" )", rowMeta );
+    assertThat( field.getField(), is( "Space Field" ) );
+    assertThat( field.getAggregation(), is( SQLAggregation.APPROX_COUNT_DISTINCT ) );
+    assertThat( field.isCountDistinct(), is( false ) );
+
+    field = new SQLField(
+      "Space TableAlias", "approx_percentile( \"Space TableAlias\".\"Space Field\", 0.95 ) as \"p95\"", rowMeta );
+    assertThat( field.getField(), is( "Space Field" ) );
+    assertThat( field.getAggregation(), is( SQLAggregation.APPROX_PERCENTILE ) );
+    assertThat( field.getPercentile(), is( 0.95 ) );
+    assertThat( field.getAlias(), is( "p95" ) );
+    verify( rowMeta, atLeastOnce() ).searchValueMeta( "Space Field" );
+
+    for ( String invalid : new String[] {
+      "APPROX_PERCENTILE( \"Space Field\" )", "APPROX_PERCENTILE( \"Space Field\", high )",
+      "APPROX_PERCENTILE( \"Space Field\", 95 )" } ) {
+      try {
+        new SQLField( "Space TableAlias", invalid, rowMeta );
+        fail( invalid );
+      } catch ( KettleSQLException e ) {
+        assertNotNull( e.getMessage() );
+      }
+    }
+  }
 }
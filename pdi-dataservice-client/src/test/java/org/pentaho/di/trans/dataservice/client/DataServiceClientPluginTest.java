@@ -116,7 +116,9 @@ public class DataServiceClientPluginTest {
     clientPlugin.setDatabaseName( "override" );
     assertThat( clientPlugin.getDatabaseName(), is( "kettle" ) );
 
-    Map<String, String> expectedDefaults = ImmutableMap.of( "KettleThin.webappname", "pentaho-di" );
+    Map<String, String> expectedDefaults = ImmutableMap.of( "KettleThin.webappname", "pentaho-di",
+      "KettleThin.partition", "${Internal.Step.Unique.Number}",
+      "KettleThin.partitions", "${Internal.Step.Unique.Count}" );
     assertThat( clientPlugin.getDefaultOptions(), equalTo( expectedDefaults ) );
 
     assertThat( clientPlugin.getExtraOptionIndicator(), is( "?" ) );
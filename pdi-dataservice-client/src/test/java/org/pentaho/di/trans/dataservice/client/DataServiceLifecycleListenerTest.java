@@ -30,7 +30,7 @@ import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.pentaho.di.core.lifecycle.LifeEventHandler;
 import org.pentaho.di.repository.Repository;
-import org.pentaho.di.trans.dataservice.jdbc.ThinConnection;
+import org.pentaho.di.trans.dataservice.jdbc.LocalClientRegistry;
 import org.pentaho.di.ui.spoon.Spoon;
 import org.pentaho.metastore.stores.delegate.DelegatingMetaStore;
 
@@ -68,26 +68,46 @@ public class DataServiceLifecycleListenerTest {
   @Test
   public void testLifecycle() throws Exception {
     lifecycleListener.bind( clientService );
-    assertThat( ThinConnection.localClient, nullValue() );
+    assertThat( localClient(), nullValue() );
 
     lifecycleListener.unbind( clientService );
-    assertThat( ThinConnection.localClient, nullValue() );
+    assertThat( localClient(), nullValue() );
 
     lifecycleListener.onStart( mock( LifeEventHandler.class ) );
     lifecycleListener.onStart( mock( LifeEventHandler.class ) );
-    assertThat( ThinConnection.localClient, nullValue() );
+    assertThat( localClient(), nullValue() );
 
     // Spoon instance is not requested until onStart has been called and service is bound
     verify( spoonSupplier, never() ).get();
 
     lifecycleListener.bind( clientService );
-    assertThat( ThinConnection.localClient, sameInstance( clientService ) );
+    assertThat( localClient(), sameInstance( clientService ) );
 
     lifecycleListener.onExit( mock( LifeEventHandler.class ) );
     lifecycleListener.onExit( mock( LifeEventHandler.class ) );
-    assertThat( ThinConnection.localClient, nullValue() );
+    assertThat( localClient(), nullValue() );
 
     verify( spoonSupplier ).get();
     verifyNoMoreInteractions( spoonSupplier );
   }
+
+  @Test
+  public void testOtherRegistration() throws Exception {
+    DataServiceClientService other = mock( DataServiceClientService.class );
+    lifecycleListener.onStart( mock( LifeEventHandler.class ) );
+    lifecycleListener.bind( clientService );
+    LocalClientRegistry.getInstance().register( LocalClientRegistry.DEFAULT_KEY, other );
+
+    // Only the service registered by the listener is removed
+    lifecycleListener.unbind( clientService );
+    assertThat( localClient(), sameInstance( other ) );
+    lifecycleListener.onExit( mock( LifeEventHandler.class ) );
+    assertThat( localClient(), sameInstance( other ) );
+
+    LocalClientRegistry.getInstance().unregister( LocalClientRegistry.DEFAULT_KEY, other );
+  }
+
+  private DataServiceClientService localClient() {
+    return LocalClientRegistry.getInstance().get( LocalClientRegistry.DEFAULT_KEY );
+  }
 }
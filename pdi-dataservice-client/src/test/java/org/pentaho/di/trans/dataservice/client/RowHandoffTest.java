@@ -0,0 +1,90 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.client;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.trans.dataservice.jdbc.ThinResultHeader;
+
+import java.sql.SQLException;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+public class RowHandoffTest {
+  RowHandoff rowHandoff;
+
+  @Before
+  public void setUp() throws Exception {
+    rowHandoff = new RowHandoff( mock( ThinResultHeader.class ), 2, 2 );
+  }
+
+  @Test
+  public void testBatches() throws Exception {
+    for ( int i = 0; i < 3; i++ ) {
+      assertThat( rowHandoff.putRow( new Object[] { i } ), is( true ) );
+    }
+    rowHandoff.finish();
+
+    for ( int i = 0; i < 3; i++ ) {
+      assertThat( rowHandoff.takeRow()[0], equalTo( (Object) i ) );
+    }
+    assertThat( rowHandoff.takeRow(), nullValue() );
+    assertThat( rowHandoff.takeRow(), nullValue() );
+  }
+
+  @Test
+  public void testFailure() throws Exception {
+    rowHandoff.putRow( new Object[] { 0 } );
+    rowHandoff.putRow( new Object[] { 1 } );
+    rowHandoff.fail( new IllegalStateException( "step failed" ) );
+
+    assertThat( rowHandoff.takeRow()[0], equalTo( (Object) 0 ) );
+    assertThat( rowHandoff.takeRow()[0], equalTo( (Object) 1 ) );
+    try {
+      rowHandoff.takeRow();
+      fail( "Expected failure" );
+    } catch ( SQLException e ) {
+      assertThat( e.getCause().getMessage(), equalTo( "step failed" ) );
+    }
+  }
+
+  @Test( timeout = 5000 )
+  public void testClose() throws Exception {
+    // Fill the queue, so the producer would block
+    for ( int i = 0; i < 4; i++ ) {
+      rowHandoff.putRow( new Object[] { i } );
+    }
+    rowHandoff.close();
+
+    assertThat( rowHandoff.isClosed(), is( true ) );
+    assertThat( rowHandoff.putRow( new Object[] { 4 } ), is( false ) );
+    assertThat( rowHandoff.putRow( new Object[] { 5 } ), is( false ) );
+    assertThat( rowHandoff.takeRow(), nullValue() );
+  }
+}
@@ -22,6 +22,7 @@
 
 package org.pentaho.di.trans.dataservice.jdbc;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
 import com.google.common.base.Predicates;
@@ -29,6 +30,8 @@ import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CharStreams;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Spy;
@@ -168,6 +171,19 @@ public abstract class BaseResultSetTest extends JDBCTestBase<BaseResultSet> {
     assertThat( getTestObject().wasNull(), equalTo( true ) );
   }
 
+  @Test public void testGetStreams() throws Exception {
+    setNextRow( new Object[] { "text", null } );
+    rowMeta.addValueMeta( new ValueMetaString( "text" ) );
+    rowMeta.addValueMeta( new ValueMetaString( "nullText" ) );
+    getTestObject().next();
+    assertThat( CharStreams.toString( getTestObject().getCharacterStream( "text" ) ), equalTo( "text" ) );
+    assertThat( ByteStreams.toByteArray( getTestObject().getBinaryStream( "text" ) ),
+      equalTo( "text".getBytes( Charsets.UTF_8 ) ) );
+    assertThat( getTestObject().getCharacterStream( "nullText" ), nullValue() );
+    assertThat( getTestObject().getBinaryStream( "nullText" ), nullValue() );
+    assertThat( getTestObject().wasNull(), equalTo( true ) );
+  }
+
   @Test public void testGetFloat() throws Exception {
     setNextRow( new Object[] { 1.1, "foo", null } );
     rowMeta.addValueMeta( new ValueMetaNumber( "col" ) );
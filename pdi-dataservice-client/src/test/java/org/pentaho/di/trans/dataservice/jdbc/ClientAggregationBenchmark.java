@@ -0,0 +1,95 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.base.Stopwatch;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares server-side with client-side aggregation of a query against a running server. Skipped unless the server and
+ * query are given, for example:
+ * <pre>
+ * mvn test -Dtest=ClientAggregationBenchmark -Dbenchmark.url=jdbc:pdi://localhost:9080/pentaho-di/kettle
+ *   -Dbenchmark.sql="SELECT region, SUM(amount) FROM sales GROUP BY region"
+ * </pre>
+ * benchmark.user, benchmark.password and benchmark.iterations may also be set.
+ */
+public class ClientAggregationBenchmark {
+
+  @Test
+  public void compareServerAndClientAggregation() throws Exception {
+    String url = System.getProperty( "benchmark.url" );
+    String sql = System.getProperty( "benchmark.sql" );
+    assumeTrue( url != null && sql != null );
+    int iterations = Integer.getInteger( "benchmark.iterations", 5 );
+
+    long server = run( url, sql, false, iterations );
+    long client = run( url, sql, true, iterations );
+
+    System.out.println( String.format( "%s%nserver aggregation: %d ms/query%nclient aggregation: %d ms/query (%d cores)",
+      sql, server, client, Runtime.getRuntime().availableProcessors() ) );
+  }
+
+  /**
+   * @return average milliseconds to execute {@code sql} and read all of its results, after one warm-up query
+   */
+  private long run( String url, String sql, boolean clientAggregation, int iterations ) throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty( "user", System.getProperty( "benchmark.user", "admin" ) );
+    properties.setProperty( "password", System.getProperty( "benchmark.password", "password" ) );
+    properties.setProperty( ThinConnection.ARG_CLIENTAGGREGATION, Boolean.toString( clientAggregation ) );
+
+    Connection connection = new ThinDriver().connect( url, properties );
+    try {
+      query( connection, sql );
+      Stopwatch stopwatch = Stopwatch.createStarted();
+      for ( int i = 0; i < iterations; i++ ) {
+        query( connection, sql );
+      }
+      return stopwatch.elapsed( TimeUnit.MILLISECONDS ) / iterations;
+    } finally {
+      connection.close();
+    }
+  }
+
+  private void query( Connection connection, String sql ) throws Exception {
+    Statement statement = connection.createStatement();
+    try {
+      ResultSet resultSet = statement.executeQuery( sql );
+      while ( resultSet.next() ) {
+        resultSet.getObject( 1 );
+      }
+    } finally {
+      statement.close();
+    }
+  }
+}
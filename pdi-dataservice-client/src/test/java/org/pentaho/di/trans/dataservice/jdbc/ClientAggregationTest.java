@@ -0,0 +1,233 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.trans.dataservice.client.DataServiceClientService;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
+
+@RunWith( MockitoJUnitRunner.class )
+public class ClientAggregationTest {
+  @Mock DataServiceClientService client;
+  RowMetaInterface serviceFields;
+
+  @Before
+  public void setUp() throws Exception {
+    serviceFields = new RowMeta();
+    serviceFields.addValueMeta( new ValueMetaString( "region" ) );
+    serviceFields.addValueMeta( new ValueMetaString( "product" ) );
+    serviceFields.addValueMeta( new ValueMetaInteger( "amount" ) );
+    serviceFields.addValueMeta( new ValueMetaNumber( "price" ) );
+    when( client.getServiceInformation() )
+      .thenReturn( ImmutableList.of( new ThinServiceInformation( "sales", serviceFields ) ) );
+  }
+
+  @Test
+  public void testPlan() throws Exception {
+    ClientAggregation aggregation = ClientAggregation.plan(
+      "SELECT region, SUM(amount) AS total, MAX(price) FROM sales WHERE product = 'bolt' GROUP BY region", client );
+
+    assertThat( aggregation, notNullValue() );
+    assertThat( aggregation.getRawSql(),
+      equalTo( "SELECT \"region\", \"amount\", \"price\" FROM \"sales\" \"sales\" WHERE product = 'bolt'" ) );
+  }
+
+  @Test
+  public void testServerQueries() throws Exception {
+    assertThat( ClientAggregation.plan( "SELECT * FROM sales", client ), nullValue() );
+    assertThat( ClientAggregation.plan( "SELECT region FROM sales WHERE amount > 2", client ), nullValue() );
+    assertThat( ClientAggregation.plan( "SELECT region, COUNT(*) FROM sales GROUP BY region LIMIT 1", client ),
+      nullValue() );
+    assertThat( ClientAggregation.plan( "SELECT region, COUNT(*) FROM sales GROUP BY region ORDER BY product", client ),
+      nullValue() );
+    assertThat( ClientAggregation.plan( "SELECT SUM(amount) FROM unknown", client ), nullValue() );
+  }
+
+  @Test
+  public void testAggregate() throws Exception {
+    ClientAggregation aggregation = ClientAggregation.plan( "SELECT region, SUM(amount) AS total, COUNT(*), "
+      + "AVG(price), MIN(product), COUNT(DISTINCT product) FROM sales GROUP BY region", client );
+
+    for ( int parallelism : new int[] { 1, 4 } ) {
+      ResultSet resultSet = aggregation.aggregate( rawResults(), parallelism, 0, ExternalSort.DEFAULT_MEMORY_LIMIT );
+
+      ResultSetMetaData metaData = resultSet.getMetaData();
+      assertThat( metaData.getColumnCount(), is( 6 ) );
+      assertThat( metaData.getColumnName( 2 ), equalTo( "total" ) );
+      assertThat( readRows( resultSet ), containsInAnyOrder(
+        ImmutableList.<Object>of( "east", 5L, 3L, 2.0, "bolt", 2L ),
+        ImmutableList.<Object>of( "west", 4L, 1L, 4.0, "nut", 1L )
+      ) );
+    }
+  }
+
+  @Test
+  public void testHaving() throws Exception {
+    ClientAggregation aggregation = ClientAggregation.plan(
+      "SELECT region, SUM(amount) AS total FROM sales GROUP BY region HAVING SUM(amount) > 4", client );
+
+    assertThat( readRows( aggregation.aggregate( rawResults(), 1, 0, ExternalSort.DEFAULT_MEMORY_LIMIT ) ),
+      containsInAnyOrder( ImmutableList.<Object>of( "east", 5L ) ) );
+  }
+
+  @Test
+  public void testOrderBy() throws Exception {
+    ClientAggregation aggregation = ClientAggregation.plan(
+      "SELECT product, SUM(amount) AS total FROM sales GROUP BY product ORDER BY total DESC, product", client );
+    assertThat( aggregation.getRawSql(), equalTo( "SELECT \"product\", \"amount\" FROM \"sales\" \"sales\"" ) );
+
+    // A one byte budget writes every group to its own run
+    for ( long sortMemory : new long[] { ExternalSort.DEFAULT_MEMORY_LIMIT, 1 } ) {
+      assertThat( readRows( aggregation.aggregate( rawResults(), 1, 0, sortMemory ) ), contains(
+        ImmutableList.<Object>of( "nut", 8L ),
+        ImmutableList.<Object>of( "bolt", 1L )
+      ) );
+    }
+    assertThat( readRows( aggregation.aggregate( rawResults(), 4, 1, 1 ) ),
+      contains( ImmutableList.<Object>of( "nut", 8L ) ) );
+  }
+
+  @Test
+  public void testApproximateAggregates() throws Exception {
+    String sql = "SELECT region, APPROX_COUNT_DISTINCT(product) AS products, APPROX_PERCENTILE(amount, 0.5) "
+      + "FROM sales GROUP BY region";
+    assertThat( ClientAggregation.requiresClient( sql ), is( true ) );
+    assertThat( ClientAggregation.requiresClient( "SELECT region, COUNT(DISTINCT product) FROM sales" ), is( false ) );
+
+    ClientAggregation aggregation = ClientAggregation.plan( sql, client );
+    assertThat( aggregation.getRawSql(),
+      equalTo( "SELECT \"region\", \"product\", \"amount\" FROM \"sales\" \"sales\"" ) );
+
+    for ( int parallelism : new int[] { 1, 4 } ) {
+      // Sketches are exact for a handful of values
+      assertThat( readRows( aggregation.aggregate( rawResults(), parallelism, 0, ExternalSort.DEFAULT_MEMORY_LIMIT ) ),
+        containsInAnyOrder(
+          ImmutableList.<Object>of( "east", 2L, 2.5 ),
+          ImmutableList.<Object>of( "west", 1L, 4.0 )
+        ) );
+    }
+
+    // Percentiles of text can't be estimated
+    assertThat( ClientAggregation.plan( "SELECT APPROX_PERCENTILE(product, 0.5) FROM sales", client ), nullValue() );
+  }
+
+  @Test
+  public void testNoGroups() throws Exception {
+    ClientAggregation aggregation = ClientAggregation.plan( "SELECT COUNT(*), SUM(amount) FROM sales", client );
+    assertThat( aggregation.getRawSql(), equalTo( "SELECT \"amount\" FROM \"sales\" \"sales\"" ) );
+
+    RowMeta rawRowMeta = new RowMeta();
+    rawRowMeta.addValueMeta( new ValueMetaInteger( "amount" ) );
+    for ( int parallelism : new int[] { 1, 4 } ) {
+      ResultSet empty = new RowsResultSet( rawRowMeta, ImmutableList.<Object[]>of() );
+      assertThat( readRows( aggregation.aggregate( empty, parallelism, 0, ExternalSort.DEFAULT_MEMORY_LIMIT ) ),
+        contains( Lists.<Object>newArrayList( 0L, null ) ) );
+
+      ResultSet rows = new RowsResultSet( rawRowMeta, ImmutableList.of( new Object[] { 2L }, new Object[] { 3L } ) );
+      assertThat( readRows( aggregation.aggregate( rows, parallelism, 0, ExternalSort.DEFAULT_MEMORY_LIMIT ) ),
+        contains( Lists.<Object>newArrayList( 2L, 5L ) ) );
+    }
+  }
+
+  @Test( timeout = 10000 )
+  public void testWorkerFailure() throws Exception {
+    ClientAggregation aggregation = ClientAggregation.plan(
+      "SELECT region, COUNT(DISTINCT product) FROM sales GROUP BY region", client );
+    final IllegalStateException failure = new IllegalStateException( "expected" );
+    Object unhashable = new Object() {
+      @Override public int hashCode() {
+        throw failure;
+      }
+    };
+
+    // Enough rows of one group to fill the queue of its worker many times over
+    RowMeta rawRowMeta = new RowMeta();
+    rawRowMeta.addValueMeta( new ValueMetaString( "region" ) );
+    rawRowMeta.addValueMeta( new ValueMetaString( "product" ) );
+    List<Object[]> rows = Lists.newArrayList();
+    for ( int i = 0; i < ClientAggregation.BATCH_SIZE * 20; i++ ) {
+      rows.add( new Object[] { "east", unhashable } );
+    }
+
+    try {
+      aggregation.aggregate( new RowsResultSet( rawRowMeta, rows ), 4, 0, ExternalSort.DEFAULT_MEMORY_LIMIT );
+      fail( "Expected aggregation to fail" );
+    } catch ( SQLException e ) {
+      assertThat( e.getCause(), sameInstance( (Throwable) failure ) );
+    }
+  }
+
+  private ResultSet rawResults() {
+    RowMeta rawRowMeta = new RowMeta();
+    rawRowMeta.addValueMeta( new ValueMetaString( "region" ) );
+    rawRowMeta.addValueMeta( new ValueMetaInteger( "amount" ) );
+    rawRowMeta.addValueMeta( new ValueMetaNumber( "price" ) );
+    rawRowMeta.addValueMeta( new ValueMetaString( "product" ) );
+    return new RowsResultSet( rawRowMeta, ImmutableList.of(
+      new Object[] { "east", 1L, 1.0, "bolt" },
+      new Object[] { "east", 4L, 3.0, "nut" },
+      new Object[] { "east", null, null, "bolt" },
+      new Object[] { "west", 4L, 4.0, "nut" }
+    ) );
+  }
+
+  private List<List<Object>> readRows( ResultSet resultSet ) throws Exception {
+    List<List<Object>> rows = Lists.newArrayList();
+    int columns = resultSet.getMetaData().getColumnCount();
+    while ( resultSet.next() ) {
+      List<Object> row = Lists.newArrayList();
+      for ( int i = 1; i <= columns; i++ ) {
+        row.add( resultSet.getObject( i ) );
+      }
+      rows.add( row );
+    }
+    return rows;
+  }
+}
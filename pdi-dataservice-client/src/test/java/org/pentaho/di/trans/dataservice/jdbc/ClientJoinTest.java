@@ -0,0 +1,172 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.trans.dataservice.client.DataServiceClientService;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.List;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
+
+@RunWith( MockitoJUnitRunner.class )
+public class ClientJoinTest {
+  @Mock DataServiceClientService client;
+
+  @Before
+  public void setUp() throws Exception {
+    RowMetaInterface orders = new RowMeta();
+    orders.addValueMeta( new ValueMetaInteger( "id" ) );
+    orders.addValueMeta( new ValueMetaInteger( "customer" ) );
+    orders.addValueMeta( new ValueMetaInteger( "amount" ) );
+    RowMetaInterface customers = new RowMeta();
+    customers.addValueMeta( new ValueMetaInteger( "id" ) );
+    customers.addValueMeta( new ValueMetaString( "name" ) );
+    customers.addValueMeta( new ValueMetaString( "region" ) );
+    when( client.getServiceInformation() ).thenReturn( ImmutableList.of(
+      new ThinServiceInformation( "orders", orders ),
+      new ThinServiceInformation( "customers", customers ) ) );
+  }
+
+  @Test
+  public void testPlan() throws Exception {
+    ClientJoin join = ClientJoin.plan( "SELECT o.id, c.name AS customer_name FROM orders o "
+      + "LEFT JOIN customers c ON o.customer = c.id WHERE o.amount > 10 AND o.id < 5 LIMIT 100", client );
+    assertThat( join.getLeftSql(),
+      equalTo( "SELECT \"customer\", \"id\" FROM \"orders\" \"o\" WHERE o.amount > 10 AND o.id < 5" ) );
+    assertThat( join.getRightSql(), equalTo( "SELECT \"id\", \"name\" FROM \"customers\" \"c\"" ) );
+
+    join = ClientJoin.plan(
+      "SELECT region FROM orders JOIN customers ON orders.customer = customers.id", client );
+    assertThat( join.getLeftSql(), equalTo( "SELECT \"customer\" FROM \"orders\" \"orders\"" ) );
+    assertThat( join.getRightSql(), equalTo( "SELECT \"id\", \"region\" FROM \"customers\" \"customers\"" ) );
+  }
+
+  @Test
+  public void testServerQueries() throws Exception {
+    assertThat( ClientJoin.plan( "SELECT * FROM orders", client ), nullValue() );
+    assertThat( ClientJoin.plan( "SELECT * FROM orders WHERE region = ' JOIN '", client ), nullValue() );
+  }
+
+  @Test
+  public void testUnsupported() throws Exception {
+    assertUnsupported( "SELECT o.id FROM orders o RIGHT JOIN customers c ON o.customer = c.id" );
+    assertUnsupported( "SELECT o.id FROM orders o JOIN customers c ON o.customer > c.id" );
+    assertUnsupported( "SELECT o.id FROM orders o LEFT JOIN customers c ON o.customer = c.id WHERE c.region = 'x'" );
+    assertUnsupported( "SELECT o.id FROM orders o JOIN customers c ON o.customer = c.id ORDER BY o.id" );
+    assertUnsupported( "SELECT COUNT(*) FROM orders o JOIN customers c ON o.customer = c.id" );
+
+    try {
+      ClientJoin.plan( "SELECT id FROM orders o JOIN customers c ON o.customer = c.id", client );
+      fail( "Ambiguous column expected to fail" );
+    } catch ( SQLException e ) {
+      assertThat( e.getMessage(), equalTo( "Column id is ambiguous, qualify it with a service alias" ) );
+    }
+  }
+
+  @Test
+  public void testJoin() throws Exception {
+    ClientJoin join = ClientJoin.plan( "SELECT o.id, c.name AS who FROM orders o "
+      + "LEFT JOIN customers c ON o.customer = c.id", client );
+
+    // A one byte budget partitions both services to disk
+    for ( long memoryLimit : new long[] { ExternalSort.DEFAULT_MEMORY_LIMIT, 1 } ) {
+      ResultSet resultSet = join.join( leftResults(), rightResults(), 0, memoryLimit );
+      assertThat( resultSet.getMetaData().getColumnName( 2 ), equalTo( "who" ) );
+      assertThat( readRows( resultSet ), containsInAnyOrder(
+        ImmutableList.<Object>of( 10L, "ann" ),
+        Lists.<Object>newArrayList( 11L, null ),
+        Lists.<Object>newArrayList( 12L, null ),
+        ImmutableList.<Object>of( 13L, "ann" )
+      ) );
+      resultSet.close();
+    }
+
+    assertThat( readRows( join.join( leftResults(), rightResults(), 2, ExternalSort.DEFAULT_MEMORY_LIMIT ) ).size(),
+      is( 2 ) );
+  }
+
+  private void assertUnsupported( String sql ) throws Exception {
+    try {
+      ClientJoin.plan( sql, client );
+      fail( "Unsupported join expected to fail: " + sql );
+    } catch ( SQLFeatureNotSupportedException e ) {
+      // Expected
+    }
+  }
+
+  private ResultSet leftResults() {
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaInteger( "customer" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "id" ) );
+    return new RowsResultSet( rowMeta, ImmutableList.of(
+      new Object[] { 1L, 10L },
+      new Object[] { 2L, 11L },
+      new Object[] { null, 12L },
+      new Object[] { 1L, 13L }
+    ) );
+  }
+
+  private ResultSet rightResults() {
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaInteger( "id" ) );
+    rowMeta.addValueMeta( new ValueMetaString( "name" ) );
+    return new RowsResultSet( rowMeta, ImmutableList.of(
+      new Object[] { 1L, "ann" },
+      new Object[] { 3L, "bob" }
+    ) );
+  }
+
+  private List<List<Object>> readRows( ResultSet resultSet ) throws Exception {
+    List<List<Object>> rows = Lists.newArrayList();
+    int columns = resultSet.getMetaData().getColumnCount();
+    while ( resultSet.next() ) {
+      List<Object> row = Lists.newArrayList();
+      for ( int i = 1; i <= columns; i++ ) {
+        row.add( resultSet.getObject( i ) );
+      }
+      rows.add( row );
+    }
+    return rows;
+  }
+}
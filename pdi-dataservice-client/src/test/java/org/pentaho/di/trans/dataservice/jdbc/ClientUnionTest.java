@@ -0,0 +1,174 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ClientUnionTest {
+
+  @Test
+  public void testPlan() throws Exception {
+    assertThat( ClientUnion.plan( "SELECT * FROM east" ), nullValue() );
+    assertThat( ClientUnion.plan( "SELECT * FROM east WHERE note = 'a UNION ALL b'" ), nullValue() );
+
+    ClientUnion union = ClientUnion.plan( "SELECT region FROM east WHERE amount > 1 "
+      + "UNION ALL (SELECT region FROM west LIMIT 5) union  all SELECT region FROM north" );
+    assertThat( union.getBranches(), contains(
+      "SELECT region FROM east WHERE amount > 1",
+      "SELECT region FROM west LIMIT 5",
+      "SELECT region FROM north"
+    ) );
+
+    try {
+      ClientUnion.plan( "SELECT region FROM east UNION SELECT region FROM west" );
+      fail( "UNION without ALL expected to fail" );
+    } catch ( SQLFeatureNotSupportedException e ) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testUnion() throws Exception {
+    ClientUnion union = ClientUnion.plan( "SELECT * FROM east UNION ALL SELECT * FROM west" );
+    List<RowsResultSet> branches = ImmutableList.of(
+      branch( new Object[] { "east", 1L }, new Object[] { "east", 2L } ),
+      branch( new Object[] { "west", 3L } )
+    );
+
+    ResultSet resultSet = union.union( branches, 0, null );
+    assertThat( resultSet.getMetaData().getColumnName( 1 ), equalTo( "region" ) );
+    assertThat( readRows( resultSet ), containsInAnyOrder(
+      ImmutableList.<Object>of( "east", 1L ),
+      ImmutableList.<Object>of( "east", 2L ),
+      ImmutableList.<Object>of( "west", 3L )
+    ) );
+    assertThat( resultSet.next(), is( false ) );
+
+    resultSet.close();
+    assertThat( resultSet.isClosed(), is( true ) );
+    for ( RowsResultSet branch : branches ) {
+      assertThat( branch.isClosed(), is( true ) );
+    }
+  }
+
+  @Test
+  public void testMaxRows() throws Exception {
+    ClientUnion union = ClientUnion.plan( "SELECT * FROM east UNION ALL SELECT * FROM west" );
+    List<Object[]> rows = Lists.newArrayList();
+    for ( long i = 0; i < 10 * UnionResultSet.BATCH_SIZE; i++ ) {
+      rows.add( new Object[] { "east", i } );
+    }
+    QueryHandle queryHandle = new QueryHandle();
+
+    ResultSet resultSet = union.union( ImmutableList.of( branch( rows ), branch( rows ) ), 3, queryHandle );
+    assertThat( readRows( resultSet ).size(), is( 3 ) );
+    // Rows were left unread
+    assertThat( queryHandle.isCancelled(), is( true ) );
+    resultSet.close();
+  }
+
+  @Test
+  public void testFailure() throws Exception {
+    ClientUnion union = ClientUnion.plan( "SELECT * FROM east UNION ALL SELECT * FROM west" );
+    SQLException failure = new SQLException( "expected" );
+    RowsResultSet failing = mock( RowsResultSet.class );
+    when( failing.getRowMeta() ).thenReturn( rowMeta() );
+    when( failing.getMetaData() ).thenThrow( failure );
+
+    ResultSet resultSet = union.union( ImmutableList.of( branch( new Object[] { "east", 1L } ), failing ), 0, null );
+    try {
+      readRows( resultSet );
+      fail( "Failure of a branch expected to fail the union" );
+    } catch ( SQLException e ) {
+      assertThat( e, sameInstance( failure ) );
+    }
+    resultSet.close();
+    verify( failing ).close();
+  }
+
+  @Test
+  public void testIncompatibleBranches() throws Exception {
+    ClientUnion union = ClientUnion.plan( "SELECT * FROM east UNION ALL SELECT * FROM west" );
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "region" ) );
+    rowMeta.addValueMeta( new ValueMetaString( "amount" ) );
+    try {
+      union.union( ImmutableList.of( branch(), new RowsResultSet( rowMeta, ImmutableList.<Object[]>of() ) ), 0, null );
+      fail( "Branches with different column types expected to fail" );
+    } catch ( SQLException e ) {
+      assertThat( e.getMessage(), equalTo( "Column amount of a UNION ALL is Integer in the first query "
+        + "but String in query 2" ) );
+    }
+  }
+
+  private RowMeta rowMeta() {
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "region" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "amount" ) );
+    return rowMeta;
+  }
+
+  private RowsResultSet branch( Object[]... rows ) {
+    return branch( ImmutableList.copyOf( rows ) );
+  }
+
+  private RowsResultSet branch( List<Object[]> rows ) {
+    return new RowsResultSet( rowMeta(), rows );
+  }
+
+  private List<List<Object>> readRows( ResultSet resultSet ) throws Exception {
+    List<List<Object>> rows = Lists.newArrayList();
+    int columns = resultSet.getMetaData().getColumnCount();
+    while ( resultSet.next() ) {
+      List<Object> row = Lists.newArrayList();
+      for ( int i = 1; i <= columns; i++ ) {
+        row.add( resultSet.getObject( i ) );
+      }
+      rows.add( row );
+    }
+    return rows;
+  }
+}
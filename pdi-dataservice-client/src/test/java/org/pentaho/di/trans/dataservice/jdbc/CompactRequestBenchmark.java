@@ -0,0 +1,146 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.httpclient.HttpClient;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Compares form encoded with compact query requests, for statements with large generated IN lists sent to a local
+ * stand-in server. Skipped unless the number of keys is given, for example:
+ * <pre>
+ * mvn test -Dtest=CompactRequestBenchmark -Dbenchmark.keys=50000
+ * </pre>
+ * benchmark.iterations may also be set.
+ */
+public class CompactRequestBenchmark {
+
+  @Test
+  public void compareFormAndCompactRequests() throws Exception {
+    Integer keys = Integer.getInteger( "benchmark.keys" );
+    assumeTrue( keys != null );
+    int iterations = Integer.getInteger( "benchmark.iterations", 20 );
+
+    StringBuilder sql = new StringBuilder( "SELECT * FROM orders\nWHERE customer_id IN ( " );
+    Random random = new Random( 0 );
+    for ( int i = 0; i < keys; i++ ) {
+      sql.append( i > 0 ? ", " : "" ).append( random.nextInt( Integer.MAX_VALUE ) );
+    }
+    sql.append( " )" );
+
+    RequestCounter server = new RequestCounter();
+    try {
+      for ( boolean compact : new boolean[] { false, true } ) {
+        long millis = run( server, sql.toString(), compact, iterations );
+        System.out.println( String.format( "%s requests, %d keys: %d ms/query, %d bytes/request",
+          compact ? "compact" : "form", keys, millis, server.bytes.get() / iterations ) );
+      }
+    } finally {
+      server.stop();
+    }
+  }
+
+  /**
+   * @return average milliseconds to send {@code sql} and read its result header, after one warm-up query
+   */
+  private long run( RequestCounter server, String sql, boolean compact, int iterations ) throws Exception {
+    ThinConnection connection = mock( ThinConnection.class );
+    when( connection.getParameters() ).thenReturn( ImmutableMap.<String, String>of() );
+    when( connection.isCompactRequests() ).thenReturn( compact );
+    RemoteClient client = new RemoteClient( connection, new HttpClient() );
+    client.setServerPool(
+      new ServerPool( ImmutableList.of( server.baseUri() ), new LoadBalancingStrategies.RoundRobin(), 60000 ) );
+
+    client.query( sql, 0 ).close();
+    server.bytes.set( 0 );
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    for ( int i = 0; i < iterations; i++ ) {
+      client.query( sql, 0 ).close();
+    }
+    long millis = stopwatch.elapsed( TimeUnit.MILLISECONDS ) / iterations;
+    client.close();
+    return millis;
+  }
+
+  /**
+   * Counts the bytes of request bodies, answering each with an empty result header
+   */
+  static class RequestCounter implements HttpHandler {
+    final AtomicLong bytes = new AtomicLong();
+    final HttpServer server;
+
+    RequestCounter() throws IOException {
+      server = HttpServer.create( new InetSocketAddress( "localhost", 0 ), 0 );
+      server.createContext( "/kettle/", this );
+      server.start();
+    }
+
+    URI baseUri() {
+      return URI.create( "http://localhost:" + server.getAddress().getPort() + "/kettle/" );
+    }
+
+    @Override public void handle( HttpExchange exchange ) throws IOException {
+      bytes.addAndGet( ByteStreams.copy( exchange.getRequestBody(), ByteStreams.nullOutputStream() ) );
+
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      DataOutputStream header = new DataOutputStream( body );
+      for ( int i = 0; i < 5; i++ ) {
+        header.writeUTF( "" );
+      }
+      // Row metadata without any fields
+      header.writeInt( 0 );
+      header.flush();
+      exchange.sendResponseHeaders( 200, body.size() );
+      OutputStream output = exchange.getResponseBody();
+      body.writeTo( output );
+      output.close();
+    }
+
+    void stop() {
+      server.stop( 0 );
+    }
+  }
+}
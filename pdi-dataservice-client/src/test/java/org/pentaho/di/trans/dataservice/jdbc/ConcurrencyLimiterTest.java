@@ -0,0 +1,159 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ConcurrencyLimiterTest {
+  private static final URI SERVER = URI.create( "http://localhost:9080/kettle/" );
+  private static final long FAST = TimeUnit.MILLISECONDS.toNanos( 10 );
+  private static final long SLOW = TimeUnit.SECONDS.toNanos( 1 );
+
+  private ConcurrencyLimiter limiter;
+
+  @Before
+  public void setUp() throws Exception {
+    limiter = new ConcurrencyLimiter( SERVER, 100, 50 );
+  }
+
+  @Test
+  public void testIncrease() throws Exception {
+    int initial = limiter.getLimit();
+    assertThat( initial, is( ConcurrencyLimiter.INITIAL_LIMIT ) );
+
+    // Prompt responses while the limit is in use let it grow by one per limit's worth of queries
+    acquire( initial );
+    for ( int i = 0; i < initial * 3; i++ ) {
+      limiter.responseReceived( FAST );
+    }
+    assertThat( limiter.getLimit(), is( initial + 2 ) );
+    assertThat( limiter.getInFlight(), is( initial ) );
+
+    // but not while it is mostly idle
+    release( initial - 1 );
+    for ( int i = 0; i < 100; i++ ) {
+      limiter.responseReceived( FAST );
+    }
+    assertThat( limiter.getLimit(), is( initial + 2 ) );
+  }
+
+  @Test
+  public void testMaxLimit() throws Exception {
+    limiter = new ConcurrencyLimiter( SERVER, 3, 50 );
+    acquire( 3 );
+    for ( int i = 0; i < 100; i++ ) {
+      limiter.responseReceived( FAST );
+    }
+    assertThat( limiter.getLimit(), is( 3 ) );
+  }
+
+  @Test
+  public void testDecrease() throws Exception {
+    acquire( ConcurrencyLimiter.INITIAL_LIMIT );
+    for ( int i = 0; i < 50; i++ ) {
+      limiter.responseReceived( FAST );
+    }
+    int limit = limiter.getLimit();
+
+    limiter.responseReceived( SLOW );
+    assertThat( limiter.getLimit(), lessThan( limit ) );
+
+    limit = limiter.getLimit();
+    limiter.requestFailed();
+    assertThat( limiter.getLimit(), is( limit / 2 ) );
+
+    for ( int i = 0; i < 20; i++ ) {
+      limiter.requestFailed();
+    }
+    assertThat( limiter.getLimit(), is( 1 ) );
+  }
+
+  @Test
+  public void testQueue() throws Exception {
+    limiter = new ConcurrencyLimiter( SERVER, 1, TimeUnit.SECONDS.toMillis( 10 ) );
+    limiter.acquire();
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Integer> queued = executor.submit( new Callable<Integer>() {
+        @Override public Integer call() throws Exception {
+          limiter.acquire();
+          return limiter.getInFlight();
+        }
+      } );
+      while ( limiter.getQueueDepth() < 1 ) {
+        Thread.sleep( 10 );
+      }
+      assertThat( queued.isDone(), is( false ) );
+
+      limiter.release();
+      assertThat( queued.get( 10, TimeUnit.SECONDS ), is( 1 ) );
+      assertThat( limiter.getQueueDepth(), is( 0 ) );
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testQueueTimeout() throws Exception {
+    acquire( ConcurrencyLimiter.INITIAL_LIMIT );
+    long start = System.nanoTime();
+    try {
+      limiter.acquire();
+      fail( "Expected full limiter to time out" );
+    } catch ( SQLTransientConnectionException e ) {
+      assertThat( System.nanoTime() - start, greaterThan( TimeUnit.MILLISECONDS.toNanos( 40 ) ) );
+    }
+    assertThat( limiter.getQueueDepth(), is( 0 ) );
+    assertThat( limiter.getInFlight(), is( ConcurrencyLimiter.INITIAL_LIMIT ) );
+  }
+
+  private void acquire( int queries ) throws Exception {
+    for ( int i = 0; i < queries; i++ ) {
+      limiter.acquire();
+    }
+  }
+
+  private void release( int queries ) {
+    for ( int i = 0; i < queries; i++ ) {
+      limiter.release();
+    }
+  }
+}
@@ -0,0 +1,132 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.trans.dataservice.client.DataServiceClientService;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@RunWith( MockitoJUnitRunner.class )
+public class ContinuousQueryTest {
+  @Mock DataServiceClientService client;
+  ThinResultSet resultSet;
+
+  @Before
+  public void setUp() throws Exception {
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaInteger( "id" ) );
+    MockDataInput response = new MockDataInput();
+    for ( long i = 0; i < 3; i++ ) {
+      rowMeta.writeData( response, new Object[] { i } );
+    }
+    CountingDataInputStream responseStream = new CountingDataInputStream( response.toDataInputStream() );
+    responseStream.setResponseHeaders( ImmutableMap.of( RemoteClient.CONTINUOUS, "true" ) );
+
+    ThinResultHeader header = new ThinResultHeader( "streamTest", "serviceTrans", "", "sqlTrans", "", rowMeta );
+    resultSet = new ThinResultSet( header, responseStream, client );
+    resultSet.setContinuous();
+  }
+
+  @Test
+  public void testRowsPushed() throws Exception {
+    assertThat( resultSet.isContinuous(), is( true ) );
+    RecordingListener listener = new RecordingListener();
+    ContinuousQuery.start( resultSet, new QueryHandle(), listener );
+
+    assertThat( listener.ended.await( 5, TimeUnit.SECONDS ), is( true ) );
+    assertThat( listener.ids, contains( 0L, 1L, 2L ) );
+    // Rows which arrived together are pushed together
+    assertThat( listener.batches, is( 1 ) );
+    assertThat( listener.failure, nullValue() );
+    assertThat( resultSet.isClosed(), is( true ) );
+  }
+
+  @Test
+  public void testStop() throws Exception {
+    RecordingListener listener = new RecordingListener();
+    QueryHandle queryHandle = new QueryHandle();
+    queryHandle.attach( resultSet );
+    queryHandle.cancel();
+    ContinuousQuery.start( resultSet, queryHandle, listener );
+
+    // Stopping the query isn't a failure
+    assertThat( listener.ended.await( 5, TimeUnit.SECONDS ), is( true ) );
+    assertThat( listener.failure, nullValue() );
+    assertThat( resultSet.isClosed(), is( true ) );
+  }
+
+  @Test
+  public void testListenerFailure() throws Exception {
+    RecordingListener listener = new RecordingListener() {
+      @Override public void rowsReceived( RowMetaInterface rowMeta, List<Object[]> rows ) {
+        throw new IllegalStateException( "expected" );
+      }
+    };
+    ContinuousQuery.start( resultSet, new QueryHandle(), listener );
+
+    assertThat( listener.ended.await( 5, TimeUnit.SECONDS ), is( true ) );
+    assertThat( listener.failure, notNullValue() );
+    assertThat( listener.failure.getCause(), instanceOf( IllegalStateException.class ) );
+    assertThat( resultSet.isClosed(), is( true ) );
+  }
+
+  private static class RecordingListener implements ThinStreamListener {
+    final List<Object> ids = Lists.newArrayList();
+    final CountDownLatch ended = new CountDownLatch( 1 );
+    volatile int batches;
+    volatile SQLException failure;
+
+    @Override public void rowsReceived( RowMetaInterface rowMeta, List<Object[]> rows ) {
+      batches++;
+      for ( Object[] row : rows ) {
+        ids.add( row[0] );
+      }
+    }
+
+    @Override public void streamEnded( SQLException failure ) {
+      this.failure = failure;
+      ended.countDown();
+    }
+  }
+}
@@ -0,0 +1,122 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+import java.sql.ResultSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class ExternalSortTest {
+  RowMeta rowMeta;
+
+  @Before
+  public void setUp() throws Exception {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "name" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "number" ) );
+  }
+
+  @Test
+  public void testSortInMemory() throws Exception {
+    ExternalSort sort = new ExternalSort( rowMeta, new int[] { 1, 0 }, new boolean[] { false, true },
+      ExternalSort.DEFAULT_MEMORY_LIMIT );
+    sort.add( new Object[] { "b", 1L } );
+    sort.add( new Object[] { "c", 2L } );
+    sort.add( new Object[] { "a", 1L } );
+    sort.add( new Object[] { "d", null } );
+    assertThat( sort.getRunCount(), is( 0 ) );
+
+    ResultSet resultSet = sort.sort( 0 );
+    assertTrue( resultSet.next() );
+    assertThat( resultSet.getString( 1 ), equalTo( "c" ) );
+    assertTrue( resultSet.next() );
+    assertThat( resultSet.getString( 1 ), equalTo( "a" ) );
+    assertTrue( resultSet.next() );
+    assertThat( resultSet.getString( 1 ), equalTo( "b" ) );
+    assertTrue( resultSet.next() );
+    assertThat( resultSet.getString( 1 ), equalTo( "d" ) );
+    assertThat( resultSet.getObject( 2 ), is( (Object) null ) );
+    assertFalse( resultSet.next() );
+    assertTrue( resultSet.isAfterLast() );
+    assertFalse( resultSet.next() );
+    resultSet.close();
+  }
+
+  @Test
+  public void testSpilledRuns() throws Exception {
+    List<Long> numbers = Lists.newArrayList();
+    Random random = new Random( 42 );
+    // Roughly 100 rows per run
+    ExternalSort sort = new ExternalSort( rowMeta, new int[] { 1 }, new boolean[] { true },
+      100 * ExternalSort.estimateSize( new Object[] { "row", 0L } ) );
+    for ( int i = 0; i < 1000; i++ ) {
+      long number = random.nextInt( 500 );
+      numbers.add( number );
+      sort.add( new Object[] { "row " + i, number } );
+    }
+    assertThat( sort.getRunCount(), greaterThan( 5 ) );
+
+    Collections.sort( numbers );
+    ResultSet resultSet = sort.sort( 0 );
+    for ( Long number : numbers ) {
+      assertTrue( resultSet.next() );
+      assertThat( resultSet.getLong( 2 ), equalTo( number ) );
+    }
+    assertFalse( resultSet.next() );
+    resultSet.close();
+    assertTrue( resultSet.isClosed() );
+  }
+
+  @Test
+  public void testMaxRows() throws Exception {
+    ExternalSort sort = new ExternalSort( rowMeta, new int[] { 0 }, new boolean[] { true }, 1 );
+    for ( String name : new String[] { "d", "b", "c", "a" } ) {
+      sort.add( new Object[] { name, 0L } );
+    }
+    assertThat( sort.getRunCount(), is( 4 ) );
+
+    ResultSet resultSet = sort.sort( 2 );
+    assertTrue( resultSet.next() );
+    assertThat( resultSet.getString( 1 ), equalTo( "a" ) );
+    assertTrue( resultSet.next() );
+    assertThat( resultSet.getString( 1 ), equalTo( "b" ) );
+    assertFalse( resultSet.next() );
+    resultSet.close();
+  }
+}
@@ -0,0 +1,212 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Reference server of the protocol sent by {@link FramedTransport}, answering each request on its own thread so that
+ * responses to pipelined requests may overtake each other
+ */
+class FramedServerStub {
+  interface Handler {
+    /**
+     * @return status code of the response, whose body is written to {@code body}
+     */
+    int handle( Request request, OutputStream body ) throws Exception;
+  }
+
+  static class Request {
+    final int id;
+    final String path;
+    final Map<String, String> headers = Maps.newHashMap();
+    final Map<String, String> parameters = Maps.newHashMap();
+    final byte[] body;
+
+    Request( int id, byte[] payload ) throws IOException {
+      this.id = id;
+      DataInputStream input = new DataInputStream( new ByteArrayInputStream( payload ) );
+      path = input.readUTF();
+      input.readBoolean();
+      for ( int i = input.readInt(); i > 0; i-- ) {
+        headers.put( input.readUTF(), input.readUTF() );
+      }
+      for ( int i = input.readInt(); i > 0; i-- ) {
+        parameters.put( input.readUTF(), new String( readBytes( input ), "UTF-8" ) );
+      }
+      body = readBytes( input );
+    }
+
+    private static byte[] readBytes( DataInputStream input ) throws IOException {
+      byte[] bytes = new byte[ input.readInt() ];
+      input.readFully( bytes );
+      return bytes;
+    }
+  }
+
+  final List<String> hellos = Collections.synchronizedList( Lists.<String>newArrayList() );
+  final List<Request> requests = Collections.synchronizedList( Lists.<Request>newArrayList() );
+  final List<Integer> cancelled = Collections.synchronizedList( Lists.<Integer>newArrayList() );
+  private final List<Socket> connections = Collections.synchronizedList( Lists.<Socket>newArrayList() );
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final Handler handler;
+  private ServerSocket serverSocket;
+
+  FramedServerStub( Handler handler ) {
+    this.handler = handler;
+  }
+
+  /**
+   * Accept connections on a local port
+   */
+  FramedServerStub listen() throws IOException {
+    serverSocket = new ServerSocket( 0, 50, InetAddress.getByName( "localhost" ) );
+    executor.execute( new Runnable() {
+      @Override public void run() {
+        try {
+          while ( true ) {
+            final Socket socket = serverSocket.accept();
+            connections.add( socket );
+            executor.execute( new Runnable() {
+              @Override public void run() {
+                try {
+                  serve( socket.getInputStream(), socket.getOutputStream() );
+                } catch ( IOException e ) {
+                  // Connection closed
+                }
+              }
+            } );
+          }
+        } catch ( IOException e ) {
+          // Stopped
+        }
+      }
+    } );
+    return this;
+  }
+
+  URI baseUri() {
+    return URI.create( "http://localhost:" + serverSocket.getLocalPort() + "/kettle/" );
+  }
+
+  int getConnectionCount() {
+    return connections.size();
+  }
+
+  /**
+   * Read the frames of one connection until it is closed
+   */
+  void serve( InputStream in, OutputStream out ) throws IOException {
+    DataInputStream input = new DataInputStream( new BufferedInputStream( in ) );
+    final DataOutputStream output = new DataOutputStream( new BufferedOutputStream( out ) );
+    while ( true ) {
+      int length = input.readInt();
+      final int id = input.readInt();
+      byte type = input.readByte();
+      byte[] payload = new byte[ length - FramedTransport.FRAME_HEADER_LENGTH ];
+      input.readFully( payload );
+
+      if ( type == FramedTransport.HELLO ) {
+        DataInputStream hello = new DataInputStream( new ByteArrayInputStream( payload ) );
+        hello.readInt();
+        hellos.add( hello.readUTF() + ":" + hello.readUTF() );
+      } else if ( type == FramedTransport.CANCEL ) {
+        cancelled.add( id );
+      } else if ( type == FramedTransport.REQUEST ) {
+        final Request request = new Request( id, payload );
+        requests.add( request );
+        executor.execute( new Runnable() {
+          @Override public void run() {
+            try {
+              respond( output, request );
+            } catch ( Exception e ) {
+              // Connection closed
+            }
+          }
+        } );
+      }
+    }
+  }
+
+  private void respond( DataOutputStream output, Request request ) throws Exception {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    int status = handler.handle( request, body );
+
+    ByteArrayOutputStream head = new ByteArrayOutputStream();
+    DataOutputStream headOutput = new DataOutputStream( head );
+    headOutput.writeInt( status );
+    headOutput.writeInt( 0 );
+    synchronized ( output ) {
+      write( output, request.id, FramedTransport.HEAD, head.toByteArray() );
+      write( output, request.id, FramedTransport.BODY, body.toByteArray() );
+      write( output, request.id, FramedTransport.END, new byte[ 0 ] );
+      output.flush();
+    }
+  }
+
+  private static void write( DataOutputStream output, int id, byte type, byte[] payload ) throws IOException {
+    output.writeInt( FramedTransport.FRAME_HEADER_LENGTH + payload.length );
+    output.writeInt( id );
+    output.writeByte( type );
+    output.write( payload );
+  }
+
+  /**
+   * Close every open connection, as a restarted server would
+   */
+  void dropConnections() throws IOException {
+    for ( Socket connection : Lists.newArrayList( connections ) ) {
+      connection.close();
+    }
+  }
+
+  void stop() throws IOException {
+    if ( serverSocket != null ) {
+      serverSocket.close();
+    }
+    dropConnections();
+    executor.shutdownNow();
+  }
+}
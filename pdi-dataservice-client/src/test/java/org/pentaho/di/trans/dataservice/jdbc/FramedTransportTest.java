@@ -0,0 +1,218 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.pentaho.di.trans.dataservice.jdbc.DataServiceTransport.Exchange;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Requests pipelined over one socket to a stand-in server of the framed protocol
+ */
+public class FramedTransportTest {
+  final CountDownLatch released = new CountDownLatch( 1 );
+  FramedServerStub server;
+  FramedTransport transport;
+  RemoteClient client;
+  ExecutorService executor = Executors.newCachedThreadPool();
+
+  @Before
+  public void setUp() throws Exception {
+    server = new FramedServerStub( new FramedServerStub.Handler() {
+      @Override public int handle( FramedServerStub.Request request, OutputStream body ) throws Exception {
+        if ( request.path.endsWith( "/status" ) ) {
+          body.write( "kettle status".getBytes( "UTF-8" ) );
+          return 200;
+        }
+        if ( request.path.endsWith( "/missing" ) ) {
+          body.write( "Not found".getBytes( "UTF-8" ) );
+          return 404;
+        }
+        String sql = request.parameters.get( "SQL" );
+        if ( sql.contains( "slow" ) ) {
+          released.await( 10, TimeUnit.SECONDS );
+        } else {
+          released.countDown();
+        }
+        ByteStreams.copy( MockDataInput.dual().toDataInputStream(), body );
+        return 200;
+      }
+    } ).listen();
+
+    ThinConnection connection = mock( ThinConnection.class );
+    when( connection.getParameters() ).thenReturn( ImmutableMap.of( "PARAMETER_ECHO", "hello" ) );
+    when( connection.constructUrl( anyString() ) ).then( new Answer<String>() {
+      @Override public String answer( InvocationOnMock invocation ) throws Throwable {
+        return server.baseUri().resolve( "./" + invocation.getArguments()[0] ).toString();
+      }
+    } );
+    transport = new FramedTransport( "user", "secret" );
+    client = new RemoteClient( connection, transport );
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    released.countDown();
+    executor.shutdownNow();
+    transport.close();
+    server.stop();
+  }
+
+  @Test
+  public void testQuery() throws Exception {
+    DataInputStream response = client.query( "SELECT * FROM dual", 0 );
+    assertThat( response.readUTF(), equalTo( "dual" ) );
+    response.close();
+
+    assertThat( client.execService( "/status" ), equalTo( "kettle status" ) );
+    assertThat( server.hellos, contains( "user:secret" ) );
+    assertThat( server.getConnectionCount(), is( 1 ) );
+  }
+
+  @Test
+  public void testPipelining() throws Exception {
+    Future<String> slow = executor.submit( query( "SELECT * FROM dual WHERE slow" ) );
+    awaitRequests( 1 );
+    Future<String> fast = executor.submit( query( "SELECT * FROM dual" ) );
+
+    // The slow query is only answered after the fast one, sent after it on the same socket
+    assertThat( fast.get( 10, TimeUnit.SECONDS ), equalTo( "dual" ) );
+    assertThat( slow.get( 10, TimeUnit.SECONDS ), equalTo( "dual" ) );
+    assertThat( server.getConnectionCount(), is( 1 ) );
+  }
+
+  private Callable<String> query( final String sql ) {
+    return new Callable<String>() {
+      @Override public String call() throws Exception {
+        DataInputStream response = client.query( sql, 0 );
+        try {
+          return response.readUTF();
+        } finally {
+          response.close();
+        }
+      }
+    };
+  }
+
+  @Test
+  public void testErrorStatus() throws Exception {
+    try {
+      client.execService( "/missing" );
+      fail( "Expected an exception from response code 404" );
+    } catch ( SQLException e ) {
+      assertThat( e.getMessage(), equalTo( "Not found" ) );
+    }
+    // The socket is still usable
+    assertThat( client.execService( "/status" ), equalTo( "kettle status" ) );
+    assertThat( server.getConnectionCount(), is( 1 ) );
+  }
+
+  @Test
+  public void testAbort() throws Exception {
+    final Exchange exchange = transport.open( server.baseUri().resolve( "./sql/" ).toString(), true );
+    exchange.addParameter( "SQL", "SELECT * FROM dual WHERE slow" );
+    Future<Integer> status = executor.submit( new Callable<Integer>() {
+      @Override public Integer call() throws Exception {
+        return exchange.execute();
+      }
+    } );
+    awaitRequests( 1 );
+
+    exchange.abort();
+    try {
+      status.get( 10, TimeUnit.SECONDS );
+      fail( "Aborted request expected to fail" );
+    } catch ( ExecutionException e ) {
+      assertThat( e.getCause(), instanceOf( IOException.class ) );
+    }
+    awaitCancel();
+  }
+
+  private void awaitRequests( int count ) throws InterruptedException {
+    for ( int i = 0; i < 200 && server.requests.size() < count; i++ ) {
+      Thread.sleep( 50 );
+    }
+    assertThat( server.requests.size(), is( count ) );
+  }
+
+  private void awaitCancel() throws InterruptedException {
+    for ( int i = 0; i < 200 && server.cancelled.isEmpty(); i++ ) {
+      Thread.sleep( 50 );
+    }
+    assertThat( server.cancelled, contains( server.requests.get( 0 ).id ) );
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    Exchange exchange = transport.open( server.baseUri().resolve( "./sql/" ).toString(), true );
+    exchange.addParameter( "SQL", "SELECT * FROM dual WHERE slow" );
+    exchange.setSocketTimeout( 100 );
+    try {
+      exchange.execute();
+      fail( "Expected the request to time out" );
+    } catch ( SocketTimeoutException e ) {
+      // The server is told to stop sending the response
+      awaitCancel();
+    }
+  }
+
+  @Test
+  public void testReconnect() throws Exception {
+    assertThat( client.execService( "/status" ), equalTo( "kettle status" ) );
+    server.dropConnections();
+    Thread.sleep( 500 );
+
+    assertThat( client.execService( "/status" ), equalTo( "kettle status" ) );
+    assertThat( server.getConnectionCount(), is( 2 ) );
+  }
+}
@@ -0,0 +1,140 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+import java.util.Iterator;
+import java.util.List;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class HashJoinTest {
+  RowMeta orderMeta;
+  RowMeta customerMeta;
+
+  @Before
+  public void setUp() throws Exception {
+    orderMeta = new RowMeta();
+    orderMeta.addValueMeta( new ValueMetaInteger( "id" ) );
+    orderMeta.addValueMeta( new ValueMetaInteger( "customer" ) );
+    customerMeta = new RowMeta();
+    customerMeta.addValueMeta( new ValueMetaInteger( "id" ) );
+    customerMeta.addValueMeta( new ValueMetaString( "name" ) );
+  }
+
+  @Test
+  public void testInnerJoin() throws Exception {
+    HashJoin join = new HashJoin( orderMeta, new int[] { 1 }, customerMeta, new int[] { 0 }, false,
+      ExternalSort.DEFAULT_MEMORY_LIMIT );
+    join.open( orders(), customers() );
+
+    // The customers end first
+    assertThat( join.isLeftBuild(), is( false ) );
+    assertThat( join.isSpilled(), is( false ) );
+    assertThat( readRows( join, 0, 1 ), containsInAnyOrder(
+      ImmutableList.<Object>of( 10L, "ann" ),
+      ImmutableList.<Object>of( 13L, "ann" ),
+      ImmutableList.<Object>of( 14L, "cat" )
+    ) );
+  }
+
+  @Test
+  public void testLeftOuterJoin() throws Exception {
+    // Built from the left input, which ends first
+    HashJoin join = new HashJoin( customerMeta, new int[] { 0 }, orderMeta, new int[] { 1 }, true,
+      ExternalSort.DEFAULT_MEMORY_LIMIT );
+    join.open( customers(), orders() );
+
+    assertThat( join.isLeftBuild(), is( true ) );
+    assertThat( readRows( join, 1, 0 ), containsInAnyOrder(
+      ImmutableList.<Object>of( "ann", 10L ),
+      ImmutableList.<Object>of( "ann", 13L ),
+      Lists.<Object>newArrayList( "bob", null ),
+      ImmutableList.<Object>of( "cat", 14L )
+    ) );
+  }
+
+  @Test
+  public void testSpill() throws Exception {
+    // A one byte budget partitions both inputs to disk
+    HashJoin join = new HashJoin( orderMeta, new int[] { 1 }, customerMeta, new int[] { 0 }, true, 1 );
+    join.open( orders(), customers() );
+
+    assertThat( join.isSpilled(), is( true ) );
+    assertThat( readRows( join, 0, 1 ), containsInAnyOrder(
+      ImmutableList.<Object>of( 10L, "ann" ),
+      Lists.<Object>newArrayList( 11L, null ),
+      Lists.<Object>newArrayList( 12L, null ),
+      ImmutableList.<Object>of( 13L, "ann" ),
+      ImmutableList.<Object>of( 14L, "cat" )
+    ) );
+    join.close();
+  }
+
+  private HashJoin.RowSource orders() {
+    return rows( ImmutableList.of(
+      new Object[] { 10L, 1L },
+      new Object[] { 11L, 2L },
+      new Object[] { 12L, null },
+      new Object[] { 13L, 1L },
+      new Object[] { 14L, 4L }
+    ) );
+  }
+
+  private HashJoin.RowSource customers() {
+    return rows( ImmutableList.of(
+      new Object[] { 1L, "ann" },
+      new Object[] { 3L, "bob" },
+      new Object[] { 4L, "cat" }
+    ) );
+  }
+
+  private HashJoin.RowSource rows( List<Object[]> rows ) {
+    final Iterator<Object[]> iterator = rows.iterator();
+    return new HashJoin.RowSource() {
+      @Override public Object[] next() {
+        return iterator.hasNext() ? iterator.next() : null;
+      }
+    };
+  }
+
+  private List<List<Object>> readRows( HashJoin join, int leftColumn, int rightColumn ) throws Exception {
+    List<List<Object>> rows = Lists.newArrayList();
+    while ( join.next() ) {
+      Object[] left = join.getLeftRow();
+      Object[] right = join.getRightRow();
+      rows.add( Lists.newArrayList( left[leftColumn], right == null ? null : right[rightColumn] ) );
+    }
+    return rows;
+  }
+}
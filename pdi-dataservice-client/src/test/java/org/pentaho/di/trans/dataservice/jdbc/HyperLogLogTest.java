@@ -0,0 +1,105 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class HyperLogLogTest {
+
+  @Test
+  public void testSparse() throws Exception {
+    HyperLogLog sketch = new HyperLogLog();
+    assertThat( sketch.cardinality(), is( 0L ) );
+
+    for ( int i = 0; i < HyperLogLog.SPARSE_LIMIT; i++ ) {
+      sketch.add( "value " + i );
+      sketch.add( "value " + i );
+      sketch.add( null );
+    }
+    assertThat( sketch.cardinality(), is( (long) HyperLogLog.SPARSE_LIMIT ) );
+  }
+
+  @Test
+  public void testEqualValues() throws Exception {
+    HyperLogLog sketch = new HyperLogLog();
+    sketch.add( 1L );
+    sketch.add( Long.valueOf( 1 ) );
+    sketch.add( new Date( 5 ) );
+    sketch.add( new Date( 5 ) );
+    sketch.add( new BigDecimal( "2.50" ) );
+    sketch.add( new BigDecimal( "2.5" ) );
+    sketch.add( new byte[] { 1, 2 } );
+    sketch.add( new byte[] { 1, 2 } );
+    assertThat( sketch.cardinality(), is( 4L ) );
+  }
+
+  @Test
+  public void testErrorBounds() throws Exception {
+    // Standard error is 1.04 / sqrt( 2^14 ), about 0.8%; allow four of them
+    for ( int cardinality : new int[] { 1000, 10000, 100000, 1000000 } ) {
+      HyperLogLog sketch = new HyperLogLog();
+      for ( int i = 0; i < cardinality; i++ ) {
+        sketch.add( "customer-" + i );
+        if ( i % 3 == 0 ) {
+          sketch.add( "customer-" + i );
+        }
+      }
+      assertThat( (double) sketch.cardinality(), closeTo( cardinality, cardinality * 0.033 ) );
+    }
+  }
+
+  @Test
+  public void testMerge() throws Exception {
+    HyperLogLog first = new HyperLogLog();
+    HyperLogLog second = new HyperLogLog();
+    HyperLogLog sparse = new HyperLogLog();
+    for ( long i = 0; i < 60000; i++ ) {
+      first.add( i );
+    }
+    for ( long i = 40000; i < 100000; i++ ) {
+      second.add( i );
+    }
+    for ( long i = 0; i < 100; i++ ) {
+      sparse.add( i * 7 );
+    }
+
+    HyperLogLog merged = new HyperLogLog();
+    merged.merge( sparse );
+    assertThat( merged.cardinality(), is( 100L ) );
+    merged.merge( first );
+    merged.merge( second );
+    assertThat( (double) merged.cardinality(), closeTo( 100000, 3300 ) );
+
+    // Merging is commutative
+    sparse.merge( second );
+    sparse.merge( first );
+    assertThat( sparse.cardinality(), is( merged.cardinality() ) );
+  }
+}
@@ -0,0 +1,63 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import org.junit.Test;
+import org.pentaho.di.trans.dataservice.client.DataServiceClientService;
+
+import java.sql.SQLException;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+public class LocalClientRegistryTest {
+  LocalClientRegistry registry = new LocalClientRegistry();
+
+  @Test
+  public void testRegister() throws Exception {
+    DataServiceClientService first = mock( DataServiceClientService.class );
+    DataServiceClientService second = mock( DataServiceClientService.class );
+
+    assertThat( registry.register( null, first ), nullValue() );
+    assertThat( registry.get( LocalClientRegistry.DEFAULT_KEY ), sameInstance( first ) );
+    assertThat( registry.lookup( "" ), sameInstance( first ) );
+
+    // Swapping the service leaves the old one unable to unregister its replacement
+    assertThat( registry.register( "", second ), sameInstance( first ) );
+    assertThat( registry.unregister( "", first ), is( false ) );
+    assertThat( registry.get( "" ), sameInstance( second ) );
+    assertThat( registry.unregister( "", second ), is( true ) );
+
+    try {
+      registry.lookup( "" );
+      fail( "Expected no local client" );
+    } catch ( SQLException e ) {
+      assertThat( registry.get( "" ), nullValue() );
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.pentaho.di.trans.dataservice.jdbc.DataServiceTransport.Exchange;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+@RunWith( MockitoJUnitRunner.class )
+public class QueryHandleTest {
+
+  @Mock Exchange exchange;
+  @Mock ThinResultSet resultSet;
+
+  @Test
+  public void testCancel() throws Exception {
+    QueryHandle queryHandle = new QueryHandle();
+    queryHandle.attach( exchange );
+    verify( exchange, never() ).abort();
+
+    assertThat( queryHandle.cancel(), is( true ) );
+    verify( exchange ).abort();
+
+    // Result sets arriving after cancellation are stopped immediately
+    queryHandle.attach( resultSet );
+    verify( resultSet ).setQueryHandle( queryHandle );
+    verify( resultSet ).cancel();
+
+    Exception cause = new Exception();
+    SQLException exception = queryHandle.cancellation( cause );
+    assertThat( exception, not( instanceOf( SQLTimeoutException.class ) ) );
+    assertThat( exception.getCause(), sameInstance( (Throwable) cause ) );
+    assertThat( queryHandle.isTimedOut(), is( false ) );
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    QueryHandle queryHandle = new QueryHandle();
+    queryHandle.attach( exchange );
+    queryHandle.attach( resultSet );
+    queryHandle.scheduleTimeout( 1 );
+
+    verify( exchange, timeout( 5000 ) ).abort();
+    verify( resultSet, timeout( 5000 ) ).cancel();
+    assertThat( queryHandle.isTimedOut(), is( true ) );
+    assertThat( queryHandle.cancellation( null ), instanceOf( SQLTimeoutException.class ) );
+  }
+
+  @Test
+  public void testFinish() throws Exception {
+    QueryHandle queryHandle = new QueryHandle();
+    queryHandle.attach( exchange );
+    queryHandle.scheduleTimeout( 1 );
+    queryHandle.finish();
+
+    Thread.sleep( 1500 );
+    verify( exchange, never() ).abort();
+    assertThat( queryHandle.isCancelled(), is( false ) );
+  }
+}
@@ -0,0 +1,190 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.httpclient.HttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Balancing and failover between stand-in servers running on local ports
+ */
+public class RemoteClientFailoverTest {
+  List<StandInServer> servers = Lists.newArrayList();
+  ThinConnection connection;
+
+  @Before
+  public void setUp() throws Exception {
+    connection = mock( ThinConnection.class );
+    when( connection.getParameters() ).thenReturn( ImmutableMap.<String, String>of() );
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for ( StandInServer server : servers ) {
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testRoundRobin() throws Exception {
+    RemoteClient client = createClient( ImmutableList.of( start( "one" ).baseUri(), start( "two" ).baseUri() ) );
+
+    assertThat( ImmutableList.of( client.execService( "/status" ), client.execService( "/status" ) ),
+      containsInAnyOrder( "one", "two" ) );
+  }
+
+  @Test
+  public void testMetadataFailover() throws Exception {
+    URI down = unusedPort();
+    RemoteClient client = createClient( ImmutableList.of( down, start( "up" ).baseUri() ) );
+    ServerNode downNode = client.getServerPool().getNodes().get( 0 );
+
+    for ( int i = 0; i < 10; i++ ) {
+      assertThat( client.execService( "/status" ), equalTo( "up" ) );
+    }
+    assertThat( downNode.isEjected(), is( true ) );
+    assertThat( downNode.getOutstandingRequests(), is( 0 ) );
+  }
+
+  @Test
+  public void testCommandsFollowQuery() throws Exception {
+    StandInServer one = start( "one" );
+    StandInServer two = start( "two" );
+    RemoteClient client = createClient( ImmutableList.of( one.baseUri(), two.baseUri() ) );
+
+    List<String> serviceObjectIds = Lists.newArrayList();
+    for ( int i = 0; i < 4; i++ ) {
+      DataInputStream response = client.query( "SELECT * FROM service", 0 );
+      response.readUTF();
+      response.readUTF();
+      serviceObjectIds.add( response.readUTF() );
+      response.close();
+    }
+    for ( String serviceObjectId : serviceObjectIds ) {
+      client.query( "[ stop " + serviceObjectId + " ]", 0 ).close();
+    }
+
+    assertThat( one.stopped, contains( "one-0", "one-1" ) );
+    assertThat( two.stopped, contains( "two-0", "two-1" ) );
+  }
+
+  private RemoteClient createClient( List<URI> baseUris ) {
+    RemoteClient client = new RemoteClient( connection, new HttpClient() );
+    client.setServerPool( new ServerPool( baseUris, new LoadBalancingStrategies.RoundRobin(), 60000 ) );
+    return client;
+  }
+
+  private StandInServer start( String name ) throws IOException {
+    StandInServer server = new StandInServer( name );
+    servers.add( server );
+    return server;
+  }
+
+  private URI unusedPort() throws IOException {
+    ServerSocket socket = new ServerSocket( 0 );
+    try {
+      return URI.create( "http://localhost:" + socket.getLocalPort() + "/kettle/" );
+    } finally {
+      socket.close();
+    }
+  }
+
+  /**
+   * Answers status requests with its name, and queries with a result header naming a new service object
+   */
+  static class StandInServer implements HttpHandler {
+    final String name;
+    final HttpServer server;
+    final List<String> stopped = Collections.synchronizedList( Lists.<String>newArrayList() );
+    int queries;
+
+    StandInServer( String name ) throws IOException {
+      this.name = name;
+      server = HttpServer.create( new InetSocketAddress( "localhost", 0 ), 0 );
+      server.createContext( "/kettle/", this );
+      server.start();
+    }
+
+    URI baseUri() {
+      return URI.create( "http://localhost:" + server.getAddress().getPort() + "/kettle/" );
+    }
+
+    @Override public synchronized void handle( HttpExchange exchange ) throws IOException {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      String path = exchange.getRequestURI().getPath();
+      if ( path.endsWith( "/status" ) ) {
+        body.write( name.getBytes( "UTF-8" ) );
+      } else if ( path.endsWith( "/sql/" ) ) {
+        String sql = exchange.getRequestHeaders().getFirst( "SQL" );
+        if ( sql.startsWith( "[ stop " ) ) {
+          stopped.add( sql.substring( 7, sql.length() - 2 ) );
+        } else {
+          DataOutputStream header = new DataOutputStream( body );
+          header.writeUTF( "service" );
+          header.writeUTF( "serviceTrans" );
+          header.writeUTF( name + "-" + queries++ );
+          header.writeUTF( "sqlTrans" );
+          header.writeUTF( "" );
+          // Row metadata without any fields
+          header.writeInt( 0 );
+          header.flush();
+        }
+      }
+      exchange.sendResponseHeaders( 200, body.size() );
+      OutputStream output = exchange.getResponseBody();
+      body.writeTo( output );
+      output.close();
+    }
+
+    void stop() {
+      server.stop( 0 );
+    }
+  }
+}
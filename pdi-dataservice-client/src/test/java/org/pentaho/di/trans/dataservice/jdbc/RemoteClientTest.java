@@ -26,11 +26,20 @@ import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Resources;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HeaderGroup;
+import org.apache.commons.httpclient.HostConfiguration;
 import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnectionManager;
 import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.params.HttpMethodParams;
+import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
 import org.apache.commons.lang.StringUtils;
 import org.junit.Before;
 import org.junit.Test;
@@ -41,21 +50,38 @@ import org.mockito.Mock;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.mockito.stubbing.Answer;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.value.ValueMetaString;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.URI;
 import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.arrayContaining;
 import static org.hamcrest.Matchers.emptyOrNullString;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -68,18 +94,15 @@ public class RemoteClientTest {
   @Mock ThinConnection connection;
   @Mock HttpClient httpClient;
   @Mock HttpMethod execMethod;
+  @Mock HttpConnectionManager httpConnectionManager;
+  @Captor ArgumentCaptor<HostConfiguration> hostConfigurationCaptor;
   @Captor ArgumentCaptor<HttpMethod> httpMethodCaptor;
   RemoteClient remoteClient;
 
   @Before
   public void setUp() throws Exception {
-    remoteClient = new RemoteClient( connection, httpClient ) {
-      // Intercept execMethod so we can inject our mock response streams
-      @Override protected HttpMethod execMethod( HttpMethod method ) throws SQLException {
-        super.execMethod( method );
-        return execMethod;
-      }
-    };
+    remoteClient = new RemoteClient( connection, new HttpClientTransport( httpClient ) );
+    when( httpClient.getHostConfiguration() ).thenReturn( new HostConfiguration() );
     when( connection.constructUrl( anyString() ) ).then( new Answer<String>() {
       @Override public String answer( InvocationOnMock invocation ) throws Throwable {
         return "http://localhost:9080/pentaho-di/kettle" + invocation.getArguments()[0];
@@ -87,6 +110,35 @@ public class RemoteClientTest {
     } );
   }
 
+  /**
+   * Answer an executed method with the response stubbed on {@link #execMethod}, as if read from the connection
+   */
+  private Answer<Integer> respond( final int statusCode ) {
+    return new Answer<Integer>() {
+      @Override public Integer answer( InvocationOnMock invocation ) throws Throwable {
+        HttpMethodBase method = (HttpMethodBase) invocation.getArguments()[1];
+        InputStream body = execMethod.getResponseBodyAsStream();
+        if ( body == null ) {
+          String text = execMethod.getResponseBodyAsString();
+          body = text == null ? null : new ByteArrayInputStream( text.getBytes( Charsets.ISO_8859_1 ) );
+        }
+        Method setResponseStream = HttpMethodBase.class.getDeclaredMethod( "setResponseStream", InputStream.class );
+        setResponseStream.setAccessible( true );
+        setResponseStream.invoke( method, body );
+
+        Method getResponseHeaderGroup = HttpMethodBase.class.getDeclaredMethod( "getResponseHeaderGroup" );
+        getResponseHeaderGroup.setAccessible( true );
+        HeaderGroup headers = (HeaderGroup) getResponseHeaderGroup.invoke( method );
+        if ( execMethod.getResponseHeaders() != null ) {
+          for ( Header header : execMethod.getResponseHeaders() ) {
+            headers.addHeader( header );
+          }
+        }
+        return statusCode;
+      }
+    };
+  }
+
   @Test
   public void testQuery() throws Exception {
     String sql = "SELECT * FROM myService\nWHERE id = 3";
@@ -96,7 +148,7 @@ public class RemoteClientTest {
     when( connection.getDebugTransFilename() ).thenReturn( debugTrans );
     when( connection.getParameters() ).thenReturn( ImmutableMap.of( "PARAMETER_ECHO", "hello world" ) );
 
-    when( httpClient.executeMethod( isA( PostMethod.class ) ) ).thenReturn( 200 );
+    when( httpClient.executeMethod( any( HostConfiguration.class ), isA( PostMethod.class ) ) ).then( respond( 200 ) );
 
     MockDataInput mockDataInput = new MockDataInput();
     mockDataInput.writeUTF( "Query Response" );
@@ -105,10 +157,11 @@ public class RemoteClientTest {
 
     DataInputStream queryResponse = remoteClient.query( sql, maxRows );
 
-    verify( httpClient ).executeMethod( httpMethodCaptor.capture() );
+    verify( httpClient ).executeMethod( hostConfigurationCaptor.capture(), httpMethodCaptor.capture() );
     PostMethod httpMethod = (PostMethod) httpMethodCaptor.getValue();
 
-    assertThat( httpMethod.getURI().toString(), equalTo( "http://localhost:9080/pentaho-di/kettle/sql/" ) );
+    assertThat( hostConfigurationCaptor.getValue().getHostURL(), equalTo( "http://localhost:9080" ) );
+    assertThat( httpMethod.getURI().toString(), equalTo( "/pentaho-di/kettle/sql/" ) );
     assertThat( httpMethod.getRequestHeader( "SQL" ).getValue(), equalTo( "SELECT * FROM myService WHERE id = 3" ) );
     assertThat( httpMethod.getRequestHeader( "MaxRows" ).getValue(), equalTo( "200" ) );
     assertThat( httpMethod.getParameter( "SQL" ).getValue(), equalTo( "SELECT * FROM myService WHERE id = 3" ) );
@@ -127,7 +180,7 @@ public class RemoteClientTest {
     when( connection.getDebugTransFilename() ).thenReturn( null );
     when( connection.getParameters() ).thenReturn( ImmutableMap.<String, String>of() );
 
-    when( httpClient.executeMethod( isA( PostMethod.class ) ) ).thenReturn( 200 );
+    when( httpClient.executeMethod( any( HostConfiguration.class ), isA( PostMethod.class ) ) ).then( respond( 200 ) );
 
     MockDataInput mockDataInput = new MockDataInput();
     mockDataInput.writeUTF( "Query Response" );
@@ -136,10 +189,11 @@ public class RemoteClientTest {
 
     DataInputStream queryResponse = remoteClient.query( sql, 200 );
 
-    verify( httpClient ).executeMethod( httpMethodCaptor.capture() );
+    verify( httpClient ).executeMethod( hostConfigurationCaptor.capture(), httpMethodCaptor.capture() );
     PostMethod httpMethod = (PostMethod) httpMethodCaptor.getValue();
 
-    assertThat( httpMethod.getURI().toString(), equalTo( "http://localhost:9080/pentaho-di/kettle/sql/" ) );
+    assertThat( hostConfigurationCaptor.getValue().getHostURL(), equalTo( "http://localhost:9080" ) );
+    assertThat( httpMethod.getURI().toString(), equalTo( "/pentaho-di/kettle/sql/" ) );
     assertThat( httpMethod.getRequestHeader( "SQL" ), is( nullValue() ) );
     assertThat( httpMethod.getRequestHeader( "MaxRows" ), is( nullValue() ) );
     assertThat( httpMethod.getParameter( "SQL" ).getValue(),
@@ -149,38 +203,317 @@ public class RemoteClientTest {
     assertThat( queryResponse.readUTF(), equalTo( "Query Response" ) );
   }
 
+  @Test
+  public void testCompactQuery() throws Exception {
+    String sql = "SELECT * FROM myService\nWHERE id IN ( " + StringUtils.repeat( "123456, ", 5000 ) + "0 )";
+
+    when( connection.isCompactRequests() ).thenReturn( true );
+    when( connection.getParameters() ).thenReturn( ImmutableMap.of( "PARAMETER_ECHO", "hello world" ) );
+    when( httpClient.executeMethod( any( HostConfiguration.class ), isA( PostMethod.class ) ) ).then( respond( 200 ) );
+    when( execMethod.getResponseBodyAsStream() ).then( new Answer<InputStream>() {
+      @Override public InputStream answer( InvocationOnMock invocation ) throws Throwable {
+        return MockDataInput.stop().toDataInputStream();
+      }
+    } );
+
+    remoteClient.query( sql, 200 ).close();
+    remoteClient.query( "SELECT * FROM myService", 0 ).close();
+
+    verify( httpClient, times( 2 ) ).executeMethod( hostConfigurationCaptor.capture(), httpMethodCaptor.capture() );
+    PostMethod large = (PostMethod) httpMethodCaptor.getAllValues().get( 0 );
+    assertThat( large.getRequestHeader( "SQL" ), is( nullValue() ) );
+    assertThat( large.getRequestHeader( CompactRequest.CONTENT_ENCODING ).getValue(), equalTo( "gzip" ) );
+    ByteArrayRequestEntity entity = (ByteArrayRequestEntity) large.getRequestEntity();
+    assertThat( entity.getContentType(), equalTo( CompactRequest.CONTENT_TYPE ) );
+    assertThat( entity.getContent().length, lessThan( sql.length() / 10 ) );
+
+    // Sent once, as it was written
+    DataInputStream body =
+      new DataInputStream( new GZIPInputStream( new ByteArrayInputStream( entity.getContent() ) ) );
+    assertThat( body.readInt(), is( CompactRequest.VERSION ) );
+    assertThat( body.readInt(), is( 3 ) );
+    assertThat( body.readUTF(), equalTo( "SQL" ) );
+    byte[] statement = new byte[ body.readInt() ];
+    body.readFully( statement );
+    assertThat( new String( statement, Charsets.UTF_8 ), equalTo( sql ) );
+    assertThat( body.readUTF(), equalTo( "MaxRows" ) );
+    body.skipBytes( body.readInt() );
+    assertThat( body.readUTF(), equalTo( "PARAMETER_ECHO" ) );
+
+    PostMethod small = (PostMethod) httpMethodCaptor.getAllValues().get( 1 );
+    assertThat( small.getRequestHeader( CompactRequest.CONTENT_ENCODING ), is( nullValue() ) );
+    body = new DataInputStream( new ByteArrayInputStream(
+      ( (ByteArrayRequestEntity) small.getRequestEntity() ).getContent() ) );
+    assertThat( body.readInt(), is( CompactRequest.VERSION ) );
+  }
+
+  @Test
+  public void testCompactQueryRejected() throws Exception {
+    when( connection.isCompactRequests() ).thenReturn( true );
+    when( connection.getParameters() ).thenReturn( ImmutableMap.<String, String>of() );
+    when( httpClient.executeMethod( any( HostConfiguration.class ), isA( PostMethod.class ) ) )
+      .then( respond( 415 ) ).then( respond( 200 ) );
+    when( execMethod.getResponseBodyAsStream() ).then( new Answer<InputStream>() {
+      @Override public InputStream answer( InvocationOnMock invocation ) throws Throwable {
+        return MockDataInput.stop().toDataInputStream();
+      }
+    } );
+
+    remoteClient.setSocketTimeout( 2500 );
+    remoteClient.query( "SELECT * FROM myService", 0 ).close();
+    remoteClient.query( "SELECT * FROM myService", 0 ).close();
+
+    // Sent again with form parameters, as are later queries to the same server
+    verify( httpClient, times( 3 ) ).executeMethod( hostConfigurationCaptor.capture(), httpMethodCaptor.capture() );
+    PostMethod compact = (PostMethod) httpMethodCaptor.getAllValues().get( 0 );
+    assertThat( ( (ByteArrayRequestEntity) compact.getRequestEntity() ).getContentType(),
+      equalTo( CompactRequest.CONTENT_TYPE ) );
+    for ( HttpMethod method : httpMethodCaptor.getAllValues().subList( 1, 3 ) ) {
+      PostMethod form = (PostMethod) method;
+      assertThat( form.getParameter( "SQL" ).getValue(), equalTo( "SELECT * FROM myService" ) );
+      assertThat( form.getParameter( "MaxRows" ).getValue(), equalTo( "0" ) );
+      assertThat( form.getParams().getParameter( HttpMethodParams.SO_TIMEOUT ), equalTo( (Object) 2500 ) );
+    }
+  }
+
+  @Test
+  public void testSocketTimeout() throws Exception {
+    when( connection.getParameters() ).thenReturn( ImmutableMap.<String, String>of() );
+    when( httpClient.executeMethod( any( HostConfiguration.class ), isA( PostMethod.class ) ) ).then( respond( 200 ) );
+    when( execMethod.getResponseBodyAsStream() ).thenReturn( MockDataInput.stop().toDataInputStream() );
+
+    remoteClient.setSocketTimeout( 2500 );
+    assertThat( remoteClient.getSocketTimeout(), is( 2500 ) );
+    remoteClient.query( "SELECT * FROM myService", 0 );
+
+    verify( httpClient ).executeMethod( hostConfigurationCaptor.capture(), httpMethodCaptor.capture() );
+    assertThat( httpMethodCaptor.getValue().getParams().getParameter( HttpMethodParams.SO_TIMEOUT ),
+      equalTo( (Object) 2500 ) );
+    // Connecting is limited by the same timeout, without touching the shared connection manager
+    ProtocolSocketFactory socketFactory = hostConfigurationCaptor.getValue().getProtocol().getSocketFactory();
+    assertThat( socketFactory, instanceOf( HttpClientTransport.TimedSocketFactory.class ) );
+    assertThat( ( (HttpClientTransport.TimedSocketFactory) socketFactory ).getConnectTimeout(), is( 2500 ) );
+    verify( httpClient, never() ).getHttpConnectionManager();
+  }
+
+  @Test
+  public void testConcurrencyLimit() throws Exception {
+    URI baseUri = URI.create( "http://localhost:9080/pentaho-di/kettle/" );
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter( baseUri, 1, 0 );
+    remoteClient.setConcurrencyLimiters( ImmutableMap.of( baseUri, limiter ) );
+    when( connection.getBaseURI() ).thenReturn( baseUri );
+    when( connection.getParameters() ).thenReturn( ImmutableMap.<String, String>of() );
+    when( httpClient.executeMethod( any( HostConfiguration.class ), isA( PostMethod.class ) ) ).then( respond( 200 ) );
+    when( execMethod.getResponseBodyAsStream() ).then( new Answer<InputStream>() {
+      @Override public InputStream answer( InvocationOnMock invocation ) throws Throwable {
+        return MockDataInput.stop().toDataInputStream();
+      }
+    } );
+
+    DataInputStream running = remoteClient.query( "SELECT * FROM myService", 0 );
+    assertThat( limiter.getInFlight(), is( 1 ) );
+    try {
+      remoteClient.query( "SELECT * FROM myService", 0 );
+      fail( "Expected query over the limit to time out" );
+    } catch ( SQLTransientConnectionException e ) {
+      assertThat( limiter.getQueueDepth(), is( 0 ) );
+    }
+    // Commands are never held back
+    remoteClient.query( "[ stop 1234 ]", 0 ).close();
+    verify( httpClient, times( 2 ) ).executeMethod( any( HostConfiguration.class ), isA( PostMethod.class ) );
+
+    // Continuous queries may run indefinitely, and are not limited
+    DataInputStream continuous = remoteClient.query( "SELECT * FROM myService",
+      QueryOptions.DEFAULT.withStreaming( new Streaming( Streaming.WindowMode.ROWS, 0, 0 ) ), new QueryHandle() );
+    assertThat( limiter.getInFlight(), is( 1 ) );
+    continuous.close();
+
+    // The permit is released once the response has been read, even if left open
+    ByteStreams.toByteArray( running );
+    assertThat( limiter.getInFlight(), is( 0 ) );
+    running.close();
+    assertThat( limiter.getInFlight(), is( 0 ) );
+    remoteClient.query( "SELECT * FROM myService", 0 ).close();
+    assertThat( limiter.getInFlight(), is( 0 ) );
+  }
+
+  @Test
+  public void testContinuousQuery() throws Exception {
+    when( connection.getParameters() ).thenReturn( ImmutableMap.<String, String>of() );
+    when( httpClient.executeMethod( any( HostConfiguration.class ), isA( PostMethod.class ) ) ).then( respond( 200 ) );
+    when( execMethod.getResponseBodyAsStream() ).thenReturn( MockDataInput.stop().toDataInputStream() );
+    when( execMethod.getResponseHeaders() )
+      .thenReturn( new Header[] { new Header( RemoteClient.CONTINUOUS, "true" ) } );
+
+    remoteClient.setSocketTimeout( 2500 );
+    QueryOptions options = QueryOptions.DEFAULT.withStreaming( new Streaming( Streaming.WindowMode.TIME, 60000, 0 ) );
+    CountingDataInputStream response =
+      (CountingDataInputStream) remoteClient.query( "SELECT * FROM myService", options, new QueryHandle() );
+
+    verify( httpClient ).executeMethod( hostConfigurationCaptor.capture(), httpMethodCaptor.capture() );
+    PostMethod httpMethod = (PostMethod) httpMethodCaptor.getValue();
+    assertThat( httpMethod.getParameter( "Continuous" ).getValue(), equalTo( "true" ) );
+    assertThat( httpMethod.getParameter( "WindowMode" ).getValue(), equalTo( "time" ) );
+    assertThat( httpMethod.getParameter( "WindowSize" ).getValue(), equalTo( "60000" ) );
+    assertThat( httpMethod.getParameter( "WindowEvery" ).getValue(), equalTo( "60000" ) );
+    // Rows of a continuous query may be far apart
+    assertThat( httpMethod.getParams().getParameter( HttpMethodParams.SO_TIMEOUT ), equalTo( (Object) 0 ) );
+    assertThat( response.getResponseHeader( RemoteClient.CONTINUOUS ), equalTo( "true" ) );
+  }
+
+  @Test
+  public void testPartitionedQuery() throws Exception {
+    when( connection.getParameters() ).thenReturn( ImmutableMap.<String, String>of() );
+    when( httpClient.executeMethod( any( HostConfiguration.class ), isA( PostMethod.class ) ) ).then( respond( 200 ) );
+    when( execMethod.getResponseBodyAsStream() ).thenReturn( MockDataInput.stop().toDataInputStream() );
+    when( execMethod.getResponseHeaders() )
+      .thenReturn( new Header[] { new Header( RemoteClient.PARTITION, "1" ) } );
+
+    QueryOptions options =
+      QueryOptions.DEFAULT.withPartitioning( new Partitioning( Partitioning.Method.HASH, "id", 1, 4 ) );
+    CountingDataInputStream response =
+      (CountingDataInputStream) remoteClient.query( "SELECT * FROM myService", options, new QueryHandle() );
+
+    verify( httpClient ).executeMethod( hostConfigurationCaptor.capture(), httpMethodCaptor.capture() );
+    PostMethod httpMethod = (PostMethod) httpMethodCaptor.getValue();
+    assertThat( httpMethod.getParameter( "Partition" ).getValue(), equalTo( "1" ) );
+    assertThat( httpMethod.getParameter( "PartitionCount" ).getValue(), equalTo( "4" ) );
+    assertThat( httpMethod.getParameter( "PartitionColumn" ).getValue(), equalTo( "id" ) );
+    assertThat( response.getResponseHeader( RemoteClient.PARTITION ), equalTo( "1" ) );
+  }
+
+  @Test
+  public void testAbortAndClose() throws Exception {
+    when( connection.getParameters() ).thenReturn( ImmutableMap.<String, String>of() );
+    when( httpClient.executeMethod( any( HostConfiguration.class ), isA( PostMethod.class ) ) ).then( respond( 200 ) );
+    when( httpClient.getHttpConnectionManager() ).thenReturn( httpConnectionManager );
+    when( execMethod.getResponseBodyAsStream() ).then( new Answer<InputStream>() {
+      @Override public InputStream answer( InvocationOnMock invocation ) throws Throwable {
+        return MockDataInput.stop().toDataInputStream();
+      }
+    } );
+    Executor executor = new Executor() {
+      @Override public void execute( Runnable command ) {
+        command.run();
+      }
+    };
+
+    QueryHandle finished = mock( QueryHandle.class );
+    QueryHandle open = mock( QueryHandle.class );
+    remoteClient.query( "SELECT * FROM myService", QueryOptions.DEFAULT, finished ).close();
+    remoteClient.query( "SELECT * FROM myService", QueryOptions.DEFAULT, open );
+
+    Runnable aborted = mock( Runnable.class );
+    remoteClient.abort( executor, aborted );
+    verify( open ).abort();
+    verify( finished, never() ).abort();
+    verify( aborted ).run();
+
+    // The transport is shared with other connections
+    remoteClient.close();
+    verify( open, times( 2 ) ).abort();
+    verify( open, times( 2 ) ).release();
+    verify( finished, never() ).release();
+    verify( httpConnectionManager, never() ).closeIdleConnections( anyLong() );
+  }
+
+  @Test
+  public void testDescribe() throws Exception {
+    when( connection.getParameters() ).thenReturn( ImmutableMap.<String, String>of() );
+    when( httpClient.executeMethod( any( HostConfiguration.class ), isA( PostMethod.class ) ) ).then( respond( 200 ) );
+    InputStream body = spy( MockDataInput.dual().toDataInputStream() );
+    when( execMethod.getResponseBodyAsStream() ).thenReturn( body );
+    when( execMethod.getResponseHeaders() ).thenReturn( new Header[] { new Header( "Describe", "true" ) } );
+
+    ThinResultHeader header = new ThinResultFactory().loadHeader( remoteClient.describe( "SELECT * FROM dual" ) );
+
+    verify( httpClient ).executeMethod( hostConfigurationCaptor.capture(), httpMethodCaptor.capture() );
+    PostMethod httpMethod = (PostMethod) httpMethodCaptor.getValue();
+    assertThat( httpMethod.getParameter( "Describe" ).getValue(), equalTo( "true" ) );
+    assertThat( httpMethod.getParameter( "MaxRows" ).getValue(), equalTo( "1" ) );
+    // Released once the header has been read
+    verify( body ).close();
+    assertThat( httpMethod.isAborted(), is( false ) );
+
+    assertThat( header.getServiceName(), is( "dual" ) );
+    assertThat( header.getRowMeta().getFieldNames(), arrayContaining( "DUMMY" ) );
+  }
+
+  @Test
+  public void testDescribeUnsupported() throws Exception {
+    MockDataInput response = new MockDataInput();
+    response.writeUTF( "dual" );
+    response.writeUTF( "serviceTrans" );
+    response.writeUTF( "serviceId" );
+    response.writeUTF( "sqlTrans" );
+    response.writeUTF( "sqlId" );
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "DUMMY" ) );
+    rowMeta.writeMeta( response );
+
+    when( connection.getParameters() ).thenReturn( ImmutableMap.<String, String>of() );
+    when( httpClient.executeMethod( any( HostConfiguration.class ), isA( PostMethod.class ) ) ).then( respond( 200 ) );
+    when( execMethod.getResponseBodyAsStream() )
+      .thenReturn( response.toDataInputStream(), MockDataInput.stop().toDataInputStream() );
+
+    ThinResultHeader header = new ThinResultFactory().loadHeader( remoteClient.describe( "SELECT * FROM dual" ) );
+
+    // Server ignored the describe request, so the running query is abandoned and stopped
+    verify( httpClient, times( 2 ) ).executeMethod( hostConfigurationCaptor.capture(), httpMethodCaptor.capture() );
+    assertThat( httpMethodCaptor.getAllValues().get( 0 ).isAborted(), is( true ) );
+    PostMethod stopMethod = (PostMethod) httpMethodCaptor.getAllValues().get( 1 );
+    assertThat( stopMethod.getParameter( "SQL" ).getValue(), equalTo( "[ stop serviceId ]" ) );
+
+    assertThat( header.getServiceObjectId(), is( "serviceId" ) );
+    assertThat( header.getSqlObjectId(), is( "sqlId" ) );
+    assertThat( header.getRowMeta().getFieldNames(), arrayContaining( "DUMMY" ) );
+  }
+
   @Test
   public void testGetServiceInformation() throws Exception {
-    String url = "http://localhost:9080/pentaho-di/kettle/listServices";
+    String url = "/pentaho-di/kettle/listServices";
     String xml = Resources.toString( ClassLoader.getSystemResource( "jdbc/listServices.xml" ), Charsets.UTF_8 );
-    when( httpClient.executeMethod( isA( GetMethod.class ) ) ).thenReturn( 200 );
+    when( httpClient.executeMethod( any( HostConfiguration.class ), isA( GetMethod.class ) ) ).then( respond( 200 ) );
     when( execMethod.getResponseBodyAsString() ).thenReturn( xml );
 
     ThinServiceInformation serviceInformation = Iterables.getOnlyElement( remoteClient.getServiceInformation() );
 
-    verify( httpClient ).executeMethod( httpMethodCaptor.capture() );
+    verify( httpClient ).executeMethod( hostConfigurationCaptor.capture(), httpMethodCaptor.capture() );
+    assertThat( hostConfigurationCaptor.getValue().getHostURL(), equalTo( "http://localhost:9080" ) );
     assertThat( httpMethodCaptor.getValue().getURI().toString(), equalTo( url ) );
 
     assertThat( serviceInformation.getName(), is( "sequence" ) );
     assertThat( serviceInformation.getServiceFields().getFieldNames(), arrayContaining( "valuename" ) );
   }
 
+  @Test
+  public void testServiceInformationCache() throws Exception {
+    String xml = Resources.toString( ClassLoader.getSystemResource( "jdbc/listServices.xml" ), Charsets.UTF_8 );
+    when( httpClient.executeMethod( any( HostConfiguration.class ), isA( GetMethod.class ) ) ).then( respond( 200 ) );
+    when( execMethod.getResponseBodyAsString() ).thenReturn( xml );
+
+    remoteClient.setServiceInformationCache( new ServiceInformationCache( 1, TimeUnit.MINUTES ) );
+    assertThat( remoteClient.getServiceInformation(), equalTo( remoteClient.getServiceInformation() ) );
+    verify( httpClient, times( 1 ) ).executeMethod( any( HostConfiguration.class ), any( HttpMethod.class ) );
+  }
+
   @Test
   public void testExecMethod() throws Exception {
     ImmutableList<Integer> statusCodes = ImmutableList.of( 500, 401, 404 );
     when( execMethod.getResponseBodyAsString() ).thenReturn( "kettle status" );
 
     for ( Integer statusCode : statusCodes ) {
-      when( httpClient.executeMethod( any( HttpMethod.class ) ) ).thenReturn( statusCode );
+      when( httpClient.executeMethod( any( HostConfiguration.class ), any( HttpMethod.class ) ) )
+        .then( respond( statusCode ) );
       try {
-        remoteClient.execMethod( execMethod );
+        remoteClient.execService( "/status" );
         fail( "Expected an exception from response code" + statusCode );
       } catch ( SQLException e ) {
         assertThat( statusCode + " exception", e.getMessage(), not( emptyOrNullString() ) );
       }
     }
 
-    when( httpClient.executeMethod( any( HttpMethod.class ) ) ).thenReturn( 200 );
+    when( httpClient.executeMethod( any( HostConfiguration.class ), any( HttpMethod.class ) ) ).then( respond( 200 ) );
     assertThat( remoteClient.execService( "/status" ), equalTo( "kettle status" ) );
   }
 
@@ -0,0 +1,134 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2015 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.net.URI;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ServerPoolTest {
+  static final List<URI> SERVERS = ImmutableList.of(
+    URI.create( "http://h1:9080/kettle/" ), URI.create( "http://h2:9080/kettle/" ),
+    URI.create( "http://h3:9080/kettle/" ) );
+
+  @Test
+  public void testRoundRobin() throws Exception {
+    ServerPool pool = new ServerPool( SERVERS, new LoadBalancingStrategies.RoundRobin(), 1000 );
+    List<ServerNode> nodes = pool.getNodes();
+
+    Set<ServerNode> selected = Sets.newHashSet();
+    for ( int i = 0; i < nodes.size(); i++ ) {
+      selected.add( pool.select() );
+    }
+    assertThat( selected, containsInAnyOrder( nodes.toArray() ) );
+    assertThat( nodes.get( 1 ).constructUrl( "/sql/" ), is( "http://h2:9080/kettle/sql/" ) );
+  }
+
+  @Test
+  public void testLeastOutstanding() throws Exception {
+    ServerPool pool = new ServerPool( SERVERS, new LoadBalancingStrategies.LeastOutstanding(), 1000 );
+    List<ServerNode> nodes = pool.getNodes();
+    nodes.get( 0 ).requestStarted();
+    nodes.get( 1 ).requestStarted();
+    nodes.get( 1 ).requestStarted();
+
+    for ( int i = 0; i < 10; i++ ) {
+      assertThat( pool.select(), sameInstance( nodes.get( 2 ) ) );
+    }
+    nodes.get( 1 ).requestFinished();
+    nodes.get( 1 ).requestFinished();
+    assertThat( nodes.get( 1 ).getOutstandingRequests(), is( 0 ) );
+    assertThat( pool.select( ImmutableList.of( nodes.get( 2 ) ) ), sameInstance( nodes.get( 1 ) ) );
+  }
+
+  @Test
+  public void testLatencyWeighted() throws Exception {
+    ServerPool pool = new ServerPool( SERVERS.subList( 0, 2 ), new LoadBalancingStrategies.LatencyWeighted(), 1000 );
+    ServerNode fast = pool.getNodes().get( 0 );
+    ServerNode slow = pool.getNodes().get( 1 );
+    fast.responseReceived( TimeUnit.MILLISECONDS.toNanos( 2 ) );
+    slow.responseReceived( TimeUnit.MILLISECONDS.toNanos( 200 ) );
+
+    int fastCount = 0;
+    for ( int i = 0; i < 1000; i++ ) {
+      if ( pool.select() == fast ) {
+        fastCount++;
+      }
+    }
+    assertThat( fastCount, greaterThan( 900 ) );
+  }
+
+  @Test
+  public void testEjection() throws Exception {
+    ServerPool pool = new ServerPool( SERVERS.subList( 0, 2 ), new LoadBalancingStrategies.RoundRobin(),
+      TimeUnit.MINUTES.toMillis( 1 ) );
+    ServerNode down = pool.getNodes().get( 0 );
+    ServerNode up = pool.getNodes().get( 1 );
+
+    for ( int i = 0; i < ServerPool.MAX_FAILURES - 1; i++ ) {
+      pool.connectionFailed( down );
+    }
+    assertThat( down.isEjected(), is( false ) );
+    pool.connectionFailed( down );
+    assertThat( down.isEjected(), is( true ) );
+
+    for ( int i = 0; i < 10; i++ ) {
+      assertThat( pool.select(), sameInstance( up ) );
+    }
+    // Ejected servers are still tried when nothing else is left
+    assertThat( pool.select( ImmutableList.of( up ) ), sameInstance( down ) );
+    assertThat( pool.select( pool.getNodes() ), nullValue() );
+  }
+
+  @Test
+  public void testStrategyNames() throws Exception {
+    assertThat( LoadBalancingStrategies.forName( null ), instanceOf( LoadBalancingStrategies.RoundRobin.class ) );
+    assertThat( LoadBalancingStrategies.forName( "leastOutstanding" ),
+      instanceOf( LoadBalancingStrategies.LeastOutstanding.class ) );
+    assertThat( LoadBalancingStrategies.forName( "latency" ),
+      instanceOf( LoadBalancingStrategies.LatencyWeighted.class ) );
+    assertThat( LoadBalancingStrategies.forName( LoadBalancingStrategies.RoundRobin.class.getName() ),
+      instanceOf( LoadBalancingStrategies.RoundRobin.class ) );
+    try {
+      LoadBalancingStrategies.forName( "random" );
+      fail( "Expected unknown strategy to fail" );
+    } catch ( SQLException e ) {
+      assertThat( e.getCause(), instanceOf( ClassNotFoundException.class ) );
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class TDigestTest {
+  private static final double[] QUANTILES = { 0, 0.001, 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99, 0.999, 1 };
+
+  @Test
+  public void testSmall() throws Exception {
+    TDigest digest = new TDigest();
+    assertThat( digest.quantile( 0.5 ), nullValue() );
+
+    digest.add( 5 );
+    assertThat( digest.quantile( 0.1 ), is( 5.0 ) );
+
+    digest.add( 1 );
+    digest.add( Double.NaN );
+    assertThat( digest.size(), is( 2L ) );
+    assertThat( digest.quantile( 0 ), is( 1.0 ) );
+    assertThat( digest.quantile( 0.5 ), is( 3.0 ) );
+    assertThat( digest.quantile( 1 ), is( 5.0 ) );
+  }
+
+  @Test
+  public void testErrorBounds() throws Exception {
+    Random random = new Random( 42 );
+    double[] uniform = new double[100000];
+    double[] exponential = new double[uniform.length];
+    double[] normal = new double[uniform.length];
+    for ( int i = 0; i < uniform.length; i++ ) {
+      uniform[i] = random.nextDouble();
+      exponential[i] = -Math.log( random.nextDouble() );
+      normal[i] = random.nextGaussian();
+    }
+
+    for ( double[] values : new double[][] { uniform, exponential, normal } ) {
+      TDigest digest = new TDigest();
+      for ( double value : values ) {
+        digest.add( value );
+      }
+      assertRankError( digest, values, 0.005 );
+    }
+  }
+
+  @Test
+  public void testSortedInput() throws Exception {
+    double[] values = new double[50000];
+    TDigest digest = new TDigest();
+    for ( int i = 0; i < values.length; i++ ) {
+      values[i] = i;
+      digest.add( i );
+    }
+    assertRankError( digest, values, 0.005 );
+  }
+
+  @Test
+  public void testMerge() throws Exception {
+    Random random = new Random( 7 );
+    double[] values = new double[100000];
+    TDigest[] partitions = { new TDigest(), new TDigest(), new TDigest(), new TDigest() };
+    for ( int i = 0; i < values.length; i++ ) {
+      values[i] = random.nextGaussian() * 10 + ( i % 4 ) * 5;
+      partitions[i % 4].add( values[i] );
+    }
+
+    TDigest merged = new TDigest();
+    for ( TDigest partition : partitions ) {
+      merged.merge( partition );
+    }
+    merged.merge( new TDigest() );
+    assertThat( merged.size(), is( (long) values.length ) );
+    assertRankError( merged, values, 0.01 );
+  }
+
+  /**
+   * Check the fraction of {@code values} below each estimated quantile
+   */
+  private void assertRankError( TDigest digest, double[] values, double maxError ) {
+    double[] sorted = values.clone();
+    Arrays.sort( sorted );
+    for ( double q : QUANTILES ) {
+      int index = Arrays.binarySearch( sorted, digest.quantile( q ) );
+      double rank = ( index < 0 ? -index - 1 : index ) / (double) sorted.length;
+      assertThat( "quantile " + q, Math.abs( rank - q ), lessThan( maxError ) );
+    }
+    assertThat( digest.quantile( 0 ), closeTo( sorted[0], 0 ) );
+    assertThat( digest.quantile( 1 ), closeTo( sorted[sorted.length - 1], 0 ) );
+  }
+}
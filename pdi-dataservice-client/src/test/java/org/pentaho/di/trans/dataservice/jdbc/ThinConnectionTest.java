@@ -29,6 +29,7 @@ import org.apache.commons.httpclient.Credentials;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.protocol.Protocol;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -39,16 +40,21 @@ import org.mockito.runners.MockitoJUnitRunner;
 import org.pentaho.di.cluster.SlaveConnectionManager;
 import org.pentaho.di.trans.dataservice.client.DataServiceClientService;
 
+import java.io.File;
 import java.lang.reflect.Method;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
 import java.util.Properties;
+import java.util.concurrent.Executor;
 
 import static org.hamcrest.Matchers.allOf;
 import static org.hamcrest.Matchers.anEmptyMap;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasProperty;
 import static org.hamcrest.Matchers.instanceOf;
@@ -57,9 +63,17 @@ import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -136,6 +150,225 @@ public class ThinConnectionTest extends JDBCTestBase<ThinConnection> {
       equalTo( "http://localhost:80/kettle/service?argument=value" ) );
   }
 
+  @Test
+  public void testMultipleServers() throws Exception {
+    url = "jdbc:pdi://h1:9080,h2:9081/pentaho-di/kettle?loadbalancing=leastoutstanding";
+    ThinConnection.Builder builder = new ThinConnection.Builder( connectionManager ).parseUrl( url );
+    connection = builder.build();
+
+    assertEquals( "h1", connection.getHostname() );
+    ServerPool serverPool = ( (RemoteClient) connection.getClientService() ).getServerPool();
+    assertThat( serverPool.getNodes().size(), is( 2 ) );
+    assertThat( serverPool.getNodes().get( 1 ).getBaseUri(),
+      equalTo( URI.create( "http://h2:9081/pentaho-di/kettle/" ) ) );
+    assertThat( serverPool.select(), instanceOf( ServerNode.class ) );
+
+    // Connections from one builder share the counters of each server
+    assertThat( ( (RemoteClient) builder.build().getClientService() ).getServerPool(), sameInstance( serverPool ) );
+
+    connection = new ThinConnection.Builder( connectionManager ).parseUrl( "jdbc:pdi://h1:9080/kettle" ).build();
+    assertThat( ( (RemoteClient) connection.getClientService() ).getServerPool(), nullValue() );
+  }
+
+  @Test
+  public void testSampling() throws Exception {
+    connection = new ThinConnection.Builder( connectionManager ).parseUrl( url ).build();
+    assertThat( connection.getSampling(), nullValue() );
+
+    url += "?sample=uniform&samplebytes=65536";
+    connection = new ThinConnection.Builder( connectionManager ).parseUrl( url ).build();
+    Sampling sampling = connection.getSampling();
+    assertThat( sampling.getMethod(), is( Sampling.Method.UNIFORM ) );
+    assertThat( sampling.getRows(), is( Sampling.DEFAULT_ROWS ) );
+    assertThat( sampling.getMaxBytes(), is( 65536L ) );
+    // Uniform samples are taken by the server from every row
+    assertThat( sampling.limit( -1 ), is( -1 ) );
+    assertThat( new Sampling( Sampling.Method.FIRST, 10, 0 ).limit( 50 ), is( 10 ) );
+
+    try {
+      new ThinConnection.Builder( connectionManager ).parseUrl( url + "&samplerows=many" ).build();
+      fail();
+    } catch ( SQLException e ) {
+      assertThat( e.getMessage(), containsString( "sample size" ) );
+    }
+  }
+
+  @Test
+  public void testContinuous() throws Exception {
+    connection = new ThinConnection.Builder( connectionManager ).parseUrl( url ).build();
+    assertThat( connection.isContinuous(), is( false ) );
+    assertThat( connection.getStreaming().getWindowSize(), is( 0L ) );
+
+    url += "?continuous=true&windowmode=time&windowsize=60000";
+    connection = new ThinConnection.Builder( connectionManager ).parseUrl( url ).build();
+    assertThat( connection.isContinuous(), is( true ) );
+    Streaming streaming = connection.getStreaming();
+    assertThat( streaming.getWindowMode(), is( Streaming.WindowMode.TIME ) );
+    assertThat( streaming.getWindowSize(), is( 60000L ) );
+    // Windows don't overlap by default
+    assertThat( streaming.getWindowEvery(), is( 60000L ) );
+
+    try {
+      new ThinConnection.Builder( connectionManager ).parseUrl( url.replace( "time", "sliding" ) ).build();
+      fail();
+    } catch ( SQLException e ) {
+      assertThat( e.getMessage(), containsString( ThinConnection.ARG_WINDOWMODE ) );
+    }
+  }
+
+  @Test
+  public void testWatermark() throws Exception {
+    connection = new ThinConnection.Builder( connectionManager ).parseUrl( url ).build();
+    assertThat( connection.getWatermark(), nullValue() );
+    assertThat( connection.getWatermarkStore().getFile().getName(), equalTo( WatermarkStore.DEFAULT_FILE_NAME ) );
+
+    url += "?watermark=updated&watermarkstore=/tmp/watermarks.properties";
+    connection = new ThinConnection.Builder( connectionManager ).parseUrl( url ).build();
+    assertThat( connection.getWatermark(), equalTo( "updated" ) );
+    assertThat( connection.getWatermarkStore().getFile(), equalTo( new File( "/tmp/watermarks.properties" ) ) );
+    assertThat( new ThinStatement( connection ).getWatermark(), equalTo( "updated" ) );
+  }
+
+  @Test
+  public void testPartitioning() throws Exception {
+    connection = new ThinConnection.Builder( connectionManager ).parseUrl( url ).build();
+    assertThat( connection.getPartitioning(), nullValue() );
+
+    String partitioned = url + "?partitioning=hash&partitioncolumn=id&partition=2&partitions=4";
+    connection = new ThinConnection.Builder( connectionManager ).parseUrl( partitioned ).build();
+    Partitioning partitioning = connection.getPartitioning();
+    assertThat( partitioning.getMethod(), is( Partitioning.Method.HASH ) );
+    assertThat( partitioning.getColumn(), equalTo( "id" ) );
+    assertThat( partitioning.getPartition(), is( 2 ) );
+    assertThat( partitioning.getPartitions(), is( 4 ) );
+
+    // Step variables are left unresolved outside of a running transformation
+    connection = new ThinConnection.Builder( connectionManager )
+      .parseUrl( url + "?partitioning=server&partition=${Internal.Step.Unique.Number}&partitions=2" ).build();
+    assertThat( connection.getPartitioning(), nullValue() );
+
+    String[] invalidArguments = { "partitioning=hash", "partitioning=range", "partitioning=server&partition=4" };
+    for ( String invalid : invalidArguments ) {
+      try {
+        new ThinConnection.Builder( connectionManager ).parseUrl( url + "?partitions=4&" + invalid ).build();
+        fail( "Invalid partitioning expected to fail: " + invalid );
+      } catch ( SQLException e ) {
+        assertThat( e.getMessage(), containsString( "partition" ) );
+      }
+    }
+  }
+
+  @Test
+  public void testCompactRequests() throws Exception {
+    connection = new ThinConnection.Builder( connectionManager ).parseUrl( url ).build();
+    assertThat( connection.isCompactRequests(), is( false ) );
+
+    connection = new ThinConnection.Builder( connectionManager ).parseUrl( url + "?compactrequests=true" ).build();
+    assertThat( connection.isCompactRequests(), is( true ) );
+  }
+
+  @Test
+  public void testConcurrencyLimit() throws Exception {
+    connection = new ThinConnection.Builder( connectionManager ).parseUrl( url ).build();
+    assertThat( connection.getConcurrencyLimiters(), empty() );
+
+    url = "jdbc:pdi://h1:9080,h2:9081/kettle?maxconcurrency=4&queuetimeout=500";
+    ThinConnection.Builder builder = new ThinConnection.Builder( connectionManager ).parseUrl( url );
+    connection = builder.build();
+    ConcurrencyLimiter limiter = connection.getConcurrencyLimiters().iterator().next();
+    assertThat( connection.getConcurrencyLimiters().size(), is( 2 ) );
+    assertThat( limiter.getServer(), equalTo( URI.create( "http://h1:9080/kettle/" ) ) );
+    assertThat( limiter.getMaxLimit(), is( 4 ) );
+
+    // Connections from one builder share the limit of each server
+    assertThat( builder.build().getConcurrencyLimiters().iterator().next(), sameInstance( limiter ) );
+
+    try {
+      new ThinConnection.Builder( connectionManager )
+        .parseUrl( "jdbc:pdi://h1:9080/kettle?maxconcurrency=4&queuetimeout=soon" ).build();
+      fail( "Expected invalid queue timeout to fail" );
+    } catch ( SQLException e ) {
+      assertThat( e.getMessage(), containsString( ThinConnection.ARG_QUEUETIMEOUT ) );
+    }
+  }
+
+  @Test
+  public void testTransport() throws Exception {
+    DataServiceTransport transport = mock( DataServiceTransport.class );
+    connection = new ThinConnection.Builder( connectionManager ).parseUrl( url ).transport( transport ).build();
+    assertThat( connection.getClientService(), instanceOf( RemoteClient.class ) );
+
+    connection.close();
+    verify( transport ).close();
+    verify( connectionManager, never() ).createHttpClient();
+  }
+
+  @Test
+  public void testSharedTransport() throws Exception {
+    DataServiceTransport transport = mock( DataServiceTransport.class );
+    ThinConnection.Builder builder =
+      new ThinConnection.Builder( connectionManager ).parseUrl( url ).transport( transport );
+    ThinConnection first = builder.build();
+    ThinConnection second = builder.build();
+
+    // Closed with the last connection using it
+    first.close();
+    first.close();
+    verify( transport, never() ).close();
+    second.close();
+    verify( transport ).close();
+
+    // Or aborted, once its queries are stopped
+    ThinConnection third = builder.build();
+    third.abort( new Executor() {
+      @Override public void execute( Runnable command ) {
+        command.run();
+      }
+    } );
+    verify( transport, times( 2 ) ).close();
+  }
+
+  @Test
+  public void testFramedProtocol() throws Exception {
+    connection = new ThinConnection.Builder( connectionManager ).parseUrl( url + "?protocol=framed" ).build();
+    assertThat( connection.getClientService(), instanceOf( RemoteClient.class ) );
+    verify( connectionManager, never() ).createHttpClient();
+
+    try {
+      new ThinConnection.Builder( connectionManager ).parseUrl( url + "?protocol=spdy" ).build();
+      fail( "Unknown protocol expected to fail" );
+    } catch ( SQLException e ) {
+      assertThat( e.getMessage(), containsString( "protocol" ) );
+    }
+  }
+
+  @Test
+  public void testUnixSocket() throws Exception {
+    ThinConnection.Builder builder = new ThinConnection.Builder( connectionManager )
+      .parseUrl( "jdbc:pdi:unix:///var/run/pdi.sock?debugtrans=genTrans.ktr" );
+    if ( UnixSocketTransport.isSupported() ) {
+      connection = builder.build();
+      assertThat( connection.constructUrl( "sql/" ), equalTo( "http://localhost/kettle/sql/" ) );
+      assertThat( connection.getDebugTransFilename(), equalTo( "genTrans.ktr" ) );
+      // Requests are sent to the socket file without touching the client shared with the rest of Kettle
+      verify( httpClient.getHostConfiguration(), never() ).setHost( anyString(), anyInt(), any( Protocol.class ) );
+    } else {
+      try {
+        builder.build();
+        fail( "Unix domain sockets expected to be unsupported" );
+      } catch ( SQLFeatureNotSupportedException e ) {
+        assertThat( e.getMessage(), containsString( "Java 16" ) );
+      }
+    }
+
+    try {
+      new ThinConnection.Builder( connectionManager ).parseUrl( "jdbc:pdi:unix:///" ).build();
+      fail( "URL without a socket file expected to fail" );
+    } catch ( SQLException e ) {
+      assertThat( e.getMessage(), containsString( "socket file" ) );
+    }
+  }
+
   @Test
   public void testLegacyBuilder() throws Exception {
     final String proxyHostName = "proxyhostname", proxyPort = "9081", nonProxyHosts = "nonproxyhost";
@@ -185,10 +418,32 @@ public class ThinConnectionTest extends JDBCTestBase<ThinConnection> {
 
   @Test
   public void testLocalConnection() throws Exception {
-    ThinConnection.localClient = mock( DataServiceClientService.class );
-
-    connection = new ThinConnection.Builder( connectionManager ).parseUrl( "pdi:jdbc://localhost:-1?local=true" ).build();
-    assertThat( connection.getClientService(), sameInstance( ThinConnection.localClient ) );
+    DataServiceClientService localClient = mock( DataServiceClientService.class );
+    DataServiceClientService repositoryClient = mock( DataServiceClientService.class );
+    LocalClientRegistry registry = LocalClientRegistry.getInstance();
+    registry.register( LocalClientRegistry.DEFAULT_KEY, localClient );
+    registry.register( "tenant", repositoryClient );
+    try {
+      connection = new ThinConnection.Builder( connectionManager )
+        .parseUrl( "pdi:jdbc://localhost:-1?local=true" ).build();
+      assertThat( connection.getClientService(), sameInstance( localClient ) );
+      assertThat( ThinConnection.getLocalClient(), sameInstance( localClient ) );
+
+      connection = new ThinConnection.Builder( connectionManager )
+        .parseUrl( "pdi:jdbc://localhost:-1?local=true&repository=tenant" ).build();
+      assertThat( connection.getClientService(), sameInstance( repositoryClient ) );
+
+      try {
+        new ThinConnection.Builder( connectionManager )
+          .parseUrl( "pdi:jdbc://localhost:-1?local=true&repository=unknown" ).build();
+        fail( "Expected unknown repository to fail" );
+      } catch ( SQLException e ) {
+        assertThat( e.getMessage(), containsString( "unknown" ) );
+      }
+    } finally {
+      registry.unregister( LocalClientRegistry.DEFAULT_KEY );
+      registry.unregister( "tenant" );
+    }
   }
 
   @Test
@@ -207,6 +462,27 @@ public class ThinConnectionTest extends JDBCTestBase<ThinConnection> {
     assertThat( connection.getWarnings(), nullValue() );
   }
 
+  @Test
+  public void testValidTimeout() throws Exception {
+    ThinStatement statement = mock( ThinStatement.class );
+    ThinResultSet resultSet = mock( ThinResultSet.class );
+    connection = spy( connection );
+    doReturn( statement ).when( connection ).createStatement();
+    when( statement.executeQuery( "SELECT *" ) ).thenReturn( resultSet );
+    when( resultSet.next() ).thenReturn( true );
+
+    assertThat( connection.isValid( 3 ), is( true ) );
+    verify( statement ).setQueryTimeout( 3 );
+    verify( statement ).close();
+
+    try {
+      connection.isValid( -1 );
+      fail( "Expected negative timeout to be rejected" );
+    } catch ( SQLException e ) {
+      assertThat( e.getMessage(), containsString( "Timeout" ) );
+    }
+  }
+
   @Test
   public void testPrepareStatement() throws Exception {
     for ( Method method : Connection.class.getMethods() ) {
@@ -216,6 +492,13 @@ public class ThinConnectionTest extends JDBCTestBase<ThinConnection> {
     }
   }
 
+  @Test
+  public void testPreparedQueryCache() throws Exception {
+    String sql = "SELECT * FROM dataService WHERE id = ?";
+    assertThat( connection.getPreparedQuery( sql ), sameInstance( connection.getPreparedQuery( sql ) ) );
+    assertThat( connection.getPreparedQuery( sql ).getPlaceholderIndexes(), contains( sql.indexOf( '?' ) ) );
+  }
+
   @Test
   public void testCreateStatement() throws Exception {
     for ( Method method : Connection.class.getMethods() ) {
@@ -233,8 +516,6 @@ public class ThinConnectionTest extends JDBCTestBase<ThinConnection> {
     connection.setCatalog( "catalog" );
     assertThat( connection.getCatalog(), nullValue() );
 
-    connection.close();
-    assertThat( connection.isClosed(), is( false ) );
 
     connection.setAutoCommit( false );
     assertThat( connection.getAutoCommit(), is( true ) );
@@ -251,6 +532,69 @@ public class ThinConnectionTest extends JDBCTestBase<ThinConnection> {
     assertThat( connection.getHoldability(), equalTo( RowsResultSet.CLOSE_CURSORS_AT_COMMIT ) );
   }
 
+  @Test
+  public void testClose() throws Exception {
+    assertThat( connection.isClosed(), is( false ) );
+    connection.close();
+    connection.close();
+    assertThat( connection.isClosed(), is( true ) );
+    assertThat( connection.isValid( 0 ), is( false ) );
+
+    try {
+      connection.createStatement();
+      fail( "Expected closed connection to reject new statements" );
+    } catch ( SQLException e ) {
+      assertThat( e.getMessage(), containsString( "closed" ) );
+    }
+    try {
+      connection.prepareStatement( "SELECT *" );
+      fail( "Expected closed connection to reject new statements" );
+    } catch ( SQLException e ) {
+      assertThat( e.getMessage(), containsString( "closed" ) );
+    }
+  }
+
+  @Test
+  public void testRemoteCloseAndAbort() throws Exception {
+    RemoteClient remoteClient = mock( RemoteClient.class );
+    Executor executor = mock( Executor.class );
+    connection.setClientService( remoteClient );
+
+    connection.close();
+    connection.abort( executor );
+    verify( remoteClient ).close();
+    verify( remoteClient, never() ).abort( any( Executor.class ), any( Runnable.class ) );
+
+    connection = new ThinConnection( url, URI.create( "http://localhost:9080/pentaho-di/kettle" ) );
+    connection.setClientService( remoteClient );
+    connection.abort( executor );
+    assertThat( connection.isClosed(), is( true ) );
+    verify( remoteClient ).abort( same( executor ), any( Runnable.class ) );
+  }
+
+  @Test
+  public void testNetworkTimeout() throws Exception {
+    RemoteClient remoteClient = mock( RemoteClient.class );
+    connection.setClientService( remoteClient );
+    assertThat( connection.getNetworkTimeout(), is( 0 ) );
+
+    connection.setNetworkTimeout( null, 5000 );
+    assertThat( connection.getNetworkTimeout(), is( 5000 ) );
+    verify( remoteClient ).setSocketTimeout( 5000 );
+
+    try {
+      connection.setNetworkTimeout( null, -1 );
+      fail( "Expected negative timeout to be rejected" );
+    } catch ( SQLException e ) {
+      assertThat( connection.getNetworkTimeout(), is( 5000 ) );
+    }
+
+    properties.setProperty( ThinConnection.ARG_NETWORKTIMEOUT, "3000" );
+    connection = new ThinConnection.Builder( connectionManager ).parseUrl( url ).readProperties( properties ).build();
+    assertThat( connection.getNetworkTimeout(), is( 3000 ) );
+    assertThat( ( (RemoteClient) connection.getClientService() ).getSocketTimeout(), is( 3000 ) );
+  }
+
   @Override protected ThinConnection getTestObject() {
     return connection;
   }
@@ -0,0 +1,254 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.PooledConnection;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith( MockitoJUnitRunner.class )
+public class ThinDataSourceTest {
+
+  ThinDataSource dataSource;
+  List<ThinConnection> created = Lists.newArrayList();
+
+  @Before
+  public void setUp() throws Exception {
+    dataSource = new ThinDataSource() {
+      @Override protected ThinConnection createConnection( String user, String password ) throws SQLException {
+        ThinConnection connection = mock( ThinConnection.class );
+        created.add( connection );
+        return connection;
+      }
+    };
+    dataSource.setUrl( "jdbc:pdi://localhost:9080/kettle" );
+  }
+
+  @Test
+  public void testReuse() throws Exception {
+    Connection first = dataSource.getConnection();
+    assertThat( created.size(), is( 1 ) );
+    first.close();
+    assertThat( first.isClosed(), is( true ) );
+    assertThat( dataSource.getIdleCount(), is( 1 ) );
+
+    Connection second = dataSource.getConnection();
+    assertThat( second, not( sameInstance( first ) ) );
+    assertThat( created.size(), is( 1 ) );
+    assertThat( dataSource.getIdleCount(), is( 0 ) );
+
+    second.createStatement();
+    verify( created.get( 0 ) ).createStatement();
+    verify( created.get( 0 ), never() ).close();
+    verify( created.get( 0 ), never() ).isValid( anyInt() );
+
+    try {
+      first.createStatement();
+      fail( "Expected closed logical connection to fail" );
+    } catch ( SQLException e ) {
+      assertThat( e.getMessage(), containsString( "closed" ) );
+    }
+  }
+
+  @Test
+  public void testMaxIdle() throws Exception {
+    dataSource.setMaxIdle( 1 );
+    Connection first = dataSource.getConnection();
+    Connection second = dataSource.getConnection();
+    first.close();
+    second.close();
+
+    assertThat( dataSource.getIdleCount(), is( 1 ) );
+    verify( created.get( 0 ), never() ).close();
+    verify( created.get( 1 ) ).close();
+  }
+
+  @Test
+  public void testMinIdle() throws Exception {
+    dataSource.setMinIdle( 2 );
+    dataSource.getConnection();
+    assertThat( created.size(), is( 3 ) );
+    assertThat( dataSource.getIdleCount(), is( 2 ) );
+
+    dataSource.close();
+    assertThat( dataSource.getIdleCount(), is( 0 ) );
+    verify( created.get( 1 ) ).close();
+    verify( created.get( 2 ) ).close();
+  }
+
+  @Test
+  public void testDiscardUnusable() throws Exception {
+    Connection connection = dataSource.getConnection();
+    connection.close();
+    when( created.get( 0 ).isClosed() ).thenReturn( true );
+
+    dataSource.getConnection();
+    assertThat( created.size(), is( 2 ) );
+    verify( created.get( 0 ) ).close();
+  }
+
+  @Test
+  public void testAbort() throws Exception {
+    Executor executor = mock( Executor.class );
+    Connection connection = dataSource.getConnection();
+    connection.abort( executor );
+
+    assertThat( connection.isClosed(), is( true ) );
+    verify( created.get( 0 ) ).abort( executor );
+    verify( created.get( 0 ) ).close();
+    assertThat( dataSource.getIdleCount(), is( 0 ) );
+  }
+
+  @Test
+  public void testOtherUser() throws Exception {
+    Connection connection = dataSource.getConnection( "other", "password" );
+    assertThat( connection, sameInstance( (Connection) created.get( 0 ) ) );
+    assertThat( dataSource.getIdleCount(), is( 0 ) );
+  }
+
+  @Test
+  public void testPooledConnection() throws Exception {
+    ThinConnection connection = mock( ThinConnection.class );
+    ConnectionEventListener listener = mock( ConnectionEventListener.class );
+    ThinPooledConnection pooledConnection = new ThinPooledConnection( connection );
+    pooledConnection.addConnectionEventListener( listener );
+
+    Connection first = pooledConnection.getConnection();
+    Connection second = pooledConnection.getConnection();
+    assertThat( first.isClosed(), is( true ) );
+    assertThat( first.equals( first ), is( true ) );
+
+    second.close();
+    second.close();
+    verify( listener ).connectionClosed( any( ConnectionEvent.class ) );
+    verify( connection, never() ).close();
+
+    pooledConnection.close();
+    verify( connection ).close();
+  }
+
+  @Test
+  public void testPooledConnectionRelease() throws Exception {
+    ThinConnection connection = mock( ThinConnection.class );
+    Statement statement = mock( Statement.class );
+    PreparedStatement closedStatement = mock( PreparedStatement.class );
+    ThinQueryTraceListener traceListener = mock( ThinQueryTraceListener.class );
+    when( connection.createStatement() ).thenReturn( statement );
+    when( connection.prepareStatement( anyString() ) ).thenReturn( closedStatement );
+    when( connection.getQueryTraceListener() ).thenReturn( traceListener );
+    ThinPooledConnection pooledConnection = new ThinPooledConnection( connection );
+
+    Connection logical = pooledConnection.getConnection();
+    logical.createStatement();
+    logical.prepareStatement( "SELECT * FROM dual" ).close();
+    when( closedStatement.isClosed() ).thenReturn( true );
+    logical.setNetworkTimeout( null, 2500 );
+    when( connection.getNetworkTimeout() ).thenReturn( 2500 );
+    when( connection.getQueryTraceListener() ).thenReturn( null );
+    logical.close();
+
+    // Statements left open are closed, and settings restored for the next user
+    verify( statement ).close();
+    verify( closedStatement, times( 1 ) ).close();
+    verify( connection ).setNetworkTimeout( null, 0 );
+    verify( connection ).setQueryTraceListener( traceListener );
+    verify( connection ).clearWarnings();
+    verify( connection, never() ).close();
+  }
+
+  @Test
+  public void testPooledConnectionStatements() throws Exception {
+    ThinConnection connection = mock( ThinConnection.class );
+    when( connection.createStatement() ).thenReturn( new ThinStatement( connection ), new ThinStatement( connection ) );
+    ConnectionEventListener listener = mock( ConnectionEventListener.class );
+    ThinPooledConnection pooledConnection = new ThinPooledConnection( connection );
+    pooledConnection.addConnectionEventListener( listener );
+
+    // Statements that never executed are open, and hand out the logical connection
+    Connection logical = pooledConnection.getConnection();
+    Statement first = logical.createStatement();
+    Statement second = logical.createStatement();
+    assertThat( first.isClosed(), is( false ) );
+    assertThat( first.getConnection(), sameInstance( logical ) );
+    assertThat( second.getConnection(), sameInstance( logical ) );
+
+    logical.close();
+    assertThat( first.isClosed(), is( true ) );
+    assertThat( second.isClosed(), is( true ) );
+    verify( listener ).connectionClosed( any( ConnectionEvent.class ) );
+    verify( listener, never() ).connectionErrorOccurred( any( ConnectionEvent.class ) );
+    verify( connection, never() ).close();
+  }
+
+  @Test
+  public void testConnectionPoolDataSource() throws Exception {
+    ThinConnectionPoolDataSource poolDataSource = new ThinConnectionPoolDataSource();
+    try {
+      poolDataSource.getPooledConnection();
+      fail( "Expected missing URL to fail" );
+    } catch ( SQLException e ) {
+      assertThat( e.getMessage(), containsString( "URL" ) );
+    }
+
+    poolDataSource.setUrl( "jdbc:pdi://localhost:9080/kettle" );
+    poolDataSource.setUser( "user" );
+    poolDataSource.setPassword( "password" );
+    PooledConnection pooledConnection = poolDataSource.getPooledConnection();
+    Connection connection = pooledConnection.getConnection();
+
+    ThinConnection thinConnection = ( (ThinPooledConnection) pooledConnection ).getPhysicalConnection();
+    assertThat( thinConnection.getUsername(), equalTo( "user" ) );
+    assertThat( thinConnection.getClientService(), instanceOf( RemoteClient.class ) );
+    assertThat( connection.isReadOnly(), is( true ) );
+  }
+}
@@ -80,6 +80,7 @@ public class ThinDriverTest {
   @Test
   public void testAcceptsURL() throws Exception {
     assertTrue( driver.acceptsURL( URL ) );
+    assertTrue( driver.acceptsURL( "jdbc:pdi:unix:///var/run/pdi.sock" ) );
     assertFalse( driver.acceptsURL( "jdbc:mysql://localhost" ) );
   }
 
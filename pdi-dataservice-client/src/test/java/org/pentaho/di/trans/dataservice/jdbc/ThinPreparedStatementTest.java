@@ -29,7 +29,11 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaString;
 import org.pentaho.di.trans.dataservice.client.DataServiceClientService;
+import org.pentaho.di.trans.dataservice.client.DescribingDataServiceClientService;
 
 import java.io.DataInputStream;
 import java.io.Serializable;
@@ -43,12 +47,18 @@ import java.sql.SQLException;
 import java.sql.Time;
 import java.sql.Timestamp;
 import java.sql.Types;
+import java.util.List;
 import java.util.Map;
 
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -60,10 +70,12 @@ public class ThinPreparedStatementTest extends JDBCTestBase<ThinPreparedStatemen
 
   static final String SQL = "SELECT * FROM dataService WHERE query = ?";
   @Mock ThinConnection connection;
-  @Mock DataServiceClientService clientService;
+  @Mock DescribingDataServiceClientService clientService;
   @Mock ThinResultFactory resultFactory;
   @Mock ThinResultSet resultSet;
   @Mock ThinResultSetMetaData resultSetMetaData;
+  @Mock DataInputStream describeInputStream;
+  RowMeta describedRowMeta;
   ThinPreparedStatement statement;
 
   public ThinPreparedStatementTest() {
@@ -79,6 +91,12 @@ public class ThinPreparedStatementTest extends JDBCTestBase<ThinPreparedStatemen
     when( clientService.query( anyString(), anyInt() ) ).thenReturn( dataInputStream );
     when( resultFactory.loadResultSet( same( dataInputStream ), same( clientService ) ) ).thenReturn( resultSet );
     when( resultSet.getMetaData() ).thenReturn( resultSetMetaData );
+
+    describedRowMeta = new RowMeta();
+    describedRowMeta.addValueMeta( new ValueMetaString( "described" ) );
+    when( clientService.describe( anyString() ) ).thenReturn( describeInputStream );
+    when( resultFactory.loadHeader( same( describeInputStream ) ) )
+      .thenReturn( new ThinResultHeader( "dataService", "", "", "", "", describedRowMeta ) );
   }
 
   @Override protected ThinPreparedStatement getTestObject() {
@@ -87,7 +105,8 @@ public class ThinPreparedStatementTest extends JDBCTestBase<ThinPreparedStatemen
 
   protected void verifyQuery( String query ) throws SQLException {
     assertThat( statement.getResultSet(), nullValue() );
-    assertThat( statement.getMetaData(), nullValue() );
+    assertThat( statement.getMetaData().getColumnName( 1 ), is( "described" ) );
+    verify( clientService ).describe( "SELECT * FROM dataService WHERE query = " + query );
     statement.executeQuery();
     verify( clientService ).query( "SELECT * FROM dataService WHERE query = " + query, -1 );
     assertThat( statement.getResultSet(), is( (ResultSet) resultSet ) );
@@ -209,6 +228,83 @@ public class ThinPreparedStatementTest extends JDBCTestBase<ThinPreparedStatemen
     verifyQuery( "'foobar'" );
   }
 
+  @Test
+  public void testQuotedString() throws Exception {
+    statement.setString( 1, "it's 'quoted'" );
+    verifyQuery( "'it''s ''quoted'''" );
+  }
+
+  @Test
+  public void testMetaDataReuse() throws Exception {
+    PreparedQuery preparedQuery = new PreparedQuery( SQL );
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "result" ) );
+    when( resultSet.getHeader() ).thenReturn( new ThinResultHeader( "dataService", "", "", "", "", rowMeta ) );
+
+    statement = new ThinPreparedStatement( connection, preparedQuery, resultFactory );
+    assertThat( statement.getMetaData().getColumnName( 1 ), is( "described" ) );
+    verify( clientService ).describe( "SELECT * FROM dataService WHERE query = NULL" );
+    verify( describeInputStream ).close();
+    assertThat( preparedQuery.getResultHeader().getRowMeta(), sameInstance( (RowMetaInterface) describedRowMeta ) );
+
+    statement.setString( 1, "foobar" );
+    statement.execute();
+    assertThat( preparedQuery.getResultHeader().getRowMeta(), sameInstance( (RowMetaInterface) rowMeta ) );
+
+    // A new statement for the same SQL knows its result metadata before executing
+    ThinPreparedStatement prepared = new ThinPreparedStatement( connection, preparedQuery, resultFactory );
+    ResultSetMetaData metaData = prepared.getMetaData();
+    assertThat( metaData.getColumnCount(), is( 1 ) );
+    assertThat( metaData.getColumnName( 1 ), is( "result" ) );
+    assertThat( metaData.getTableName( 1 ), is( "dataService" ) );
+    assertThat( prepared.placeholderIndexes, sameInstance( (List<Integer>) preparedQuery.getPlaceholderIndexes() ) );
+    verify( clientService, times( 1 ) ).describe( anyString() );
+  }
+
+  @Test
+  public void testMetaDataWithoutDescribe() throws Exception {
+    DataServiceClientService queryOnly = mock( DataServiceClientService.class );
+    DataInputStream dataInputStream = MockDataInput.dual().toDataInputStream();
+    ThinResultSet described = mock( ThinResultSet.class );
+    when( connection.getClientService() ).thenReturn( queryOnly );
+    when( queryOnly.query( anyString(), anyInt() ) ).thenReturn( dataInputStream );
+    when( resultFactory.loadResultSet( same( dataInputStream ), same( queryOnly ) ) ).thenReturn( described );
+    when( described.getHeader() )
+      .thenReturn( new ThinResultHeader( "dataService", "", "", "", "", describedRowMeta ) );
+
+    // The query is limited to a single row, and its service stopped once the header is read
+    assertThat( statement.getMetaData().getColumnName( 1 ), is( "described" ) );
+    verify( queryOnly ).query( "SELECT * FROM dataService WHERE query = NULL", 1 );
+    verify( described ).close();
+  }
+
+  @Test
+  public void testMetaDataOfClientAggregation() throws Exception {
+    RowMeta serviceFields = new RowMeta();
+    serviceFields.addValueMeta( new ValueMetaString( "query" ) );
+    when( clientService.getServiceInformation() )
+      .thenReturn( ImmutableList.of( new ThinServiceInformation( "dataService", serviceFields ) ) );
+    when( connection.isClientAggregation() ).thenReturn( true );
+
+    // The server would describe the raw query, not the aggregate computed by the client
+    statement = new ThinPreparedStatement( connection, "SELECT COUNT(*) FROM dataService WHERE query = ?",
+      resultFactory );
+    assertThat( statement.getMetaData().getColumnCount(), is( 1 ) );
+    verify( clientService, never() ).describe( anyString() );
+    verify( resultSet ).close();
+  }
+
+  @Test
+  public void testClearParameters() throws Exception {
+    List<Integer> placeholderIndexes = statement.placeholderIndexes;
+    assertThat( placeholderIndexes, contains( SQL.indexOf( '?' ) ) );
+
+    statement.setString( 1, "foobar" );
+    statement.clearParameters();
+    assertThat( statement.getParamData()[0], is( nullValue() ) );
+    assertThat( statement.placeholderIndexes, sameInstance( placeholderIndexes ) );
+  }
+
   @Override protected Object mockValue( Class<?> type ) {
     if ( type.equals( URL.class ) ) {
       try {
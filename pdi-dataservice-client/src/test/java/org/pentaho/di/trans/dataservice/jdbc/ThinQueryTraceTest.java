@@ -0,0 +1,109 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+public class ThinQueryTraceTest {
+
+  @Test
+  public void testPhases() throws Exception {
+    ThinQueryTraceListener listener = mock( ThinQueryTraceListener.class );
+    ThinQueryTrace trace = new ThinQueryTrace( "SELECT * FROM test", listener );
+
+    assertThat( trace.hasReached( ThinQueryTrace.Phase.EXECUTE ), is( true ) );
+    assertThat( trace.getElapsedMillis( ThinQueryTrace.Phase.HEADER ), equalTo( -1L ) );
+    assertThat( trace.getBytesRead(), equalTo( -1L ) );
+
+    CountingDataInputStream response =
+      new CountingDataInputStream( new ByteArrayInputStream( new byte[] { 0, 1, 2, 3 } ) );
+    trace.responseReceived( response );
+    trace.headerLoaded( new ThinResultHeader( "test", "serviceTrans", "serviceId", "sqlTrans", "sqlId", null ) );
+    trace.rowRead();
+    trace.rowRead();
+    trace.endOfStream();
+    response.readInt();
+
+    assertThat( trace.getServiceName(), equalTo( "test" ) );
+    assertThat( trace.getServiceObjectId(), equalTo( "serviceId" ) );
+    assertThat( trace.getSqlObjectId(), equalTo( "sqlId" ) );
+    assertThat( trace.getRowCount(), equalTo( 2L ) );
+    assertThat( trace.getBytesRead(), equalTo( 4L ) );
+    assertThat( trace.getElapsedMillis( ThinQueryTrace.Phase.LAST_ROW ), greaterThanOrEqualTo( 0L ) );
+    assertThat( trace.getDurationMillis( ThinQueryTrace.Phase.HEADER, ThinQueryTrace.Phase.FIRST_ROW ),
+      greaterThanOrEqualTo( 0L ) );
+    assertThat( trace.isComplete(), is( false ) );
+    verifyZeroInteractions( listener );
+
+    trace.complete();
+    trace.complete();
+    assertThat( trace.isComplete(), is( true ) );
+    assertThat( trace.getTotalMillis(), equalTo( trace.getElapsedMillis( ThinQueryTrace.Phase.CLOSE ) ) );
+    assertThat( trace.toString(), containsString( "sqlId" ) );
+    verify( listener ).queryCompleted( trace );
+  }
+
+  @Test
+  public void testSlowQueryLogger() throws Exception {
+    Logger logger = Logger.getAnonymousLogger();
+    logger.setUseParentHandlers( false );
+    final LogRecord[] logged = new LogRecord[ 1 ];
+    logger.addHandler( new Handler() {
+      @Override public void publish( LogRecord record ) {
+        logged[ 0 ] = record;
+      }
+
+      @Override public void flush() {
+      }
+
+      @Override public void close() {
+      }
+    } );
+
+    ThinQueryTrace fast = new ThinQueryTrace( "SELECT fast", new SlowQueryLogger( Long.MAX_VALUE, logger ) );
+    fast.complete();
+    assertThat( logged[ 0 ], nullValue() );
+
+    ThinQueryTrace slow = new ThinQueryTrace( "SELECT slow", new SlowQueryLogger( 0, logger ) );
+    slow.complete();
+    assertThat( logged[ 0 ].getLevel(), equalTo( Level.WARNING ) );
+    assertThat( logged[ 0 ].getMessage(), containsString( "SELECT slow" ) );
+  }
+}
@@ -22,6 +22,13 @@
 
 package org.pentaho.di.trans.dataservice.jdbc;
 
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CharStreams;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -30,8 +37,13 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.mockito.stubbing.Answer;
 import org.pentaho.di.core.exception.KettleEOFException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.value.ValueMetaBinary;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
 import org.pentaho.di.core.row.value.ValueMetaString;
 import org.pentaho.di.trans.dataservice.client.DataServiceClientService;
+import org.pentaho.di.trans.dataservice.client.RowHandoff;
 
 import java.io.DataInputStream;
 import java.lang.reflect.InvocationTargetException;
@@ -41,14 +53,17 @@ import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
 import java.sql.Statement;
+import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
 
 import static org.hamcrest.Matchers.anything;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.containsStringIgnoringCase;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
@@ -168,6 +183,83 @@ public class ThinResultSetTest extends BaseResultSetTest {
     }
   }
 
+  @Test
+  public void testTrace() throws Exception {
+    ThinQueryTraceListener listener = mock( ThinQueryTraceListener.class );
+    ThinQueryTrace trace = new ThinQueryTrace( "SELECT *", listener );
+    trace.headerLoaded( resultHeader );
+    thinResultSet.setTrace( trace );
+
+    assertThat( thinResultSet.isWrapperFor( ThinQueryTrace.class ), is( true ) );
+    assertThat( thinResultSet.unwrap( ThinQueryTrace.class ), sameInstance( trace ) );
+
+    assertThat( thinResultSet.next(), is( true ) );
+    assertThat( thinResultSet.next(), is( true ) );
+    doThrow( new KettleEOFException() ).when( rowMeta ).readData( dataInputStream );
+    assertThat( thinResultSet.next(), is( false ) );
+
+    assertThat( trace.getRowCount(), is( 2L ) );
+    assertThat( trace.hasReached( ThinQueryTrace.Phase.FIRST_ROW ), is( true ) );
+    assertThat( trace.hasReached( ThinQueryTrace.Phase.LAST_ROW ), is( true ) );
+    assertThat( trace.isComplete(), is( false ) );
+
+    when( client.query( "[ errors serviceId ]", 0 ) ).thenReturn( MockDataInput.errors().toDataInputStream() );
+    when( client.query( "[ stop serviceId ]", 0 ) ).thenReturn( MockDataInput.stop().toDataInputStream() );
+    thinResultSet.close();
+    thinResultSet.close();
+
+    assertThat( trace.isComplete(), is( true ) );
+    assertThat( trace.getServiceObjectId(), equalTo( "serviceId" ) );
+    verify( listener, times( 1 ) ).queryCompleted( trace );
+  }
+
+  @Test
+  public void testCancel() throws Exception {
+    when( client.query( "[ stop serviceId ]", 0 ) ).thenReturn( MockDataInput.stop().toDataInputStream() );
+    QueryHandle queryHandle = new QueryHandle();
+    queryHandle.attach( thinResultSet );
+
+    assertThat( thinResultSet.next(), is( true ) );
+    assertThat( queryHandle.cancel(), is( true ) );
+    assertThat( queryHandle.cancel(), is( false ) );
+
+    verify( client ).query( "[ stop serviceId ]", 0 );
+    verify( client, never() ).query( "[ errors serviceId ]", 0 );
+    try {
+      thinResultSet.next();
+      fail( "Expected cancelled result set to fail" );
+    } catch ( SQLException e ) {
+      assertThat( e.getMessage(), containsStringIgnoringCase( "cancelled" ) );
+    }
+
+    thinResultSet.close();
+    verify( dataInputStream ).close();
+    verify( client, times( 1 ) ).query( "[ stop serviceId ]", 0 );
+  }
+
+  @Test
+  public void testCancelWhileReading() throws Exception {
+    when( client.query( "[ stop serviceId ]", 0 ) ).thenReturn( MockDataInput.stop().toDataInputStream() );
+    final QueryHandle queryHandle = new QueryHandle();
+    queryHandle.attach( thinResultSet );
+
+    // An aborted response may end early, which must not be mistaken for the end of the results
+    doAnswer( new Answer() {
+      @Override public Object answer( InvocationOnMock invocation ) throws Throwable {
+        queryHandle.cancel();
+        throw new KettleEOFException();
+      }
+    } ).when( rowMeta ).readData( dataInputStream );
+
+    try {
+      thinResultSet.next();
+      fail( "Expected cancelled result set to fail" );
+    } catch ( SQLException e ) {
+      assertThat( e.getCause(), instanceOf( KettleEOFException.class ) );
+    }
+    verify( dataInputStream, never() ).close();
+  }
+
   @Test
   public void testFetchDirection() throws Exception {
     assertThat( thinResultSet.getType(), equalTo( ResultSet.TYPE_FORWARD_ONLY ) );
@@ -191,6 +283,254 @@ public class ThinResultSetTest extends BaseResultSetTest {
     assertThat( thinResultSet.getCursorName(), anything() );
   }
 
+  @Test
+  public void testLobSpill() throws Exception {
+    String text = Strings.repeat( "large text ", 100 );
+    byte[] data = new byte[2000];
+    ThreadLocalRandom.current().nextBytes( data );
+
+    RowMeta lobRowMeta = new RowMeta();
+    lobRowMeta.addValueMeta( new ValueMetaString( "text" ) );
+    lobRowMeta.addValueMeta( new ValueMetaBinary( "data" ) );
+    lobRowMeta.addValueMeta( new ValueMetaString( "small" ) );
+    MockDataInput response = new MockDataInput();
+    lobRowMeta.writeData( response, new Object[] { text, data, "small" } );
+    lobRowMeta.writeData( response, new Object[] { null, null, null } );
+
+    resultHeader = new ThinResultHeader( "lobTest", "serviceTrans", "", "sqlTrans", "", lobRowMeta );
+    thinResultSet = new ThinResultSet( resultHeader, response.toDataInputStream(), client );
+    thinResultSet.setLobThreshold( 100 );
+
+    assertThat( thinResultSet.next(), is( true ) );
+    assertThat( CharStreams.toString( thinResultSet.getCharacterStream( "text" ) ), equalTo( text ) );
+    assertThat( ByteStreams.toByteArray( thinResultSet.getBinaryStream( "data" ) ), equalTo( data ) );
+    assertThat( thinResultSet.getString( "text" ), equalTo( text ) );
+    assertThat( thinResultSet.getBytes( "data" ), equalTo( data ) );
+    assertThat( thinResultSet.getObject( "data" ), equalTo( (Object) data ) );
+    assertThat( thinResultSet.getString( "small" ), equalTo( "small" ) );
+    assertThat( thinResultSet.getCurrentRow(), equalTo( new Object[] { text, data, "small" } ) );
+    assertThat( thinResultSet.getString( "text" ), equalTo( text ) );
+
+    assertThat( thinResultSet.next(), is( true ) );
+    assertThat( thinResultSet.getCharacterStream( "text" ), nullValue() );
+    assertThat( thinResultSet.getBinaryStream( "data" ), nullValue() );
+    assertThat( thinResultSet.next(), is( false ) );
+  }
+
+  @Test
+  public void testLazyDecode() throws Exception {
+    ValueMetaString unread = spy( new ValueMetaString( "unread" ) );
+    RowMeta lazyRowMeta = new RowMeta();
+    lazyRowMeta.addValueMeta( unread );
+    lazyRowMeta.addValueMeta( new ValueMetaInteger( "id" ) );
+    lazyRowMeta.addValueMeta( new ValueMetaNumber( "nullNumber" ) );
+    MockDataInput response = new MockDataInput();
+    lazyRowMeta.writeData( response, new Object[] { "first", 1L, null } );
+    lazyRowMeta.writeData( response, new Object[] { "second", 2L, null } );
+
+    resultHeader = new ThinResultHeader( "lazyTest", "serviceTrans", "", "sqlTrans", "", lazyRowMeta );
+    thinResultSet = new ThinResultSet( resultHeader, response.toDataInputStream(), client );
+
+    assertThat( thinResultSet.next(), is( true ) );
+    assertThat( thinResultSet.getLong( "id" ), is( 1L ) );
+    assertThat( thinResultSet.getDouble( "nullNumber" ), is( 0.0 ) );
+    assertThat( thinResultSet.wasNull(), is( true ) );
+
+    assertThat( thinResultSet.next(), is( true ) );
+    assertThat( thinResultSet.getLong( "id" ), is( 2L ) );
+    verify( unread, never() ).readData( any( DataInputStream.class ) );
+
+    assertThat( thinResultSet.getString( "unread" ), equalTo( "second" ) );
+    assertThat( thinResultSet.getCurrentRow(), equalTo( new Object[] { "second", 2L, null } ) );
+    verify( unread, times( 1 ) ).readData( any( DataInputStream.class ) );
+    assertThat( thinResultSet.next(), is( false ) );
+  }
+
+  @Test
+  public void testSampling() throws Exception {
+    RowMeta sampleRowMeta = new RowMeta();
+    sampleRowMeta.addValueMeta( new ValueMetaInteger( "id" ) );
+    MockDataInput response = new MockDataInput();
+    for ( long i = 0; i < 5; i++ ) {
+      sampleRowMeta.writeData( response, new Object[] { i } );
+    }
+    CountingDataInputStream responseStream = new CountingDataInputStream( response.toDataInputStream() );
+    responseStream.setResponseHeaders( ImmutableMap.of( RemoteClient.ROW_COUNT_ESTIMATE, "5000" ) );
+    when( client.query( "[ stop serviceId ]", 0 ) ).thenReturn( MockDataInput.stop().toDataInputStream() );
+
+    resultHeader = new ThinResultHeader( "sampleTest", "serviceTrans", "serviceId", "sqlTrans", "", sampleRowMeta );
+    thinResultSet = new ThinResultSet( resultHeader, responseStream, client );
+    thinResultSet.setSampling( new Sampling( Sampling.Method.UNIFORM, 2, 0 ) );
+
+    assertThat( thinResultSet.next(), is( true ) );
+    assertThat( thinResultSet.next(), is( true ) );
+    assertThat( thinResultSet.next(), is( false ) );
+    assertThat( thinResultSet.isTruncated(), is( true ) );
+    assertThat( thinResultSet.getEstimatedRowCount(), is( 5000L ) );
+    verify( client ).query( "[ stop serviceId ]", 0 );
+
+    // Without an estimate, only complete results are counted
+    response = new MockDataInput();
+    for ( long i = 0; i < 5; i++ ) {
+      sampleRowMeta.writeData( response, new Object[] { i } );
+    }
+    resultHeader = new ThinResultHeader( "sampleTest", "serviceTrans", "", "sqlTrans", "", sampleRowMeta );
+    thinResultSet = new ThinResultSet( resultHeader, new CountingDataInputStream( response.toDataInputStream() ),
+      client );
+    thinResultSet.setSampling( new Sampling( Sampling.Method.FIRST, 100, 1 ) );
+    assertThat( thinResultSet.next(), is( true ) );
+    assertThat( thinResultSet.next(), is( false ) );
+    assertThat( thinResultSet.getEstimatedRowCount(), is( -1L ) );
+
+    thinResultSet = new ThinResultSet( resultHeader, response.toDataInputStream(), client );
+    thinResultSet.setSampling( new Sampling( Sampling.Method.FIRST, 100, 0 ) );
+    while ( thinResultSet.next() ) {
+      assertThat( thinResultSet.getEstimatedRowCount(), is( -1L ) );
+    }
+    assertThat( thinResultSet.isTruncated(), is( false ) );
+    assertThat( thinResultSet.getEstimatedRowCount(), is( 5L ) );
+  }
+
+  @Test
+  public void testPartitioning() throws Exception {
+    RowMeta partitionRowMeta = new RowMeta();
+    partitionRowMeta.addValueMeta( new ValueMetaInteger( "id" ) );
+    resultHeader = new ThinResultHeader( "partitionTest", "serviceTrans", "", "sqlTrans", "", partitionRowMeta );
+    List<Object> read = Lists.newArrayList();
+    for ( int partition = 0; partition < 3; partition++ ) {
+      MockDataInput response = new MockDataInput();
+      for ( long i = 0; i < 10; i++ ) {
+        partitionRowMeta.writeData( response, new Object[] { i } );
+      }
+      thinResultSet = new ThinResultSet( resultHeader, response.toDataInputStream(), client );
+      thinResultSet.setPartitioning( new Partitioning( Partitioning.Method.HASH, "ID", partition, 3 ) );
+      while ( thinResultSet.next() ) {
+        assertThat( thinResultSet.getLong( 1 ) % 3, is( (long) partition ) );
+        read.add( thinResultSet.getObject( 1 ) );
+      }
+    }
+    // Every row is read by exactly one partition
+    assertThat( read.size(), is( 10 ) );
+    assertThat( ImmutableSet.copyOf( read ).size(), is( 10 ) );
+
+    // Rows already partitioned by the server are all returned
+    MockDataInput response = new MockDataInput();
+    partitionRowMeta.writeData( response, new Object[] { 1L } );
+    CountingDataInputStream responseStream = new CountingDataInputStream( response.toDataInputStream() );
+    responseStream.setResponseHeaders( ImmutableMap.of( RemoteClient.PARTITION, "0" ) );
+    thinResultSet = new ThinResultSet( resultHeader, responseStream, client );
+    thinResultSet.setPartitioning( new Partitioning( Partitioning.Method.HASH, "id", 0, 3 ) );
+    assertThat( thinResultSet.next(), is( true ) );
+
+    // Without a partition column, partitions other than the first are empty if the server can't partition
+    thinResultSet = new ThinResultSet( resultHeader, new MockDataInput().toDataInputStream(), client );
+    thinResultSet.setPartitioning( new Partitioning( Partitioning.Method.SERVER, null, 1, 3 ) );
+    assertThat( thinResultSet.next(), is( false ) );
+
+    try {
+      new ThinResultSet( resultHeader, response.toDataInputStream(), client )
+        .setPartitioning( new Partitioning( Partitioning.Method.HASH, "region", 0, 3 ) );
+      fail( "Partition column expected to be selected" );
+    } catch ( SQLException e ) {
+      assertThat( e.getMessage(), containsString( "region" ) );
+    }
+  }
+
+  @Test
+  public void testWatermark() throws Exception {
+    RowMeta watermarkRowMeta = new RowMeta();
+    watermarkRowMeta.addValueMeta( new ValueMetaInteger( "id" ) );
+    when( client.getServiceInformation() )
+      .thenReturn( ImmutableList.of( new ThinServiceInformation( "orders", watermarkRowMeta ) ) );
+    WatermarkStore store = mock( WatermarkStore.class );
+    resultHeader = new ThinResultHeader( "orders", "serviceTrans", "serviceId", "sqlTrans", "", watermarkRowMeta );
+    MockDataInput response = new MockDataInput();
+    watermarkRowMeta.writeData( response, new Object[] { 2L } );
+    MockDataInput failed = new MockDataInput();
+    failed.writeUTF( "true" );
+
+    // Rows of a service which then failed leave the watermark where it was
+    when( client.query( "[ errors serviceId ]", 0 ) ).thenReturn( failed.toDataInputStream() );
+    when( client.query( "[ stop serviceId ]", 0 ) ).thenReturn( MockDataInput.stop().toDataInputStream() );
+    thinResultSet = new ThinResultSet( resultHeader, response.toDataInputStream(), client );
+    thinResultSet.setWatermark( Watermark.plan( "SELECT id FROM orders", "id", store, client ) );
+    assertThat( thinResultSet.next(), is( true ) );
+    assertThat( thinResultSet.next(), is( false ) );
+    try {
+      thinResultSet.close();
+      fail( "Service errors expected to fail" );
+    } catch ( SQLException e ) {
+      verify( store, never() ).put( anyString(), anyString() );
+    }
+
+    when( client.query( "[ errors serviceId ]", 0 ) ).thenReturn( MockDataInput.errors().toDataInputStream() );
+    when( client.query( "[ stop serviceId ]", 0 ) ).thenReturn( MockDataInput.stop().toDataInputStream() );
+    thinResultSet = new ThinResultSet( resultHeader, response.toDataInputStream(), client );
+    thinResultSet.setWatermark( Watermark.plan( "SELECT id FROM orders", "id", store, client ) );
+    assertThat( thinResultSet.next(), is( true ) );
+    assertThat( thinResultSet.next(), is( false ) );
+    verify( store, never() ).put( anyString(), anyString() );
+    thinResultSet.close();
+    verify( store ).put( anyString(), eq( "2" ) );
+  }
+
+  @Test
+  public void testRowHandoff() throws Exception {
+    RowMeta handoffRowMeta = new RowMeta();
+    handoffRowMeta.addValueMeta( new ValueMetaInteger( "id" ) );
+    resultHeader = new ThinResultHeader( "handoffTest", "serviceTrans", "", "sqlTrans", "", handoffRowMeta );
+    final RowHandoff rowHandoff = new RowHandoff( resultHeader, 2, 1 );
+    thinResultSet = new ThinResultSet( rowHandoff, client );
+    assertThat( thinResultSet.getHeader(), sameInstance( resultHeader ) );
+
+    Thread producer = new Thread( new Runnable() {
+      @Override public void run() {
+        try {
+          for ( long i = 1; i <= 5; i++ ) {
+            rowHandoff.putRow( new Object[] { i } );
+          }
+          rowHandoff.finish();
+        } catch ( InterruptedException e ) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    } );
+    producer.start();
+
+    for ( long i = 1; i <= 5; i++ ) {
+      assertThat( thinResultSet.next(), is( true ) );
+      assertThat( thinResultSet.getLong( "id" ), is( i ) );
+    }
+    assertThat( thinResultSet.next(), is( false ) );
+    assertThat( thinResultSet.isAfterLast(), is( true ) );
+    producer.join();
+
+    thinResultSet.close();
+    assertThat( thinResultSet.isClosed(), is( true ) );
+    assertThat( rowHandoff.isClosed(), is( true ) );
+  }
+
+  @Test
+  public void testRowHandoffCancel() throws Exception {
+    RowMeta handoffRowMeta = new RowMeta();
+    handoffRowMeta.addValueMeta( new ValueMetaInteger( "id" ) );
+    resultHeader = new ThinResultHeader( "handoffTest", "serviceTrans", "", "sqlTrans", "", handoffRowMeta );
+    RowHandoff rowHandoff = new RowHandoff( resultHeader );
+    thinResultSet = new ThinResultSet( rowHandoff, client );
+    QueryHandle queryHandle = new QueryHandle();
+    queryHandle.attach( thinResultSet );
+
+    queryHandle.cancel();
+    assertThat( rowHandoff.isClosed(), is( true ) );
+    assertThat( rowHandoff.putRow( new Object[] { 1L } ), is( false ) );
+    try {
+      thinResultSet.next();
+      fail( "Expected cancellation" );
+    } catch ( SQLException e ) {
+      assertThat( e.getMessage(), containsStringIgnoringCase( "cancelled" ) );
+    }
+  }
+
   @Override protected ThinResultSet getTestObject() {
     return thinResultSet;
   }
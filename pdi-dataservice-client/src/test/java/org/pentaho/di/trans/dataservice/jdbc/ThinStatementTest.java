@@ -22,6 +22,8 @@
 
 package org.pentaho.di.trans.dataservice.jdbc;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -29,14 +31,24 @@ import org.mockito.Mock;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.mockito.stubbing.Answer;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
 import org.pentaho.di.trans.dataservice.client.DataServiceClientService;
+import org.pentaho.di.trans.dataservice.client.LocalDataServiceClientService;
+import org.pentaho.di.trans.dataservice.client.RowHandoff;
+import org.pentaho.di.trans.dataservice.jdbc.DataServiceTransport.Exchange;
 
 import java.io.DataInputStream;
+import java.io.InputStream;
 import java.lang.reflect.Method;
+import java.net.URI;
 import java.sql.Connection;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
 import java.sql.Statement;
 
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -47,10 +59,16 @@ import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -127,6 +145,198 @@ public class ThinStatementTest extends JDBCTestBase<ThinStatement> {
     verify( resultSet ).close();
   }
 
+  @Test
+  public void testLocalQuery() throws Exception {
+    LocalDataServiceClientService localClient = mock( LocalDataServiceClientService.class );
+    RowHandoff rowHandoff = new RowHandoff( header );
+    when( connection.getClientService() ).thenReturn( localClient );
+    when( localClient.queryRows( SQL, 32 ) ).thenReturn( rowHandoff );
+    when( resultFactory.loadResultSet( rowHandoff, localClient ) ).thenReturn( resultSet );
+
+    statement.setMaxRows( 32 );
+    assertThat( statement.executeQuery( SQL ), sameInstance( (ResultSet) resultSet ) );
+    verify( localClient, never() ).query( anyString(), anyInt() );
+    verify( resultSet ).setStatement( statement );
+  }
+
+  @Test
+  public void testQueryTrace() throws Exception {
+    ThinQueryTraceListener listener = mock( ThinQueryTraceListener.class );
+    when( connection.getQueryTraceListener() ).thenReturn( listener );
+    when( header.getSqlObjectId() ).thenReturn( "sqlId" );
+
+    assertThat( statement.isWrapperFor( ThinQueryTrace.class ), is( false ) );
+    statement.executeQuery( SQL );
+
+    ThinQueryTrace trace = statement.unwrap( ThinQueryTrace.class );
+    assertThat( trace.getSql(), equalTo( SQL ) );
+    assertThat( trace.getServiceObjectId(), equalTo( SERVICE_OBJECT_ID ) );
+    assertThat( trace.getSqlObjectId(), equalTo( "sqlId" ) );
+    assertThat( trace.hasReached( ThinQueryTrace.Phase.RESPONSE ), is( true ) );
+    assertThat( trace.hasReached( ThinQueryTrace.Phase.HEADER ), is( true ) );
+    verify( resultSet ).setTrace( trace );
+
+    SQLException failure = new SQLException( "expected" );
+    when( clientService.query( anyString(), anyInt() ) ).thenThrow( failure );
+    try {
+      statement.executeQuery( SQL );
+      fail();
+    } catch ( SQLException e ) {
+      assertThat( e, sameInstance( failure ) );
+    }
+    ThinQueryTrace failed = statement.unwrap( ThinQueryTrace.class );
+    assertThat( failed.isComplete(), is( true ) );
+    verify( listener ).queryCompleted( failed );
+  }
+
+  @Test
+  public void testUnion() throws Exception {
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "region" ) );
+    when( resultSet.getRowMeta() ).thenReturn( rowMeta );
+    when( resultSet.getMetaData() ).thenReturn( mock( ResultSetMetaData.class ) );
+
+    ResultSet union = statement.executeQuery( "SELECT region FROM east UNION ALL (SELECT region FROM west)" );
+    assertThat( union, instanceOf( UnionResultSet.class ) );
+    assertThat( statement.getResultSet(), sameInstance( union ) );
+    verify( clientService ).query( "SELECT region FROM east", -1 );
+    verify( clientService ).query( "SELECT region FROM west", -1 );
+    assertThat( union.next(), is( false ) );
+
+    union.close();
+    verify( resultSet, times( 2 ) ).close();
+  }
+
+  @Test
+  public void testJoinWithConcurrencyLimit() throws Exception {
+    ConcurrencyLimiter limiter = limitedClient();
+    when( resultSet.getMetaData() ).thenReturn( mock( ResultSetMetaData.class ) );
+
+    // Both services are read at once, under a single permit
+    ResultSet join = statement.executeQuery(
+      "SELECT o.id, c.name FROM orders o JOIN customers c ON o.customer = c.id" );
+    assertThat( join, instanceOf( JoinResultSet.class ) );
+    assertThat( limiter.getInFlight(), is( 1 ) );
+    assertThat( join.next(), is( false ) );
+    join.close();
+  }
+
+  @Test
+  public void testUnionWithConcurrencyLimit() throws Exception {
+    ConcurrencyLimiter limiter = limitedClient();
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "region" ) );
+    when( resultSet.getRowMeta() ).thenReturn( rowMeta );
+    when( resultSet.getMetaData() ).thenReturn( mock( ResultSetMetaData.class ) );
+
+    // Every branch is open at once, under a single permit
+    ResultSet union = statement.executeQuery( "SELECT region FROM orders UNION ALL SELECT region FROM customers "
+      + "UNION ALL SELECT region FROM orders" );
+    assertThat( union, instanceOf( UnionResultSet.class ) );
+    assertThat( limiter.getInFlight(), is( 1 ) );
+    assertThat( union.next(), is( false ) );
+    union.close();
+  }
+
+  /**
+   * Connect the statement to a server allowing a single query at a time, without waiting for another
+   */
+  private ConcurrencyLimiter limitedClient() throws Exception {
+    URI baseUri = URI.create( "http://localhost:9080/kettle/" );
+    DataServiceTransport transport = mock( DataServiceTransport.class );
+    Exchange exchange = mock( Exchange.class );
+    when( transport.open( anyString(), anyBoolean() ) ).thenReturn( exchange );
+    when( exchange.execute() ).thenReturn( 200 );
+    when( exchange.getResponseBody() ).then( new Answer<InputStream>() {
+      @Override public InputStream answer( InvocationOnMock invocation ) throws Throwable {
+        return MockDataInput.dual().toDataInputStream();
+      }
+    } );
+    when( connection.getBaseURI() ).thenReturn( baseUri );
+    when( connection.getParameters() ).thenReturn( ImmutableMap.<String, String>of() );
+
+    RowMeta orders = new RowMeta();
+    orders.addValueMeta( new ValueMetaInteger( "id" ) );
+    orders.addValueMeta( new ValueMetaInteger( "customer" ) );
+    orders.addValueMeta( new ValueMetaString( "region" ) );
+    RowMeta customers = new RowMeta();
+    customers.addValueMeta( new ValueMetaInteger( "id" ) );
+    customers.addValueMeta( new ValueMetaString( "name" ) );
+    customers.addValueMeta( new ValueMetaString( "region" ) );
+
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter( baseUri, 1, 0 );
+    RemoteClient remoteClient = spy( new RemoteClient( connection, transport ) );
+    remoteClient.setConcurrencyLimiters( ImmutableMap.of( baseUri, limiter ) );
+    doReturn( ImmutableList.of(
+      new ThinServiceInformation( "orders", orders ),
+      new ThinServiceInformation( "customers", customers ) ) ).when( remoteClient ).getServiceInformation();
+    when( connection.getClientService() ).thenReturn( remoteClient );
+    return limiter;
+  }
+
+  @Test
+  public void testIncrementalPartitioned() throws Exception {
+    when( connection.getPartitioning() ).thenReturn( new Partitioning( Partitioning.Method.HASH, "id", 0, 2 ) );
+    statement.setWatermark( "id" );
+    try {
+      statement.executeQuery( SQL );
+      fail( "Partitioned incremental query expected to fail" );
+    } catch ( SQLFeatureNotSupportedException e ) {
+      verify( clientService, never() ).query( anyString(), anyInt() );
+    }
+  }
+
+  @Test
+  public void testCancel() throws Exception {
+    statement.cancel();
+
+    statement.executeQuery( SQL );
+    verify( resultSet ).setQueryHandle( any( QueryHandle.class ) );
+
+    statement.cancel();
+    verify( resultSet ).cancel();
+    verify( resultSet, never() ).close();
+  }
+
+  @Test
+  public void testQueryTimeout() throws Exception {
+    try {
+      statement.setQueryTimeout( -1 );
+      fail();
+    } catch ( SQLException e ) {
+      assertThat( statement.getQueryTimeout(), equalTo( 0 ) );
+    }
+
+    statement.setQueryTimeout( 1 );
+    statement.executeQuery( SQL );
+    verify( resultSet, timeout( 5000 ) ).cancel();
+  }
+
+  @Test
+  public void testQueryTimeoutBeforeResponse() throws Exception {
+    final RemoteClient remoteClient = mock( RemoteClient.class );
+    when( connection.getClientService() ).thenReturn( remoteClient );
+    when( remoteClient.query( eq( SQL ), any( QueryOptions.class ), any( QueryHandle.class ) ) )
+      .then( new Answer<DataInputStream>() {
+        @Override public DataInputStream answer( InvocationOnMock invocation ) throws Throwable {
+          QueryHandle queryHandle = (QueryHandle) invocation.getArguments()[2];
+          // Block as a stuck server would, until the handle is cancelled
+          for ( int i = 0; i < 100 && !queryHandle.isCancelled(); i++ ) {
+            Thread.sleep( 100 );
+          }
+          throw new SQLException( "Request aborted" );
+        }
+      } );
+
+    statement.setQueryTimeout( 1 );
+    try {
+      statement.executeQuery( SQL );
+      fail();
+    } catch ( SQLException e ) {
+      assertThat( e, instanceOf( SQLTimeoutException.class ) );
+    }
+  }
+
   @Test
   public void testGetMoreResults() throws Exception {
     try {
@@ -171,7 +381,7 @@ public class ThinStatementTest extends JDBCTestBase<ThinStatement> {
     assertThat( statement.isPoolable(), equalTo( false ) );
 
     statement.setQueryTimeout( 1000 );
-    assertThat( statement.getQueryTimeout(), equalTo( 0 ) );
+    assertThat( statement.getQueryTimeout(), equalTo( 1000 ) );
 
     statement.closeOnCompletion();
     assertThat( statement.isCloseOnCompletion(), equalTo( false ) );
@@ -0,0 +1,176 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * HTTP/1.1 server listening on a Unix domain socket file, such as a reverse proxy in front of a Kettle server, which
+ * answers the requests of each connection in turn
+ */
+class UnixHttpServerStub {
+  interface Handler {
+    /**
+     * @return status code of the response, whose body is written to {@code body}
+     */
+    int handle( Request request, OutputStream body ) throws Exception;
+  }
+
+  static class Request {
+    final String method;
+    final String path;
+    final Map<String, String> headers = Maps.newHashMap();
+    final Map<String, String> parameters = Maps.newHashMap();
+
+    Request( String requestLine, DataInputStream input ) throws IOException {
+      List<String> parts = Splitter.on( ' ' ).splitToList( requestLine );
+      method = parts.get( 0 );
+      path = Splitter.on( '?' ).split( parts.get( 1 ) ).iterator().next();
+      for ( String line = readLine( input ); !line.isEmpty(); line = readLine( input ) ) {
+        int colon = line.indexOf( ':' );
+        headers.put( line.substring( 0, colon ).trim(), line.substring( colon + 1 ).trim() );
+      }
+      if ( headers.containsKey( "Content-Length" ) ) {
+        byte[] body = new byte[ Integer.parseInt( headers.get( "Content-Length" ) ) ];
+        input.readFully( body );
+        for ( String pair : Splitter.on( '&' ).omitEmptyStrings().split( new String( body, Charsets.UTF_8 ) ) ) {
+          int equals = pair.indexOf( '=' );
+          parameters.put( decode( pair.substring( 0, equals ) ), decode( pair.substring( equals + 1 ) ) );
+        }
+      }
+    }
+
+    private static String decode( String s ) throws IOException {
+      return URLDecoder.decode( s, Charsets.UTF_8.name() );
+    }
+  }
+
+  final List<Request> requests = Collections.synchronizedList( Lists.<Request>newArrayList() );
+  private final List<SocketChannel> connections = Collections.synchronizedList( Lists.<SocketChannel>newArrayList() );
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final Handler handler;
+  private ServerSocketChannel serverChannel;
+
+  UnixHttpServerStub( Handler handler ) {
+    this.handler = handler;
+  }
+
+  UnixHttpServerStub listen( String socketPath ) throws IOException {
+    serverChannel = UnixSocketTransport.open( ServerSocketChannel.class );
+    serverChannel.bind( UnixSocketTransport.address( socketPath ) );
+    executor.execute( new Runnable() {
+      @Override public void run() {
+        try {
+          while ( true ) {
+            final SocketChannel channel = serverChannel.accept();
+            connections.add( channel );
+            executor.execute( new Runnable() {
+              @Override public void run() {
+                try {
+                  serve( Channels.newInputStream( channel ), Channels.newOutputStream( channel ) );
+                } catch ( Exception e ) {
+                  // Connection closed
+                }
+              }
+            } );
+          }
+        } catch ( IOException e ) {
+          // Stopped
+        }
+      }
+    } );
+    return this;
+  }
+
+  int getConnectionCount() {
+    return connections.size();
+  }
+
+  /**
+   * Answer the requests of one connection until it is closed
+   */
+  void serve( InputStream in, OutputStream out ) throws Exception {
+    DataInputStream input = new DataInputStream( new BufferedInputStream( in ) );
+    OutputStream output = new BufferedOutputStream( out );
+    for ( String requestLine = readLine( input ); requestLine != null; requestLine = readLine( input ) ) {
+      Request request = new Request( requestLine, input );
+      requests.add( request );
+
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      int status = handler.handle( request, body );
+      String head = "HTTP/1.1 " + status + " Stub\r\n"
+        + "Content-Type: application/octet-stream\r\n"
+        + "Content-Length: " + body.size() + "\r\n\r\n";
+      output.write( head.getBytes( Charsets.US_ASCII ) );
+      body.writeTo( output );
+      output.flush();
+    }
+  }
+
+  /**
+   * @return the next line, without its CRLF, or null at the end of the stream
+   */
+  private static String readLine( InputStream input ) throws IOException {
+    StringBuilder line = new StringBuilder();
+    for ( int c = input.read(); c != '\n'; c = input.read() ) {
+      if ( c < 0 ) {
+        return null;
+      }
+      if ( c != '\r' ) {
+        line.append( (char) c );
+      }
+    }
+    return line.toString();
+  }
+
+  void stop() throws IOException {
+    if ( serverChannel != null ) {
+      serverChannel.close();
+    }
+    for ( SocketChannel connection : Lists.newArrayList( connections ) ) {
+      connection.close();
+    }
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,135 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.pentaho.di.cluster.SlaveConnectionManager;
+import org.pentaho.di.trans.dataservice.jdbc.DataServiceTransport.Exchange;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Connections to a stand-in HTTP server listening on a socket file, on runtimes supporting Unix domain sockets
+ */
+public class UnixSocketTransportTest {
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+  final CountDownLatch released = new CountDownLatch( 1 );
+  MultiThreadedHttpConnectionManager httpConnectionManager = new MultiThreadedHttpConnectionManager();
+  UnixHttpServerStub server;
+  String socketPath;
+
+  @Before
+  public void setUp() throws Exception {
+    assumeTrue( UnixSocketTransport.isSupported() );
+    socketPath = new File( temporaryFolder.getRoot(), "pdi.sock" ).getPath();
+    server = new UnixHttpServerStub( new UnixHttpServerStub.Handler() {
+      @Override public int handle( UnixHttpServerStub.Request request, OutputStream body ) throws Exception {
+        if ( request.path.endsWith( "/status" ) ) {
+          body.write( "kettle status".getBytes( "UTF-8" ) );
+        } else {
+          if ( request.parameters.get( "SQL" ).contains( "slow" ) ) {
+            released.await( 10, TimeUnit.SECONDS );
+          }
+          ByteStreams.copy( MockDataInput.dual().toDataInputStream(), body );
+        }
+        return 200;
+      }
+    } ).listen( socketPath );
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    released.countDown();
+    if ( server != null ) {
+      server.stop();
+    }
+    httpConnectionManager.shutdown();
+  }
+
+  @Test
+  public void testQuery() throws Exception {
+    SlaveConnectionManager connectionManager = mock( SlaveConnectionManager.class );
+    when( connectionManager.createHttpClient() ).thenReturn( new HttpClient( httpConnectionManager ) );
+    ThinConnection connection = new ThinConnection.Builder( connectionManager )
+      .parseUrl( "jdbc:pdi:unix://" + socketPath + "?user=user&password=secret" )
+      .build();
+    RemoteClient client = (RemoteClient) connection.getClientService();
+
+    assertThat( client.execService( "/status" ), equalTo( "kettle status" ) );
+    DataInputStream response = client.query( "SELECT * FROM dual", 0 );
+    assertThat( response.readUTF(), equalTo( "dual" ) );
+    response.close();
+    connection.close();
+
+    UnixHttpServerStub.Request status = server.requests.get( 0 );
+    assertThat( status.method, equalTo( "GET" ) );
+    assertThat( status.path, equalTo( "/kettle/status" ) );
+    assertThat( status.headers.get( "Host" ), equalTo( UnixSocketTransport.HOST ) );
+    assertThat( status.headers.get( "Authorization" ),
+      equalTo( "Basic " + BaseEncoding.base64().encode( "user:secret".getBytes( Charsets.UTF_8 ) ) ) );
+
+    UnixHttpServerStub.Request query = server.requests.get( 1 );
+    assertThat( query.method, equalTo( "POST" ) );
+    assertThat( query.path, equalTo( "/kettle/sql/" ) );
+    assertThat( query.parameters.get( "SQL" ), equalTo( "SELECT * FROM dual" ) );
+    // Both requests were sent on one pooled connection
+    assertThat( server.getConnectionCount(), is( 1 ) );
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    UnixSocketTransport transport = new UnixSocketTransport( socketPath, new HttpClient( httpConnectionManager ) );
+    Exchange exchange = transport.open( "http://localhost/kettle/sql/", true );
+    exchange.addParameter( "SQL", "SELECT * FROM dual WHERE slow" );
+    exchange.setSocketTimeout( 100 );
+    try {
+      exchange.execute();
+      fail( "Expected the request to time out" );
+    } catch ( SocketTimeoutException e ) {
+      exchange.abort();
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2016 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+
+package org.pentaho.di.trans.dataservice.jdbc;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.trans.dataservice.client.DataServiceClientService;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
+
+@RunWith( MockitoJUnitRunner.class )
+public class WatermarkTest {
+  private static final String SQL = "SELECT id, name FROM orders WHERE amount > 10 ORDER BY name";
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+  @Mock DataServiceClientService client;
+  RowMetaInterface rowMeta;
+  WatermarkStore store;
+
+  @Before
+  public void setUp() throws Exception {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaInteger( "id" ) );
+    rowMeta.addValueMeta( new ValueMetaString( "name" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "amount" ) );
+    when( client.getServiceInformation() ).thenReturn( ImmutableList.of(
+      new ThinServiceInformation( "orders", rowMeta ) ) );
+    store = new WatermarkStore( new File( temporaryFolder.getRoot(), WatermarkStore.DEFAULT_FILE_NAME ) );
+  }
+
+  @Test
+  public void testIncremental() throws Exception {
+    // The first run returns every row
+    Watermark watermark = Watermark.plan( SQL, "ID", store, client );
+    assertThat( watermark.getSql(), equalTo( SQL ) );
+    assertThat( watermark.getColumn(), equalTo( "id" ) );
+
+    watermark.attach( rowMeta );
+    watermark.rowRead( new Object[] { 3L, "a", 20L } );
+    watermark.rowRead( new Object[] { 7L, "b", 20L } );
+    watermark.rowRead( new Object[] { null, "c", 20L } );
+    watermark.rowRead( new Object[] { 5L, "d", 20L } );
+    watermark.commit();
+
+    assertThat( Watermark.plan( SQL, "id", store, client ).getSql(), equalTo(
+      "SELECT id, name FROM \"orders\" \"orders\" WHERE ( amount > 10 ) AND \"id\" > 7 ORDER BY name" ) );
+    // Read by another connection to the same file
+    WatermarkStore other = new WatermarkStore( store.getFile() );
+    assertThat( Watermark.plan( SQL, "id", other, client ).getSql(), containsString( "\"id\" > 7" ) );
+
+    // Other queries and columns have their own watermarks
+    assertThat( Watermark.plan( "SELECT * FROM orders", "id", store, client ).getSql(),
+      equalTo( "SELECT * FROM orders" ) );
+    assertThat( Watermark.plan( SQL, "name", store, client ).getSql(), equalTo( SQL ) );
+  }
+
+  @Test
+  public void testStringWatermark() throws Exception {
+    Watermark watermark = Watermark.plan( "SELECT * FROM orders o", "name", store, client );
+    watermark.attach( rowMeta );
+    watermark.rowRead( new Object[] { 1L, "b", 20L } );
+    watermark.rowRead( new Object[] { 2L, "a", 20L } );
+    watermark.commit();
+
+    assertThat( Watermark.plan( "SELECT * FROM orders o", "name", store, client ).getSql(),
+      equalTo( "SELECT * FROM \"orders\" \"o\" WHERE \"name\" > 'b'" ) );
+  }
+
+  @Test
+  public void testEmptyResults() throws Exception {
+    Watermark watermark = Watermark.plan( SQL, "id", store, client );
+    watermark.attach( rowMeta );
+    watermark.commit();
+
+    assertThat( Watermark.plan( SQL, "id", store, client ).getSql(), equalTo( SQL ) );
+    assertThat( store.getFile().exists(), is( false ) );
+  }
+
+  @Test
+  public void testLimit() throws Exception {
+    try {
+      Watermark.plan( SQL + " LIMIT 5", "id", store, client );
+      fail( "Limited incremental query expected to fail" );
+    } catch ( SQLFeatureNotSupportedException e ) {
+      assertThat( e.getMessage(), containsString( "LIMIT" ) );
+    }
+  }
+
+  @Test
+  public void testInvalidColumn() throws Exception {
+    try {
+      Watermark.plan( SQL, "updated", store, client );
+      fail( "Unknown watermark column expected to fail" );
+    } catch ( SQLException e ) {
+      assertThat( e.getMessage(), equalTo( "Watermark column updated is not a field of service orders" ) );
+    }
+
+    RowMetaInterface selected = new RowMeta();
+    selected.addValueMeta( new ValueMetaString( "name" ) );
+    try {
+      Watermark.plan( SQL, "id", store, client ).attach( selected );
+      fail( "Watermark column expected to be selected" );
+    } catch ( SQLException e ) {
+      assertThat( e.getMessage(), containsString( "must be selected" ) );
+    }
+  }
+}